@@ -0,0 +1,21 @@
+package apriorit.vpnclient;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Source of time for the data plane, SystemClock.elapsedRealtime() on a device.
+ */
+interface Clock {
+    /** Monotonic time of the JVM, it stops while the device sleeps */
+    Clock MONOTONIC = new Clock() {
+        @Override
+        public long now() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        }
+    };
+
+    /**
+     * @return monotonic time in milliseconds
+     */
+    long now();
+}
@@ -15,23 +15,32 @@ class ConnectRecvCallback implements WolfSSLIORecvCallback
 
         if (doDTLS == 1) {
 
-            int dtlsTimeout;
-            DatagramSocket dsock;
-            DatagramPacket recvPacket;
-
             try {
-                dtlsTimeout = ssl.dtlsGetCurrentTimeout() * 1000;
-                dsock = ioctx.getDatagramSocket();
-                dsock.setSoTimeout(dtlsTimeout);
-                recvPacket = new DatagramPacket(buf, sz);
-
-                dsock.receive(recvPacket);
+                // Wait up to the DTLS retransmission timeout, repeating the knock
+                // in between while the server has not replied yet.
+                int timeout = ssl.dtlsGetCurrentTimeout() * 1000;
+                long deadline = ioctx.getClock().now() + timeout;
+                while (true) {
+                    int wait = Math.max(1, ioctx.knockWait(timeout));
+                    try {
+                        ioctx.setReceiveTimeout(wait);
+                        if (ioctx.awaitInput(wait)) {
+                            int received = ioctx.receive(buf, sz);
+                            if (received > 0) {
+                                ioctx.onHandshakeInput();
+                                return received;
+                            }
+                        }
+                    } catch (SocketTimeoutException ste) {
+                        // nothing came within this wait
+                    }
+                    timeout = (int) (deadline - ioctx.getClock().now());
+                    if (timeout <= 0) {
+                        return WolfSSL.WOLFSSL_CBIO_ERR_TIMEOUT;
+                    }
+                    ioctx.knockIfDue();
+                }
 
-                ioctx.setAddress(recvPacket.getAddress());
-                ioctx.setPort(recvPacket.getPort());
-
-            } catch (SocketTimeoutException ste) {
-                return WolfSSL.WOLFSSL_CBIO_ERR_TIMEOUT;
             } catch (SocketException se) {
                 se.printStackTrace();
                 return WolfSSL.WOLFSSL_CBIO_ERR_GENERAL;
@@ -43,8 +52,6 @@ class ConnectRecvCallback implements WolfSSLIORecvCallback
                 return WolfSSL.WOLFSSL_CBIO_ERR_GENERAL;
             }
 
-            return recvPacket.getLength();
-
         } else {
             DataInputStream is = ioctx.getInputStream();
             if (is == null) {
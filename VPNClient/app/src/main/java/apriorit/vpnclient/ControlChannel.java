@@ -0,0 +1,275 @@
+package apriorit.vpnclient;
+
+import static apriorit.vpnclient.PacketBufferPool.CONTROL_PACKET_SIZE;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import apriorit.vpnclient.PacketBufferPool.Lease;
+import apriorit.vpnclient.PacketBufferPool.Owner;
+
+/**
+ * The {@link ControlChannel} class<br>
+ * Control messages of an established DTLS session: the exchange of options and
+ * parameters, the join of further sessions to the tunnel, the path MTU report and
+ * WANT_DISCONNECT.<br>
+ * Control protocol v2: a request is the control message after a header of zero,
+ * {@link SpecialPacket#CONTROL} and a 2-byte sequence number. It is sent once and
+ * repeated only if the ack (the answer after {@link SpecialPacket#CONTROL_ACK} and the
+ * same number) does not come within the retransmission timeout, which doubles with
+ * every repeat until the deadline of the request.<br>
+ * Servers of v1 answer the options with plain parameters (or JOINED), the channel then
+ * falls back to sending the later messages several times without waiting.
+ * It does not use Android classes, the connection of the app and the headless
+ * client share it.
+ */
+final class ControlChannel {
+    /** Zero, CONTROL or CONTROL_ACK, 2-byte sequence number */
+    static final int HEADER_SIZE = 4;
+
+    static final int INITIAL_RTO_MS = 250;
+    static final int MAX_RTO_MS = 2000;
+    /** Deadline of the requests which set up the tunnel */
+    static final long SETUP_TIMEOUT_MS = 8000;
+    /** Deadline of WANT_DISCONNECT, the tunnel is torn down anyway */
+    static final long TEARDOWN_TIMEOUT_MS = 1000;
+
+    /** Messages to v1 servers are sent several times in case of packet loss */
+    private static final int LEGACY_REPEATS = 4;
+
+    /** Plain answers of v1 servers accepted instead of an ack */
+    private enum Legacy { NONE, PARAMETERS, JOINED }
+
+    private final RecordTransport transport;
+    private final PacketBufferPool pool;
+    private final Clock clock;
+    private final MetricsRegistry.Counter controlOut;
+    private final MetricsRegistry.Counter controlIn;
+    private final MetricsRegistry.Counter retransmits;
+
+    private int nextSeq = 1;
+    private boolean legacy = false;
+
+    /**
+     * @param transport - records of the established session, which do not go
+     *                    through a pipeline yet or anymore
+     */
+    ControlChannel(RecordTransport transport, PacketBufferPool pool, Clock clock,
+                   MetricsRegistry metrics) {
+        this.transport = transport;
+        this.pool = pool;
+        this.clock = clock;
+        controlOut = metrics.counter(MetricsRegistry.CONTROL_OUT);
+        controlIn = metrics.counter(MetricsRegistry.CONTROL_IN);
+        retransmits = metrics.counter(MetricsRegistry.CONTROL_RETRANSMITS);
+    }
+
+    /**
+     * @return true if the server answered without acks, it speaks control protocol v1
+     */
+    boolean isLegacy() {
+        return legacy;
+    }
+
+    /**
+     * Announces the options of this client and receives the configuration of the
+     * tunnel: client's tunnel IP address, packet MTU and routing rules.
+     * @param framing - announce {@link TunnelParameters#OPTION_FRAMING} to the server
+     * @return - parameters for {@link TunnelParameters#parse(String)}
+     * @throws IOException - thrown if the server did not answer within SETUP_TIMEOUT_MS
+     */
+    String exchangeParameters(boolean framing) throws IOException {
+        Lease request = pool.acquire(Owner.CONTROL);
+        Lease answer = pool.acquire(Owner.CONTROL);
+        try {
+            int length = request(request.data, putOptions(request.data, framing, null),
+                                 answer.data, SETUP_TIMEOUT_MS, Legacy.PARAMETERS);
+            if (length < 0) {
+                throw new IOException("Timed out");
+            }
+            return new String(answer.data, 1, length - 1, US_ASCII).trim();
+        } finally {
+            pool.release(answer);
+            pool.release(request);
+        }
+    }
+
+    /**
+     * Makes this session carry packets of the tunnel set up by another one.
+     * @param framing - announce {@link TunnelParameters#OPTION_FRAMING} to the server
+     * @param token   - {@link TunnelParameters#joinToken} of the first session
+     * @throws IOException - thrown if the server refused the join or did not answer
+     *                       within SETUP_TIMEOUT_MS
+     */
+    void join(boolean framing, String token) throws IOException {
+        Lease request = pool.acquire(Owner.CONTROL);
+        Lease answer = pool.acquire(Owner.CONTROL);
+        try {
+            // The server answers with the parameters of this session if it does not know the token.
+            int length = request(request.data, putOptions(request.data, framing, token),
+                                 answer.data, SETUP_TIMEOUT_MS, Legacy.JOINED);
+            if (length != 2 || answer.data[1] != (byte) SpecialPacket.JOINED.ordinal()) {
+                throw new IOException("Server did not join the session to the tunnel");
+            }
+        } finally {
+            pool.release(answer);
+            pool.release(request);
+        }
+    }
+
+    /**
+     * Tells the server the path MTU found by the client.
+     * @throws IOException - thrown if the server did not acknowledge it within SETUP_TIMEOUT_MS
+     */
+    void reportPathMtu(int pathMtu) throws IOException {
+        Lease request = pool.acquire(Owner.CONTROL);
+        Lease answer = pool.acquire(Owner.CONTROL);
+        try {
+            byte[] message = request.data;
+            message[HEADER_SIZE] = 0;
+            message[HEADER_SIZE + 1] = (byte) SpecialPacket.MTU_SET.ordinal();
+            message[HEADER_SIZE + 2] = (byte) (pathMtu >> 8);
+            message[HEADER_SIZE + 3] = (byte) pathMtu;
+            if (legacy) {
+                sendRepeated(message, 4);
+            } else if (request(message, 4, answer.data, SETUP_TIMEOUT_MS, Legacy.NONE) < 0) {
+                throw new IOException("Server did not confirm the path MTU");
+            }
+        } finally {
+            pool.release(answer);
+            pool.release(request);
+        }
+    }
+
+    /**
+     * Tells the server that the client disconnects, the server closes the session at once.
+     * Waits for the ack at most TEARDOWN_TIMEOUT_MS, errors of the session are ignored.
+     */
+    void disconnect() {
+        Lease request = pool.acquire(Owner.CONTROL);
+        Lease answer = pool.acquire(Owner.CONTROL);
+        try {
+            byte[] message = request.data;
+            message[HEADER_SIZE] = 0;
+            message[HEADER_SIZE + 1] = (byte) SpecialPacket.WANT_DISCONNECT.ordinal();
+            if (legacy) {
+                sendRepeated(message, 2);
+            } else {
+                request(message, 2, answer.data, TEARDOWN_TIMEOUT_MS, Legacy.NONE);
+            }
+        } catch (IOException e) {
+            // The server may have closed the session already.
+        } finally {
+            pool.release(answer);
+            pool.release(request);
+        }
+    }
+
+    /**
+     * Writes the options of this client at HEADER_SIZE: zero and the options in the
+     * format of server parameters, the server ignores unknown ones.
+     * @param token - join token, null for the first session
+     * @return length of the message
+     */
+    private static int putOptions(byte[] buf, boolean framing, String token) {
+        ByteBuffer message = ByteBuffer.wrap(buf, HEADER_SIZE, CONTROL_PACKET_SIZE - HEADER_SIZE);
+        message.put((byte) 0);
+        if (framing) {
+            message.put(("o," + TunnelParameters.OPTION_FRAMING).getBytes(US_ASCII));
+        }
+        if (token != null) {
+            // v1 servers look for the token after a space.
+            message.put((" j," + token).getBytes(US_ASCII));
+        }
+        return message.position() - HEADER_SIZE;
+    }
+
+    /**
+     * Sends a message of v1, which has no ack, several times in case of packet loss.
+     * @param buf - the message at HEADER_SIZE
+     */
+    private void sendRepeated(byte[] buf, int length) throws IOException {
+        System.arraycopy(buf, HEADER_SIZE, buf, 0, length);
+        for (int i = 0; i < LEGACY_REPEATS; ++i) {
+            transport.write(buf, length);
+        }
+        controlOut.add(LEGACY_REPEATS);
+    }
+
+    /**
+     * Sends the request and waits for its ack, repeating the request on timeout.
+     * @param request - the message at HEADER_SIZE, the header is written before it
+     * @param length  - message length
+     * @param answer  - receives the answer message without the header
+     * @param timeout - deadline of the request in milliseconds
+     * @param accept  - plain answer of v1 servers which ends the request as well
+     * @return answer length, -1 if the deadline has passed
+     */
+    private int request(byte[] request, int length, byte[] answer, long timeout, Legacy accept)
+            throws IOException {
+        final int seq = nextSeq;
+        nextSeq = (nextSeq + 1) & 0xFFFF;
+        request[0] = 0;
+        request[1] = (byte) SpecialPacket.CONTROL.ordinal();
+        request[2] = (byte) (seq >> 8);
+        request[3] = (byte) seq;
+
+        long now = clock.now();
+        final long deadline = now + timeout;
+        long rto = INITIAL_RTO_MS;
+        long retransmitAt = now;
+        boolean sent = false;
+        while (true) {
+            if (now >= retransmitAt) {
+                if (now >= deadline) {
+                    return -1;
+                }
+                transport.write(request, HEADER_SIZE + length);
+                controlOut.increment();
+                if (sent) {
+                    retransmits.increment();
+                }
+                sent = true;
+                retransmitAt = Math.min(now + rto, deadline);
+                rto = Math.min(2 * rto, MAX_RTO_MS);
+            }
+
+            int received = transport.read(answer, CONTROL_PACKET_SIZE);
+            if (received <= 0) {
+                transport.await((int) Math.max(1, retransmitAt - now));
+                now = clock.now();
+                continue;
+            }
+            now = clock.now();
+            if (received < 2 || answer[0] != 0) {
+                // a packet of the tunnel, the server may still send them
+                continue;
+            }
+            controlIn.increment();
+            if (received > HEADER_SIZE && answer[1] == (byte) SpecialPacket.CONTROL_ACK.ordinal()
+                    && ((answer[2] & 0xFF) << 8 | (answer[3] & 0xFF)) == seq) {
+                // Acks of earlier copies of the request have other numbers.
+                legacy = false;
+                System.arraycopy(answer, HEADER_SIZE, answer, 0, received - HEADER_SIZE);
+                return received - HEADER_SIZE;
+            }
+            if (isLegacyAnswer(answer, received, accept)) {
+                legacy = true;
+                return received;
+            }
+        }
+    }
+
+    private static boolean isLegacyAnswer(byte[] packet, int length, Legacy accept) {
+        switch (accept) {
+            case PARAMETERS:
+                // Parameters are text, types of the other messages are small numbers.
+                return packet[1] >= 'a' && packet[1] <= 'z';
+            case JOINED:
+                return length == 2 && packet[1] == (byte) SpecialPacket.JOINED.ordinal();
+            default:
+                return false;
+        }
+    }
+}
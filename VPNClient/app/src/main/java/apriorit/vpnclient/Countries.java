@@ -1,7 +1,7 @@
 package apriorit.vpnclient;
 
-
-
+import java.util.ArrayList;
+import java.util.List;
 
 public class Countries {
     private CountryObject[] countries;
@@ -64,4 +64,23 @@ public class Countries {
         }
         return result;
     }
-}
\ No newline at end of file
+
+    /**
+     * @return endpoints of all real servers for the "auto" entry to choose from
+     */
+    public String getProbeTargets() {
+        List<ServerProber.Target> targets = new ArrayList<>();
+        for (CountryObject country : countries) {
+            if (country.isAuto()) {
+                continue;
+            }
+            try {
+                targets.add(new ServerProber.Target(country.getIpAddr(),
+                                                    Integer.parseInt(country.getPort())));
+            } catch (NumberFormatException e) {
+                // a custom server with a bad port is never chosen
+            }
+        }
+        return ServerProber.encodeTargets(targets);
+    }
+}
@@ -1,6 +1,9 @@
 package apriorit.vpnclient;
 
 public class CountryObject {
+    /** Address of the entry which connects to the fastest of the other servers */
+    public static final String AUTO_ADDRESS = "auto";
+
     private int    flagId;
     private String countryName;
     private String ipAddr;
@@ -25,6 +28,8 @@ public class CountryObject {
     public String getIpAddr()      { return ipAddr;      }
     public String getPort()        { return port;        }
 
+    public boolean isAuto()        { return AUTO_ADDRESS.equals(ipAddr); }
+
     public void setFlagId(int num)         {  this.flagId = num;      }
     public void setCountryName(String str) {  this.countryName = str; }
     public void setIpAddr(String str)      {  this.ipAddr = str;      }
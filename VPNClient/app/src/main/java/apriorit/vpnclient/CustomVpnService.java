@@ -4,6 +4,10 @@ import android.app.Notification;
 import android.app.PendingIntent;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.Handler;
@@ -12,13 +16,22 @@ import android.os.Message;
 import android.os.Messenger;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Pair;
 import android.widget.Toast;
 
 import com.wolfssl.WolfSSLException;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.DatagramSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -40,8 +53,9 @@ public class CustomVpnService /* renamed from 'VpnService' */ extends android.ne
     public boolean service_can_be_closed = false;
     private boolean already_show_connect = false;
     public ParcelFileDescriptor old_vpn_interface = null;
+    /** Parameters old_vpn_interface was established with */
+    public String old_vpn_parameters = null;
 
-    private int reconnect_count = 0;
     private boolean interrupt = false;
 
     /**
@@ -53,6 +67,10 @@ public class CustomVpnService /* renamed from 'VpnService' */ extends android.ne
             // Return this instance of LocalService so clients can call public methods
             return CustomVpnService.this;
         }
+
+        MetricsRegistry getMetrics() {
+            return mMetrics;
+        }
     }
 
     @Override
@@ -84,13 +102,23 @@ public class CustomVpnService /* renamed from 'VpnService' */ extends android.ne
         interrupt = true;
         SetDisconnectMessage(signal);
         disconnect();
+        stopStandby();
+        stopMetricsDump();
+        closeVpnInterface();
+    }
 
+    /**
+     * Closes the tun interface kept for reconnects.
+     */
+    public synchronized void closeVpnInterface() {
         if(old_vpn_interface != null) {
             try {
                 old_vpn_interface.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
+            old_vpn_interface = null;
+            old_vpn_parameters = null;
         }
     }
 
@@ -122,8 +150,99 @@ public class CustomVpnService /* renamed from 'VpnService' */ extends android.ne
         }
     }
 
+    private static class Standby extends Pair<VpnConnection, Thread> {
+        public Standby(VpnConnection connection, Thread thread) {
+            super(connection, thread);
+        }
+    }
+
     private final AtomicReference<Thread> mConnectingThread = new AtomicReference<>();
     private final AtomicReference<Connection> mConnection = new AtomicReference<>();
+    private final AtomicReference<VpnConnection> mVpnConnection = new AtomicReference<>();
+    /** Hot standby session to another server, null if it is disabled or not started */
+    private final AtomicReference<Standby> mStandby = new AtomicReference<>();
+
+    /** Delay before a lost standby connection is set up again */
+    private static final long STANDBY_RETRY_MS = 30000;
+
+    private final Runnable mStandbyTask = new Runnable() {
+        @Override
+        public void run() {
+            startStandby();
+        }
+    };
+
+    /** Packet buffers reused by every connection and reconnect of this service */
+    private final PacketBufferPool mBufferPool = new PacketBufferPool(TunnelParameters.DEFAULT_MTU);
+
+    /** Counters of all connections of this service */
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+
+    /** DTLS sessions resumed by reconnects */
+    private final DtlsSessionCache mSessionCache = new DtlsSessionCache();
+
+    /** Keepalive interval learned for the current network */
+    private final KeepaliveScheduler mKeepalive = new KeepaliveScheduler();
+
+    /** Path MTUs found per network and server */
+    private final PathMtuDiscovery mPathMtuDiscovery = new PathMtuDiscovery();
+
+    /** DNS responses of the tunnel resolvers, reused by reconnects */
+    private final DnsCache mDnsCache = new DnsCache(mMetrics);
+
+    /* split tunnelling lists compiled for the preferences in mRouteSetPrefs */
+    private RouteSetCompiler mRouteSet = null;
+    private String mRouteSetPrefs = null;
+
+    /** File in the app files dir where metrics are appended while connected */
+    public static final String METRICS_FILE = "metrics.csv";
+    private static final long METRICS_DUMP_INTERVAL_MS = 10000;
+
+    private ScheduledExecutorService mMetricsDumper = null;
+
+    /** Round-trip times of servers for the "auto" entry */
+    private final ServerProber mProber = new ServerProber();
+
+    /** Decides when a failed connection is retried */
+    private final ReconnectEngine mReconnect = new ReconnectEngine(max_rec_count, new Random());
+
+    private final Runnable mReconnectTask = new Runnable() {
+        @Override
+        public void run() {
+            if (interrupt) {
+                return;
+            }
+            try {
+                connect(true);
+            } catch (WolfSSLException e) {
+                e.printStackTrace();
+            }
+        }
+    };
+
+    /** Connectivity changes, delivered on the main thread through mHandler */
+    private final ConnectivityManager.NetworkCallback mNetworkCallback =
+            new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onAvailable(final Network network) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onNetworkAvailable(network);
+                }
+            });
+        }
+
+        @Override
+        public void onLost(final Network network) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onNetworkLost(network);
+                }
+            });
+        }
+    };
 
     private AtomicInteger mNextConnectionId = new AtomicInteger(1);
 
@@ -131,9 +250,45 @@ public class CustomVpnService /* renamed from 'VpnService' */ extends android.ne
 
     @Override
     public void onCreate() {
-        // The handler is only used to show messages.
+        // Started by the activity already, unless the system starts the service itself.
+        DtlsContextHolder.warmUp(this);
+
+        mMetrics.gauge(MetricsRegistry.OUTBOUND_DEPTH, new MetricsRegistry.Gauge() {
+            @Override
+            public long get() {
+                return getOutboundQueueDepth();
+            }
+        });
+        mMetrics.gauge(MetricsRegistry.INBOUND_DEPTH, new MetricsRegistry.Gauge() {
+            @Override
+            public long get() {
+                return getInboundQueueDepth();
+            }
+        });
+        mMetrics.gauge(MetricsRegistry.BUFFERS_PEAK, new MetricsRegistry.Gauge() {
+            @Override
+            public long get() {
+                return getBufferHighWaterMark();
+            }
+        });
+        mMetrics.gauge(MetricsRegistry.KEEPALIVE_INTERVAL, new MetricsRegistry.Gauge() {
+            @Override
+            public long get() {
+                return mKeepalive.getInterval();
+            }
+        });
+
+        mProber.setProtector(new ServerProber.Protector() {
+            @Override
+            public boolean protect(DatagramSocket socket) {
+                return CustomVpnService.this.protect(socket);
+            }
+        });
+
+        // The handler is used to show messages and to run reconnects.
         if (mHandler == null) {
             mHandler = new Handler(this);
+            registerNetworkCallback();
             try {
                 connect(false);
             } catch (WolfSSLException e) {
@@ -146,6 +301,58 @@ public class CustomVpnService /* renamed from 'VpnService' */ extends android.ne
                 PendingIntent.FLAG_UPDATE_CURRENT);
     }
 
+    @Override
+    public void onDestroy() {
+        if (mHandler != null) {
+            ConnectivityManager connectivity =
+                    (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+            connectivity.unregisterNetworkCallback(mNetworkCallback);
+            mHandler.removeCallbacks(mReconnectTask);
+            mHandler.removeCallbacks(mStandbyTask);
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Watches networks which can carry the tunnel. The callback is called for
+     * every such network already connected, so the engine starts with all of them.
+     */
+    private void registerNetworkCallback() {
+        ConnectivityManager connectivity =
+                (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+        NetworkRequest request = new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_NOT_VPN)
+                .build();
+        connectivity.registerNetworkCallback(request, mNetworkCallback);
+    }
+
+    private void onNetworkAvailable(Network network) {
+        if (mReconnect.onNetworkAvailable(network) && !interrupt) {
+            Log.i(TAG, "Network " + network + " is available, reconnecting");
+            mKeepalive.relearn();
+            mProber.clear();
+            mHandler.removeCallbacks(mReconnectTask);
+            mReconnectTask.run();
+        }
+    }
+
+    private void onNetworkLost(Network network) {
+        if (mReconnect.onNetworkLost(network) && !interrupt) {
+            // The tunnel may use the lost network, move it to a remaining one.
+            // The interface stays, apps only see a stall.
+            mKeepalive.relearn();
+            mProber.clear();
+            // The standby may use the lost network too, it is set up again
+            // after the tunnel has moved.
+            stopStandby();
+            final VpnConnection connection = mVpnConnection.get();
+            if (connection != null && connection.restart("Network " + network + " is lost")) {
+                Log.i(TAG, "Network " + network + " is lost, moving the tunnel");
+            }
+        }
+    }
+
     @Override
     public boolean handleMessage(Message message) {
         Toast.makeText(this, message.what, Toast.LENGTH_SHORT).show();
@@ -167,24 +374,123 @@ public class CustomVpnService /* renamed from 'VpnService' */ extends android.ne
         final SharedPreferences prefs = getSharedPreferences(VpnClient.Prefs.NAME, MODE_PRIVATE);
         final String server = prefs.getString(VpnClient.Prefs.SERVER_ADDRESS, "");
         final int port = Integer.parseInt(prefs.getString(VpnClient.Prefs.SERVER_PORT, ""));
+        if (prefs.getBoolean(VpnClient.Prefs.METRICS_DUMP, false)) {
+            startMetricsDump();
+        }
+
+        if (CountryObject.AUTO_ADDRESS.equals(server)) {
+            selectServer(ServerProber.decodeTargets(
+                    prefs.getString(VpnClient.Prefs.SERVER_CANDIDATES, "")));
+            return;
+        }
+        connectTo(server, port);
+    }
+
+    /**
+     * Probes the servers in a background thread and connects to the fastest one.
+     * Results of recent probes are reused.
+     */
+    private void selectServer(final List<ServerProber.Target> targets) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final ServerProber.Target target;
+                try {
+                    target = mProber.selectFastest(targets, SystemClock.elapsedRealtime());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (interrupt) {
+                            return;
+                        }
+                        if (target == null) {
+                            Log.e(TAG, "No servers to choose from");
+                            SetDisconnect(SIGNAL_VPN_FAIL);
+                            return;
+                        }
+                        Log.i(TAG, "Connecting to the fastest server " + target.key());
+                        connectTo(target.host, target.port);
+                    }
+                });
+            }
+        }, "ServerProbeThread").start();
+    }
 
+    private void connectTo(String server, int port) {
         // Kick off a connection.
         try {
-            startConnection(new VpnConnection(
-                    this, mNextConnectionId.getAndIncrement(), server, port, getApplicationContext()));
+            startConnection(createConnection(server, port));
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    private VpnConnection createConnection(String server, int port) throws Exception {
+        final SharedPreferences prefs = getSharedPreferences(VpnClient.Prefs.NAME, MODE_PRIVATE);
+        final boolean useChannel = VpnClient.TRANSPORT_CHANNEL.equals(
+                prefs.getString(VpnClient.Prefs.TRANSPORT, VpnClient.TRANSPORT_SOCKET));
+
+        VpnConnection connection = new VpnConnection(
+                this, mNextConnectionId.getAndIncrement(), server, port, getApplicationContext());
+        connection.setTransport(useChannel ? VpnConnection.Transport.CHANNEL
+                                           : VpnConnection.Transport.SOCKET);
+        connection.setCoalescing(prefs.getBoolean(VpnClient.Prefs.COALESCE, false));
+        connection.setSessions(prefs.getInt(VpnClient.Prefs.SESSIONS, 1));
+        connection.setCompression(prefs.getBoolean(VpnClient.Prefs.COMPRESSION, false));
+        connection.setBufferPool(mBufferPool);
+        connection.setMetrics(mMetrics);
+        connection.setKeepaliveScheduler(mKeepalive);
+        connection.setSessionCache(mSessionCache);
+        connection.setPathMtuDiscovery(mPathMtuDiscovery);
+        connection.setDnsCache(mDnsCache);
+        connection.setRouteSet(getRouteSet(prefs));
+        connection.setConfigureIntent(mConfigureIntent);
+        return connection;
+    }
+
+    /**
+     * @return compiler of the split tunnelling lists of the preferences, null if there
+     *         are no lists or they are malformed. Lists of country ranges are long, they
+     *         are parsed again only when they change.
+     */
+    private synchronized RouteSetCompiler getRouteSet(SharedPreferences prefs) {
+        final String include = prefs.getString(VpnClient.Prefs.ROUTES_INCLUDE, "");
+        final String exclude = prefs.getString(VpnClient.Prefs.ROUTES_EXCLUDE, "");
+        final String key = include + "\n#exclude\n" + exclude;
+        if (!key.equals(mRouteSetPrefs)) {
+            mRouteSetPrefs = key;
+            mRouteSet = null;
+            if (!include.trim().isEmpty() || !exclude.trim().isEmpty()) {
+                try {
+                    mRouteSet = new RouteSetCompiler(RouteSetCompiler.parse(include),
+                                                     RouteSetCompiler.parse(exclude));
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, "Split tunnelling lists are ignored: " + e.getMessage());
+                }
+            }
+        }
+        return mRouteSet;
+    }
+
     private void startConnection(final apriorit.vpnclient.VpnConnection connection) throws WolfSSLException {
         // Replace any existing connecting thread with the  new one.
         final Thread thread = new Thread(connection, "VpnConnectionThread");
         setConnectingThread(thread);
+        mVpnConnection.set(connection);
 
-        // Handler to mark as connected once onEstablish is called.
-        connection.setConfigureIntent(mConfigureIntent);
-        connection.setOnEstablishListener(new apriorit.vpnclient.VpnConnection.OnEstablishListener() {
+        connection.setOnEstablishListener(newEstablishListener(thread));
+        thread.start();
+    }
+
+    /**
+     * Handler to mark as connected once onEstablish is called.
+     * @param thread - thread of the connection
+     */
+    private VpnConnection.OnEstablishListener newEstablishListener(final Thread thread) {
+        return new apriorit.vpnclient.VpnConnection.OnEstablishListener() {
             public void onEstablish(ParcelFileDescriptor tunInterface) {
                 mConnectingThread.compareAndSet(thread, null);
                 setConnection(new Connection(thread, tunInterface));
@@ -194,9 +500,104 @@ public class CustomVpnService /* renamed from 'VpnService' */ extends android.ne
                     SendMessage(SIGNAL_SUCCESS_CONNECT);
                 }
                 SendCanBeClosed();
+                mHandler.post(mStandbyTask);
             }
-        });
-        thread.start();
+        };
+    }
+
+    /**
+     * Starts a hot standby session to the fastest server other than the primary one,
+     * if the standby is enabled and not running yet.
+     */
+    private void startStandby() {
+        final SharedPreferences prefs = getSharedPreferences(VpnClient.Prefs.NAME, MODE_PRIVATE);
+        final VpnConnection primary = mVpnConnection.get();
+        if (interrupt || primary == null || mStandby.get() != null
+                || !prefs.getBoolean(VpnClient.Prefs.HOT_STANDBY, false)) {
+            return;
+        }
+
+        final List<ServerProber.Target> targets = new ArrayList<>();
+        for (ServerProber.Target target : ServerProber.decodeTargets(
+                prefs.getString(VpnClient.Prefs.SERVER_CANDIDATES, ""))) {
+            if (!target.host.equals(primary.getServerName()) || target.port != primary.getServerPort()) {
+                targets.add(target);
+            }
+        }
+        if (targets.isEmpty()) {
+            Log.i(TAG, "No server for the standby connection");
+            return;
+        }
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final ServerProber.Target target;
+                try {
+                    target = mProber.selectFastest(targets, SystemClock.elapsedRealtime());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (interrupt || mStandby.get() != null) {
+                            return;
+                        }
+                        try {
+                            VpnConnection standby = createConnection(target.host, target.port);
+                            standby.setStandby(true);
+                            Thread thread = new Thread(standby, "VpnStandbyThread");
+                            standby.setOnEstablishListener(newEstablishListener(thread));
+                            mStandby.set(new Standby(standby, thread));
+                            Log.i(TAG, "Standby connection to " + target.key());
+                            thread.start();
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                });
+            }
+        }, "StandbyProbeThread").start();
+    }
+
+    /**
+     * Closes the standby connection, if any.
+     */
+    private void stopStandby() {
+        mHandler.removeCallbacks(mStandbyTask);
+        final Standby standby = mStandby.getAndSet(null);
+        if (standby != null) {
+            standby.first.closeStandby(standby.second);
+        }
+    }
+
+    /**
+     * Called by a standby connection which failed before it was promoted.
+     */
+    public void onStandbyLost(VpnConnection connection) {
+        final Standby standby = mStandby.get();
+        if (standby != null && standby.first == connection && mStandby.compareAndSet(standby, null)) {
+            Log.e(TAG, "Standby connection is lost, retry in " + STANDBY_RETRY_MS + " ms");
+            mHandler.postDelayed(mStandbyTask, STANDBY_RETRY_MS);
+        }
+    }
+
+    /**
+     * Moves the traffic to the standby connection if it is ready.
+     * @return false if there is no ready standby connection
+     */
+    private boolean failOver() {
+        final Standby standby = mStandby.get();
+        if (standby == null || !standby.first.isStandbyReady()
+                || !mStandby.compareAndSet(standby, null) || !standby.first.promote()) {
+            return false;
+        }
+        Log.e(TAG, "Switched to the standby server " + standby.first.getServerName());
+        mMetrics.counter(MetricsRegistry.FAILOVERS).increment();
+        setConnectingThread(standby.second);
+        mVpnConnection.set(standby.first);
+        return true;
     }
 
     private void setConnectingThread(final Thread thread) {
@@ -226,6 +627,44 @@ public class CustomVpnService /* renamed from 'VpnService' */ extends android.ne
         stopForeground(true);
     }
 
+    /**
+     * Appends a snapshot of metrics to {@link #METRICS_FILE} periodically.
+     */
+    private synchronized void startMetricsDump() {
+        if (mMetricsDumper != null) {
+            return;
+        }
+        final File file = new File(getFilesDir(), METRICS_FILE);
+        mMetricsDumper = Executors.newSingleThreadScheduledExecutor();
+        mMetricsDumper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                dumpMetrics(file);
+            }
+        }, METRICS_DUMP_INTERVAL_MS, METRICS_DUMP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void stopMetricsDump() {
+        if (mMetricsDumper != null) {
+            mMetricsDumper.shutdown();
+            mMetricsDumper = null;
+        }
+    }
+
+    /**
+     * Appends current values of metrics to a CSV file.
+     * @return true if the file was written
+     */
+    public boolean dumpMetrics(File file) {
+        try {
+            mMetrics.dump(file, System.currentTimeMillis());
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Can't dump metrics to " + file, e);
+            return false;
+        }
+    }
+
     private void updateForegroundNotification(final int message) {
         // this could be changed to NotificationCompat.Builder in API >= 22
         startForeground(1, new Notification.Builder(this)
@@ -235,33 +674,62 @@ public class CustomVpnService /* renamed from 'VpnService' */ extends android.ne
                 .setContentIntent(mConfigureIntent)
                 .build());
     }
+    /**
+     * @return packets read from tun and waiting to be sent to server
+     */
+    public int getOutboundQueueDepth() {
+        final VpnConnection connection = mVpnConnection.get();
+        return connection != null ? connection.getOutboundQueueDepth() : 0;
+    }
+
+    /**
+     * @return packets received from server and waiting to be written to tun
+     */
+    public int getInboundQueueDepth() {
+        final VpnConnection connection = mVpnConnection.get();
+        return connection != null ? connection.getInboundQueueDepth() : 0;
+    }
+
+    /**
+     * @return maximum number of packet buffers used at the same time
+     */
+    public int getBufferHighWaterMark() {
+        return mBufferPool.getHighWaterMark();
+    }
+
     public void SetDefaultRecCount() {
-        reconnect_count = 0;
+        mReconnect.onConnected();
     }
 
+    /**
+     * Called by a failed connection. A ready standby connection takes over at once.
+     * Otherwise the tun interface stays open, so a connection with the same
+     * parameters takes it over and apps only see a stall.
+     * Retries are delayed by {@link ReconnectEngine}; without a network they wait
+     * for the network callback.
+     */
     public void Reconnect() {
         if(interrupt) {
-            reconnect_count = max_rec_count;
             return;
         }
-        if(reconnect_count < max_rec_count) {
-            reconnect_count++;
-            Log.e(TAG, "Reconnect ");
-            disconnect();
-            try {
-                connect(true);
-            } catch (WolfSSLException e) {
-                e.printStackTrace();
-            }
+        if (failOver()) {
+            return;
         }
-        else {
-            try {
-                if(old_vpn_interface!=null)
-                    old_vpn_interface.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        final long delay = mReconnect.onFailure();
+        if (delay == ReconnectEngine.GIVE_UP) {
+            stopStandby();
+            closeVpnInterface();
+            stopMetricsDump();
             SetDisconnectMessage(SIGNAL_VPN_FAIL);
+            return;
+        }
+        mMetrics.counter(MetricsRegistry.RECONNECTS).increment();
+        disconnect();
+        if (delay == ReconnectEngine.WAIT_FOR_NETWORK) {
+            Log.e(TAG, "Reconnect when a network is available");
+            return;
         }
+        Log.e(TAG, "Reconnect in " + delay + " ms");
+        mHandler.postDelayed(mReconnectTask, delay);
     }
 }
\ No newline at end of file
@@ -0,0 +1,50 @@
+package apriorit.vpnclient;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/**
+ * The {@link DescriptorPoll} class<br>
+ * poll() of a single descriptor, e.g. of the tun interface or the tunnel socket.
+ */
+class DescriptorPoll implements ReadPoll {
+    private static final int ERROR_EVENTS =
+            OsConstants.POLLERR | OsConstants.POLLHUP | OsConstants.POLLNVAL;
+
+    private final StructPollfd[] pollFds;
+
+    DescriptorPoll(FileDescriptor fd) {
+        StructPollfd pollFd = new StructPollfd();
+        pollFd.fd = fd;
+        pollFd.events = (short) OsConstants.POLLIN;
+        pollFds = new StructPollfd[] { pollFd };
+    }
+
+    /**
+     * An interrupted poll() is reported as an expired timeout.
+     */
+    @Override
+    public boolean await(int timeout) throws IOException {
+        pollFds[0].revents = 0;
+        try {
+            return Os.poll(pollFds, timeout) > 0;
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.EINTR) {
+                return false;
+            }
+            throw new IOException("poll() failed", e);
+        }
+    }
+
+    /**
+     * @return true if the last {@link #await(int)} reported an error or a hang up
+     */
+    boolean hasErrors() {
+        return (pollFds[0].revents & ERROR_EVENTS) != 0;
+    }
+}
@@ -0,0 +1,455 @@
+package apriorit.vpnclient;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link DnsCache} class<br>
+ * Answers repeated DNS queries to the resolvers pushed by the server without a round
+ * trip through the tunnel.<br>
+ * The tun reader passes every outgoing packet to {@link #answer(byte[], int, long)}:
+ * a UDP query to a tunnel resolver whose answer is cached is turned into the response
+ * in place, other packets go to the server as usual. The tun writer passes every
+ * incoming packet to {@link #onResponse(byte[], int, int, long)}, which caches the
+ * responses to the queries that missed.<br>
+ * Only successful responses (NOERROR with records, NXDOMAIN with the SOA record) to
+ * single-question queries are cached, for the smallest TTL of their records but not
+ * longer than {@link #MAX_TTL_S}. TTLs of a cached response are decreased by its age
+ * when it is served. The least recently used entry is evicted when the cache is full.<br>
+ * The cache is shared by the connections of a service, so it survives reconnects; it
+ * is cleared when the resolvers change. The methods are synchronized, but the
+ * packets which are not DNS are rejected before taking the lock.
+ */
+class DnsCache {
+    /** Default number of cached responses */
+    static final int MAX_ENTRIES = 256;
+    /** Upper bound of the time a response is cached, in seconds */
+    static final int MAX_TTL_S = 3600;
+
+    private static final int DNS_PORT = 53;
+    private static final int UDP = 17;
+    private static final int UDP_HEADER_SIZE = 8;
+    private static final int IPV4_HEADER_SIZE = 20;
+    private static final int IPV6_HEADER_SIZE = 40;
+    private static final int DNS_HEADER_SIZE = 12;
+    private static final int HOP_LIMIT = 64;
+
+    private static final int TYPE_OPT = 41;
+    private static final int RCODE_NXDOMAIN = 3;
+
+    /* queries waiting for a response; more than this are not expected at a time */
+    private static final int MAX_PENDING = 64;
+
+    /** Cached response */
+    private static final class Entry {
+        /* DNS message of the response */
+        final byte[] message;
+        /* offsets of the TTL fields in 'message' */
+        final int[] ttlOffsets;
+        final long storedNs;
+        final long expiresNs;
+        /* time the resolver took to answer, saved by every hit */
+        final long roundTripNs;
+
+        Entry(byte[] message, int[] ttlOffsets, long storedNs, long expiresNs,
+              long roundTripNs) {
+            this.message     = message;
+            this.ttlOffsets  = ttlOffsets;
+            this.storedNs    = storedNs;
+            this.expiresNs   = expiresNs;
+            this.roundTripNs = roundTripNs;
+        }
+    }
+
+    /** Query sent to the resolver */
+    private static final class Pending {
+        final String key;
+        final long sentNs;
+
+        Pending(String key, long sentNs) {
+            this.key    = key;
+            this.sentNs = sentNs;
+        }
+    }
+
+    private final Map<String, Entry> entries;
+    /* by transaction id and question */
+    private final Map<String, Pending> pending;
+
+    /* addresses of the tunnel resolvers, 4 or 16 bytes */
+    private final List<byte[]> resolvers = new ArrayList<>();
+
+    private final MetricsRegistry.Counter hits;
+    private final MetricsRegistry.Counter misses;
+    private final MetricsRegistry.Counter savedUs;
+
+    DnsCache(MetricsRegistry metrics) {
+        this(MAX_ENTRIES, metrics);
+    }
+
+    /**
+     * @param maxEntries - number of cached responses
+     */
+    DnsCache(final int maxEntries, MetricsRegistry metrics) {
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        pending = new LinkedHashMap<String, Pending>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Pending> eldest) {
+                return size() > MAX_PENDING;
+            }
+        };
+        hits    = metrics.counter(MetricsRegistry.DNS_CACHE_HITS);
+        misses  = metrics.counter(MetricsRegistry.DNS_CACHE_MISSES);
+        savedUs = metrics.counter(MetricsRegistry.DNS_LATENCY_SAVED_US);
+    }
+
+    /**
+     * Sets the resolvers of the tunnel, the cache is cleared if they differ from the
+     * previous ones.
+     * @param servers - IP address literals, as sent by the server
+     */
+    synchronized void setResolvers(List<String> servers) {
+        List<byte[]> addresses = new ArrayList<>();
+        for (String server : servers) {
+            try {
+                // Literals are parsed without a lookup.
+                addresses.add(InetAddress.getByName(server).getAddress());
+            } catch (UnknownHostException e) {
+                // not an address, the tunnel does not use it either
+            }
+        }
+        boolean same = addresses.size() == resolvers.size();
+        for (int i = 0; same && i < addresses.size(); ++i) {
+            same = Arrays.equals(addresses.get(i), resolvers.get(i));
+        }
+        if (!same) {
+            resolvers.clear();
+            resolvers.addAll(addresses);
+            entries.clear();
+            pending.clear();
+        }
+    }
+
+    /** @return number of cached responses, including expired ones */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Answers a DNS query from the cache, the query is replaced by the response.
+     * @param packet - outgoing IP packet, the buffer has room for the response
+     * @param length - packet length
+     * @param now    - System.nanoTime()
+     * @return length of the response, -1 if the packet has to be sent to the server
+     */
+    int answer(byte[] packet, int length, long now) {
+        int udp = udpOffset(packet, 0, length, false);
+        if (udp < 0) {
+            return -1;
+        }
+        synchronized (this) {
+            return answerQuery(packet, length, udp, now);
+        }
+    }
+
+    private int answerQuery(byte[] packet, int length, int udp, long now) {
+        int dns = udp + UDP_HEADER_SIZE;
+        if (!isResolver(packet, false)) {
+            return -1;
+        }
+        int questionEnd = questionEnd(packet, dns, length);
+        // A standard query with a single question and nothing but EDNS after it
+        if (questionEnd < 0 || (packet[dns + 2] & 0xF8) != 0
+                || readShort(packet, dns + 6) != 0 || readShort(packet, dns + 8) != 0) {
+            return -1;
+        }
+        String question = question(packet, dns, questionEnd);
+        String key = (char) (packet[dns + 2] & 0x01) + "" + (char) (packet[dns + 3] & 0x10)
+                   + (readShort(packet, dns + 10) != 0 ? 'E' : '-') + question;
+
+        Entry entry = entries.get(key);
+        if (entry != null && now - entry.expiresNs >= 0) {
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry == null || dns + entry.message.length > packet.length) {
+            misses.increment();
+            String id = (char) readShort(packet, dns) + question;
+            pending.put(id, new Pending(key, now));
+            return -1;
+        }
+
+        // The response goes back from the resolver to the port of the query.
+        int header = udp;
+        boolean ipv4 = (packet[0] & 0xF0) == 0x40;
+        swap(packet, ipv4 ? 12 : 8, ipv4 ? 16 : 24, ipv4 ? 4 : 16);
+        swap(packet, udp, udp + 2, 2);
+        // The transaction id and the question are those of the query: clients which
+        // randomize the case of names check it.
+        int questionLength = questionEnd - dns;
+        System.arraycopy(entry.message, questionLength, packet, questionEnd,
+                         entry.message.length - questionLength);
+        System.arraycopy(entry.message, 2, packet, dns + 2, DNS_HEADER_SIZE - 2);
+        long age = TimeUnit.NANOSECONDS.toSeconds(now - entry.storedNs);
+        for (int offset : entry.ttlOffsets) {
+            writeInt(packet, dns + offset, (int) Math.max(0, readInt(packet, dns + offset) - age));
+        }
+
+        int replyLength = dns + entry.message.length;
+        if (ipv4) {
+            writeShort(packet, 2, replyLength);
+            writeShort(packet, 4, 0);
+            writeShort(packet, 6, 0x4000); // DF
+            packet[8] = HOP_LIMIT;
+            writeShort(packet, 10, 0);
+            writeShort(packet, 10, ~(int) sum(packet, 0, header, 0) & 0xFFFF);
+        } else {
+            writeShort(packet, 4, replyLength - header);
+            packet[7] = HOP_LIMIT;
+        }
+        writeShort(packet, udp + 4, replyLength - udp);
+        writeShort(packet, udp + 6, 0);
+        writeShort(packet, udp + 6, udpChecksum(packet, udp, replyLength, ipv4));
+
+        hits.increment();
+        savedUs.add(TimeUnit.NANOSECONDS.toMicros(entry.roundTripNs));
+        return replyLength;
+    }
+
+    /**
+     * Caches the response to a query which missed the cache.
+     * @param packet - incoming IP packet
+     * @param now    - System.nanoTime()
+     */
+    void onResponse(byte[] packet, int offset, int length, long now) {
+        int udp = udpOffset(packet, offset, length, true);
+        if (udp < 0) {
+            return;
+        }
+        if (offset != 0) {
+            // a response unpacked from a framed record
+            packet = Arrays.copyOfRange(packet, offset, offset + length);
+        }
+        synchronized (this) {
+            cacheResponse(packet, length, udp, now);
+        }
+    }
+
+    private void cacheResponse(byte[] packet, int length, int udp, long now) {
+        int dns = udp + UDP_HEADER_SIZE;
+        if (!isResolver(packet, true)) {
+            return;
+        }
+        int questionEnd = questionEnd(packet, dns, length);
+        // QR set, not truncated
+        if (questionEnd < 0 || (packet[dns + 2] & 0x82) != 0x80) {
+            return;
+        }
+        String question = question(packet, dns, questionEnd);
+        Pending query = pending.remove((char) readShort(packet, dns) + question);
+        int rcode = packet[dns + 3] & 0x0F;
+        if (query == null || (rcode != 0 && rcode != RCODE_NXDOMAIN)) {
+            return;
+        }
+
+        int records = readShort(packet, dns + 6) + readShort(packet, dns + 8)
+                    + readShort(packet, dns + 10);
+        int[] ttlOffsets = new int[records];
+        int ttls = 0;
+        long minTtl = MAX_TTL_S;
+        int position = questionEnd;
+        for (int i = 0; i < records; ++i) {
+            position = skipName(packet, position, length);
+            if (position < 0 || position + 10 > length) {
+                return;
+            }
+            int type = readShort(packet, position);
+            int dataLength = readShort(packet, position + 8);
+            if (type != TYPE_OPT) {
+                // The OPT record has flags instead of a TTL.
+                ttlOffsets[ttls++] = position + 4 - dns;
+                minTtl = Math.min(minTtl, readInt(packet, position + 4) & 0xFFFFFFFFL);
+            }
+            position += 10 + dataLength;
+            if (position > length) {
+                return;
+            }
+        }
+        if (ttls == 0 || minTtl == 0) {
+            return;
+        }
+        byte[] message = Arrays.copyOfRange(packet, dns, length);
+        entries.put(query.key, new Entry(message, Arrays.copyOf(ttlOffsets, ttls), now,
+                                         now + TimeUnit.SECONDS.toNanos(minTtl),
+                                         now - query.sentNs));
+    }
+
+    /**
+     * @param offset   - offset of the IP packet in 'packet'
+     * @param response - true for a packet from port 53, false for a packet to it
+     * @return offset of the UDP header of a DNS packet from the start of the IP packet,
+     *         -1 for other packets
+     */
+    private static int udpOffset(byte[] packet, int offset, int length, boolean response) {
+        if (length < IPV4_HEADER_SIZE + UDP_HEADER_SIZE + DNS_HEADER_SIZE) {
+            return -1;
+        }
+        int header;
+        int version = packet[offset] & 0xF0;
+        if (version == 0x40) {
+            // Neither IP options nor fragments
+            if (packet[offset] != 0x45 || packet[offset + 9] != UDP
+                    || (readShort(packet, offset + 6) & 0x3FFF) != 0) {
+                return -1;
+            }
+            header = IPV4_HEADER_SIZE;
+        } else if (version == 0x60) {
+            // No extension headers
+            if (length < IPV6_HEADER_SIZE + UDP_HEADER_SIZE + DNS_HEADER_SIZE
+                    || packet[offset + 6] != UDP) {
+                return -1;
+            }
+            header = IPV6_HEADER_SIZE;
+        } else {
+            return -1;
+        }
+        int port = readShort(packet, offset + header + (response ? 0 : 2));
+        return port == DNS_PORT ? header : -1;
+    }
+
+    /**
+     * @param source - compare the source address of the packet, not the destination
+     */
+    private boolean isResolver(byte[] packet, boolean source) {
+        boolean ipv4 = (packet[0] & 0xF0) == 0x40;
+        int offset = ipv4 ? (source ? 12 : 16) : (source ? 8 : 24);
+        for (byte[] resolver : resolvers) {
+            if (resolver.length != (ipv4 ? 4 : 16)) {
+                continue;
+            }
+            boolean equal = true;
+            for (int i = 0; equal && i < resolver.length; ++i) {
+                equal = packet[offset + i] == resolver[i];
+            }
+            if (equal) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return offset after the only question of the message, -1 if it has another
+     *         number of questions or is malformed
+     */
+    private static int questionEnd(byte[] packet, int dns, int length) {
+        if (readShort(packet, dns + 4) != 1) {
+            return -1;
+        }
+        int position = dns + DNS_HEADER_SIZE;
+        while (position < length) {
+            int label = packet[position] & 0xFF;
+            if (label == 0) {
+                position += 1 + 4; // type and class
+                return position <= length ? position : -1;
+            }
+            if (label > 63) {
+                // compressed names are not expected in the question
+                return -1;
+            }
+            position += 1 + label;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the question as a string, the name in lower case
+     */
+    private static String question(byte[] packet, int dns, int end) {
+        char[] chars = new char[end - dns - DNS_HEADER_SIZE];
+        for (int i = 0; i < chars.length; ++i) {
+            char c = (char) (packet[dns + DNS_HEADER_SIZE + i] & 0xFF);
+            chars[i] = c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @return offset after a name of a record, -1 if it is malformed
+     */
+    private static int skipName(byte[] packet, int position, int length) {
+        while (position < length) {
+            int label = packet[position] & 0xFF;
+            if (label == 0) {
+                return position + 1;
+            }
+            if ((label & 0xC0) == 0xC0) {
+                // A pointer ends the name.
+                return position + 2;
+            }
+            position += 1 + label;
+        }
+        return -1;
+    }
+
+    private static int udpChecksum(byte[] packet, int udp, int length, boolean ipv4) {
+        // pseudo header: addresses, protocol and UDP length
+        long sum = ipv4 ? sum(packet, 12, 8, 0) : sum(packet, 8, 32, 0);
+        sum += UDP + (length - udp);
+        sum = sum(packet, udp, length - udp, sum);
+        int checksum = ~(int) sum & 0xFFFF;
+        return checksum == 0 ? 0xFFFF : checksum;
+    }
+
+    /** One's complement sum of 16-bit words, folded */
+    private static long sum(byte[] packet, int offset, int length, long sum) {
+        int end = offset + length;
+        for (int i = offset; i + 1 < end; i += 2) {
+            sum += readShort(packet, i);
+        }
+        if ((length & 1) != 0) {
+            sum += (packet[end - 1] & 0xFF) << 8;
+        }
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return sum;
+    }
+
+    private static void swap(byte[] packet, int a, int b, int length) {
+        for (int i = 0; i < length; ++i) {
+            byte t = packet[a + i];
+            packet[a + i] = packet[b + i];
+            packet[b + i] = t;
+        }
+    }
+
+    private static int readShort(byte[] packet, int offset) {
+        return ((packet[offset] & 0xFF) << 8) | (packet[offset + 1] & 0xFF);
+    }
+
+    private static void writeShort(byte[] packet, int offset, int value) {
+        packet[offset]     = (byte) (value >>> 8);
+        packet[offset + 1] = (byte) value;
+    }
+
+    private static int readInt(byte[] packet, int offset) {
+        return (readShort(packet, offset) << 16) | readShort(packet, offset + 2);
+    }
+
+    private static void writeInt(byte[] packet, int offset, int value) {
+        writeShort(packet, offset, value >>> 16);
+        writeShort(packet, offset + 2, value);
+    }
+}
@@ -0,0 +1,118 @@
+package apriorit.vpnclient;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.wolfssl.WolfSSL;
+import com.wolfssl.WolfSSLContext;
+import com.wolfssl.WolfSSLJNIException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The {@link DtlsContextHolder} class<br>
+ * Process-wide DTLS client context. Native libraries, the CA certificate and the
+ * {@link WolfSSLContext} with its I/O callbacks are set up once and shared by every
+ * connection and reconnect.<br>
+ * {@link #warmUp(Context)} starts the setup on a background thread, so neither the
+ * activity nor the service main thread waits for it. {@link #get(Context)} waits
+ * for the setup, starting it if nobody did; it must not be called from the main thread.
+ */
+final class DtlsContextHolder {
+    private static final String TAG = DtlsContextHolder.class.getSimpleName();
+    private static final String CA_CERT_ASSET = "ca_cert.crt";
+
+    private static FutureTask<DtlsContextHolder> sSetup = null;
+
+    final WolfSSL sslLib;
+    final WolfSSLContext sslCtx;
+
+    private DtlsContextHolder(Context appContext) throws Exception {
+        System.loadLibrary("wolfssl");
+        System.loadLibrary("wolfssljni");
+
+        byte[] caCert = readAsset(appContext, CA_CERT_ASSET);
+
+        sslLib = new WolfSSL();
+        // Configure SSL Context for DTLS connections:
+        sslCtx = new WolfSSLContext(WolfSSL.DTLSv1_2_ClientMethod());
+
+        int status = sslCtx.loadVerifyBuffer(caCert, caCert.length, WolfSSL.SSL_FILETYPE_PEM);
+        if (status != WolfSSL.SSL_SUCCESS) {
+            Log.e("WOLFSSL_SSL_FAILURE", "Failed to load ca certificate");
+            throw new Exception("Failed to load CA cert");
+        }
+
+        // Callbacks are shared by all sessions, the state of a session is in its MyIOCtx.
+        try {
+            sslCtx.setIORecv(new MyRecvCallback());
+            sslCtx.setIOSend(new MySendCallback());
+        } catch (WolfSSLJNIException e) {
+            throw new Exception("Can't register I/O callbacks", e);
+        }
+        Log.i("IO_CALLBACKS_DTLS", "Registered I/O callbacks");
+    }
+
+    private static byte[] readAsset(Context appContext, String name) throws IOException {
+        InputStream is = appContext.getAssets().open(name);
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream(4096);
+            byte[] chunk = new byte[4096];
+            int read;
+            while ((read = is.read(chunk)) != -1) {
+                content.write(chunk, 0, read);
+            }
+            return content.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Starts the setup in a background thread if it is not started yet.
+     * @param context - any context, only the application context is kept
+     */
+    static synchronized void warmUp(Context context) {
+        if (sSetup != null) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        sSetup = new FutureTask<>(new Callable<DtlsContextHolder>() {
+            @Override
+            public DtlsContextHolder call() throws Exception {
+                return new DtlsContextHolder(appContext);
+            }
+        });
+        new Thread(sSetup, "DtlsContextWarmUp").start();
+    }
+
+    /**
+     * @return the shared context, waits until it is set up
+     * @throws Exception            - thrown if the setup failed; the next call tries again
+     * @throws InterruptedException - thrown if the calling thread was interrupted while waiting
+     */
+    static DtlsContextHolder get(Context context) throws Exception {
+        FutureTask<DtlsContextHolder> setup;
+        synchronized (DtlsContextHolder.class) {
+            warmUp(context);
+            setup = sSetup;
+        }
+        try {
+            return setup.get();
+        } catch (ExecutionException e) {
+            synchronized (DtlsContextHolder.class) {
+                if (sSetup == setup) {
+                    sSetup = null;
+                }
+            }
+            Log.e(TAG, "DTLS context setup failed", e.getCause());
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package apriorit.vpnclient;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link DtlsSessionCache} class<br>
+ * Keeps the last negotiated DTLS session of every server, so a reconnect may
+ * resume it with an abbreviated handshake instead of a full one.<br>
+ * A session is a native WOLFSSL_SESSION pointer owned by the SSL object that
+ * negotiated it. The entry holds that object as well, so the pointer stays valid
+ * while the entry is cached.<br>
+ * Sessions expire after {@link #SESSION_LIFETIME_MS}, the default session timeout
+ * of wolfSSL; the server drops them from its cache at the same time.
+ */
+class DtlsSessionCache {
+    static final long SESSION_LIFETIME_MS = TimeUnit.SECONDS.toMillis(500);
+
+    /** Cached session */
+    static final class Entry {
+        /** WOLFSSL_SESSION pointer for WolfSSLSession.setSession() */
+        final long session;
+        /** keeps the native session alive */
+        final Object owner;
+        final long expiresAt;
+
+        Entry(long session, Object owner, long expiresAt) {
+            this.session = session;
+            this.owner = owner;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    static String key(String serverName, int serverPort) {
+        return serverName + ":" + serverPort;
+    }
+
+    /**
+     * @param now - SystemClock.elapsedRealtime()
+     * @return session which has not expired yet or null
+     */
+    synchronized Entry get(String key, long now) {
+        Entry entry = entries.get(key);
+        if (entry != null && now >= entry.expiresAt) {
+            entries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Saves the session negotiated by a full handshake. A resumed session
+     * keeps its original expiry, so it should not be put again.
+     * @param session - WOLFSSL_SESSION pointer, ignored if 0
+     * @param owner   - SSL object the session belongs to
+     */
+    synchronized void put(String key, long session, Object owner, long now) {
+        if (session == 0) {
+            return;
+        }
+        entries.put(key, new Entry(session, owner, now + SESSION_LIFETIME_MS));
+    }
+
+    /**
+     * Forgets the session of a server, e.g. when resumption failed.
+     */
+    synchronized void invalidate(String key) {
+        entries.remove(key);
+    }
+}
@@ -0,0 +1,50 @@
+package apriorit.vpnclient;
+
+import com.wolfssl.WolfSSL;
+import com.wolfssl.WolfSSLSession;
+
+import java.io.IOException;
+
+/**
+ * The {@link DtlsTransport} class<br>
+ * Records of the established DTLS session. The receive callback of the session
+ * must not block, readiness is polled on the socket.
+ */
+class DtlsTransport implements RecordTransport {
+    private final WolfSSLSession ssl;
+    private final ReadPoll socketPoll;
+
+    /**
+     * @param ssl        - established DTLS session
+     * @param socketPoll - readiness of its datagram socket
+     */
+    DtlsTransport(WolfSSLSession ssl, ReadPoll socketPoll) {
+        this.ssl = ssl;
+        this.socketPoll = socketPoll;
+    }
+
+    @Override
+    public boolean await(int timeout) throws IOException {
+        // Socket errors (e.g. ICMP port unreachable) are reported by ssl.read().
+        return socketPoll.await(timeout);
+    }
+
+    @Override
+    public int read(byte[] buf, int size) throws IOException {
+        int len = ssl.read(buf, size);
+        if (len > 0) {
+            return len;
+        }
+        if (ssl.getError(len) != WolfSSL.SSL_ERROR_WANT_READ) {
+            throw new IOException("Can't read from the tunnel!");
+        }
+        return 0;
+    }
+
+    @Override
+    public void write(byte[] buf, int length) throws IOException {
+        if (ssl.write(buf, length) <= 0) {
+            throw new IOException("Can't write to the tunnel!");
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package apriorit.vpnclient;
+
+/**
+ * The {@link FlowHash} class<br>
+ * Hash of the 5-tuple of an IP packet: addresses, protocol and ports of TCP, UDP,
+ * SCTP and UDP-Lite. Packets of one flow get the same hash, so {@link PacketPipeline}
+ * sends a flow through one session of a tunnel with several sessions, and the flow
+ * keeps its order.<br>
+ * Only the first fragment carries the ports, so fragmented IPv4 packets and IPv6
+ * packets with extension headers are hashed by addresses and protocol.
+ */
+final class FlowHash {
+    private static final int TCP     = 6;
+    private static final int UDP     = 17;
+    private static final int SCTP    = 132;
+    private static final int UDPLITE = 136;
+
+    private static final int IPV4_HEADER_SIZE = 20;
+    private static final int IPV6_HEADER_SIZE = 40;
+
+    private static final int FNV_BASIS = 0x811C9DC5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    private FlowHash() {
+    }
+
+    /**
+     * @param shards - number of sessions
+     * @return session of the packet, 0 for packets which are not IP
+     */
+    static int shard(byte[] packet, int length, int shards) {
+        if (shards <= 1) {
+            return 0;
+        }
+        return (hash(packet, length) & Integer.MAX_VALUE) % shards;
+    }
+
+    /**
+     * @return hash of the flow, 0 for packets which are not IP
+     */
+    static int hash(byte[] packet, int length) {
+        if (length < 1) {
+            return 0;
+        }
+        switch ((packet[0] >> 4) & 0x0F) {
+            case 4:
+                return hashIpv4(packet, length);
+            case 6:
+                return hashIpv6(packet, length);
+            default:
+                return 0;
+        }
+    }
+
+    private static int hashIpv4(byte[] packet, int length) {
+        int headerSize = (packet[0] & 0x0F) * 4;
+        if (length < IPV4_HEADER_SIZE || headerSize < IPV4_HEADER_SIZE) {
+            return 0;
+        }
+        int protocol = packet[9] & 0xFF;
+        // addresses, then protocol
+        int hash = mix(FNV_BASIS, packet, 12, 8);
+        hash = (hash ^ protocol) * FNV_PRIME;
+
+        // more fragments flag or fragment offset
+        boolean fragment = (packet[6] & 0x3F) != 0 || packet[7] != 0;
+        if (!fragment && hasPorts(protocol) && length >= headerSize + 4) {
+            hash = mix(hash, packet, headerSize, 4);
+        }
+        return finish(hash);
+    }
+
+    private static int hashIpv6(byte[] packet, int length) {
+        if (length < IPV6_HEADER_SIZE) {
+            return 0;
+        }
+        int nextHeader = packet[6] & 0xFF;
+        int hash = mix(FNV_BASIS, packet, 8, 32);
+        hash = (hash ^ nextHeader) * FNV_PRIME;
+
+        if (hasPorts(nextHeader) && length >= IPV6_HEADER_SIZE + 4) {
+            hash = mix(hash, packet, IPV6_HEADER_SIZE, 4);
+        }
+        return finish(hash);
+    }
+
+    private static boolean hasPorts(int protocol) {
+        return protocol == TCP || protocol == UDP || protocol == SCTP || protocol == UDPLITE;
+    }
+
+    /* FNV-1a over the bytes */
+    private static int mix(int hash, byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; ++i) {
+            hash = (hash ^ (data[i] & 0xFF)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /* FNV leaves low bits weak, the modulo of shard() needs them mixed */
+    private static int finish(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
@@ -0,0 +1,129 @@
+package apriorit.vpnclient;
+
+import com.wolfssl.WolfSSL;
+import com.wolfssl.WolfSSLContext;
+import com.wolfssl.WolfSSLException;
+import com.wolfssl.WolfSSLJNIException;
+import com.wolfssl.WolfSSLSession;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * The {@link JoinedSession} class<br>
+ * Further DTLS session of a tunnel with several sessions. It is set up like the first
+ * one, then joins the tunnel of the first session by its token instead of getting a
+ * tunnel of its own. Records of every session are encrypted and decrypted by threads
+ * of their own on both ends, so the crypto of the tunnel uses several cores.<br>
+ * It does not use Android classes, the connection of the app and the headless
+ * client share it.
+ */
+final class JoinedSession implements Closeable {
+    private final WolfSSLSession ssl;
+    private final DatagramChannel channel;
+    private final PacketBufferPool pool;
+    private MyIOCtx ioctx = null;
+    private ControlChannel control = null;
+    private boolean joined = false;
+
+    /**
+     * Connects to the server and joins the tunnel, the session is closed on failure.
+     * @param sslCtx  - context with the shared I/O callbacks
+     * @param channel - new channel, protected from the tunnel by the caller if needed;
+     *                  the session owns it
+     * @param clock   - time of the knock backoff and of the control retransmissions
+     * @param metrics - counts the control messages
+     * @param framing - announce {@link TunnelParameters#OPTION_FRAMING} to the server
+     * @param token   - {@link TunnelParameters#joinToken} of the first session
+     * @throws IOException - thrown if the session can't be set up or the server
+     *                       did not join it
+     */
+    static JoinedSession open(WolfSSLContext sslCtx, DatagramChannel channel,
+                              InetSocketAddress server, PacketBufferPool pool, Clock clock,
+                              MetricsRegistry metrics, boolean framing, String token)
+            throws IOException {
+        WolfSSLSession ssl;
+        try {
+            ssl = new WolfSSLSession(sslCtx);
+        } catch (WolfSSLException e) {
+            channel.close();
+            throw new IOException("Can't create WolfSSLSession");
+        }
+        JoinedSession session = new JoinedSession(ssl, channel, pool);
+        try {
+            session.connect(server, clock, metrics, framing, token);
+        } catch (IOException e) {
+            session.close();
+            throw e;
+        }
+        return session;
+    }
+
+    private JoinedSession(WolfSSLSession ssl, DatagramChannel channel, PacketBufferPool pool) {
+        this.ssl = ssl;
+        this.channel = channel;
+        this.pool = pool;
+    }
+
+    private void connect(InetSocketAddress server, Clock clock, MetricsRegistry metrics,
+                         boolean framing, String token) throws IOException {
+        channel.connect(server);
+        if (ssl.dtlsSetPeer(server) != WolfSSL.SSL_SUCCESS) {
+            throw new IOException("Failed to set DTLS peer");
+        }
+        ioctx = new MyIOCtx(channel, server.getAddress(), server.getPort());
+        ioctx.setHandshakeMode(true);
+        ioctx.setClock(clock);
+        try {
+            ssl.setIOReadCtx(ioctx);
+            ssl.setIOWriteCtx(ioctx);
+        } catch (WolfSSLJNIException e) {
+            throw new IOException("Can't register I/O callbacks");
+        }
+
+        int status = TunnelHandshake.connect(ssl, ioctx, pool);
+        if (status != WolfSSL.SSL_SUCCESS) {
+            throw new IOException("Can't connect to server, error " + ssl.getError(status));
+        }
+        ioctx.setHandshakeMode(false);
+        control = new ControlChannel(getTransport(), pool, clock, metrics);
+        control.join(framing, token);
+        joined = true;
+    }
+
+    /**
+     * @return records of the session for {@link PacketPipeline}
+     */
+    RecordTransport getTransport() {
+        final MyIOCtx channelCtx = ioctx;
+        return new DtlsTransport(ssl, new ReadPoll() {
+            @Override
+            public boolean await(int timeout) throws IOException {
+                // MyIOCtx takes 0 as infinite, the stages always pass a limit.
+                return channelCtx.awaitInput(Math.max(timeout, 1));
+            }
+        });
+    }
+
+    /**
+     * Sends WANT_DISCONNECT if the session has joined the tunnel and closes the channel.
+     * The pipeline which uses the session must be stopped first.
+     */
+    @Override
+    public void close() {
+        if (joined) {
+            joined = false;
+            control.disconnect();
+        }
+        if (ioctx != null) {
+            ioctx.close();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
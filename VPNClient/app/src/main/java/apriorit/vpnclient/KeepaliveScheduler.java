@@ -0,0 +1,170 @@
+package apriorit.vpnclient;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link KeepaliveScheduler} class<br>
+ * Decides when the tunnel needs a keepalive to hold the NAT binding of the
+ * DTLS socket. Any outgoing record refreshes the binding, so keepalives are
+ * sent only after the link was idle for the current interval.<br>
+ * Every keepalive is a PING which the server answers with a PONG. An answered
+ * PING proves that the binding survived the idle time before it, so the interval
+ * grows; a PING unanswered after several attempts means the binding has expired.
+ * Then the interval falls back to the longest confirmed one and further probes
+ * search between it and the failed one.<br>
+ * Servers which do not answer PINGs keep the initial interval and are never
+ * reported as expired.<br>
+ * Methods are called by the sending stage only, except {@link #onPong(long)} and
+ * {@link #getInterval()} and {@link #relearn()}. The learned interval survives
+ * reconnects, so one instance serves the whole service.
+ */
+class KeepaliveScheduler {
+    static final long INITIAL_INTERVAL_MS = TimeUnit.SECONDS.toMillis(15);
+    /** Must stay below the server's timeout of a silent client */
+    static final long MAX_INTERVAL_MS     = TimeUnit.SECONDS.toMillis(120);
+    /** Probing stops when the unknown range is narrower than this */
+    static final long MIN_STEP_MS         = TimeUnit.SECONDS.toMillis(5);
+    static final long PONG_TIMEOUT_MS     = TimeUnit.SECONDS.toMillis(2);
+    static final int  PING_ATTEMPTS       = 3;
+
+    enum Action {
+        NONE,
+        /** Send a PING now */
+        PING,
+        /** Server stopped answering, the binding (or the server) is gone */
+        EXPIRED
+    }
+
+    private volatile long interval = INITIAL_INTERVAL_MS;
+    /* longest idle time the binding is known to survive, 0 if unknown */
+    private long confirmed = 0;
+    /* shortest idle time the binding is known not to survive, 0 if unknown */
+    private long ceiling   = 0;
+    private boolean serverAnswers = false;
+
+    private long lastSentAt = 0;
+    /* idle time tested by the outstanding PING, 0 if there is none */
+    private long testedIdle = 0;
+    private long pingSentAt = 0;
+    private long lastPingAt = 0;
+    private int  pingAttempts = 0;
+
+    private volatile long pongAt = 0;
+    private volatile boolean forgetInterval = false;
+
+    /**
+     * Forgets the state of the previous connection, keeping the learned interval
+     * unless {@link #relearn()} was called.
+     * @param now - SystemClock.elapsedRealtime()
+     */
+    void start(long now) {
+        if (forgetInterval) {
+            forgetInterval = false;
+            interval = INITIAL_INTERVAL_MS;
+            confirmed = 0;
+            ceiling = 0;
+            serverAnswers = false;
+        }
+        lastSentAt = now;
+        testedIdle = 0;
+        pingAttempts = 0;
+        pongAt = 0;
+    }
+
+    /**
+     * The network has changed, so has the NAT. The next connection learns
+     * the interval from the start. May be called from any thread.
+     */
+    void relearn() {
+        forgetInterval = true;
+    }
+
+    /**
+     * A record was sent to the server.
+     */
+    void onSent(long now) {
+        lastSentAt = now;
+    }
+
+    /**
+     * A PONG was received, may be called from any thread.
+     */
+    void onPong(long now) {
+        pongAt = now;
+    }
+
+    /**
+     * @return what the sender should do now; PING is counted as a sent record
+     */
+    Action poll(long now) {
+        if (testedIdle != 0) {
+            if (pongAt >= pingSentAt) {
+                serverAnswers = true;
+                onSurvived(testedIdle);
+                testedIdle = 0;
+            } else if (now - lastPingAt >= PONG_TIMEOUT_MS) {
+                if (pingAttempts < PING_ATTEMPTS) {
+                    return ping(now);
+                }
+                long idle = testedIdle;
+                testedIdle = 0;
+                if (serverAnswers) {
+                    onExpired(idle);
+                    return Action.EXPIRED;
+                }
+            }
+            return Action.NONE;
+        }
+
+        if (now - lastSentAt >= interval) {
+            testedIdle   = now - lastSentAt;
+            pingSentAt   = now;
+            pingAttempts = 0;
+            return ping(now);
+        }
+        return Action.NONE;
+    }
+
+    private Action ping(long now) {
+        ++pingAttempts;
+        lastPingAt = now;
+        lastSentAt = now;
+        return Action.PING;
+    }
+
+    /**
+     * @return time when {@link #poll(long)} has something to do
+     */
+    long nextDeadline() {
+        return testedIdle != 0 ? lastPingAt + PONG_TIMEOUT_MS : lastSentAt + interval;
+    }
+
+    private void onSurvived(long idle) {
+        confirmed = Math.max(confirmed, Math.min(idle, MAX_INTERVAL_MS));
+        if (ceiling == 0) {
+            interval = Math.min(confirmed + confirmed / 2, MAX_INTERVAL_MS);
+        } else {
+            interval = nextProbe();
+        }
+    }
+
+    private void onExpired(long idle) {
+        ceiling = (ceiling == 0) ? idle : Math.min(ceiling, idle);
+        if (confirmed >= ceiling) {
+            // The binding got shorter (e.g. another network), learn it again.
+            confirmed = 0;
+        }
+        // Run at the safe interval once, probing continues after it is confirmed again.
+        interval = confirmed != 0 ? confirmed : Math.max(ceiling / 2, MIN_STEP_MS);
+    }
+
+    /* halves the range between known good and known bad intervals */
+    private long nextProbe() {
+        return ceiling - confirmed > MIN_STEP_MS ? (confirmed + ceiling) / 2 : confirmed;
+    }
+
+    /** @return current keepalive interval */
+    long getInterval() {
+        return interval;
+    }
+}
@@ -0,0 +1,84 @@
+package apriorit.vpnclient;
+
+/**
+ * The {@link KnockScheduler} class<br>
+ * Decides when the WANT_CONNECT knock is sent again during the DTLS handshake.<br>
+ * The knock is sent once and the ClientHello follows it at once. The server
+ * answers the ClientHello only after it got the knock, so while nothing comes
+ * back the knock is repeated with an exponential backoff, starting below a
+ * typical round trip. The first datagram from the server proves that the knock
+ * arrived: knocking stops and the time to the first byte is recorded.
+ */
+class KnockScheduler {
+    static final long INITIAL_INTERVAL_MS = 100;
+    static final long MAX_INTERVAL_MS     = 1600;
+
+    private boolean active = false;
+    private long startedAt = 0;
+    private long nextKnockAt = 0;
+    private long interval = INITIAL_INTERVAL_MS;
+    private long timeToFirstByte = -1;
+
+    /**
+     * The first knock was sent.
+     * @param now - SystemClock.elapsedRealtime()
+     */
+    void start(long now) {
+        active = true;
+        startedAt = now;
+        interval = INITIAL_INTERVAL_MS;
+        nextKnockAt = now + interval;
+        timeToFirstByte = -1;
+    }
+
+    /**
+     * Stops knocking without a reply, e.g. when the handshake is over.
+     */
+    void stop() {
+        active = false;
+    }
+
+    boolean isActive() {
+        return active;
+    }
+
+    /**
+     * @param timeout - longest time the caller is going to wait for input
+     * @return time to wait before the next {@link #poll(long)}, at most timeout
+     */
+    long waitTime(long now, long timeout) {
+        if (!active) {
+            return timeout;
+        }
+        return Math.max(0, Math.min(timeout, nextKnockAt - now));
+    }
+
+    /**
+     * @return true if the knock should be sent again now
+     */
+    boolean poll(long now) {
+        if (!active || now < nextKnockAt) {
+            return false;
+        }
+        interval = Math.min(interval * 2, MAX_INTERVAL_MS);
+        nextKnockAt = now + interval;
+        return true;
+    }
+
+    /**
+     * A datagram was received from the server.
+     */
+    void onInput(long now) {
+        if (active) {
+            active = false;
+            timeToFirstByte = now - startedAt;
+        }
+    }
+
+    /**
+     * @return milliseconds from the first knock to the first reply, -1 if there was no reply
+     */
+    long getTimeToFirstByte() {
+        return timeToFirstByte;
+    }
+}
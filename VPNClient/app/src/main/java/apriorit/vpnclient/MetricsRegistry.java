@@ -0,0 +1,175 @@
+package apriorit.vpnclient;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The {@link MetricsRegistry} class<br>
+ * Counters and gauges of the data plane, cheap enough to be updated for every packet.<br>
+ * Counters are striped atomics: a thread updates its own padded slot, so stages
+ * counting the same event do not contend for one cache line. Gauges are read only
+ * when a snapshot is taken.<br>
+ * Metrics are registered once (when the service starts), snapshots may be taken
+ * from any thread and written to a CSV file, one row per snapshot.
+ */
+class MetricsRegistry {
+    static final String PACKETS_OUT        = "packets_out";
+    static final String BYTES_OUT          = "bytes_out";
+    static final String PACKETS_IN         = "packets_in";
+    static final String BYTES_IN           = "bytes_in";
+    static final String CONTROL_OUT        = "control_out";
+    static final String CONTROL_IN         = "control_in";
+    static final String CONTROL_RETRANSMITS = "control_retransmits";
+    static final String WRITE_ERRORS       = "write_errors";
+    static final String READ_ERRORS        = "read_errors";
+    static final String MALFORMED          = "malformed_records";
+    static final String RECONNECTS         = "reconnects";
+    static final String FAILOVERS          = "standby_failovers";
+    static final String HANDSHAKES_FULL    = "handshakes_full";
+    static final String HANDSHAKES_RESUMED = "handshakes_resumed";
+    static final String HANDSHAKE_TIME_MS  = "handshake_time_ms";
+    static final String CONNECT_TTFB_MS    = "connect_ttfb_ms";
+    static final String PMTU_PROBES        = "pmtu_probes";
+    static final String INTERACTIVE_PACKETS = "interactive_packets_out";
+    static final String INTERACTIVE_BYTES   = "interactive_bytes_out";
+    static final String BULK_PACKETS       = "bulk_packets_out";
+    static final String BULK_BYTES         = "bulk_bytes_out";
+    static final String AQM_DROPS          = "aqm_drops";
+    static final String AQM_MARKS          = "aqm_ecn_marks";
+    static final String QUEUE_DELAY_US     = "outbound_queue_delay_us";
+    static final String COMPRESSED_PACKETS = "compressed_packets";
+    static final String COMPRESSION_SKIPPED = "compression_skipped";
+    static final String COMPRESSION_NO_GAIN = "compression_no_gain";
+    static final String COMPRESSION_BYTES_IN  = "compression_bytes_in";
+    static final String COMPRESSION_BYTES_OUT = "compression_bytes_out";
+    static final String COMPRESSION_TIME_NS   = "compression_time_ns";
+    static final String DNS_CACHE_HITS     = "dns_cache_hits";
+    static final String DNS_CACHE_MISSES   = "dns_cache_misses";
+    static final String DNS_LATENCY_SAVED_US = "dns_latency_saved_us";
+    static final String OUTBOUND_DEPTH     = "outbound_queue_depth";
+    static final String INBOUND_DEPTH      = "inbound_queue_depth";
+    static final String BUFFERS_PEAK       = "buffers_high_water";
+    static final String KEEPALIVE_INTERVAL = "keepalive_interval_ms";
+
+    /** Source of a value which is sampled, not counted */
+    interface Gauge {
+        long get();
+    }
+
+    /** Monotonic counter updated without locks */
+    static final class Counter {
+        /* Power of two, enough for the stage threads of one connection */
+        private static final int STRIPES = 8;
+        /* longs per stripe, so neighbouring stripes are in different cache lines */
+        private static final int PAD = 8;
+
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+        void increment() {
+            add(1);
+        }
+
+        void add(long delta) {
+            int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+            cells.getAndAdd(stripe * PAD, delta);
+        }
+
+        long get() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; ++i) {
+                sum += cells.get(i * PAD);
+            }
+            return sum;
+        }
+    }
+
+    private final Map<String, Counter> counters = new LinkedHashMap<>();
+    private final Map<String, Gauge>   gauges   = new LinkedHashMap<>();
+
+    MetricsRegistry() {
+        for (String name : new String[] { PACKETS_OUT, BYTES_OUT, PACKETS_IN, BYTES_IN,
+                CONTROL_OUT, CONTROL_IN, CONTROL_RETRANSMITS, WRITE_ERRORS, READ_ERRORS,
+                MALFORMED, RECONNECTS, FAILOVERS, HANDSHAKES_FULL, HANDSHAKES_RESUMED,
+                HANDSHAKE_TIME_MS, CONNECT_TTFB_MS, PMTU_PROBES, INTERACTIVE_PACKETS,
+                INTERACTIVE_BYTES, BULK_PACKETS, BULK_BYTES, AQM_DROPS, AQM_MARKS, QUEUE_DELAY_US,
+                COMPRESSED_PACKETS, COMPRESSION_SKIPPED, COMPRESSION_NO_GAIN,
+                COMPRESSION_BYTES_IN, COMPRESSION_BYTES_OUT, COMPRESSION_TIME_NS,
+                DNS_CACHE_HITS, DNS_CACHE_MISSES, DNS_LATENCY_SAVED_US }) {
+            counter(name);
+        }
+    }
+
+    /**
+     * @return counter with this name, it is created on the first call
+     */
+    synchronized Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            counter = new Counter();
+            counters.put(name, counter);
+        }
+        return counter;
+    }
+
+    /**
+     * Registers a gauge, a gauge with the same name is replaced.
+     */
+    synchronized void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * @return current values of all counters and gauges in registration order
+     */
+    synchronized Map<String, Long> snapshot() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().get());
+        }
+        return values;
+    }
+
+    /**
+     * Appends a snapshot to a CSV file. The header is written when the file is
+     * created, so the file may be plotted as is.
+     * @param file      - CSV file
+     * @param timestamp - value of the first column, e.g. System.currentTimeMillis()
+     * @throws IOException - thrown if the file can't be written
+     */
+    void dump(File file, long timestamp) throws IOException {
+        Map<String, Long> values = snapshot();
+        boolean newFile = !file.exists() || file.length() == 0;
+        Writer writer = new FileWriter(file, true);
+        try {
+            writeCsv(writer, values, timestamp, newFile);
+        } finally {
+            writer.close();
+        }
+    }
+
+    static void writeCsv(Writer writer, Map<String, Long> values,
+                         long timestamp, boolean header) throws IOException {
+        if (header) {
+            writer.write("time");
+            for (String name : values.keySet()) {
+                writer.write(',');
+                writer.write(name);
+            }
+            writer.write('\n');
+        }
+        writer.write(Long.toString(timestamp));
+        for (Long value : values.values()) {
+            writer.write(',');
+            writer.write(Long.toString(value));
+        }
+        writer.write('\n');
+    }
+}
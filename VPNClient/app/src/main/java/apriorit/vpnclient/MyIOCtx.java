@@ -2,8 +2,15 @@ package apriorit.vpnclient;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 
 class MyIOCtx
 {
@@ -13,6 +20,41 @@ class MyIOCtx
     private InetAddress hostAddress;
     private int port;
 
+    /* readiness of the socket, null if receive may block */
+    private ReadPoll readPoll;
+
+    /* time of the knock backoff */
+    private Clock clock = Clock.MONOTONIC;
+
+    /* datagrams reused by every send and receive, so I/O callbacks allocate nothing */
+    private final DatagramPacket sendPacket = new DatagramPacket(new byte[0], 0);
+    private final DatagramPacket recvPacket = new DatagramPacket(new byte[0], 0);
+
+    /* true while DTLS handshake and parameters exchange are in progress */
+    private boolean handshakeMode = false;
+
+    /* WANT_CONNECT knock repeated while the server is silent during the handshake */
+    private final KnockScheduler knockScheduler = new KnockScheduler();
+    private byte[] knock;
+    private int knockLength;
+
+    /* SO_TIMEOUT last set on the socket, -1 if not set yet */
+    private int soTimeout = -1;
+
+    /* Maximum size of a UDP datagram */
+    static final int MAX_DATAGRAM_SIZE = 65535;
+
+    /* Time to wait for room in the socket send buffer in NIO mode */
+    private static final int WRITE_TIMEOUT_MS = 1000;
+
+    /* NIO transport: connected non-blocking channel, null if the DatagramSocket is used */
+    private DatagramChannel channel;
+    private Selector readSelector;
+    private Selector writeSelector;
+    /* direct buffers, one per direction, each used only by the thread of its direction */
+    private ByteBuffer sendBuffer;
+    private ByteBuffer recvBuffer;
+
     /* if not using DTLS, sock and hostAddr may be null */
     public MyIOCtx(DataOutputStream outStr, DataInputStream inStr,
                    DatagramSocket s, InetAddress hostAddr, int port) {
@@ -21,6 +63,28 @@ class MyIOCtx
         this.dsock = s;
         this.hostAddress = hostAddr;
         this.port = port;
+        if (hostAddr != null) {
+            sendPacket.setAddress(hostAddr);
+            sendPacket.setPort(port);
+        }
+    }
+
+    /**
+     * NIO transport. Records are copied once, into direct buffers the kernel reads and
+     * writes without intermediate copies. The channel is put into non-blocking mode,
+     * receive returns 0 when there is nothing to read.
+     * @param ch       - channel connected to the server
+     * @param hostAddr - server address
+     * @param port     - server port
+     */
+    public MyIOCtx(DatagramChannel ch, InetAddress hostAddr, int port) throws IOException {
+        this(null, null, ch.socket(), hostAddr, port);
+        this.channel = ch;
+        ch.configureBlocking(false);
+        readSelector = Selector.open();
+        ch.register(readSelector, SelectionKey.OP_READ);
+        sendBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+        recvBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
     }
 
     public void test() {
@@ -46,12 +110,20 @@ class MyIOCtx
         return this.dsock;
     }
 
+    /**
+     * @return NIO channel or null if the blocking socket is used
+     */
+    public DatagramChannel getChannel() {
+        return this.channel;
+    }
+
     public InetAddress getHostAddress() {
         return this.hostAddress;
     }
 
     public void setAddress(InetAddress addr) {
         this.hostAddress = addr;
+        sendPacket.setAddress(addr);
     }
 
     public int getPort() {
@@ -60,6 +132,212 @@ class MyIOCtx
 
     public void setPort(int port) {
         this.port = port;
+        sendPacket.setPort(port);
+    }
+
+    /**
+     * Sends one datagram to the peer.
+     * @return number of bytes sent
+     */
+    public int send(byte[] buf, int sz) throws IOException {
+        if (channel != null) {
+            sendBuffer.clear();
+            sendBuffer.put(buf, 0, sz).flip();
+            int sent = channel.write(sendBuffer);
+            if (sent == 0) {
+                // the socket send buffer is full, wait until it drains
+                if (writeSelector == null) {
+                    writeSelector = Selector.open();
+                    channel.register(writeSelector, SelectionKey.OP_WRITE);
+                }
+                writeSelector.select(WRITE_TIMEOUT_MS);
+                writeSelector.selectedKeys().clear();
+                sent = channel.write(sendBuffer);
+            }
+            return sent;
+        }
+
+        sendPacket.setData(buf, 0, sz);
+        dsock.send(sendPacket);
+        return sz;
+    }
+
+    /**
+     * Receives one datagram and remembers its sender as the peer.
+     * @return number of bytes received, 0 if NIO channel has nothing to read
+     */
+    public int receive(byte[] buf, int sz) throws IOException {
+        if (channel != null) {
+            recvBuffer.clear();
+            recvBuffer.limit(Math.min(sz, recvBuffer.capacity()));
+            int received = channel.read(recvBuffer);
+            if (received <= 0) {
+                return 0;
+            }
+            recvBuffer.flip();
+            recvBuffer.get(buf, 0, received);
+            return received;
+        }
+
+        recvPacket.setData(buf, 0, sz);
+        dsock.receive(recvPacket);
+
+        InetAddress addr = recvPacket.getAddress();
+        if (recvPacket.getPort() != port || !addr.equals(hostAddress)) {
+            setAddress(addr);
+            setPort(recvPacket.getPort());
+        }
+        return recvPacket.getLength();
+    }
+
+    /**
+     * Sets SO_TIMEOUT of the socket, skipping the call if it is already set.
+     * @param timeout - timeout in milliseconds, 0 means infinite
+     */
+    public void setReceiveTimeout(int timeout) throws SocketException {
+        if (channel == null && timeout != soTimeout) {
+            dsock.setSoTimeout(timeout);
+            soTimeout = timeout;
+        }
+    }
+
+    /**
+     * Switches receiving to non-blocking mode: receive callback will not
+     * wait for a datagram if the socket has nothing to read.
+     * @param poll - readiness of the datagram socket
+     */
+    public void setReadPoll(ReadPoll poll) {
+        this.readPoll = poll;
+    }
+
+    /**
+     * Sets the time of the knock backoff, {@link Clock#MONOTONIC} by default.
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * In handshake mode the receive callback waits for a datagram up to the DTLS
+     * retransmission timeout, otherwise it never blocks. The connection thread
+     * switches the mode before the forwarding stages start.
+     */
+    public void setHandshakeMode(boolean handshakeMode) {
+        this.handshakeMode = handshakeMode;
+    }
+
+    public boolean isHandshakeMode() {
+        return handshakeMode;
+    }
+
+    /**
+     * Sends the knock and keeps repeating it from the receive callback of the
+     * handshake until the server replies, see {@link KnockScheduler}.
+     * @param packet - knock, must stay unchanged until {@link #stopKnock()}
+     */
+    public void startKnock(byte[] packet, int length) throws IOException {
+        knock = packet;
+        knockLength = length;
+        send(knock, knockLength);
+        knockScheduler.start(clock.now());
+    }
+
+    /**
+     * @param timeout - time left until the DTLS retransmission, milliseconds
+     * @return time to wait for input before {@link #knockIfDue()}, at most timeout
+     */
+    public int knockWait(int timeout) {
+        return (int) knockScheduler.waitTime(clock.now(), timeout);
+    }
+
+    /**
+     * Repeats the knock if the server stayed silent for the current backoff interval.
+     */
+    public void knockIfDue() throws IOException {
+        if (knockScheduler.poll(clock.now())) {
+            send(knock, knockLength);
+        }
+    }
+
+    /**
+     * A datagram was received during the handshake, the server got the knock.
+     */
+    public void onHandshakeInput() {
+        knockScheduler.onInput(clock.now());
+    }
+
+    /**
+     * Stops knocking, the knock buffer is not used after this call.
+     */
+    public void stopKnock() {
+        knockScheduler.stop();
+        knock = null;
+    }
+
+    /**
+     * @return milliseconds from the knock to the first datagram from the server, -1 if none came
+     */
+    public long getTimeToFirstByte() {
+        return knockScheduler.getTimeToFirstByte();
+    }
+
+    /**
+     * @return false if the socket is known to have nothing to read
+     */
+    public boolean hasPendingInput() {
+        if (readPoll == null)
+            return true;
+
+        try {
+            return readPoll.await(0);
+        } catch (IOException e) {
+            // let the receive call report the error
+            return true;
+        }
+    }
+
+    /**
+     * Waits for a datagram in NIO mode, or on the read poll of the blocking
+     * socket. Without the poll the blocking socket waits in receive itself,
+     * so this returns immediately for it.
+     * @param timeout - timeout in milliseconds, 0 means infinite
+     * @return false if timeout expired
+     */
+    public boolean awaitInput(int timeout) throws IOException {
+        if (channel == null) {
+            if (readPoll == null)
+                return true;
+
+            try {
+                return readPoll.await(timeout > 0 ? timeout : -1);
+            } catch (IOException e) {
+                // let the receive call report the error
+                return true;
+            }
+        }
+
+        int ready = timeout > 0 ? readSelector.select(timeout) : readSelector.select();
+        readSelector.selectedKeys().clear();
+        return ready > 0;
+    }
+
+    /**
+     * Releases selectors of NIO mode, the channel itself is closed by its owner.
+     */
+    public void close() {
+        for (Selector selector : new Selector[] { readSelector, writeSelector }) {
+            if (selector != null) {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
     }
 
     public int isDTLS() {
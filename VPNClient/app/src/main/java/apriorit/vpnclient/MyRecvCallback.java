@@ -5,30 +5,34 @@ import java.net.*;
 
 import com.wolfssl.*;
 
+/**
+ * Receive callback of the shared DTLS context. Sessions in handshake mode
+ * (see {@link MyIOCtx#setHandshakeMode(boolean)}) are served by {@link ConnectRecvCallback},
+ * established ones never block.
+ */
 class MyRecvCallback implements WolfSSLIORecvCallback
 {
+    private final ConnectRecvCallback handshakeCallback = new ConnectRecvCallback();
+
     public int receiveCallback(WolfSSLSession ssl, byte[] buf, int sz,
                                Object ctx) {
 
         MyIOCtx ioctx = (MyIOCtx) ctx;
+        if (ioctx.isHandshakeMode()) {
+            return handshakeCallback.receiveCallback(ssl, buf, sz, ctx);
+        }
         int doDTLS = ioctx.isDTLS();
 
         if (doDTLS == 1) {
 
-            int dtlsTimeout;
-            DatagramSocket dsock;
-            DatagramPacket recvPacket;
+            if (!ioctx.hasPendingInput()) {
+                return WolfSSL.WOLFSSL_CBIO_ERR_WANT_READ;
+            }
 
             try {
-                dtlsTimeout = ssl.dtlsGetCurrentTimeout() * 1000;
-                dsock = ioctx.getDatagramSocket();
-                dsock.setSoTimeout(0);
-                recvPacket = new DatagramPacket(buf, sz);
-
-                dsock.receive(recvPacket);
-
-                ioctx.setAddress(recvPacket.getAddress());
-                ioctx.setPort(recvPacket.getPort());
+                ioctx.setReceiveTimeout(0);
+                int received = ioctx.receive(buf, sz);
+                return received > 0 ? received : WolfSSL.WOLFSSL_CBIO_ERR_WANT_READ;
 
             } catch (SocketTimeoutException ste) {
                 return WolfSSL.WOLFSSL_CBIO_ERR_TIMEOUT;
@@ -43,8 +47,6 @@ class MyRecvCallback implements WolfSSLIORecvCallback
                 return WolfSSL.WOLFSSL_CBIO_ERR_GENERAL;
             }
 
-            return recvPacket.getLength();
-
         } else {
             DataInputStream is = ioctx.getInputStream();
             if (is == null) {
@@ -15,13 +15,9 @@ class MySendCallback implements WolfSSLIOSendCallback
 
         if (doDTLS == 1) {
 
-            DatagramSocket dsock = ioctx.getDatagramSocket();
-            InetAddress hostAddr = ioctx.getHostAddress();
-            int port = ioctx.getPort();
-            DatagramPacket dp = new DatagramPacket(buf, sz, hostAddr, port);
-
             try {
-                dsock.send(dp);
+                int sent = ioctx.send(buf, sz);
+                return sent > 0 ? sent : WolfSSL.WOLFSSL_CBIO_ERR_WANT_WRITE;
 
             } catch (IOException ioe) {
                 ioe.printStackTrace();
@@ -30,8 +26,6 @@ class MySendCallback implements WolfSSLIOSendCallback
                 e.printStackTrace();
                 return WolfSSL.WOLFSSL_CBIO_ERR_GENERAL;
             }
-
-            return dp.getLength();
         } else {
             DataOutputStream os = ioctx.getOutputStream();
             if (os == null) {
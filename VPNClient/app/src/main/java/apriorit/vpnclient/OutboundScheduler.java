@@ -0,0 +1,421 @@
+package apriorit.vpnclient;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+import apriorit.vpnclient.PacketBufferPool.Lease;
+
+/**
+ * The {@link OutboundScheduler} class<br>
+ * Order in which the sending stage of {@link PacketPipeline} takes packets read from tun.
+ * Packets are classified by their IP and transport headers: DNS, ICMP, pure TCP ACKs
+ * (no payload, no SYN, FIN or RST), small UDP datagrams (voice, games) and packets
+ * with an interactive DSCP are {@link TrafficClass#INTERACTIVE}, everything else is
+ * {@link TrafficClass#BULK}. Control packets of the tunnel (PING) do not pass the
+ * scheduler at all, the sender writes them at once.<br>
+ * Interactive packets go first, but after {@link #INTERACTIVE_BURST} of them in a row
+ * a waiting bulk packet is sent, so bulk is never starved. Within a class, flows of
+ * {@link FlowHash} share the link by deficit round robin, so one upload does not delay
+ * the others. Packets of a flow keep their order within a class; pure TCP ACKs may
+ * overtake data segments of their connection. A UDP datagram joins the other class
+ * while its flow has packets queued there, so a flow of mixed sizes is not reordered
+ * (QUIC would take overtaken packets for lost ones).<br>
+ * Every flow queue is managed by CoDel (RFC 8289): once the packets of a flow have
+ * waited longer than {@link #TARGET_NS} for a whole {@link #INTERVAL_NS}, the
+ * scheduler drops packets at the head of the flow, more often while the delay stays.
+ * ECN-capable packets are marked Congestion Experienced instead of being dropped.
+ * So a saturated uplink keeps a short queue and the tunnel stays responsive, the
+ * senders of the flows slow down instead. Dropped packets are handed back by
+ * {@link #pollDropped()}.<br>
+ * Used by the sending stage only.
+ */
+final class OutboundScheduler {
+    enum TrafficClass {
+        INTERACTIVE,
+        BULK
+    }
+
+    /** Flows of a class are hashed into this many queues */
+    static final int FLOW_BUCKETS = 64;
+    /** Bytes a flow may send per round of deficit round robin */
+    static final int QUANTUM = 1500;
+    /** Interactive packets sent in a row while bulk packets are waiting */
+    static final int INTERACTIVE_BURST = 16;
+    /** UDP datagrams up to this size are taken for voice or game traffic */
+    static final int SMALL_DATAGRAM = 256;
+    /** Queue delay CoDel lets a flow keep */
+    static final long TARGET_NS = TimeUnit.MILLISECONDS.toNanos(5);
+    /** Time the delay has to stay above the target before packets are dropped */
+    static final long INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final int ICMP   = 1;
+    private static final int TCP    = 6;
+    private static final int UDP    = 17;
+    private static final int ICMPV6 = 58;
+    private static final int DNS_PORT = 53;
+
+    /* TCP flags which a pure ACK does not carry */
+    private static final int FIN = 0x01;
+    private static final int SYN = 0x02;
+    private static final int RST = 0x04;
+
+    /* ECN field of the IP header */
+    private static final int ECN_MASK = 0x03;
+    private static final int NOT_ECT  = 0x00;
+    private static final int CE       = 0x03;
+
+    /* DSCP code points */
+    private static final int CS1  = 8;
+    private static final int AF41 = 34;
+    private static final int AF43 = 38;
+    private static final int CS5  = 40;
+    private static final int VOICE_ADMIT = 44;
+    private static final int EF   = 46;
+    private static final int CS6  = 48;
+    private static final int CS7  = 56;
+
+    /** Queue of one flow bucket */
+    private static final class Flow {
+        final ArrayDeque<Lease> packets = new ArrayDeque<>();
+        int bytes = 0;
+        int deficit = 0;
+        boolean active = false;
+
+        /* CoDel state, names of RFC 8289 */
+        long firstAboveTime = 0;
+        long dropNext = 0;
+        int count = 0;
+        int lastCount = 0;
+        boolean dropping = false;
+    }
+
+    /** Flows of one class, the active ones in round robin order */
+    private static final class ClassQueue {
+        final Flow[] flows = new Flow[FLOW_BUCKETS];
+        final ArrayDeque<Flow> active = new ArrayDeque<>(FLOW_BUCKETS);
+        final MetricsRegistry.Counter packets;
+        final MetricsRegistry.Counter bytes;
+        int size = 0;
+
+        ClassQueue(MetricsRegistry.Counter packets, MetricsRegistry.Counter bytes) {
+            this.packets = packets;
+            this.bytes = bytes;
+            for (int i = 0; i < FLOW_BUCKETS; ++i) {
+                flows[i] = new Flow();
+            }
+        }
+    }
+
+    private final ClassQueue interactive;
+    private final ClassQueue bulk;
+    private final ArrayDeque<Lease> dropped = new ArrayDeque<>();
+
+    private final MetricsRegistry.Counter drops;
+    private final MetricsRegistry.Counter marks;
+    private final MetricsRegistry.Counter queueDelay;
+
+    /* interactive packets sent since the last bulk one */
+    private int interactiveRun = 0;
+
+    OutboundScheduler(MetricsRegistry metrics) {
+        interactive = new ClassQueue(metrics.counter(MetricsRegistry.INTERACTIVE_PACKETS),
+                                     metrics.counter(MetricsRegistry.INTERACTIVE_BYTES));
+        bulk        = new ClassQueue(metrics.counter(MetricsRegistry.BULK_PACKETS),
+                                     metrics.counter(MetricsRegistry.BULK_BYTES));
+        drops       = metrics.counter(MetricsRegistry.AQM_DROPS);
+        marks       = metrics.counter(MetricsRegistry.AQM_MARKS);
+        queueDelay  = metrics.counter(MetricsRegistry.QUEUE_DELAY_US);
+    }
+
+    /** @return number of queued packets */
+    int size() {
+        return interactive.size + bulk.size;
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Queues a packet read from tun.
+     * @param packet - packet with {@link Lease#timestamp} of the time it was read
+     */
+    void offer(Lease packet) {
+        ClassQueue queue = classify(packet.data, packet.length) == TrafficClass.INTERACTIVE
+                ? interactive : bulk;
+        int bucket = (FlowHash.hash(packet.data, packet.length) & Integer.MAX_VALUE)
+                % FLOW_BUCKETS;
+        ClassQueue other = queue == interactive ? bulk : interactive;
+        if (!other.flows[bucket].packets.isEmpty() && isUdp(packet.data, packet.length)) {
+            // The size of datagrams may change the class, earlier ones are still queued.
+            queue = other;
+        }
+        Flow flow = queue.flows[bucket];
+        flow.packets.addLast(packet);
+        flow.bytes += packet.length;
+        if (!flow.active) {
+            flow.active = true;
+            queue.active.addLast(flow);
+        }
+        ++queue.size;
+    }
+
+    /**
+     * @param now - System.nanoTime()
+     * @return the next packet to send, null if nothing is queued
+     */
+    Lease poll(long now) {
+        while (true) {
+            ClassQueue queue;
+            if (interactive.size > 0
+                    && (bulk.size == 0 || interactiveRun < INTERACTIVE_BURST)) {
+                queue = interactive;
+            } else if (bulk.size > 0) {
+                queue = bulk;
+            } else {
+                return null;
+            }
+
+            Lease packet = dequeue(queue, now);
+            if (packet == null) {
+                // CoDel dropped the rest of the flow, take the next one.
+                continue;
+            }
+            interactiveRun = queue == interactive ? interactiveRun + 1 : 0;
+            queue.packets.increment();
+            queue.bytes.add(packet.length);
+            queueDelay.add(TimeUnit.NANOSECONDS.toMicros(now - packet.timestamp));
+            return packet;
+        }
+    }
+
+    /**
+     * @return a packet dropped by CoDel, the caller returns its buffer; null if none
+     */
+    Lease pollDropped() {
+        return dropped.pollFirst();
+    }
+
+    /* deficit round robin over the active flows of the class */
+    private Lease dequeue(ClassQueue queue, long now) {
+        Flow flow = queue.active.peekFirst();
+        while (flow.deficit < flow.packets.peekFirst().length) {
+            // The flow has used its share of this round.
+            flow.deficit += QUANTUM;
+            queue.active.addLast(queue.active.pollFirst());
+            flow = queue.active.peekFirst();
+        }
+        Lease packet = codelDequeue(queue, flow, now);
+        if (packet != null) {
+            flow.deficit -= packet.length;
+        }
+        if (flow.packets.isEmpty()) {
+            deactivate(queue, flow);
+        }
+        return packet;
+    }
+
+    /* dequeue of RFC 8289, null if the rest of the flow was dropped */
+    private Lease codelDequeue(ClassQueue queue, Flow flow, long now) {
+        Lease packet = pop(queue, flow);
+        boolean drop = shouldDrop(flow, packet, now);
+        if (flow.dropping) {
+            if (!drop) {
+                flow.dropping = false;
+            }
+            while (flow.dropping && now - flow.dropNext >= 0) {
+                ++flow.count;
+                if (markCongestion(packet.data, packet.length)) {
+                    marks.increment();
+                    flow.dropNext = controlLaw(flow.dropNext, flow.count);
+                    return packet;
+                }
+                discard(packet);
+                packet = pop(queue, flow);
+                if (!shouldDrop(flow, packet, now)) {
+                    flow.dropping = false;
+                } else {
+                    flow.dropNext = controlLaw(flow.dropNext, flow.count);
+                }
+            }
+        } else if (drop) {
+            if (markCongestion(packet.data, packet.length)) {
+                marks.increment();
+            } else {
+                discard(packet);
+                packet = pop(queue, flow);
+                shouldDrop(flow, packet, now);
+            }
+            flow.dropping = true;
+            // Start near the drop rate of the last episode if it ended recently.
+            int delta = flow.count - flow.lastCount;
+            flow.count = delta > 1 && now - flow.dropNext < 16 * INTERVAL_NS ? delta : 1;
+            flow.lastCount = flow.count;
+            flow.dropNext = controlLaw(now, flow.count);
+        }
+        return packet;
+    }
+
+    private static Lease pop(ClassQueue queue, Flow flow) {
+        Lease packet = flow.packets.pollFirst();
+        if (packet != null) {
+            flow.bytes -= packet.length;
+            --queue.size;
+        }
+        return packet;
+    }
+
+    /* true once the delay of the flow has stayed above the target for an interval */
+    private static boolean shouldDrop(Flow flow, Lease packet, long now) {
+        if (packet == null) {
+            flow.firstAboveTime = 0;
+            return false;
+        }
+        // A single full packet left in the flow is not a standing queue.
+        if (now - packet.timestamp < TARGET_NS || flow.bytes <= QUANTUM) {
+            flow.firstAboveTime = 0;
+            return false;
+        }
+        if (flow.firstAboveTime == 0) {
+            flow.firstAboveTime = now + INTERVAL_NS;
+            return false;
+        }
+        return now - flow.firstAboveTime >= 0;
+    }
+
+    /* next drop time, drops get more frequent while the delay stays high */
+    private static long controlLaw(long time, int count) {
+        return time + (long) (INTERVAL_NS / Math.sqrt(count));
+    }
+
+    private void discard(Lease packet) {
+        dropped.addLast(packet);
+        drops.increment();
+    }
+
+    private static void deactivate(ClassQueue queue, Flow flow) {
+        if (queue.active.peekFirst() == flow) {
+            queue.active.pollFirst();
+        }
+        flow.active = false;
+        flow.deficit = 0;
+        flow.dropping = false;
+    }
+
+    /**
+     * Sets Congestion Experienced in the ECN field of an ECN-capable IP packet, the
+     * IPv4 header checksum is updated incrementally (RFC 1624).
+     * @return false if the packet is not ECN-capable, it has to be dropped then
+     */
+    static boolean markCongestion(byte[] packet, int length) {
+        if (length < 1) {
+            return false;
+        }
+        switch ((packet[0] >> 4) & 0x0F) {
+            case 4: {
+                if (length < 20 || (packet[1] & ECN_MASK) == NOT_ECT) {
+                    return false;
+                }
+                int old = ((packet[0] & 0xFF) << 8) | (packet[1] & 0xFF);
+                int updated = old | CE;
+                int checksum = ((packet[10] & 0xFF) << 8) | (packet[11] & 0xFF);
+                int sum = (~checksum & 0xFFFF) + (~old & 0xFFFF) + updated;
+                sum = (sum & 0xFFFF) + (sum >>> 16);
+                sum = (sum & 0xFFFF) + (sum >>> 16);
+                checksum = ~sum & 0xFFFF;
+                packet[1] = (byte) updated;
+                packet[10] = (byte) (checksum >> 8);
+                packet[11] = (byte) checksum;
+                return true;
+            }
+            case 6:
+                // The traffic class spans two bytes, ECN is in bits 4..5 of the second one.
+                if (length < 40 || ((packet[1] >> 4) & ECN_MASK) == NOT_ECT) {
+                    return false;
+                }
+                packet[1] |= CE << 4;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return class of an IP packet, {@link TrafficClass#BULK} for anything unknown
+     */
+    static TrafficClass classify(byte[] packet, int length) {
+        if (length < 1) {
+            return TrafficClass.BULK;
+        }
+        int dscp;
+        int protocol;
+        int offset;
+        switch ((packet[0] >> 4) & 0x0F) {
+            case 4:
+                offset = (packet[0] & 0x0F) * 4;
+                if (length < 20 || offset < 20) {
+                    return TrafficClass.BULK;
+                }
+                dscp = (packet[1] & 0xFF) >> 2;
+                protocol = packet[9] & 0xFF;
+                // Fragments after the first one have no transport header.
+                if ((packet[6] & 0x1F) != 0 || packet[7] != 0) {
+                    offset = length;
+                }
+                break;
+            case 6:
+                if (length < 40) {
+                    return TrafficClass.BULK;
+                }
+                dscp = ((packet[0] & 0x0F) << 2) | ((packet[1] & 0xC0) >> 6);
+                protocol = packet[6] & 0xFF;
+                offset = 40;
+                break;
+            default:
+                return TrafficClass.BULK;
+        }
+
+        if (dscp == CS1) {
+            // lower effort, marked as such by the application
+            return TrafficClass.BULK;
+        }
+        if ((dscp >= AF41 && dscp <= AF43) || dscp == CS5 || dscp == VOICE_ADMIT
+                || dscp == EF || dscp == CS6 || dscp == CS7) {
+            return TrafficClass.INTERACTIVE;
+        }
+        if (protocol == ICMP || protocol == ICMPV6) {
+            return TrafficClass.INTERACTIVE;
+        }
+        if (protocol == UDP && offset + 4 <= length) {
+            if (isDns(packet, offset) || length <= SMALL_DATAGRAM) {
+                return TrafficClass.INTERACTIVE;
+            }
+        } else if (protocol == TCP && offset + 14 <= length) {
+            int headerSize = ((packet[offset + 12] >> 4) & 0x0F) * 4;
+            // FIN and RST must not overtake data of their connection.
+            boolean pureAck = offset + headerSize >= length
+                    && (packet[offset + 13] & (FIN | SYN | RST)) == 0;
+            if (isDns(packet, offset) || pureAck) {
+                return TrafficClass.INTERACTIVE;
+            }
+        }
+        return TrafficClass.BULK;
+    }
+
+    private static boolean isUdp(byte[] packet, int length) {
+        switch (length < 1 ? 0 : (packet[0] >> 4) & 0x0F) {
+            case 4:
+                return length >= 20 && packet[9] == UDP;
+            case 6:
+                return length >= 40 && packet[6] == UDP;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isDns(byte[] packet, int offset) {
+        int sourcePort = ((packet[offset] & 0xFF) << 8) | (packet[offset + 1] & 0xFF);
+        int destinationPort = ((packet[offset + 2] & 0xFF) << 8) | (packet[offset + 3] & 0xFF);
+        return sourcePort == DNS_PORT || destinationPort == DNS_PORT;
+    }
+}
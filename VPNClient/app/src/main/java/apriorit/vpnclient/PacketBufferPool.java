@@ -0,0 +1,137 @@
+package apriorit.vpnclient;
+
+import java.util.ArrayDeque;
+
+/**
+ * The {@link PacketBufferPool} class<br>
+ * Preallocated packet buffers shared by all connections of the service, so
+ * reconnects and control exchanges reuse the same memory instead of allocating.<br>
+ * Buffers are sized from the tunnel MTU sent by the server. A buffer is handed out
+ * as a {@link Lease}, which records the stage owning it; a stage that passes a lease
+ * to another one (e.g. through a {@link SpscRing}) changes the owner with
+ * {@link Lease#moveTo(Owner, Owner)}, so a buffer used by a wrong stage is noticed at once.<br>
+ * Acquiring and releasing are synchronized and happen only when a connection starts
+ * or stops, stages exchange leases through their own rings.
+ */
+class PacketBufferPool {
+    /** Control packets (parameters, knocks) are exchanged in blocks of this size */
+    static final int CONTROL_PACKET_SIZE = 1024;
+
+    /** Stage owning a lease */
+    enum Owner {
+        POOL,
+        CONTROL,
+        TUN_READER,
+        SENDER,
+        RECEIVER,
+        TUN_WRITER
+    }
+
+    /** Buffer for a single packet or record */
+    static final class Lease {
+        final byte[] data;
+        int length;
+        /* System.nanoTime() when the packet was queued, set by the stage queueing it */
+        long timestamp;
+        private Owner owner = Owner.POOL;
+
+        private Lease(int size) {
+            data = new byte[size];
+        }
+
+        Owner getOwner() {
+            return owner;
+        }
+
+        /**
+         * Passes the lease to another stage.
+         * @throws IllegalStateException - thrown if the lease does not belong to 'from'
+         */
+        void moveTo(Owner from, Owner to) {
+            if (owner != from) {
+                throw new IllegalStateException("Lease is owned by " + owner + ", not " + from);
+            }
+            owner = to;
+        }
+    }
+
+    private final ArrayDeque<Lease> free = new ArrayDeque<>();
+    private int bufferSize;
+    private int leased = 0;
+    private int highWaterMark = 0;
+    private long allocated = 0;
+
+    /**
+     * @param mtu - expected tunnel MTU, buffers are resized by {@link #setMtu(int)}
+     */
+    PacketBufferPool(int mtu) {
+        bufferSize = bufferSizeFor(mtu);
+    }
+
+    private static int bufferSizeFor(int mtu) {
+        return Math.max(mtu, CONTROL_PACKET_SIZE);
+    }
+
+    /**
+     * Adjusts buffer size to the MTU sent by the server. Free buffers of
+     * another size are dropped, leased ones are dropped when released.
+     */
+    synchronized void setMtu(int mtu) {
+        int size = bufferSizeFor(mtu);
+        if (size != bufferSize) {
+            bufferSize = size;
+            free.clear();
+        }
+    }
+
+    /**
+     * @param owner - stage which gets the buffer
+     * @return free buffer, a new one is allocated only if the pool is empty
+     */
+    synchronized Lease acquire(Owner owner) {
+        Lease lease = free.pollFirst();
+        if (lease == null) {
+            lease = new Lease(bufferSize);
+            ++allocated;
+        }
+        lease.length = 0;
+        lease.owner = owner;
+        ++leased;
+        highWaterMark = Math.max(highWaterMark, leased);
+        return lease;
+    }
+
+    /**
+     * Returns a buffer to the pool, whichever stage holds it.
+     * @throws IllegalStateException - thrown if the lease is already released
+     */
+    synchronized void release(Lease lease) {
+        if (lease.owner == Owner.POOL) {
+            throw new IllegalStateException("Lease is released twice");
+        }
+        lease.owner = Owner.POOL;
+        --leased;
+        if (lease.data.length == bufferSize) {
+            free.offerFirst(lease);
+        }
+    }
+
+    synchronized int getBufferSize() {
+        return bufferSize;
+    }
+
+    /** @return buffers held by stages now */
+    synchronized int getLeased() {
+        return leased;
+    }
+
+    /** @return maximum number of buffers leased at the same time */
+    synchronized int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /** @return buffers allocated since the pool was created */
+    synchronized long getAllocated() {
+        return allocated;
+    }
+}
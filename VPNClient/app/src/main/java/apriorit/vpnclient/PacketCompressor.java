@@ -0,0 +1,239 @@
+package apriorit.vpnclient;
+
+import java.util.Arrays;
+
+/**
+ * The {@link PacketCompressor} class<br>
+ * Compresses single IP packets with the LZ4 block format, so the server decompresses
+ * them with liblz4. The client never receives compressed packets, so it has no
+ * decoder; the tests check the blocks with ReferenceDecompressor.<br>
+ * Packet format: COMPRESS_MARKER, 2-byte big-endian length of the original packet,
+ * then the LZ4 block. The marker is neither a control packet (0), nor
+ * {@link PacketFramer#FRAME_MARKER}, nor a valid IP version, so a compressed packet
+ * may be sent as a record or framed like any other packet.<br>
+ * Packets which look already compressed or encrypted (TLS, QUIC, media) are not
+ * compressed at all: a sample of their tail has too many distinct bytes. Packets which
+ * do not get smaller are sent as they are.<br>
+ * Every sender of {@link PacketPipeline} has its own compressor, it is not thread safe.
+ */
+final class PacketCompressor {
+    static final byte COMPRESS_MARKER = 2;
+
+    /** Bytes added to a compressed packet: marker and original length */
+    static final int COMPRESS_OVERHEAD = 3;
+
+    /** Smaller packets are mostly headers, they are not worth the CPU */
+    static final int MIN_PACKET_SIZE = 128;
+
+    /** Bytes at the end of a packet looked at by the entropy check */
+    static final int SAMPLE_SIZE = 128;
+    /**
+     * Distinct values in a sample above which a packet is taken for random data.
+     * 128 random bytes have about 100 distinct values, text and headers far fewer.
+     */
+    static final int MAX_DISTINCT = 88;
+
+    /* LZ4 block format: shortest match, literals at the end of a block, and the
+       last position a match may start at, counted from the end */
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_LOG = 12;
+
+    /* positions of 4-byte sequences, offset by 'base' */
+    private final int[] table = new int[1 << HASH_LOG];
+    /* entries below it belong to earlier packets, so the table is not cleared per packet */
+    private int base = 1;
+
+    private final byte[] record;
+
+    private final MetricsRegistry.Counter compressed;
+    private final MetricsRegistry.Counter skipped;
+    private final MetricsRegistry.Counter noGain;
+    private final MetricsRegistry.Counter bytesIn;
+    private final MetricsRegistry.Counter bytesOut;
+    private final MetricsRegistry.Counter timeNs;
+
+    /**
+     * @param record - buffer for compressed packets, at least as long as the packets
+     */
+    PacketCompressor(byte[] record, MetricsRegistry metrics) {
+        this.record = record;
+        compressed = metrics.counter(MetricsRegistry.COMPRESSED_PACKETS);
+        skipped    = metrics.counter(MetricsRegistry.COMPRESSION_SKIPPED);
+        noGain     = metrics.counter(MetricsRegistry.COMPRESSION_NO_GAIN);
+        bytesIn    = metrics.counter(MetricsRegistry.COMPRESSION_BYTES_IN);
+        bytesOut   = metrics.counter(MetricsRegistry.COMPRESSION_BYTES_OUT);
+        timeNs     = metrics.counter(MetricsRegistry.COMPRESSION_TIME_NS);
+    }
+
+    /**
+     * Compresses a packet into {@link #getRecord()}.
+     * @return length of the compressed packet, -1 if the packet has to be sent as it is
+     */
+    int compress(byte[] packet, int length) {
+        if (length < MIN_PACKET_SIZE) {
+            return -1;
+        }
+        long start = System.nanoTime();
+        int result = -1;
+        if (looksRandom(packet, length)) {
+            skipped.increment();
+        } else {
+            // Only a smaller packet is worth sending.
+            int block = compressBlock(packet, length, record, COMPRESS_OVERHEAD,
+                                      length - COMPRESS_OVERHEAD - 1);
+            if (block < 0) {
+                noGain.increment();
+            } else {
+                record[0] = COMPRESS_MARKER;
+                record[1] = (byte) (length >>> 8);
+                record[2] = (byte) length;
+                result = COMPRESS_OVERHEAD + block;
+                compressed.increment();
+                bytesIn.add(length);
+                bytesOut.add(result);
+            }
+        }
+        timeNs.add(System.nanoTime() - start);
+        return result;
+    }
+
+    byte[] getRecord() {
+        return record;
+    }
+
+    /**
+     * @return true if the tail of the packet has as many distinct bytes as random data
+     */
+    static boolean looksRandom(byte[] packet, int length) {
+        long seen0 = 0;
+        long seen1 = 0;
+        long seen2 = 0;
+        long seen3 = 0;
+        for (int i = Math.max(0, length - SAMPLE_SIZE); i < length; ++i) {
+            int value = packet[i] & 0xFF;
+            long bit = 1L << value;
+            switch (value >>> 6) {
+                case 0:  seen0 |= bit; break;
+                case 1:  seen1 |= bit; break;
+                case 2:  seen2 |= bit; break;
+                default: seen3 |= bit; break;
+            }
+        }
+        int distinct = Long.bitCount(seen0) + Long.bitCount(seen1)
+                     + Long.bitCount(seen2) + Long.bitCount(seen3);
+        return distinct > MAX_DISTINCT;
+    }
+
+    /**
+     * Greedy LZ4 block compression with a single-entry hash table.
+     * @return length of the block, -1 if it is longer than 'limit'
+     */
+    private int compressBlock(byte[] src, int length, byte[] dst, int dstOffset, int limit) {
+        if (base > Integer.MAX_VALUE - 2 * (MAX_OFFSET + 1)) {
+            Arrays.fill(table, 0);
+            base = 1;
+        }
+        int op = dstOffset;
+        int opLimit = dstOffset + limit;
+        int anchor = 0;
+
+        if (length > MF_LIMIT) {
+            int matchLimit = length - LAST_LITERALS;
+            int mfLimit = length - MF_LIMIT;
+            table[hash(src, 0)] = base;
+            int ip = 1;
+            while (ip < mfLimit) {
+                int h = hash(src, ip);
+                int ref = table[h] - base;
+                table[h] = base + ip;
+                if (ref < 0 || ip - ref > MAX_OFFSET || !equal4(src, ip, ref)) {
+                    // Skip faster through data without matches.
+                    ip += 1 + ((ip - anchor) >>> 6);
+                    continue;
+                }
+                while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+                    --ip;
+                    --ref;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit
+                        && src[ip + matchLength] == src[ref + matchLength]) {
+                    ++matchLength;
+                }
+                op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength,
+                                   dst, op, opLimit);
+                if (op < 0) {
+                    base += length + 1;
+                    return -1;
+                }
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+        base += length + 1;
+
+        // The block ends with literals only.
+        int literals = length - anchor;
+        if (op + 1 + literals / 255 + 1 + literals > opLimit) {
+            return -1;
+        }
+        op = writeLength(dst, op, literals, 4);
+        System.arraycopy(src, anchor, dst, op, literals);
+        return op + literals - dstOffset;
+    }
+
+    /**
+     * @return position after the sequence, -1 if it does not fit
+     */
+    private static int writeSequence(byte[] src, int anchor, int literals, int offset,
+                                     int matchLength, byte[] dst, int op, int opLimit) {
+        int extra = matchLength - MIN_MATCH;
+        if (op + 1 + literals / 255 + 1 + literals + 2 + extra / 255 + 1 > opLimit) {
+            return -1;
+        }
+        int token = op;
+        op = writeLength(dst, op, literals, 4);
+        System.arraycopy(src, anchor, dst, op, literals);
+        op += literals;
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+        if (extra >= 15) {
+            dst[token] |= 0x0F;
+            for (extra -= 15; extra >= 255; extra -= 255) {
+                dst[op++] = (byte) 0xFF;
+            }
+            dst[op++] = (byte) extra;
+        } else {
+            dst[token] |= extra;
+        }
+        return op;
+    }
+
+    /* writes the token with a length in its 'shift' half and the extra length bytes */
+    private static int writeLength(byte[] dst, int op, int length, int shift) {
+        if (length < 15) {
+            dst[op++] = (byte) (length << shift);
+            return op;
+        }
+        dst[op++] = (byte) (15 << shift);
+        for (length -= 15; length >= 255; length -= 255) {
+            dst[op++] = (byte) 0xFF;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    private static int hash(byte[] src, int i) {
+        int sequence = (src[i] & 0xFF) | (src[i + 1] & 0xFF) << 8
+                     | (src[i + 2] & 0xFF) << 16 | (src[i + 3] & 0xFF) << 24;
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static boolean equal4(byte[] src, int a, int b) {
+        return src[a] == src[b] && src[a + 1] == src[b + 1]
+            && src[a + 2] == src[b + 2] && src[a + 3] == src[b + 3];
+    }
+}
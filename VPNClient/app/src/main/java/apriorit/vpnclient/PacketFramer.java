@@ -0,0 +1,137 @@
+package apriorit.vpnclient;
+
+import java.io.IOException;
+
+/**
+ * The {@link PacketFramer} class<br>
+ * Packs several IP packets into one DTLS record and unpacks such records.<br>
+ * Record format: FRAME_MARKER, then for every packet 2-byte big-endian length
+ * followed by the packet itself. The marker is neither a control packet (0)
+ * nor a valid IP version, so framed and plain records may be mixed.
+ */
+class PacketFramer {
+    static final byte FRAME_MARKER = 1;
+
+    /** Bytes added to a record by framing: marker and length of the first packet */
+    static final int FRAME_OVERHEAD = 3;
+
+    private final byte[] record;
+    private int length = 0;
+    private int count = 0;
+    private long firstPacketNanos = 0;
+
+    private final int maxRecordSize;
+
+    /**
+     * @param maxRecordSize - maximum size of a record, usually the tunnel MTU
+     */
+    PacketFramer(int maxRecordSize) {
+        this(new byte[maxRecordSize], maxRecordSize);
+    }
+
+    /**
+     * @param record        - buffer for the record, at least maxRecordSize long
+     * @param maxRecordSize - maximum size of a record, usually the tunnel MTU
+     */
+    PacketFramer(byte[] record, int maxRecordSize) {
+        if (record.length < maxRecordSize) {
+            throw new IllegalArgumentException("Record buffer is smaller than " + maxRecordSize);
+        }
+        this.record = record;
+        this.maxRecordSize = maxRecordSize;
+    }
+
+    /**
+     * @return true if a packet of this size may be framed at all
+     */
+    boolean accepts(int packetLength) {
+        return packetLength > 0 && packetLength + FRAME_OVERHEAD <= maxRecordSize;
+    }
+
+    /**
+     * @return true if a packet of this size fits into the current record
+     */
+    boolean fits(int packetLength) {
+        int used = count == 0 ? 1 : length;
+        return used + 2 + packetLength <= maxRecordSize;
+    }
+
+    /**
+     * Appends a packet, caller must check {@link #fits(int)} first.
+     */
+    void append(byte[] buf, int offset, int packetLength) {
+        if (count == 0) {
+            record[0] = FRAME_MARKER;
+            length = 1;
+            firstPacketNanos = System.nanoTime();
+        }
+        record[length]     = (byte) (packetLength >>> 8);
+        record[length + 1] = (byte) packetLength;
+        System.arraycopy(buf, offset, record, length + 2, packetLength);
+        length += 2 + packetLength;
+        ++count;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return System.nanoTime() when the first packet of the record was appended
+     */
+    long getFirstPacketNanos() {
+        return firstPacketNanos;
+    }
+
+    /**
+     * Completes the record. A single packet is sent without framing,
+     * so it is moved to the beginning of the buffer.
+     * @return length of data in {@link #getRecord()}
+     */
+    int finish() {
+        if (count == 1) {
+            length -= FRAME_OVERHEAD;
+            System.arraycopy(record, FRAME_OVERHEAD, record, 0, length);
+        }
+        return length;
+    }
+
+    byte[] getRecord() {
+        return record;
+    }
+
+    void reset() {
+        length = 0;
+        count = 0;
+    }
+
+    /**
+     * Splits a framed record into packets.
+     * @param buf    - record starting with FRAME_MARKER
+     * @param length - record length
+     * @param sink   - receiver of packets
+     * @return number of packets or -1 if the record is malformed;
+     *         packets before the malformed part are delivered anyway
+     */
+    static int unpack(byte[] buf, int length, PacketSink sink) throws IOException {
+        if (length < 1 || buf[0] != FRAME_MARKER) {
+            return -1;
+        }
+        int count = 0;
+        int offset = 1;
+        while (offset < length) {
+            if (offset + 2 > length) {
+                return -1;
+            }
+            int packetLength = ((buf[offset] & 0xFF) << 8) | (buf[offset + 1] & 0xFF);
+            offset += 2;
+            if (packetLength == 0 || offset + packetLength > length) {
+                return -1;
+            }
+            sink.onPacket(buf, offset, packetLength);
+            offset += packetLength;
+            ++count;
+        }
+        return count;
+    }
+}
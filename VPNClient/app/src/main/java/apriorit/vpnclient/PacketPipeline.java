@@ -0,0 +1,682 @@
+package apriorit.vpnclient;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import apriorit.vpnclient.PacketBufferPool.Lease;
+import apriorit.vpnclient.PacketBufferPool.Owner;
+
+/**
+ * The {@link PacketPipeline} class<br>
+ * Forwards packets of established tunnel in four stages, each in its own thread:<br>
+ * tun reader -> encrypt/send (outgoing) and receive/decrypt -> tun writer (incoming).<br>
+ * Stages are joined by bounded {@link SpscRing}s, so a slow tun write or a slow
+ * SSL call stalls only its own direction. Packet buffers are leased from
+ * {@link PacketBufferPool} when the pipeline is created and returned to the producing
+ * stage through a second ring, no allocation per packet. All leases go back to the
+ * pool when the pipeline stops.<br>
+ * The sender takes packets in the order of its {@link OutboundScheduler}: interactive
+ * traffic ahead of bulk, flows of a class by deficit round robin. The tun reader has
+ * {@link #OUTBOUND_CAPACITY} buffers, so when the uplink is saturated the queue builds
+ * up in the scheduler, where CoDel keeps its delay short, and not in the tun
+ * interface.<br>
+ * If compression is enabled, every sender compresses the packets it sends by its own
+ * {@link PacketCompressor} before they are framed.<br>
+ * If a {@link DnsCache} is set, the tun reader answers the DNS queries it has responses
+ * for: the response goes to the tun writer through a ring of its own, the query never
+ * reaches a sender. The tun writer caches the responses it writes.<br>
+ * A tunnel of several DTLS sessions has a sender and a receiver per session. The tun
+ * reader assigns every packet to a session by {@link FlowHash}, so packets of a flow
+ * keep their order while the crypto of different flows runs on different cores.<br>
+ * The pipeline does not use Android classes: packets come from a {@link PacketSource}
+ * and go to a {@link PacketSink}, records are carried by a {@link RecordTransport},
+ * so the loopback harness runs it on the JVM.
+ */
+class PacketPipeline {
+    /** Number of packet buffers queued in each direction */
+    static final int QUEUE_CAPACITY = 32;
+    /** Number of packet buffers of the tun reader, enough for the queue of a slow uplink */
+    static final int OUTBOUND_CAPACITY = 256;
+
+    /**
+     * Upper bound for a single poll() or park. Thread.interrupt() does not wake up
+     * poll(), so the stages have to check their state at least this often.
+     */
+    private static final int POLL_TIMEOUT_MS = 250;
+    private static final long PARK_TIMEOUT_NS = TimeUnit.MILLISECONDS.toNanos(POLL_TIMEOUT_MS);
+
+    /** Time a coalesced record waits for more packets before it is sent */
+    private static final long FLUSH_DEADLINE_NS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private static final byte PONG = (byte) SpecialPacket.PONG.ordinal();
+
+    private final PacketSource     source;
+    private final PacketSink       sink;
+    private final PacketBufferPool pool;
+    private final Clock            clock;
+    private final MetricsRegistry  metrics;
+
+    private final MetricsRegistry.Counter packetsOut;
+    private final MetricsRegistry.Counter bytesOut;
+    private final MetricsRegistry.Counter packetsIn;
+    private final MetricsRegistry.Counter bytesIn;
+    private final MetricsRegistry.Counter controlOut;
+    private final MetricsRegistry.Counter controlIn;
+    private final MetricsRegistry.Counter writeErrors;
+    private final MetricsRegistry.Counter readErrors;
+    private final MetricsRegistry.Counter malformed;
+
+    /* every buffer of this pipeline, to return them to the pool wherever they are */
+    private final Lease[] leases;
+
+    /* one per DTLS session of the tunnel */
+    private final Shard[] shards;
+    /* shard whose free ring the tun reader polls first */
+    private int nextFree = 0;
+    /* buffer taken by the tun reader when tun was already drained; it is kept
+       instead of being offered back, the tun reader only consumes free rings */
+    private Lease spareOutbound = null;
+
+    private volatile boolean running = true;
+    private volatile IOException failure = null;
+
+    /* set by the tun reader while it is waiting for a free buffer */
+    private volatile boolean tunReaderStarved = false;
+
+    /* answers DNS queries without the server, null if not enabled */
+    private DnsCache dnsCache = null;
+    /* tun reader -> tun writer: DNS responses from the cache, and their buffers back */
+    private final SpscRing<Lease> local     = new SpscRing<>(OUTBOUND_CAPACITY);
+    private final SpscRing<Lease> localFree = new SpscRing<>(OUTBOUND_CAPACITY);
+
+    /* writes unpacked incoming packets to tun */
+    private final PacketSink tunSink = new PacketSink() {
+        @Override
+        public void onPacket(byte[] buf, int offset, int length) throws IOException {
+            if (dnsCache != null) {
+                dnsCache.onResponse(buf, offset, length, System.nanoTime());
+            }
+            sink.onPacket(buf, offset, length);
+            packetsIn.increment();
+            bytesIn.add(length);
+        }
+    };
+
+    private Thread tunReader;
+    private Thread tunWriter;
+
+    /**
+     * Stages of one DTLS session: the sender, the receiver and the rings which join
+     * them to the tun stages.
+     */
+    private final class Shard {
+        final int index;
+        final RecordTransport transport;
+        final KeepaliveScheduler keepalive;
+
+        /* tun reader -> sender; the buffers of a shard go back to the tun reader
+           through its own free ring and may be used by any shard after that */
+        final SpscRing<Lease> outbound     = new SpscRing<>(OUTBOUND_CAPACITY);
+        final SpscRing<Lease> outboundFree = new SpscRing<>(OUTBOUND_CAPACITY);
+        /* receiver -> tun writer */
+        final SpscRing<Lease> inbound      = new SpscRing<>(QUEUE_CAPACITY);
+        final SpscRing<Lease> inboundFree  = new SpscRing<>(QUEUE_CAPACITY);
+
+        /* set by the receiver while it is waiting for a free buffer */
+        volatile boolean receiverStarved = false;
+        /* buffer of the receiver when the socket was already drained, see spareOutbound */
+        Lease spareInbound = null;
+
+        /* packs outgoing packets into records, null if framing was not negotiated */
+        PacketFramer framer = null;
+        /* compresses outgoing packets, null if compression was not negotiated */
+        PacketCompressor compressor = null;
+        /* packets taken from 'outbound' and waiting to be sent */
+        final OutboundScheduler scheduler;
+
+        Thread sender;
+        Thread receiver;
+
+        Shard(int index, RecordTransport transport, KeepaliveScheduler keepalive,
+              MetricsRegistry metrics) {
+            this.index     = index;
+            this.transport = transport;
+            this.keepalive = keepalive;
+            this.scheduler = new OutboundScheduler(metrics);
+        }
+
+        void start() {
+            // Threads of the first session keep their names for thread dumps of one session.
+            String suffix = index == 0 ? "" : "-" + index;
+            sender   = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runSender(Shard.this);
+                }
+            }, "VpnSenderThread" + suffix);
+            receiver = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runReceiver(Shard.this);
+                }
+            }, "VpnReceiverThread" + suffix);
+            sender.start();
+            receiver.start();
+        }
+    }
+
+    /**
+     * @param transport  - records of the established tunnel
+     * @param source     - packets to send, usually tun interface
+     * @param sink       - received packets, usually tun interface
+     * @param pool       - pool of MTU-sized buffers
+     * @param metrics    - registry of data plane counters
+     * @param keepalive  - decides when the idle tunnel needs a PING
+     * @param clock      - time of the keepalive scheduler
+     */
+    PacketPipeline(RecordTransport transport, PacketSource source, PacketSink sink,
+                   PacketBufferPool pool, MetricsRegistry metrics,
+                   KeepaliveScheduler keepalive, Clock clock) {
+        this(new RecordTransport[] { transport }, source, sink, pool, metrics, keepalive, clock);
+    }
+
+    /**
+     * Pipeline of a tunnel with several DTLS sessions.
+     * @param transports - records of the sessions, the first one is the session which
+     *                     got the tunnel parameters
+     * @param keepalive  - keepalive scheduler of the first session, the other sessions
+     *                     learn their intervals from the start
+     */
+    PacketPipeline(RecordTransport[] transports, PacketSource source, PacketSink sink,
+                   PacketBufferPool pool, MetricsRegistry metrics,
+                   KeepaliveScheduler keepalive, Clock clock) {
+        if (transports.length == 0) {
+            throw new IllegalArgumentException("No sessions");
+        }
+        this.source    = source;
+        this.sink      = sink;
+        this.pool      = pool;
+        this.clock     = clock;
+        this.metrics   = metrics;
+
+        packetsOut  = metrics.counter(MetricsRegistry.PACKETS_OUT);
+        bytesOut    = metrics.counter(MetricsRegistry.BYTES_OUT);
+        packetsIn   = metrics.counter(MetricsRegistry.PACKETS_IN);
+        bytesIn     = metrics.counter(MetricsRegistry.BYTES_IN);
+        controlOut  = metrics.counter(MetricsRegistry.CONTROL_OUT);
+        controlIn   = metrics.counter(MetricsRegistry.CONTROL_IN);
+        writeErrors = metrics.counter(MetricsRegistry.WRITE_ERRORS);
+        readErrors  = metrics.counter(MetricsRegistry.READ_ERRORS);
+        malformed   = metrics.counter(MetricsRegistry.MALFORMED);
+
+        shards = new Shard[transports.length];
+        for (int i = 0; i < shards.length; ++i) {
+            shards[i] = new Shard(i, transports[i], i == 0 ? keepalive : new KeepaliveScheduler(),
+                                  metrics);
+        }
+
+        // The tun reader has one set of buffers for all shards, every receiver has
+        // its own one, and every sender two more: the coalesced record and the
+        // compressed packet.
+        leases = new Lease[OUTBOUND_CAPACITY + shards.length * (QUEUE_CAPACITY + 2)];
+        int leased = 0;
+        for (int i = 0; i < OUTBOUND_CAPACITY; ++i) {
+            leases[leased] = pool.acquire(Owner.TUN_READER);
+            shards[i % shards.length].outboundFree.offer(leases[leased++]);
+        }
+        for (Shard shard : shards) {
+            for (int i = 0; i < QUEUE_CAPACITY; ++i) {
+                leases[leased] = pool.acquire(Owner.RECEIVER);
+                shard.inboundFree.offer(leases[leased++]);
+            }
+        }
+    }
+
+    /**
+     * Enables packing of outgoing packets into records, must be called before {@link #run()}.
+     * @param maxRecordSize - maximum record size, the tunnel MTU
+     */
+    void enableFraming(int maxRecordSize) {
+        for (Shard shard : shards) {
+            Lease record = pool.acquire(Owner.SENDER);
+            leases[leases.length - 2 * shards.length + shard.index] = record;
+            shard.framer = new PacketFramer(record.data, maxRecordSize);
+        }
+    }
+
+    /**
+     * Enables compression of outgoing packets, must be called before {@link #run()}.
+     */
+    void enableCompression() {
+        for (Shard shard : shards) {
+            Lease record = pool.acquire(Owner.SENDER);
+            leases[leases.length - shards.length + shard.index] = record;
+            shard.compressor = new PacketCompressor(record.data, metrics);
+        }
+    }
+
+    /**
+     * Enables answering DNS queries from the cache, must be called before {@link #run()}.
+     * @param cache - cache with the resolvers of the tunnel
+     */
+    void enableDnsCache(DnsCache cache) {
+        dnsCache = cache;
+    }
+
+    /** @return number of DTLS sessions of the tunnel */
+    int getSessionCount() {
+        return shards.length;
+    }
+
+    /** @return packets read from tun and waiting for encryption */
+    int getOutboundDepth() {
+        int depth = 0;
+        for (Shard shard : shards) {
+            // The scheduler is read without a lock, its size is an estimate.
+            depth += shard.outbound.size() + shard.scheduler.size();
+        }
+        return depth;
+    }
+
+    /** @return decrypted packets waiting to be written to tun */
+    int getInboundDepth() {
+        int depth = 0;
+        for (Shard shard : shards) {
+            depth += shard.inbound.size();
+        }
+        return depth;
+    }
+
+    /**
+     * Starts sending, receiving and tun writing stages and runs the tun reader
+     * in the calling thread. Returns only by exception, all stages are stopped then.
+     * @throws IOException          - thrown on socket, tunnel or SSL failure in any stage
+     * @throws InterruptedException - thrown when the calling thread was interrupted
+     */
+    void run() throws IOException, InterruptedException {
+        tunReader = Thread.currentThread();
+        tunWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runTunWriter();
+            }
+        }, "VpnTunWriterThread");
+
+        for (Shard shard : shards) {
+            shard.start();
+        }
+        tunWriter.start();
+        try {
+            runTunReader();
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Stops the stages and waits for them, so the caller may use the SSL session again.
+     * Returns all buffers to the pool.
+     */
+    private void stop() {
+        running = false;
+        Thread[] stages = new Thread[2 * shards.length + 1];
+        for (Shard shard : shards) {
+            stages[2 * shard.index]     = shard.sender;
+            stages[2 * shard.index + 1] = shard.receiver;
+        }
+        stages[stages.length - 1] = tunWriter;
+        for (Thread stage : stages) {
+            LockSupport.unpark(stage);
+        }
+        boolean interrupted = false;
+        for (Thread stage : stages) {
+            while (stage.isAlive()) {
+                try {
+                    stage.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        for (Lease lease : leases) {
+            if (lease != null) {
+                pool.release(lease);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Makes {@link #run()} stop the stages and throw the reason, may be called from any thread.
+     */
+    void abort(IOException reason) {
+        fail(reason);
+    }
+
+    private void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        running = false;
+        LockSupport.unpark(tunReader);
+    }
+
+    private void runTunReader() throws IOException, InterruptedException {
+        while (true) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+
+            if (!source.await(POLL_TIMEOUT_MS)) {
+                continue;
+            }
+
+            // The source does not block, read() returns 0 once it is drained.
+            while (running) {
+                Lease packet = pollFree();
+                if (packet == null) {
+                    // The senders are behind, leave packets in the tun queue until
+                    // one of them returns a buffer.
+                    tunReaderStarved = true;
+                    packet = pollFree();
+                    if (packet == null) {
+                        LockSupport.parkNanos(PARK_TIMEOUT_NS);
+                        break;
+                    }
+                    tunReaderStarved = false;
+                }
+                int len = source.read(packet.data);
+                if (len <= 0) {
+                    spareOutbound = packet;
+                    break;
+                }
+                packet.length = len;
+                packet.timestamp = System.nanoTime();
+                if (dnsCache != null) {
+                    int reply = dnsCache.answer(packet.data, len, packet.timestamp);
+                    if (reply > 0) {
+                        packet.length = reply;
+                        packet.moveTo(Owner.TUN_READER, Owner.TUN_WRITER);
+                        local.offer(packet);
+                        LockSupport.unpark(tunWriter);
+                        continue;
+                    }
+                }
+                packet.moveTo(Owner.TUN_READER, Owner.SENDER);
+                Shard shard = shards[FlowHash.shard(packet.data, len, shards.length)];
+                shard.outbound.offer(packet);
+                LockSupport.unpark(shard.sender);
+            }
+        }
+    }
+
+    /**
+     * @return the spare buffer, a buffer of a DNS response or a free buffer of any shard,
+     *         starting from {@link #nextFree}
+     */
+    private Lease pollFree() {
+        if (spareOutbound != null) {
+            Lease packet = spareOutbound;
+            spareOutbound = null;
+            return packet;
+        }
+        Lease answered = localFree.poll();
+        if (answered != null) {
+            return answered;
+        }
+        for (int i = 0; i < shards.length; ++i) {
+            int index = (nextFree + i) % shards.length;
+            Lease packet = shards[index].outboundFree.poll();
+            if (packet != null) {
+                nextFree = index;
+                return packet;
+            }
+        }
+        return null;
+    }
+
+    private void runSender(Shard shard) {
+        byte[] ping = { 0, (byte) SpecialPacket.PING.ordinal() };
+        KeepaliveScheduler keepalive = shard.keepalive;
+        PacketFramer framer = shard.framer;
+        keepalive.start(clock.now());
+
+        OutboundScheduler scheduler = shard.scheduler;
+        try {
+            while (running) {
+                // The scheduler decides the order of everything queued so far.
+                Lease queued;
+                while ((queued = shard.outbound.poll()) != null) {
+                    scheduler.offer(queued);
+                }
+
+                Lease packet = scheduler.poll(System.nanoTime());
+                Lease dropped;
+                while ((dropped = scheduler.pollDropped()) != null) {
+                    returnToTunReader(shard, dropped);
+                }
+                if (packet != null) {
+                    try {
+                        send(shard, packet);
+                    } finally {
+                        returnToTunReader(shard, packet);
+                    }
+                }
+
+                // Traffic keeps the NAT binding alive, keepalives are needed only when idle.
+                long now = clock.now();
+                if (packet != null) {
+                    keepalive.onSent(now);
+                }
+                switch (keepalive.poll(now)) {
+                    case PING:
+                        write(shard, ping, ping.length);
+                        controlOut.increment();
+                        break;
+                    case EXPIRED:
+                        throw new IOException("Server does not answer keepalives");
+                    default:
+                        break;
+                }
+
+                if (packet == null) {
+                    long waitNs = TimeUnit.MILLISECONDS.toNanos(
+                            Math.min(keepalive.nextDeadline() - now, POLL_TIMEOUT_MS));
+                    if (framer != null && !framer.isEmpty()) {
+                        // Nothing else is queued: send the record once its deadline passes.
+                        long waited = System.nanoTime() - framer.getFirstPacketNanos();
+                        if (waited >= FLUSH_DEADLINE_NS) {
+                            flushFramer(shard);
+                            continue;
+                        }
+                        waitNs = Math.min(waitNs, FLUSH_DEADLINE_NS - waited);
+                    }
+                    LockSupport.parkNanos(waitNs);
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void returnToTunReader(Shard shard, Lease packet) {
+        packet.moveTo(Owner.SENDER, Owner.TUN_READER);
+        shard.outboundFree.offer(packet);
+        if (tunReaderStarved) {
+            LockSupport.unpark(tunReader);
+        }
+    }
+
+    /**
+     * Sends a packet from tun directly or appends it to the coalesced record.
+     */
+    private void send(Shard shard, Lease packet) throws IOException {
+        packetsOut.increment();
+        bytesOut.add(packet.length);
+        byte[] data = packet.data;
+        int length = packet.length;
+        PacketCompressor compressor = shard.compressor;
+        if (compressor != null) {
+            int compressed = compressor.compress(data, length);
+            if (compressed > 0) {
+                data = compressor.getRecord();
+                length = compressed;
+            }
+        }
+
+        PacketFramer framer = shard.framer;
+        if (framer == null || !framer.accepts(length)) {
+            flushFramer(shard);
+            write(shard, data, length);
+            return;
+        }
+        if (!framer.fits(length)) {
+            flushFramer(shard);
+        }
+        framer.append(data, 0, length);
+    }
+
+    private void flushFramer(Shard shard) throws IOException {
+        PacketFramer framer = shard.framer;
+        if (framer == null || framer.isEmpty()) {
+            return;
+        }
+        int length = framer.finish();
+        framer.reset();
+        write(shard, framer.getRecord(), length);
+    }
+
+    private void write(Shard shard, byte[] data, int length) throws IOException {
+        try {
+            shard.transport.write(data, length);
+        } catch (IOException e) {
+            writeErrors.increment();
+            throw e;
+        }
+    }
+
+    private void runReceiver(Shard shard) {
+        RecordTransport transport = shard.transport;
+        try {
+            while (running) {
+                if (!transport.await(POLL_TIMEOUT_MS)) {
+                    continue;
+                }
+
+                while (running) {
+                    Lease packet = shard.spareInbound;
+                    shard.spareInbound = null;
+                    if (packet == null) {
+                        packet = shard.inboundFree.poll();
+                    }
+                    if (packet == null) {
+                        // The tun writer is behind, let datagrams wait in the socket.
+                        shard.receiverStarved = true;
+                        packet = shard.inboundFree.poll();
+                        if (packet == null) {
+                            LockSupport.parkNanos(PARK_TIMEOUT_NS);
+                            break;
+                        }
+                        shard.receiverStarved = false;
+                    }
+                    int len;
+                    try {
+                        len = transport.read(packet.data, packet.data.length);
+                    } catch (IOException e) {
+                        shard.spareInbound = packet;
+                        readErrors.increment();
+                        throw e;
+                    }
+                    if (len <= 0) {
+                        shard.spareInbound = packet;
+                        break;
+                    }
+                    if (packet.data[0] == 0) {
+                        if (len == 2 && packet.data[1] == PONG) {
+                            shard.keepalive.onPong(clock.now());
+                        }
+                        shard.spareInbound = packet;
+                        controlIn.increment();
+                        continue;
+                    }
+                    packet.length = len;
+                    packet.moveTo(Owner.RECEIVER, Owner.TUN_WRITER);
+                    shard.inbound.offer(packet);
+                    LockSupport.unpark(tunWriter);
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void runTunWriter() {
+        try {
+            while (running) {
+                // Packets of a flow come through one session, so taking the sessions
+                // in turns keeps the order of every flow.
+                boolean idle = true;
+                Lease answer = local.poll();
+                if (answer != null) {
+                    idle = false;
+                    writeAnswer(answer);
+                }
+                for (Shard shard : shards) {
+                    Lease packet = shard.inbound.poll();
+                    if (packet != null) {
+                        idle = false;
+                        writeToTun(shard, packet);
+                    }
+                }
+                if (idle) {
+                    LockSupport.parkNanos(PARK_TIMEOUT_NS);
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Writes a DNS response of the cache to tun and returns its buffer to the tun reader.
+     */
+    private void writeAnswer(Lease packet) throws IOException {
+        try {
+            sink.onPacket(packet.data, 0, packet.length);
+        } finally {
+            packet.moveTo(Owner.TUN_WRITER, Owner.TUN_READER);
+            localFree.offer(packet);
+            if (tunReaderStarved) {
+                LockSupport.unpark(tunReader);
+            }
+        }
+    }
+
+    /**
+     * Writes a received record to tun and returns its buffer to the receiver.
+     */
+    private void writeToTun(Shard shard, Lease packet) throws IOException {
+        try {
+            if (packet.data[0] == PacketFramer.FRAME_MARKER) {
+                // Malformed records are dropped, the counter is in the metrics dump.
+                if (PacketFramer.unpack(packet.data, packet.length, tunSink) < 0) {
+                    malformed.increment();
+                }
+            } else {
+                tunSink.onPacket(packet.data, 0, packet.length);
+            }
+        } finally {
+            packet.moveTo(Owner.TUN_WRITER, Owner.RECEIVER);
+            shard.inboundFree.offer(packet);
+            if (shard.receiverStarved) {
+                LockSupport.unpark(shard.receiver);
+            }
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package apriorit.vpnclient;
+
+import java.io.IOException;
+
+/**
+ * Receiver of incoming IP packets: the tun interface on a device,
+ * a meter in the loopback harness.
+ */
+interface PacketSink {
+    void onPacket(byte[] buf, int offset, int length) throws IOException;
+}
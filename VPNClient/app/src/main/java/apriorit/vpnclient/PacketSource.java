@@ -0,0 +1,23 @@
+package apriorit.vpnclient;
+
+import java.io.IOException;
+
+/**
+ * Source of outgoing IP packets of the tunnel: the tun interface on a device,
+ * a generator in the loopback harness.
+ */
+interface PacketSource {
+    /**
+     * Waits until a packet may be read.
+     * @param timeout - timeout in milliseconds
+     * @return false if the timeout expired
+     * @throws IOException - thrown if the source is closed
+     */
+    boolean await(int timeout) throws IOException;
+
+    /**
+     * Reads one packet without blocking.
+     * @return packet length, 0 if there is no packet
+     */
+    int read(byte[] buf) throws IOException;
+}
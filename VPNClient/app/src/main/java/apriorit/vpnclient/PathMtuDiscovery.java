@@ -0,0 +1,108 @@
+package apriorit.vpnclient;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link PathMtuDiscovery} class<br>
+ * Finds the largest DTLS record which passes the path to the server.<br>
+ * After the parameters exchange the client sends MTU_PROBE records padded to a ladder
+ * of sizes between {@link #MIN_MTU} and the MTU of the server, all at once. The server
+ * echoes every probe it gets as MTU_PROBE_REPLY of the same size, so the largest reply
+ * is the tunnel MTU for both directions. The ladder is sent once more for sizes above
+ * the largest reply, in case a probe was lost by chance.<br>
+ * Results are cached per network and server for {@link #CACHE_TTL_MS}, reconnects on
+ * the same path use them without probing.
+ */
+class PathMtuDiscovery {
+    /** Minimum IPv4 datagram every host must accept */
+    static final int  MIN_MTU      = 576;
+    static final int  ROUNDS       = 2;
+    static final int  MIN_WAIT_MS  = 200;
+    static final int  MAX_WAIT_MS  = 1000;
+    static final long CACHE_TTL_MS = TimeUnit.MINUTES.toMillis(10);
+
+    /* overheads of the usual tunnels: IPv6 instead of IPv4, IPsec, PPPoE plus GRE */
+    private static final int[] OVERHEADS = { 0, 20, 40, 80 };
+    /* common path MTUs below them */
+    private static final int[] COMMON_MTUS = { 1280, 1200, 1024 };
+
+    private static final class Entry {
+        final int mtu;
+        final long expiresAt;
+
+        Entry(int mtu, long expiresAt) {
+            this.mtu = mtu;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Map<String, Entry> cache = new HashMap<>();
+
+    /**
+     * @param network - identity of the network, e.g. the local address of the socket
+     */
+    static String key(String network, String serverName, int serverPort) {
+        return network + "/" + serverName + ":" + serverPort;
+    }
+
+    /**
+     * @return probe sizes in descending order, the first one is maxMtu
+     */
+    static int[] ladder(int maxMtu) {
+        int[] sizes = new int[OVERHEADS.length + COMMON_MTUS.length + 1];
+        int count = 0;
+        for (int overhead : OVERHEADS) {
+            count = addSize(sizes, count, maxMtu - overhead);
+        }
+        for (int mtu : COMMON_MTUS) {
+            count = addSize(sizes, count, Math.min(mtu, maxMtu));
+        }
+        count = addSize(sizes, count, Math.min(MIN_MTU, maxMtu));
+
+        int[] result = new int[count];
+        System.arraycopy(sizes, 0, result, 0, count);
+        return result;
+    }
+
+    /* keeps the ladder descending and without repeats */
+    private static int addSize(int[] sizes, int count, int size) {
+        if (size < MIN_MTU || (count > 0 && size >= sizes[count - 1])) {
+            return count;
+        }
+        sizes[count] = size;
+        return count + 1;
+    }
+
+    /**
+     * @param roundTrip - time of a round trip to the server, negative if unknown
+     * @return time to wait for the replies of one round
+     */
+    static int waitTime(long roundTrip) {
+        if (roundTrip < 0) {
+            return MAX_WAIT_MS;
+        }
+        return (int) Math.max(MIN_WAIT_MS, Math.min(MAX_WAIT_MS, 4 * roundTrip));
+    }
+
+    /**
+     * @param now - SystemClock.elapsedRealtime()
+     * @return cached MTU or 0 if the path was not probed recently
+     */
+    synchronized int get(String key, long now) {
+        Entry entry = cache.get(key);
+        if (entry == null) {
+            return 0;
+        }
+        if (now >= entry.expiresAt) {
+            cache.remove(key);
+            return 0;
+        }
+        return entry.mtu;
+    }
+
+    synchronized void put(String key, int mtu, long now) {
+        cache.put(key, new Entry(mtu, now + CACHE_TTL_MS));
+    }
+}
@@ -0,0 +1,17 @@
+package apriorit.vpnclient;
+
+import java.io.IOException;
+
+/**
+ * Readiness of a descriptor for reading: poll() of the descriptor on a device,
+ * a selector of the channel on the JVM.
+ */
+interface ReadPoll {
+    /**
+     * Waits until the descriptor is readable or has an error to report.
+     * @param timeout - timeout in milliseconds, negative means infinite
+     * @return false if the timeout expired
+     * @throws IOException - thrown if the descriptor can't be polled
+     */
+    boolean await(int timeout) throws IOException;
+}
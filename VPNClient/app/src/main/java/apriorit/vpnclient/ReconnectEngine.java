@@ -0,0 +1,107 @@
+package apriorit.vpnclient;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * The {@link ReconnectEngine} class<br>
+ * Decides when a failed tunnel is connected again.<br>
+ * Retries back off exponentially from {@link #BASE_DELAY_MS} up to {@link #MAX_DELAY_MS}
+ * with a random half of every delay, so clients dropped by the same outage do not
+ * come back at the same moment. Without a usable network nothing is retried: the
+ * engine waits until a network becomes available and reconnects at once.<br>
+ * When a network is lost while others remain, the tunnel may be bound to the lost
+ * one, so it is moved at once, without a delay and without counting an attempt.<br>
+ * Networks are opaque keys, e.g. {@link android.net.Network} objects of the
+ * connectivity callbacks. Methods may be called from any thread.
+ */
+class ReconnectEngine {
+    static final long BASE_DELAY_MS = 500;
+    static final long MAX_DELAY_MS  = 30000;
+
+    /** {@link #onFailure()}: attempts are exhausted */
+    static final long GIVE_UP = -1;
+    /** {@link #onFailure()}: no network, wait for {@link #onNetworkAvailable(Object)} */
+    static final long WAIT_FOR_NETWORK = -2;
+
+    private final int maxAttempts;
+    private final Random random;
+
+    private final Set<Object> networks = new HashSet<>();
+    private int attempts = 0;
+    private boolean waiting = false;
+    private boolean switching = false;
+
+    /**
+     * @param maxAttempts - failed attempts in a row after which the engine gives up
+     * @param random      - source of the jitter
+     */
+    ReconnectEngine(int maxAttempts, Random random) {
+        this.maxAttempts = maxAttempts;
+        this.random = random;
+    }
+
+    /**
+     * The tunnel failed or could not be connected.
+     * @return delay before the next attempt in milliseconds, {@link #GIVE_UP}
+     *         or {@link #WAIT_FOR_NETWORK}
+     */
+    synchronized long onFailure() {
+        if (networks.isEmpty()) {
+            waiting = true;
+            return WAIT_FOR_NETWORK;
+        }
+        if (switching) {
+            switching = false;
+            return 0;
+        }
+        if (attempts >= maxAttempts) {
+            return GIVE_UP;
+        }
+        long cap = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << Math.min(attempts, 16));
+        ++attempts;
+        return cap / 2 + (long) (random.nextDouble() * (cap / 2));
+    }
+
+    /**
+     * The tunnel is up, the next failure starts the backoff over.
+     */
+    synchronized void onConnected() {
+        attempts = 0;
+        switching = false;
+    }
+
+    /**
+     * @return true if the engine was waiting for a network, connect now
+     */
+    synchronized boolean onNetworkAvailable(Object network) {
+        networks.add(network);
+        if (!waiting) {
+            return false;
+        }
+        waiting = false;
+        attempts = 0;
+        return true;
+    }
+
+    /**
+     * @return true if another network remains, move the tunnel to it now;
+     *         the failure of the current tunnel is retried without a delay
+     */
+    synchronized boolean onNetworkLost(Object network) {
+        if (!networks.remove(network) || networks.isEmpty()) {
+            return false;
+        }
+        switching = true;
+        attempts = 0;
+        return true;
+    }
+
+    /**
+     * @return true if any network is usable
+     */
+    synchronized boolean hasNetwork() {
+        return !networks.isEmpty();
+    }
+}
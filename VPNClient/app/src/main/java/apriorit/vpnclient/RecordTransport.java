@@ -0,0 +1,28 @@
+package apriorit.vpnclient;
+
+import java.io.IOException;
+
+/**
+ * Carries records of the established tunnel: the DTLS session on a device,
+ * plain datagrams in the loopback harness.
+ */
+interface RecordTransport {
+    /**
+     * Waits until a record may be read.
+     * @param timeout - timeout in milliseconds
+     * @return false if the timeout expired
+     */
+    boolean await(int timeout) throws IOException;
+
+    /**
+     * Reads one record without blocking.
+     * @return record length, 0 if there is no record
+     * @throws IOException - thrown if the tunnel failed
+     */
+    int read(byte[] buf, int size) throws IOException;
+
+    /**
+     * @throws IOException - thrown if the record was not sent
+     */
+    void write(byte[] buf, int length) throws IOException;
+}
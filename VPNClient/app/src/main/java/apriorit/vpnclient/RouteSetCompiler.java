@@ -0,0 +1,284 @@
+package apriorit.vpnclient;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import apriorit.vpnclient.TunnelParameters.Prefix;
+
+/**
+ * The {@link RouteSetCompiler} class<br>
+ * Split tunnelling: turns the routes of the server and the include and exclude lists
+ * of the user into the smallest set of routes of the tunnel interface.<br>
+ * If the include list is not empty, it replaces the routes of the server: only the
+ * included networks go through the tunnel. The excluded networks (LAN, multicast,
+ * country ranges...) are cut out of the routes, so their traffic never reaches the
+ * tunnel. The rest is merged and split into prefixes again, so the interface gets one
+ * route for every aligned block of the address space, not one per listed network.<br>
+ * Lists are parsed and merged when the compiler is created, compiling the routes of
+ * a connection is linear in the size of the lists. Address families are compiled
+ * separately, a list may mix IPv4 and IPv6 prefixes.
+ */
+final class RouteSetCompiler {
+    private static final int IPV4_BITS = 32;
+    private static final int IPV6_BITS = 128;
+
+    /** Closed range of addresses */
+    private static final class Range {
+        final BigInteger first;
+        final BigInteger last;
+
+        Range(BigInteger first, BigInteger last) {
+            this.first = first;
+            this.last = last;
+        }
+    }
+
+    private static final Comparator<Range> BY_FIRST = new Comparator<Range>() {
+        @Override
+        public int compare(Range a, Range b) {
+            return a.first.compareTo(b.first);
+        }
+    };
+
+    /* merged lists, IPv4 and IPv6 */
+    private final List<Range> include4;
+    private final List<Range> include6;
+    private final List<Range> exclude4;
+    private final List<Range> exclude6;
+    private final boolean includes;
+    private final String settings;
+
+    /**
+     * @param include - networks routed to the tunnel instead of the routes of the
+     *                  server, the server routes are used if it is empty
+     * @param exclude - networks never routed to the tunnel
+     * @throws IllegalArgumentException - thrown if a prefix is malformed
+     */
+    RouteSetCompiler(List<Prefix> include, List<Prefix> exclude) {
+        include4 = merge(ranges(include, false));
+        include6 = merge(ranges(include, true));
+        exclude4 = merge(ranges(exclude, false));
+        exclude6 = merge(ranges(exclude, true));
+        includes = !include.isEmpty();
+        settings = "include," + format(toPrefixes(include4, IPV4_BITS))
+                 + format(toPrefixes(include6, IPV6_BITS))
+                 + " exclude," + format(toPrefixes(exclude4, IPV4_BITS))
+                 + format(toPrefixes(exclude6, IPV6_BITS));
+    }
+
+    /**
+     * @return the lists in a canonical form, to tell whether the routes of an
+     *         interface were compiled by the same lists
+     */
+    String getSettings() {
+        return settings;
+    }
+
+    /**
+     * @param routes - routes sent by the server
+     * @return routes of the interface, IPv4 ones first
+     */
+    List<Prefix> compile(List<Prefix> routes) {
+        List<Prefix> result = new ArrayList<>();
+        result.addAll(toPrefixes(subtract(includes ? include4 : merge(ranges(routes, false)),
+                                          exclude4), IPV4_BITS));
+        result.addAll(toPrefixes(subtract(includes ? include6 : merge(ranges(routes, true)),
+                                          exclude6), IPV6_BITS));
+        return result;
+    }
+
+    /**
+     * Parses a list of prefixes like "10.0.0.0/8", "fc00::/7" or "192.0.2.1" (a host).
+     * Prefixes are separated by spaces, commas or new lines, '#' starts a comment
+     * which lasts to the end of the line. Host bits of a prefix are ignored.
+     * @throws IllegalArgumentException - thrown if a prefix is malformed
+     */
+    static List<Prefix> parse(String text) {
+        List<Prefix> prefixes = new ArrayList<>();
+        for (String line : text.split("\n")) {
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            for (String entry : line.split("[\\s,]+")) {
+                if (entry.isEmpty()) {
+                    continue;
+                }
+                int slash = entry.indexOf('/');
+                String address = slash < 0 ? entry : entry.substring(0, slash);
+                byte[] bytes = parseAddress(address);
+                int length = bytes.length * 8;
+                if (slash >= 0) {
+                    try {
+                        length = Integer.parseInt(entry.substring(slash + 1));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Bad prefix: " + entry);
+                    }
+                    if (length < 0 || length > bytes.length * 8) {
+                        throw new IllegalArgumentException("Bad prefix: " + entry);
+                    }
+                }
+                prefixes.add(new Prefix(address, length));
+            }
+        }
+        return prefixes;
+    }
+
+    /**
+     * @throws IllegalArgumentException - thrown if the string is not an IP address
+     */
+    private static byte[] parseAddress(String address) {
+        // getByName() looks up anything but an address literal.
+        if (address.isEmpty() || !address.matches("[0-9A-Fa-f.:]+")) {
+            throw new IllegalArgumentException("Bad address: " + address);
+        }
+        try {
+            return InetAddress.getByName(address).getAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Bad address: " + address);
+        }
+    }
+
+    /**
+     * @return ranges of the prefixes of one family, unsorted
+     */
+    private static List<Range> ranges(List<Prefix> prefixes, boolean ipv6) {
+        List<Range> ranges = new ArrayList<>();
+        for (Prefix prefix : prefixes) {
+            byte[] bytes = parseAddress(prefix.address);
+            if ((bytes.length == 16) != ipv6) {
+                continue;
+            }
+            int bits = bytes.length * 8;
+            if (prefix.length < 0 || prefix.length > bits) {
+                throw new IllegalArgumentException(
+                        "Bad prefix: " + prefix.address + "/" + prefix.length);
+            }
+            BigInteger size = BigInteger.ONE.shiftLeft(bits - prefix.length);
+            BigInteger address = new BigInteger(1, bytes);
+            BigInteger first = address.subtract(address.mod(size));
+            ranges.add(new Range(first, first.add(size).subtract(BigInteger.ONE)));
+        }
+        return ranges;
+    }
+
+    /**
+     * @return sorted ranges, overlapping and adjacent ones joined
+     */
+    private static List<Range> merge(List<Range> ranges) {
+        Collections.sort(ranges, BY_FIRST);
+        List<Range> merged = new ArrayList<>();
+        Range current = null;
+        for (Range range : ranges) {
+            if (current != null && range.first.compareTo(current.last.add(BigInteger.ONE)) <= 0) {
+                if (range.last.compareTo(current.last) > 0) {
+                    current = new Range(current.first, range.last);
+                }
+                continue;
+            }
+            if (current != null) {
+                merged.add(current);
+            }
+            current = range;
+        }
+        if (current != null) {
+            merged.add(current);
+        }
+        return merged;
+    }
+
+    /**
+     * @param ranges   - merged ranges
+     * @param excluded - merged ranges to cut out of them
+     * @return merged ranges of addresses which are not excluded
+     */
+    private static List<Range> subtract(List<Range> ranges, List<Range> excluded) {
+        List<Range> result = new ArrayList<>();
+        int next = 0;
+        for (Range range : ranges) {
+            // Exclusions before the range do not matter for the next ranges either.
+            while (next < excluded.size() && excluded.get(next).last.compareTo(range.first) < 0) {
+                ++next;
+            }
+            BigInteger from = range.first;
+            for (int i = next; i < excluded.size()
+                    && excluded.get(i).first.compareTo(range.last) <= 0; ++i) {
+                Range exclusion = excluded.get(i);
+                if (exclusion.first.compareTo(from) > 0) {
+                    result.add(new Range(from, exclusion.first.subtract(BigInteger.ONE)));
+                }
+                from = from.max(exclusion.last.add(BigInteger.ONE));
+            }
+            if (from.compareTo(range.last) <= 0) {
+                result.add(new Range(from, range.last));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Splits every range into the largest aligned blocks. Ranges are merged, so no
+     * two blocks of different ranges could be joined: the result is minimal.
+     */
+    private static List<Prefix> toPrefixes(List<Range> ranges, int bits) {
+        List<Prefix> prefixes = new ArrayList<>();
+        for (Range range : ranges) {
+            BigInteger first = range.first;
+            while (first.compareTo(range.last) <= 0) {
+                // The block is aligned at 'first' and does not go past the range.
+                int blockBits = first.signum() == 0 ? bits : first.getLowestSetBit();
+                int fits = range.last.subtract(first).add(BigInteger.ONE).bitLength() - 1;
+                blockBits = Math.min(blockBits, fits);
+                prefixes.add(new Prefix(toAddress(first, bits), bits - blockBits));
+                first = first.add(BigInteger.ONE.shiftLeft(blockBits));
+            }
+        }
+        return prefixes;
+    }
+
+    private static String toAddress(BigInteger value, int bits) {
+        if (bits == IPV4_BITS) {
+            long address = value.longValue();
+            return (address >>> 24) + "." + ((address >>> 16) & 0xFF) + "."
+                 + ((address >>> 8) & 0xFF) + "." + (address & 0xFF);
+        }
+        // The longest run of zero groups is written as "::" (RFC 5952).
+        int[] groups = new int[8];
+        int zerosStart = -1;
+        int zerosLength = 1;
+        for (int i = 0, run = 0; i < groups.length; ++i) {
+            groups[i] = value.shiftRight(16 * (7 - i)).intValue() & 0xFFFF;
+            run = groups[i] == 0 ? run + 1 : 0;
+            if (run > zerosLength) {
+                zerosLength = run;
+                zerosStart = i - run + 1;
+            }
+        }
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < groups.length; ++i) {
+            if (i == zerosStart) {
+                builder.append("::");
+                i += zerosLength - 1;
+                continue;
+            }
+            if (builder.length() > 0 && builder.charAt(builder.length() - 1) != ':') {
+                builder.append(':');
+            }
+            builder.append(Integer.toHexString(groups[i]));
+        }
+        return builder.toString();
+    }
+
+    private static String format(List<Prefix> prefixes) {
+        StringBuilder builder = new StringBuilder();
+        for (Prefix prefix : prefixes) {
+            builder.append(prefix.address).append('/').append(prefix.length).append(',');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,271 @@
+package apriorit.vpnclient;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link ServerProber} class<br>
+ * Chooses the server with the lowest round-trip time for the "auto" entry of the server list.<br>
+ * Every server is probed in parallel with a PROBE datagram sent to its listening port;
+ * the server echoes it back as PROBE_REPLY without starting a session. A server which
+ * does not answer within {@link #PROBE_TIMEOUT_MS} is considered down.<br>
+ * Results are cached for {@link #CACHE_TTL_MS}, so reconnects pick the same server
+ * without probing again.
+ */
+class ServerProber {
+    private static final String TAG = ServerProber.class.getSimpleName();
+
+    static final int  PROBE_TIMEOUT_MS = 1000;
+    static final int  PROBE_ATTEMPTS   = 2;
+    static final long CACHE_TTL_MS     = TimeUnit.MINUTES.toMillis(5);
+
+    /** Round-trip time of a server that did not answer */
+    static final long UNREACHABLE = -1;
+
+    /* type, marker and a 4-byte nonce that the reply must carry back */
+    private static final int PROBE_SIZE = 6;
+
+    /** Protects probe sockets from an established VPN interface */
+    interface Protector {
+        boolean protect(DatagramSocket socket);
+    }
+
+    /** Server endpoint */
+    static final class Target {
+        final String host;
+        final int port;
+
+        Target(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        String key() {
+            return host + ":" + port;
+        }
+    }
+
+    private static final class Result {
+        final long rtt;
+        final long probedAt;
+
+        Result(long rtt, long probedAt) {
+            this.rtt = rtt;
+            this.probedAt = probedAt;
+        }
+    }
+
+    private final Map<String, Result> cache = new HashMap<>();
+    private final Random random = new Random();
+    private Protector protector = null;
+
+    void setProtector(Protector protector) {
+        this.protector = protector;
+    }
+
+    /**
+     * Targets are passed to the service in preferences as "host port" pairs
+     * separated by commas.
+     */
+    static String encodeTargets(List<Target> targets) {
+        StringBuilder result = new StringBuilder();
+        for (Target target : targets) {
+            if (result.length() > 0) {
+                result.append(',');
+            }
+            result.append(target.host).append(' ').append(target.port);
+        }
+        return result.toString();
+    }
+
+    /**
+     * @return targets of {@link #encodeTargets(List)}, malformed ones are skipped
+     */
+    static List<Target> decodeTargets(String encoded) {
+        List<Target> targets = new ArrayList<>();
+        for (String pair : encoded.split(",")) {
+            String[] fields = pair.trim().split(" ");
+            if (fields.length != 2) {
+                continue;
+            }
+            try {
+                targets.add(new Target(fields[0], Integer.parseInt(fields[1])));
+            } catch (NumberFormatException e) {
+                // a server with a bad port is never chosen
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Probes the targets which have no fresh result and picks the fastest one.
+     * Must not be called from the main thread.
+     * @param now - SystemClock.elapsedRealtime()
+     * @return the fastest target; the first one if none answered, null if there are none
+     */
+    Target selectFastest(List<Target> targets, long now) throws InterruptedException {
+        if (targets.isEmpty()) {
+            return null;
+        }
+
+        List<Target> stale = new ArrayList<>();
+        synchronized (this) {
+            for (Target target : targets) {
+                Result result = cache.get(target.key());
+                if (result == null || now - result.probedAt >= CACHE_TTL_MS) {
+                    stale.add(target);
+                }
+            }
+        }
+        // clear() may empty the cache while the probes run, their results are used directly.
+        Map<String, Long> probed = stale.isEmpty() ? new HashMap<String, Long>()
+                                                   : probeAll(stale, now);
+
+        Target best = null;
+        long bestRtt = Long.MAX_VALUE;
+        synchronized (this) {
+            for (Target target : targets) {
+                long rtt = rttOf(target, probed);
+                if (rtt != UNREACHABLE && rtt < bestRtt) {
+                    best = target;
+                    bestRtt = rtt;
+                }
+            }
+            if (best == null) {
+                // Nobody answered, let the next connect probe again.
+                for (Target target : targets) {
+                    cache.remove(target.key());
+                }
+                return targets.get(0);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Forgets all results, e.g. when the network has changed.
+     */
+    synchronized void clear() {
+        cache.clear();
+    }
+
+    /* must hold the lock; a result forgotten by clear() counts as unreachable */
+    private long rttOf(Target target, Map<String, Long> probed) {
+        Long rtt = probed.get(target.key());
+        if (rtt != null) {
+            return rtt;
+        }
+        Result result = cache.get(target.key());
+        return result != null ? result.rtt : UNREACHABLE;
+    }
+
+    /**
+     * @return round-trip times of the targets by {@link Target#key()}
+     */
+    private Map<String, Long> probeAll(List<Target> targets, long now) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(targets.size());
+        try {
+            List<Callable<Long>> probes = new ArrayList<>();
+            for (final Target target : targets) {
+                probes.add(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return probe(target);
+                    }
+                });
+            }
+            List<Future<Long>> rtts = executor.invokeAll(probes);
+
+            Map<String, Long> probed = new HashMap<>();
+            synchronized (this) {
+                for (int i = 0; i < targets.size(); ++i) {
+                    long rtt;
+                    try {
+                        rtt = rtts.get(i).get();
+                    } catch (ExecutionException e) {
+                        Log.e(TAG, "Probe of " + targets.get(i).key() + " failed", e.getCause());
+                        rtt = UNREACHABLE;
+                    }
+                    probed.put(targets.get(i).key(), rtt);
+                    cache.put(targets.get(i).key(), new Result(rtt, now));
+                }
+            }
+            return probed;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Sends PROBE datagrams to one server until it answers.
+     * @return round-trip time in milliseconds or {@link #UNREACHABLE}
+     */
+    long probe(Target target) throws IOException {
+        InetAddress address = InetAddress.getByName(target.host);
+        byte[] request = new byte[PROBE_SIZE];
+        byte[] reply = new byte[PROBE_SIZE];
+        request[0] = 0;
+        request[1] = (byte) SpecialPacket.PROBE.ordinal();
+
+        DatagramSocket socket = new DatagramSocket();
+        try {
+            if (protector != null && !protector.protect(socket)) {
+                throw new IOException("Cannot protect the probe socket");
+            }
+            socket.connect(address, target.port);
+            socket.setSoTimeout(PROBE_TIMEOUT_MS / PROBE_ATTEMPTS);
+            DatagramPacket replyPacket = new DatagramPacket(reply, reply.length);
+
+            for (int i = 0; i < PROBE_ATTEMPTS; ++i) {
+                // A new nonce per attempt, so a late reply is not taken for this one.
+                random.nextBytes(reply);
+                System.arraycopy(reply, 0, request, 2, PROBE_SIZE - 2);
+                long sentAt = System.nanoTime();
+                socket.send(new DatagramPacket(request, request.length));
+                try {
+                    while (true) {
+                        socket.receive(replyPacket);
+                        if (isReply(request, reply, replyPacket.getLength())) {
+                            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentAt);
+                        }
+                    }
+                } catch (SocketTimeoutException e) {
+                    // try again
+                }
+            }
+            return UNREACHABLE;
+        } finally {
+            socket.close();
+        }
+    }
+
+    /* reply of the current attempt carries the nonce of the request */
+    private static boolean isReply(byte[] request, byte[] reply, int length) {
+        if (length != PROBE_SIZE || reply[0] != 0
+                || reply[1] != (byte) SpecialPacket.PROBE_REPLY.ordinal()) {
+            return false;
+        }
+        for (int i = 2; i < PROBE_SIZE; ++i) {
+            if (reply[i] != request[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
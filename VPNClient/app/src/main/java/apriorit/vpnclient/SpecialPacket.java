@@ -0,0 +1,28 @@
+package apriorit.vpnclient;
+
+/**
+ * Types of control packets: the first byte of a control packet is zero,
+ * the second one is the ordinal of the type.
+ */
+public enum SpecialPacket {
+    ZERO_PACKET,
+    WANT_CONNECT,
+    WANT_DISCONNECT,
+    /** Keepalive, the server answers with PONG */
+    PING,
+    PONG,
+    /** Latency probe sent to the listening port, the server echoes it as PROBE_REPLY */
+    PROBE,
+    PROBE_REPLY,
+    /** Padded record of the path MTU discovery, the server echoes it as MTU_PROBE_REPLY */
+    MTU_PROBE,
+    MTU_PROBE_REPLY,
+    /** Discovered path MTU, 2 bytes big-endian */
+    MTU_SET,
+    /** Answer of the server to a session which joined the tunnel of another session */
+    JOINED,
+    /** Request of control protocol v2: 2-byte sequence number and a control message */
+    CONTROL,
+    /** Answer to CONTROL: the sequence number of the request and the answer message */
+    CONTROL_ACK
+}
@@ -0,0 +1,91 @@
+package apriorit.vpnclient;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer thread.
+ * Used to pass packets between stages of {@link PacketPipeline}.
+ * @param <E> - type of queued elements
+ */
+class SpscRing<E> {
+    private final Object[] items;
+    private final int mask;
+
+    /* index of the next element to poll, written only by the consumer */
+    private final AtomicLong head = new AtomicLong();
+    /* index of the next free slot, written only by the producer */
+    private final AtomicLong tail = new AtomicLong();
+
+    /* producer-local copy of 'head', refreshed only when the ring looks full */
+    private long headCache;
+    /* consumer-local copy of 'tail', refreshed only when the ring looks empty */
+    private long tailCache;
+
+    /**
+     * @param capacity - maximum number of elements, rounded up to a power of two
+     */
+    SpscRing(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Bad ring capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        items = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Called by the producer only.
+     * @return false if the ring is full
+     */
+    boolean offer(E item) {
+        if (item == null) {
+            throw new NullPointerException();
+        }
+        final long t = tail.get();
+        if (t - headCache >= items.length) {
+            headCache = head.get();
+            if (t - headCache >= items.length) {
+                return false;
+            }
+        }
+        items[(int) t & mask] = item;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Called by the consumer only.
+     * @return the oldest element or null if the ring is empty
+     */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        final long h = head.get();
+        if (h >= tailCache) {
+            tailCache = tail.get();
+            if (h >= tailCache) {
+                return null;
+            }
+        }
+        final int index = (int) h & mask;
+        E item = (E) items[index];
+        items[index] = null;
+        head.lazySet(h + 1);
+        return item;
+    }
+
+    /**
+     * May be called from any thread, the result is approximate.
+     * @return number of elements in the ring
+     */
+    int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, items.length));
+    }
+
+    int capacity() {
+        return items.length;
+    }
+}
@@ -0,0 +1,48 @@
+package apriorit.vpnclient;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The {@link TunInterface} class<br>
+ * Packets of the non-blocking tun interface established by VpnService.Builder.
+ * The interface itself is closed by its owner.
+ */
+class TunInterface implements PacketSource, PacketSink {
+    private final FileInputStream  in;
+    private final FileOutputStream out;
+    private final DescriptorPoll   poll;
+
+    /**
+     * @param fd - descriptor of the tun interface
+     */
+    TunInterface(FileDescriptor fd) {
+        in  = new FileInputStream(fd);
+        out = new FileOutputStream(fd);
+        poll = new DescriptorPoll(fd);
+    }
+
+    @Override
+    public boolean await(int timeout) throws IOException {
+        if (!poll.await(timeout)) {
+            return false;
+        }
+        if (poll.hasErrors()) {
+            throw new IOException("Tun interface is closed");
+        }
+        return true;
+    }
+
+    @Override
+    public int read(byte[] buf) throws IOException {
+        // The interface is non-blocking, so read() returns 0 once it is drained.
+        return Math.max(in.read(buf), 0);
+    }
+
+    @Override
+    public void onPacket(byte[] buf, int offset, int length) throws IOException {
+        out.write(buf, offset, length);
+    }
+}
@@ -0,0 +1,42 @@
+package apriorit.vpnclient;
+
+import com.wolfssl.WolfSSLSession;
+
+import java.io.IOException;
+
+import apriorit.vpnclient.PacketBufferPool.Lease;
+import apriorit.vpnclient.PacketBufferPool.Owner;
+
+/**
+ * The {@link TunnelHandshake} class<br>
+ * The knock with the DTLS handshake, which opens a session of the tunnel. The
+ * control messages of the established session go through {@link ControlChannel}.<br>
+ * It does not use Android classes, the connection of the app and the headless
+ * client share it.
+ */
+final class TunnelHandshake {
+    private TunnelHandshake() {
+    }
+
+    /**
+     * Knocks once and starts the DTLS handshake right away. The receive callback
+     * repeats the knock with a backoff only while the server stays silent.
+     * @param ioctx - I/O context of the session, in handshake mode
+     * @return result of ssl.connect()
+     */
+    static int connect(WolfSSLSession ssl, MyIOCtx ioctx, PacketBufferPool pool)
+            throws IOException {
+        Lease knock = pool.acquire(Owner.CONTROL);
+        try {
+            knock.data[0] = 0;
+            knock.data[1] = (byte) SpecialPacket.WANT_CONNECT.ordinal();
+
+            ioctx.startKnock(knock.data, 2);
+            /* call wolfSSL_connect */
+            return ssl.connect();
+        } finally {
+            ioctx.stopKnock();
+            pool.release(knock);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package apriorit.vpnclient;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The {@link TunnelParameters} class<br>
+ * Settings of the tunnel sent by the server after the DTLS handshake, separated by spaces:
+ * "m,&lt;mtu&gt;", "a,&lt;address&gt;,&lt;prefix&gt;", "r,&lt;route&gt;,&lt;prefix&gt;",
+ * "d,&lt;dns server&gt;", "s,&lt;search domain&gt;", "j,&lt;join token&gt;" and
+ * "o,&lt;option&gt;,...".
+ * Unknown parameters are ignored.<br>
+ * Parsing does not use Android classes, {@link VpnConnection} applies the result
+ * to VpnService.Builder.
+ */
+final class TunnelParameters {
+    /** Option of the parameter handshake: several packets may be packed into one record */
+    static final String OPTION_FRAMING = "f";
+    /** Option of the server parameters: the server echoes MTU probes */
+    static final String OPTION_PMTU = "p";
+    /** Option of the server parameters: further sessions may join the tunnel by the token */
+    static final String OPTION_JOIN = "j";
+    /** Option of the server parameters: the server accepts compressed packets */
+    static final String OPTION_COMPRESSION = "z";
+
+    /** Tunnel MTU used by the server unless it sends another one */
+    static final int DEFAULT_MTU = 1400;
+
+    /** Sessions of one tunnel the server accepts, the first one included */
+    static final int MAX_SESSIONS = 8;
+
+    /** Address or route with its prefix length */
+    static final class Prefix {
+        final String address;
+        final int length;
+
+        Prefix(String address, int length) {
+            this.address = address;
+            this.length = length;
+        }
+    }
+
+    /** MTU of the tunnel, 0 if the server did not send it */
+    int mtu = 0;
+    final List<Prefix> addresses = new ArrayList<>();
+    final List<Prefix> routes = new ArrayList<>();
+    final List<String> dnsServers = new ArrayList<>();
+    final List<String> searchDomains = new ArrayList<>();
+    final Set<String> options = new HashSet<>();
+    /** Token which further sessions send to join this tunnel, null if the server did not send it */
+    String joinToken = null;
+
+    /**
+     * @throws IllegalArgumentException - thrown if a known parameter is malformed
+     */
+    static TunnelParameters parse(String parameters) throws IllegalArgumentException {
+        TunnelParameters result = new TunnelParameters();
+        for (String parameter : parameters.split(" ")) {
+            if (parameter.isEmpty()) {
+                continue;
+            }
+            String[] fields = parameter.split(",");
+            try {
+                switch (fields[0].charAt(0)) {
+                    case 'm':
+                        result.mtu = Short.parseShort(fields[1]);
+                        break;
+                    case 'o':
+                        for (int i = 1; i < fields.length; ++i) {
+                            result.options.add(fields[i]);
+                        }
+                        break;
+                    case 'a':
+                        result.addresses.add(new Prefix(fields[1], Integer.parseInt(fields[2])));
+                        break;
+                    case 'r':
+                        result.routes.add(new Prefix(fields[1], Integer.parseInt(fields[2])));
+                        break;
+                    case 'd':
+                        result.dnsServers.add(fields[1]);
+                        break;
+                    case 's':
+                        result.searchDomains.add(fields[1]);
+                        break;
+                    case 'j':
+                        result.joinToken = fields[1];
+                        break;
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Bad parameter: " + parameter);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Key of the interface configured with these parameters: a reconnect keeps the
+     * interface while it stays the same. The join token is not a part of it, the server
+     * sends a new one to every session.
+     * @param mtu           - MTU of the interface, the path MTU may lower the server's one
+     * @param routeSettings - lists the routes are compiled with, null if there are none
+     */
+    String interfaceSettings(int mtu, String routeSettings) {
+        StringBuilder result = new StringBuilder("m,").append(mtu);
+        for (Prefix address : addresses) {
+            result.append(" a,").append(address.address).append(',').append(address.length);
+        }
+        for (Prefix route : routes) {
+            result.append(" r,").append(route.address).append(',').append(route.length);
+        }
+        for (String dnsServer : dnsServers) {
+            result.append(" d,").append(dnsServer);
+        }
+        for (String searchDomain : searchDomains) {
+            result.append(" s,").append(searchDomain);
+        }
+        if (routeSettings != null) {
+            result.append(' ').append(routeSettings);
+        }
+        return result.toString();
+    }
+
+    /**
+     * @return true if the server announced the option in "o,&lt;options&gt;"
+     */
+    boolean hasOption(String option) {
+        return options.contains(option);
+    }
+}
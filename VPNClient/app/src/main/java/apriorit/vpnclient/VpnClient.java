@@ -44,6 +44,8 @@ public class VpnClient extends Activity{
     public static final String BOOT_ON = "on";
     public static final String BOOT_OFF = "off";
     public static final String BOOT_REAL_MESSAGE = "START_BOOT";
+    public static final String TRANSPORT_SOCKET = "socket";
+    public static final String TRANSPORT_CHANNEL = "channel";
     private CustomVpnService mService;
     private ImageView buttonImageView;
     private Spinner   serverSpinner;
@@ -65,7 +67,11 @@ public class VpnClient extends Activity{
             new CountryObject(R.drawable.ic_flag_of_france, "France",
                     "5.135.153.169", "8000"),
             new CountryObject(R.drawable.ic_flag_of_the_united_states, "USA",
-                    "192.241.141.236", "8000")
+                    "192.241.141.236", "8000"),
+            // Connects to the server with the lowest round-trip time.
+            // Last, so that SPINNER_POSITION saved by older versions keeps its server:
+            new CountryObject(R.drawable.lock_locked, "Fastest server",
+                    CountryObject.AUTO_ADDRESS, "0")
     });
 
     public interface Prefs {
@@ -75,6 +81,15 @@ public class VpnClient extends Activity{
         String SPINNER_POSITION = "spinner.position";
         String BUTTON_STATE = "button.state";
         String BOOTS = "BOOT_ON_START_VPN";
+        String TRANSPORT = "transport";
+        String COALESCE = "coalesce";
+        String SESSIONS = "sessions";
+        String COMPRESSION = "compression";
+        String ROUTES_INCLUDE = "routes.include";
+        String ROUTES_EXCLUDE = "routes.exclude";
+        String METRICS_DUMP = "metrics_dump";
+        String SERVER_CANDIDATES = "server.candidates";
+        String HOT_STANDBY = "hot_standby";
     }
 
     public class MessageHandler extends Handler {
@@ -121,6 +136,9 @@ public class VpnClient extends Activity{
         super.onCreate(savedInstanceState);
         setContentView(R.layout.form);
 
+        // Load native libraries, CA and DTLS context while the user picks a server.
+        DtlsContextHolder.warmUp(this);
+
         // forbid landscape screen orientation:
         setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_PORTRAIT);
 
@@ -169,6 +187,7 @@ public class VpnClient extends Activity{
                                 .putString(Prefs.SERVER_ADDRESS, countries.getIpAddresses()[serverSpinner.getSelectedItemPosition()])
                                 .putString(Prefs.SERVER_PORT, countries.getServerPorts()[serverSpinner.getSelectedItemPosition()])
                                 .putInt(Prefs.SPINNER_POSITION, serverSpinner.getSelectedItemPosition())
+                                .putString(Prefs.SERVER_CANDIDATES, countries.getProbeTargets())
                                 .putBoolean(Prefs.BUTTON_STATE, !service_start)
                                 .commit();
 
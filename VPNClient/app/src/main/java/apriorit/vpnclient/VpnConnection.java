@@ -1,19 +1,17 @@
 package apriorit.vpnclient;
 
-import static java.nio.charset.StandardCharsets.US_ASCII;
+import static apriorit.vpnclient.PacketBufferPool.CONTROL_PACKET_SIZE;
 
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.os.ParcelFileDescriptor;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
@@ -21,14 +19,20 @@ import java.net.InetSocketAddress;
 import java.net.PortUnreachableException;
 import java.net.SocketAddress;
 import java.net.SocketException;
-import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 
 import com.wolfssl.*;
 
+import apriorit.vpnclient.PacketBufferPool.Lease;
+import apriorit.vpnclient.PacketBufferPool.Owner;
+
 /**
  * @todo:
  * 1) Activate wakelock on connect to prevent enabling sleeping mode,
@@ -37,18 +41,14 @@ import com.wolfssl.*;
  * 3) Add receiving timeout. If reached - make force disconnect.
  */
 public class VpnConnection implements Runnable {
-    public enum SpecialPacket {
-        ZERO_PACKET,
-        WANT_CONNECT,
-        WANT_DISCONNECT
-    }
-
     /**
-     * Load wolfSSL shared JNI library:
+     * Transport used for DTLS records:
+     * SOCKET  - blocking {@link DatagramSocket} with heap arrays;
+     * CHANNEL - non-blocking connected {@link DatagramChannel} with direct buffers.
      */
-    static {
-        System.loadLibrary("wolfssl");
-        System.loadLibrary("wolfssljni");
+    public enum Transport {
+        SOCKET,
+        CHANNEL
     }
 
     WolfSSL        sslLib             = null;
@@ -65,30 +65,76 @@ public class VpnConnection implements Runnable {
         void onEstablish(ParcelFileDescriptor tunInterface);
     }
 
-    /** Maximum packet size is constrained by the MTU, which is given as a signed short. */
-    private static final int MAX_PACKET_SIZE = Short.MAX_VALUE / 2 - 1;
-
-    /**
-     * Time between polling the VPN interface for new traffic
-     */
-    private static final long IDLE_INTERVAL_MS = TimeUnit.MILLISECONDS.toMillis(1); // 20 by default
-    private static final int MAX_HANDSHAKE_ATTEMPTS = 50;
-
     private final CustomVpnService mService;
     private final int mConnectionId;
 
     private final String mServerName;
     private final int mServerPort;
+    private final Context mAppContext;
 
     private PendingIntent mConfigureIntent;
     private OnEstablishListener mOnEstablishListener;
     /**
-     * This boolean controls recv-thread execution. If false, thread will be terminated.
+     * True while the DTLS connection with server is established.
      */
     private boolean connectedToServer = false;
 
     private boolean send_vpn_close = false;
 
+    private Transport mTransport = Transport.SOCKET;
+
+    private boolean mCoalescing = false;
+    private boolean mServerFraming = false;
+    private boolean mCompression = false;
+    private boolean mServerCompression = false;
+    /* DTLS sessions which carry the tunnel */
+    private int mSessions = 1;
+    private int mMtu = TunnelParameters.DEFAULT_MTU;
+    /** MTU of the path to the server, 0 if it is not known */
+    private int mPathMtu = 0;
+
+    /** Buffers for packets and control messages, usually shared by all connections */
+    private PacketBufferPool mBufferPool = new PacketBufferPool(TunnelParameters.DEFAULT_MTU);
+
+    /** Data plane counters, usually shared by all connections */
+    private MetricsRegistry mMetrics = new MetricsRegistry();
+
+    /** DTLS sessions for resumption, usually shared by all connections */
+    private DtlsSessionCache mSessionCache = new DtlsSessionCache();
+
+    /** Keepalive interval learned from the NAT, usually shared by all connections */
+    private KeepaliveScheduler mKeepalive = new KeepaliveScheduler();
+
+    /** Path MTUs found on the networks, usually shared by all connections */
+    private PathMtuDiscovery mPathMtuDiscovery = new PathMtuDiscovery();
+
+    /** Responses of the tunnel resolvers, usually shared by all connections */
+    private DnsCache mDnsCache = null;
+
+    /** Split tunnelling lists, null to use the routes of the server as they are */
+    private RouteSetCompiler mRouteSet = null;
+
+    /** Time of the data plane, keeps counting while the device sleeps */
+    private static final Clock ELAPSED_REALTIME = new Clock() {
+        @Override
+        public long now() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+
+    /** Hot standby: checks of the promotion signal, keepalive interval and attempts */
+    private static final long STANDBY_TICK_MS = 250;
+    private static final long STANDBY_PING_INTERVAL_MS = KeepaliveScheduler.INITIAL_INTERVAL_MS;
+
+    /** True until the standby connection is promoted, false for a primary one */
+    private volatile boolean mStandby = false;
+    private volatile boolean mStandbyReady = false;
+    private volatile boolean mStandbyClosed = false;
+    private final CountDownLatch mPromotion = new CountDownLatch(1);
+
+    /** Packet forwarding stages of established tunnel, null while not connected */
+    private volatile PacketPipeline mPipeline = null;
+
     /** WakeLock object to prevent client from falling asleep when VPN is enabled */
     private PowerManager.WakeLock wakeLock = null;
 
@@ -101,56 +147,22 @@ public class VpnConnection implements Runnable {
      * @param serverName   - server name
      * @param serverPort   - port to connect
      * @param appContext   - application context, needed for loading android assets
-     * @throws WolfSSLException - DTLS-specified exceptions
+     * @throws Exception - thrown if the wake lock can't be created
      */
     public VpnConnection(final CustomVpnService service, final int connectionId,
                          final String serverName, final int serverPort,
                          Context appContext) throws Exception {
 
-        /**
-         * Load CA certificate from android assets:
-         */
-        String cert = "ca_cert.crt";
-        try {
-            Log.i("ASSETS_LIST",
-                    Arrays.toString(appContext.getAssets().list(""))
-            );
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        byte[] buffer = null;
-        InputStream is;
-        try {
-            is = appContext.getAssets().open(cert);
-            int size = is.available();
-            buffer = new byte[size];
-            is.read(buffer);
-            is.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
         mService = service;
         mConnectionId = connectionId;
 
         mServerName = serverName;
         mServerPort= serverPort;
+        mAppContext = appContext;
 
-        sslLib = new WolfSSL();
-
-        // Configure SSL Context for DTLS connections:
-        sslCtx = new WolfSSLContext(WolfSSL.DTLSv1_2_ClientMethod());
-
-        int status = 0;
-        try {
-            status = sslCtx.loadVerifyBuffer(buffer, buffer.length, WolfSSL.SSL_FILETYPE_PEM);
-        } catch (WolfSSLJNIException e) {
-            e.printStackTrace();
-        }
-        if(status != WolfSSL.SSL_SUCCESS) {
-            Log.e("WOLFSSL_SSL_FAILURE", "Failed to load ca certificate");
-            throw new Exception("Failed to load CA cert");
-        }
+        // The DTLS context is shared by all connections, its setup is usually
+        // finished by now. Make sure it is started, the connection thread waits for it.
+        DtlsContextHolder.warmUp(appContext);
 
         PowerManager powerManager = (PowerManager) appContext.getSystemService(Context.POWER_SERVICE);
         wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "VpnWakeLock");
@@ -166,6 +178,179 @@ public class VpnConnection implements Runnable {
         mOnEstablishListener = listener;
     }
 
+    /**
+     * Enables packing of several packets into one DTLS record
+     * if the server supports it. Disabled by default.
+     */
+    public void setCoalescing(boolean coalescing) {
+        mCoalescing = coalescing;
+    }
+
+    /**
+     * Enables compression of outgoing packets if the server supports it.
+     * Disabled by default.
+     */
+    public void setCompression(boolean compression) {
+        mCompression = compression;
+    }
+
+    /**
+     * Carries the tunnel by several DTLS sessions, so encryption of different flows
+     * runs on different cores, if the server supports it. One session by default.
+     */
+    public void setSessions(int sessions) {
+        mSessions = Math.max(1, Math.min(sessions, TunnelParameters.MAX_SESSIONS));
+    }
+
+    /**
+     * Sets the pool of packet buffers, so buffers survive reconnects.
+     * By default the connection uses a pool of its own.
+     */
+    public void setBufferPool(PacketBufferPool pool) {
+        mBufferPool = pool;
+    }
+
+    /**
+     * Sets the registry which counts forwarded packets and errors.
+     * By default the connection uses a registry of its own.
+     */
+    public void setMetrics(MetricsRegistry metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Sets the cache of DTLS sessions, so reconnects resume the session of the
+     * previous connection. By default the connection uses a cache of its own.
+     */
+    public void setSessionCache(DtlsSessionCache cache) {
+        mSessionCache = cache;
+    }
+
+    /**
+     * Sets the keepalive scheduler, so the learned interval survives reconnects.
+     * By default the connection uses a scheduler of its own.
+     */
+    public void setKeepaliveScheduler(KeepaliveScheduler keepalive) {
+        mKeepalive = keepalive;
+    }
+
+    /**
+     * Sets the cache of discovered path MTUs, so reconnects over the same network
+     * do not probe again. By default the connection uses a cache of its own.
+     */
+    public void setPathMtuDiscovery(PathMtuDiscovery discovery) {
+        mPathMtuDiscovery = discovery;
+    }
+
+    /**
+     * Sets the cache of DNS responses, so reconnects answer the queries resolved
+     * before. By default the connection uses a cache of its own.
+     */
+    public void setDnsCache(DnsCache cache) {
+        mDnsCache = cache;
+    }
+
+    /**
+     * Sets the include and exclude lists applied to the routes of the server.
+     * By default the routes of the server are used as they are.
+     */
+    public void setRouteSet(RouteSetCompiler routeSet) {
+        mRouteSet = routeSet;
+    }
+
+    /**
+     * Makes this a hot standby connection: it sets up the DTLS session and gets the
+     * parameters, then only exchanges keepalives until {@link #promote()}. Then it
+     * configures the tun interface from its own parameters and forwards traffic.
+     */
+    public void setStandby(boolean standby) {
+        mStandby = standby;
+    }
+
+    /**
+     * @return true if this is a standby connection which was not promoted yet
+     */
+    public boolean isStandby() {
+        return mStandby;
+    }
+
+    /**
+     * @return true if the standby session is established and may take over the traffic
+     */
+    public boolean isStandbyReady() {
+        return mStandby && mStandbyReady;
+    }
+
+    /**
+     * Makes the standby connection take over the traffic.
+     * @return false if the standby session is not established or already lost
+     */
+    public synchronized boolean promote() {
+        if (!isStandbyReady()) {
+            return false;
+        }
+        mStandby = false;
+        mPromotion.countDown();
+        return true;
+    }
+
+    /**
+     * Closes a standby connection, the server gets WANT_DISCONNECT.
+     * The tun interface of the primary connection is not touched.
+     */
+    public synchronized void closeStandby(Thread thread) {
+        if (mStandby) {
+            mStandbyClosed = true;
+            mStandbyReady = false;
+            thread.interrupt();
+        }
+    }
+
+    public String getServerName() {
+        return mServerName;
+    }
+
+    public int getServerPort() {
+        return mServerPort;
+    }
+
+    /**
+     * Chooses the transport for DTLS records, {@link Transport#SOCKET} by default.
+     */
+    public void setTransport(Transport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * @return packets read from tun and waiting to be sent to server
+     */
+    public int getOutboundQueueDepth() {
+        final PacketPipeline pipeline = mPipeline;
+        return pipeline != null ? pipeline.getOutboundDepth() : 0;
+    }
+
+    /**
+     * @return packets received from server and waiting to be written to tun
+     */
+    public int getInboundQueueDepth() {
+        final PacketPipeline pipeline = mPipeline;
+        return pipeline != null ? pipeline.getInboundDepth() : 0;
+    }
+
+    /**
+     * Drops the established tunnel as failed, so the service connects again,
+     * e.g. over another network. The tun interface stays open for the next connection.
+     * @return false if the tunnel is not established
+     */
+    public boolean restart(String reason) {
+        final PacketPipeline pipeline = mPipeline;
+        if (pipeline == null) {
+            return false;
+        }
+        pipeline.abort(new IOException(reason));
+        return true;
+    }
+
     @Override
     public void run() {
         try {
@@ -174,17 +359,27 @@ public class VpnConnection implements Runnable {
             run(serverAddress);
         } catch (IOException | InterruptedException | IllegalArgumentException | NullPointerException e) {
             Log.e(getTag(), "Connection failed, exiting", e);
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e1) {
-                e1.printStackTrace();
+            if (isStandby()) {
+                mService.onStandbyLost(this);
+            } else {
+                mService.Reconnect();
             }
-            mService.Reconnect();
         }
     }
 
     private boolean run(InetSocketAddress server)
             throws IOException, InterruptedException, IllegalArgumentException {
+        // Take the shared DTLS context, it is set up once per process.
+        try {
+            DtlsContextHolder dtls = DtlsContextHolder.get(mAppContext);
+            sslLib = dtls.sslLib;
+            sslCtx = dtls.sslCtx;
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("DTLS context is not available", e);
+        }
+
         // Create SSL Session instance:
         try {
             ssl = new WolfSSLSession(sslCtx);
@@ -193,10 +388,21 @@ public class VpnConnection implements Runnable {
         }
 
         ParcelFileDescriptor iface = null;
+        ParcelFileDescriptor sockDescriptor = null;
+        DatagramSocket dgramSock = null;
+        MyIOCtx ioctx = null;
+        ControlChannel control = null;
+        List<JoinedSession> joined = new ArrayList<>();
         connectedToServer = false;
-        // Create a DatagramSocket as the VPN tunnel.
+        // Create a DatagramSocket (or a channel with its socket) as the VPN tunnel.
         try  {
-            DatagramSocket dgramSock = new DatagramSocket();
+            DatagramChannel channel = null;
+            if (mTransport == Transport.CHANNEL) {
+                channel = DatagramChannel.open();
+                dgramSock = channel.socket();
+            } else {
+                dgramSock = new DatagramSocket();
+            }
             // Protect the tunnel before connecting to avoid loopback.
             if (!mService.protect(dgramSock)) {
                 throw new IOException("Cannot protect the tunnel");
@@ -211,137 +417,161 @@ public class VpnConnection implements Runnable {
                 throw new IOException("dtlsSetPeerException");
             }
 
-            /* register callbacks: */
-            ConnectRecvCallback connCallback = new ConnectRecvCallback();
-            MyRecvCallback rcb = new MyRecvCallback();
-            MySendCallback scb = new MySendCallback();
-            MyIOCtx ioctx = new MyIOCtx(dtlsOutputStream, dtlsInputStream, dgramSock,
-                    server.getAddress(), mServerPort);
+            if (channel != null) {
+                channel.connect(server);
+                ioctx = new MyIOCtx(channel, server.getAddress(), mServerPort);
+            } else {
+                dgramSock.connect(server.getAddress(), mServerPort);
+                ioctx = new MyIOCtx(dtlsOutputStream, dtlsInputStream, dgramSock,
+                        server.getAddress(), mServerPort);
+            }
+            Log.i(getTag(), "Transport: " + mTransport);
 
+            // Callbacks of the shared context wait for datagrams until the tunnel is set up.
+            ioctx.setHandshakeMode(true);
+            ioctx.setClock(ELAPSED_REALTIME);
             try {
-                sslCtx.setIORecv(connCallback);
-                sslCtx.setIOSend(scb);
                 ssl.setIOReadCtx(ioctx);
                 ssl.setIOWriteCtx(ioctx);
             } catch (WolfSSLJNIException e) {
                 throw new IOException("Can't register callbacks in VPN Connection");
             }
-            Log.i("IO_CALLBACKS_DTLS", "Registered I/O callbacks");
 
             wakeLock.acquire();
-            ByteBuffer bb = ByteBuffer.allocate(1024);
-            DatagramPacket dpacket = new DatagramPacket(bb.array(), 2);
-            dgramSock.connect(server.getAddress(), mServerPort);
 
-            // Send initial packets several times in case of packets loss to
-            // init the DTLS connection with server:
-            for(int i = 0; i < 4; ++i) {
-                bb.put((byte)0).put((byte)SpecialPacket.WANT_CONNECT.ordinal()).flip();
-                bb.position(0);
-                dgramSock.send(dpacket);
-                bb.clear();
-                Thread.sleep(200);
+            // Offer the session of the previous connection, the server falls back
+            // to a full handshake if it does not know the session anymore.
+            final String sessionKey = DtlsSessionCache.key(mServerName, mServerPort);
+            DtlsSessionCache.Entry cached =
+                    mSessionCache.get(sessionKey, SystemClock.elapsedRealtime());
+            if (cached != null && ssl.setSession(cached.session) != WolfSSL.SSL_SUCCESS) {
+                mSessionCache.invalidate(sessionKey);
+                cached = null;
             }
 
-            /* call wolfSSL_connect */
-
-            status = ssl.connect();
+            long handshakeStart = SystemClock.elapsedRealtime();
+            status = TunnelHandshake.connect(ssl, ioctx, mBufferPool);
+            long handshakeEnd = SystemClock.elapsedRealtime();
 
             if (status != WolfSSL.SSL_SUCCESS) {
                 int err = ssl.getError(status);
                 String errString = sslLib.getErrorString(err);
                 Log.e("WOLFSSL_CONNECT", "Connect failed. Code: " + err +
                         ", description: " + errString);
+                if (cached != null) {
+                    mSessionCache.invalidate(sessionKey);
+                }
                 throw new IOException("Can't connect to server");
             }
+
+            boolean resumed = cached != null && ssl.sessionReused() == 1;
+            mMetrics.counter(resumed ? MetricsRegistry.HANDSHAKES_RESUMED
+                                     : MetricsRegistry.HANDSHAKES_FULL).increment();
+            mMetrics.counter(MetricsRegistry.HANDSHAKE_TIME_MS).add(handshakeEnd - handshakeStart);
+            if (!resumed) {
+                mSessionCache.put(sessionKey, ssl.getSession(), ssl, handshakeEnd);
+            }
+            long timeToFirstByte = ioctx.getTimeToFirstByte();
+            if (timeToFirstByte >= 0) {
+                mMetrics.counter(MetricsRegistry.CONNECT_TTFB_MS).add(timeToFirstByte);
+            }
+            Log.i(getTag(), (resumed ? "Resumed" : "Full") + " handshake took "
+                    + (handshakeEnd - handshakeStart) + " ms, first byte after "
+                    + timeToFirstByte + " ms");
             showPeer(ssl);
 
             connectedToServer = true;
 
-            iface = handshake(ssl);
+            ioctx.setHandshakeMode(false);
+
+            // The socket descriptor is polled by the control channel and the receiving
+            // stage. Receive callback of the blocking socket uses it too, to find out that
+            // there is nothing left to read. Non-blocking channel finds it out by itself.
+            sockDescriptor = ParcelFileDescriptor.fromDatagramSocket(dgramSock);
+            if (channel == null) {
+                ioctx.setReadPoll(new DescriptorPoll(sockDescriptor.getFileDescriptor()));
+            }
+            RecordTransport transport =
+                    new DtlsTransport(ssl, new DescriptorPoll(sockDescriptor.getFileDescriptor()));
+            control = new ControlChannel(transport, mBufferPool, ELAPSED_REALTIME, mMetrics);
+
+            String parameters = control.exchangeParameters(mCoalescing);
+            TunnelParameters tunnel = TunnelParameters.parse(parameters);
+            if (control.isLegacy()) {
+                Log.i(getTag(), "Server speaks control protocol v1");
+            }
+
+            mPathMtu = 0;
+            if (tunnel.hasOption(TunnelParameters.OPTION_PMTU)) {
+                mPathMtu = discoverPathMtu(ssl, ioctx, control,
+                        tunnel.mtu > 0 ? tunnel.mtu : TunnelParameters.DEFAULT_MTU,
+                        dgramSock.getLocalAddress().getHostAddress());
+            }
+
+            if (mStandby) {
+                awaitPromotion(ssl);
+                Log.i(getTag(), "Standby connection takes over the traffic");
+            }
+
+            iface = configure(parameters, tunnel);
             mService.SetDefaultRecCount();
-            if(mService.old_vpn_interface!=null){
+            if(mService.old_vpn_interface!=null && mService.old_vpn_interface != iface){
                 mService.old_vpn_interface.close();
             }
             mService.old_vpn_interface = iface;
-            FileInputStream  in = new FileInputStream(iface.getFileDescriptor());
-            FileOutputStream out = new FileOutputStream(iface.getFileDescriptor());
+            TunInterface tun = new TunInterface(iface.getFileDescriptor());
 
-            try {
-                sslCtx.setIORecv(rcb);
-            } catch (WolfSSLJNIException e) {
-                throw new IOException("Can't set sslCtx.setIORecv()");
-            }
-
-            // Allocate the buffer for a single packet.
-            ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET_SIZE);
-
-            /* Here Runnable instance will be created.
-             * It will be listening for incoming packets
-             * from outside (dtls) in a new thread
-             */
-
-            //After all test can be uncommented
-            DgramReaderRunnable r = new DgramReaderRunnable(dgramSock, ssl, out);
-            Thread receiver = new Thread(r);
-            receiver.start();
-
-            // dgramSock.setSoTimeout(0);
-
-            // Here packets are forwarding from tunnel to secured socket:
-            int ctrlPktCounter = 0;
-            // Calculate when control messages will be sent (after 'maxLimit' times of 'read')
-            int maxLimit = (int) (3000 / IDLE_INTERVAL_MS);
-
-            while (true) {
-                int len = in.read(packet.array());
-                if (len > 0) {
-                    packet.limit(len);
-                    len = ssl.write(packet.array(), len);
-                    packet.clear();
-                    if(len==-1)
-                        throw new IOException("Can't write to the tunnel!");
-                    Log.i("SSL_WRITE_SUCCESS", "Written " + len + " bytes of data.");
-                }
-                if(++ctrlPktCounter > maxLimit) {
-                    ctrlPktCounter = 0;
-                    packet.put((byte) 0).limit(1);
-                    for (int i = 0; i < 3; ++i) {
-                        packet.position(0);
-                        ssl.write(packet.array(), 1);
-                        if(len==-1)
-                            throw new IOException("Can't write to the tunnel!");
-                        Log.i("CTRL_MSG_SENT", "Control message sent to server");
-                    }
-                    packet.clear();
+            List<RecordTransport> transports = new ArrayList<>();
+            transports.add(transport);
+            joinSessions(server, tunnel, joined);
+            for (JoinedSession session : joined) {
+                transports.add(session.getTransport());
+            }
+
+            mPipeline = new PacketPipeline(
+                    transports.toArray(new RecordTransport[transports.size()]),
+                    tun, tun, mBufferPool, mMetrics, mKeepalive, ELAPSED_REALTIME);
+            if (mCoalescing && mServerFraming) {
+                mPipeline.enableFraming(mMtu);
+                Log.i(getTag(), "Packet coalescing enabled, record size " + mMtu);
+            }
+            if (mCompression && mServerCompression) {
+                mPipeline.enableCompression();
+                Log.i(getTag(), "Packet compression enabled");
+            }
+            if (!tunnel.dnsServers.isEmpty()) {
+                if (mDnsCache == null) {
+                    mDnsCache = new DnsCache(mMetrics);
                 }
-                Thread.sleep(IDLE_INTERVAL_MS);
+                mDnsCache.setResolvers(tunnel.dnsServers);
+                mPipeline.enableDnsCache(mDnsCache);
             }
+            mPipeline.run();
         } catch (PortUnreachableException e) {
+            if (isStandby()) {
+                throw e;
+            }
             send_vpn_close = true;
             e.printStackTrace();
             Log.e(getTag(), "Lost connection with server");
 
         } catch (SocketException e) {
+            if (isStandby()) {
+                throw e;
+            }
             send_vpn_close = true;
             Log.e(getTag(), "Cannot use socket", e);
         } catch (InterruptedException e) {
-            send_vpn_close = true;
-            ByteBuffer packet = ByteBuffer.allocate(1024);
-            for(int i = 0; i < 4; ++i) {
-                packet.clear();
-                packet.position(0);
-                packet.put((byte)0).put((byte)SpecialPacket.WANT_DISCONNECT.ordinal()).flip();
-                ssl.write(packet.array(), 2);
-                packet.clear();
-            }
-            if(mService.old_vpn_interface!=null) {
-                try {
-                    mService.old_vpn_interface.close();
-                } catch (IOException e3) {
-                    Log.d(getTag(), "Unable to close interface", e3);
-                }
+            final boolean standby = isStandby();
+            send_vpn_close = !standby;
+            if (control != null) {
+                control.disconnect();
+            }
+            if (standby) {
+                // The interface belongs to the primary connection.
+                return false;
             }
+            mService.closeVpnInterface();
 
             if (iface != null) {
                 try {
@@ -356,6 +586,24 @@ public class VpnConnection implements Runnable {
             if(send_vpn_close)
                 mService.SetDisconnect(CustomVpnService.SIGNAL_VPN_FAIL);
             connectedToServer = false;
+            mPipeline = null;
+            for (JoinedSession session : joined) {
+                session.close();
+            }
+
+            if (sockDescriptor != null) {
+                try {
+                    sockDescriptor.close();
+                } catch (IOException e) {
+                    Log.d(getTag(), "Unable to close socket descriptor", e);
+                }
+            }
+            if (ioctx != null) {
+                ioctx.close();
+            }
+            if (dgramSock != null) {
+                dgramSock.close();
+            }
 
             // free wakeLock to prevent battery draining:
             wakeLock.release();
@@ -364,102 +612,231 @@ public class VpnConnection implements Runnable {
     }
 
     /**
-     * The handshake method is needed to
-     * establish Point-to-Point tunnel connection with server.
-     * Here the configuration data will be received from server, such as
-     * client's tunnel IP address, packet MTU and routing rules.
-     * @param ssl - current SSL (DTLS) session object
-     * @return - configured ParcelFileDescriptor. It will be used like dev/tun file.
-     * @throws IOException - thrown if after MAX_HANDSHAKE_ATTEMPTS we did not get parameters
-     *                       from server;
+     * Opens further sessions of the tunnel over protected channels. The tunnel goes on
+     * with the sessions which have joined, even if it is only the first one.
+     * @param joined - receives the sessions
      */
-    private ParcelFileDescriptor handshake(WolfSSLSession ssl)
-            throws IOException {
-        // To build a secured tunnel, we should perform mutual authentication
-        // and exchange session keys for encryption.
-
-        // Allocate the buffer for handshaking.
-        ByteBuffer packet = ByteBuffer.allocate(1024);
-        byte[] packetArr  = packet.array();
-
-        // Control messages always start with zero.
-        packet.put((byte) 0).flip();
-
-        // Send the 'init-connection' packet several times in case of packet loss.
-        for (int i = 0; i < 4; ++i) {
-            packet.position(0);
-            ssl.write(packet.array(), 1024);
+    private void joinSessions(InetSocketAddress server, TunnelParameters tunnel,
+                              List<JoinedSession> joined) {
+        if (mSessions == 1) {
+            return;
         }
-        packet.clear();
-
-        // Wait for the parameters within a limited time.
-        for (int i = 0; i < MAX_HANDSHAKE_ATTEMPTS; ++i) {
+        if (!tunnel.hasOption(TunnelParameters.OPTION_JOIN) || tunnel.joinToken == null) {
+            Log.i(getTag(), "Server does not support several sessions of a tunnel");
+            return;
+        }
+        for (int i = 1; i < mSessions; ++i) {
             try {
-                Thread.sleep(IDLE_INTERVAL_MS);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                DatagramChannel channel = DatagramChannel.open();
+                if (!mService.protect(channel.socket())) {
+                    channel.close();
+                    throw new IOException("Cannot protect the tunnel");
+                }
+                joined.add(JoinedSession.open(sslCtx, channel, server, mBufferPool,
+                        ELAPSED_REALTIME, mMetrics, mCoalescing, tunnel.joinToken));
+            } catch (IOException e) {
+                Log.e(getTag(), "Session " + i + " did not join the tunnel", e);
+                break;
             }
+        }
+        Log.i(getTag(), "Tunnel is carried by " + (joined.size() + 1) + " sessions");
+    }
+
+    /**
+     * Finds the MTU of the path to the server, or takes it from the cache, and
+     * reports it to the server, so both ends of the tunnel use it.
+     * @param ssl       - established session, its receive callback must not block
+     * @param control   - control channel of the session, reports the MTU
+     * @param serverMtu - tunnel MTU of the server parameters, the upper bound
+     * @param network   - identity of the network of the tunnel socket
+     * @return path MTU, at most serverMtu
+     */
+    private int discoverPathMtu(WolfSSLSession ssl, MyIOCtx ioctx, ControlChannel control,
+                                int serverMtu, String network) throws IOException {
+        final String key = PathMtuDiscovery.key(network, mServerName, mServerPort);
+        int pathMtu = mPathMtuDiscovery.get(key, SystemClock.elapsedRealtime());
+        if (pathMtu == 0) {
+            long start = SystemClock.elapsedRealtime();
+            pathMtu = probePathMtu(ssl, ioctx, serverMtu);
+            mPathMtuDiscovery.put(key, pathMtu, SystemClock.elapsedRealtime());
+            mMetrics.counter(MetricsRegistry.PMTU_PROBES).increment();
+            Log.i(getTag(), "Path MTU " + pathMtu + " found in "
+                    + (SystemClock.elapsedRealtime() - start) + " ms");
+        } else {
+            Log.i(getTag(), "Path MTU " + pathMtu + " is cached");
+        }
+        pathMtu = Math.min(pathMtu, serverMtu);
+        if (pathMtu == serverMtu) {
+            return pathMtu;
+        }
+
+        control.reportPathMtu(pathMtu);
+        return pathMtu;
+    }
+
+    /**
+     * Sends the padded probes of {@link PathMtuDiscovery#ladder(int)} at once and
+     * takes the largest one echoed back by the server.
+     * @return path MTU; serverMtu if the server echoed nothing, it may be busy
+     */
+    private int probePathMtu(WolfSSLSession ssl, MyIOCtx ioctx, int serverMtu) throws IOException {
+        final int[] sizes = PathMtuDiscovery.ladder(serverMtu);
+        if (sizes.length == 0) {
+            return serverMtu;
+        }
+        // Probes are larger than the pool buffers, which are sized to the tunnel MTU.
+        final byte[] probe = new byte[serverMtu];
+        final int wait = PathMtuDiscovery.waitTime(ioctx.getTimeToFirstByte());
+        int largest = 0;
+
+        for (int round = 0; round < PathMtuDiscovery.ROUNDS && largest < sizes[0]; ++round) {
+            for (int size : sizes) {
+                if (size <= largest) {
+                    break;
+                }
+                Arrays.fill(probe, 0, size, (byte) 0);
+                probe[1] = (byte) SpecialPacket.MTU_PROBE.ordinal();
+                if (ssl.write(probe, size) <= 0) {
+                    throw new IOException("Can't send MTU probe");
+                }
+            }
+
+            long deadline = SystemClock.elapsedRealtime() + wait;
+            long left;
+            while (largest < sizes[0] && (left = deadline - SystemClock.elapsedRealtime()) > 0) {
+                int length = ssl.read(probe, probe.length);
+                if (length <= 0) {
+                    ioctx.awaitInput((int) left);
+                    continue;
+                }
+                // Late acks or duplicates of v1 parameters may still come, they are not replies.
+                if (length >= 2 && probe[0] == 0
+                        && probe[1] == (byte) SpecialPacket.MTU_PROBE_REPLY.ordinal()) {
+                    largest = Math.max(largest, length);
+                }
+            }
+        }
+        return largest > 0 ? largest : serverMtu;
+    }
+
+    /**
+     * Holds the standby session until the connection is promoted. Only keepalives
+     * are exchanged, the server has to answer them with PONGs.
+     * @param ssl - established session, its receive callback must not block
+     * @throws IOException          - thrown if the server stopped answering
+     * @throws InterruptedException - thrown if the standby connection is closed
+     */
+    private void awaitPromotion(WolfSSLSession ssl) throws IOException, InterruptedException {
+        Lease lease = mBufferPool.acquire(Owner.CONTROL);
+        try {
+            byte[] packet = lease.data;
+            long lastPingAt = SystemClock.elapsedRealtime();
+            int unanswered = 0;
+
+            // The interrupt may have been swallowed while the session was set up.
+            if (mStandbyClosed) {
+                throw new InterruptedException();
+            }
+            mStandbyReady = true;
+            Log.i(getTag(), "Standby connection is ready");
+            while (!mPromotion.await(STANDBY_TICK_MS, TimeUnit.MILLISECONDS)) {
+                int length;
+                while ((length = ssl.read(packet, CONTROL_PACKET_SIZE)) > 0) {
+                    if (length == 2 && packet[0] == 0
+                            && packet[1] == (byte) SpecialPacket.PONG.ordinal()) {
+                        mMetrics.counter(MetricsRegistry.CONTROL_IN).increment();
+                        unanswered = 0;
+                    }
+                }
 
-            // Normally we should not receive random packets. Check that the first
-            // byte is 0 as expected.
-            int length = ssl.read(packetArr, 1024);
-            if (length > 0 && packet.get(0) == 0) {
-                return configure(new String(packetArr, 1, length - 1, US_ASCII).trim());
+                long now = SystemClock.elapsedRealtime();
+                long interval = unanswered == 0 ? STANDBY_PING_INTERVAL_MS
+                                                : KeepaliveScheduler.PONG_TIMEOUT_MS;
+                if (now - lastPingAt < interval) {
+                    continue;
+                }
+                if (unanswered >= KeepaliveScheduler.PING_ATTEMPTS) {
+                    throw new IOException("Standby server does not answer keepalives");
+                }
+                packet[0] = 0;
+                packet[1] = (byte) SpecialPacket.PING.ordinal();
+                if (ssl.write(packet, 2) <= 0) {
+                    throw new IOException("Can't send keepalive to the standby server");
+                }
+                mMetrics.counter(MetricsRegistry.CONTROL_OUT).increment();
+                lastPingAt = now;
+                ++unanswered;
             }
+        } finally {
+            mStandbyReady = false;
+            mBufferPool.release(lease);
         }
-        throw new IOException("Timed out");
     }
 
     /**
-     * Method parses string for tunnel parameters.
-     * @param parameters - {@link String} with parameters to parse;
+     * Method configures the tun interface with tunnel parameters.
+     * @param parameters - {@link String} with parameters, as sent by the server;
+     * @param tunnel     - the same parameters parsed;
      * @return - configured {@link ParcelFileDescriptor}
-     * @throws IllegalArgumentException - thrown if error occured while parsing parameters.
      */
-    private ParcelFileDescriptor configure(String parameters)
-            throws IllegalArgumentException {
+    private ParcelFileDescriptor configure(String parameters, TunnelParameters tunnel) {
         Log.i("VPN_CONNECTION_CONF", "Configure called.");
-        // Configure a builder while parsing the parameters.
         android.net.VpnService.Builder builder = mService.new Builder();
-        for (String parameter : parameters.split(" ")) {
-            String[] fields = parameter.split(",");
-            try {
-                switch (fields[0].charAt(0)) {
-                    case 'm':
-                        builder.setMtu(Short.parseShort(fields[1]));
-                        Log.i("MTU_SIZE", fields[1]);
-                        break;
-                    case 'a':
-                        builder.addAddress(fields[1], Integer.parseInt(fields[2]));
-                        break;
-                    case 'r':
-                        builder.addRoute(fields[1], Integer.parseInt(fields[2]));
-                        break;
-                    case 'd':
-                        builder.addDnsServer(fields[1]);
-                        break;
-                    case 's':
-                        builder.addSearchDomain(fields[1]);
-                        break;
-                }
-            } catch (NumberFormatException e) {
-                throw new IllegalArgumentException("Bad parameter: " + parameter);
+        if (tunnel.mtu > 0) {
+            mMtu = tunnel.mtu;
+            if (mPathMtu > 0 && mPathMtu < mMtu) {
+                mMtu = mPathMtu;
             }
+            builder.setMtu(mMtu);
+            mBufferPool.setMtu(mMtu);
+            Log.i("MTU_SIZE", Integer.toString(mMtu));
+        }
+        mServerFraming = tunnel.hasOption(TunnelParameters.OPTION_FRAMING);
+        mServerCompression = tunnel.hasOption(TunnelParameters.OPTION_COMPRESSION);
+        for (TunnelParameters.Prefix address : tunnel.addresses) {
+            builder.addAddress(address.address, address.length);
+        }
+        List<TunnelParameters.Prefix> routes =
+                mRouteSet != null ? mRouteSet.compile(tunnel.routes) : tunnel.routes;
+        for (TunnelParameters.Prefix route : routes) {
+            builder.addRoute(route.address, route.length);
+        }
+        for (String dnsServer : tunnel.dnsServers) {
+            builder.addDnsServer(dnsServer);
+        }
+        for (String searchDomain : tunnel.searchDomains) {
+            builder.addSearchDomain(searchDomain);
         }
 
-        // Create a new interface using the builder and save the parameters.
+        // Keep the interface of the previous connection if the parameters are the same,
+        // apps see a stall instead of the interface going down and up. Otherwise create
+        // a new interface using the builder and save the parameters. The path MTU may
+        // differ for the same parameters, so it is a part of them, and so are the
+        // lists the routes are compiled with.
+        final String settings = tunnel.interfaceSettings(
+                mMtu, mRouteSet != null ? mRouteSet.getSettings() : null);
         final ParcelFileDescriptor vpnInterface;
+        final boolean reused;
         synchronized (mService) {
-            vpnInterface = builder
-                    .setSession(mServerName)
-                    .setConfigureIntent(mConfigureIntent)
-                    .establish();
+            reused = mService.old_vpn_interface != null
+                    && settings.equals(mService.old_vpn_parameters);
+            if (reused) {
+                vpnInterface = mService.old_vpn_interface;
+            } else {
+                vpnInterface = builder
+                        .setSession(mServerName)
+                        .setBlocking(false)
+                        .setConfigureIntent(mConfigureIntent)
+                        .establish();
+                mService.old_vpn_parameters = settings;
+            }
             if (mOnEstablishListener != null) {
                 mOnEstablishListener.onEstablish(vpnInterface);
             }
         }
 
-        Log.i(getTag(), "New interface: " + vpnInterface + " (" + parameters + ")");
+        Log.i(getTag(), (reused ? "Reused interface: " : "New interface: ")
+                + vpnInterface + " (" + parameters + ")");
         return vpnInterface;
     }
 
@@ -494,50 +871,4 @@ public class VpnConnection implements Runnable {
             e.printStackTrace();
         }
     }
-
-    /**
-     * The {@link DgramReaderRunnable} class
-     * Lisens for DTLS Socket income. Whet it gets some bytes, they will
-     * be retranslated to tun file (iface).
-     */
-    class DgramReaderRunnable implements Runnable {
-        DatagramSocket   ds;
-        WolfSSLSession   ssl;
-        FileOutputStream out;
-        ByteBuffer       buf = ByteBuffer.allocate(MAX_PACKET_SIZE);
-
-        DgramReaderRunnable(DatagramSocket sock, WolfSSLSession ssl, FileOutputStream out)
-                throws SocketException {
-            ds = sock;
-            ds.setSoTimeout(0);
-            this.ssl = ssl;
-            this.out = out;
-        }
-
-        @Override
-        public void run() {
-            while(connectedToServer) {
-                int len = ssl.read(buf.array(), MAX_PACKET_SIZE);
-                if(len > 0) {
-                    if(buf.get(0) != 0) {
-                        try {
-                            out.write(buf.array(), 0, len);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    } else {
-                        Log.i("CONTROL_PKT", "Control zero packet received");
-                    }
-                    Log.i("SSL_READ_SUCCESS", "Read " + len + " bytes of data: ");
-                    buf.clear();
-                }
-                try {
-                    Thread.sleep(IDLE_INTERVAL_MS);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-
-        }
-    }
 }
\ No newline at end of file
@@ -0,0 +1,208 @@
+package apriorit.vpnclient;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.Assert.*;
+
+/**
+ * Runs the control channel against a scripted server on a simulated clock: waiting
+ * for input moves the clock, so retransmission times are exact.
+ */
+public class ControlChannelUnitTest {
+    private static final String PARAMETERS = "m,1400 a,10.0.0.2,32 d,8.8.8.8 r,0.0.0.0,0 o,f,p,j";
+    private static final byte CONTROL = (byte) SpecialPacket.CONTROL.ordinal();
+    private static final byte CONTROL_ACK = (byte) SpecialPacket.CONTROL_ACK.ordinal();
+    private static final byte JOINED = (byte) SpecialPacket.JOINED.ordinal();
+
+    private static class Server implements RecordTransport, Clock {
+        final ArrayDeque<byte[]> incoming = new ArrayDeque<>();
+        final List<byte[]> written = new ArrayList<>();
+        final List<Long> writtenAt = new ArrayList<>();
+        long now = 1000;
+        /** requests to drop before the server answers */
+        int drop = 0;
+        boolean legacy = false;
+        boolean silent = false;
+        boolean joins = true;
+
+        @Override
+        public long now() {
+            return now;
+        }
+
+        @Override
+        public boolean await(int timeout) {
+            if (incoming.isEmpty()) {
+                now += timeout;
+            }
+            return !incoming.isEmpty();
+        }
+
+        @Override
+        public int read(byte[] buf, int size) {
+            byte[] record = incoming.poll();
+            if (record == null) {
+                return 0;
+            }
+            System.arraycopy(record, 0, buf, 0, record.length);
+            return record.length;
+        }
+
+        @Override
+        public void write(byte[] buf, int length) {
+            byte[] record = Arrays.copyOf(buf, length);
+            written.add(record);
+            writtenAt.add(now);
+            if (silent || drop-- > 0) {
+                return;
+            }
+            if (legacy) {
+                // v1 servers answer the join, the parameters come without asking.
+                if (new String(record, US_ASCII).contains("j,") && joins) {
+                    incoming.add(new byte[] { 0, JOINED });
+                }
+                return;
+            }
+            if (record[1] != CONTROL) {
+                return;
+            }
+            byte[] message = Arrays.copyOfRange(record, ControlChannel.HEADER_SIZE, length);
+            byte[] answer = Arrays.copyOf(message, Math.min(2, message.length));
+            if (message.length == 1 || message[1] >= ' ') {
+                boolean join = new String(message, US_ASCII).contains("j,");
+                answer = join && joins ? new byte[] { 0, JOINED }
+                                       : ("\0" + PARAMETERS).getBytes(US_ASCII);
+            }
+            incoming.add(ack(record[2], record[3], answer));
+        }
+    }
+
+    private static byte[] ack(byte seqHigh, byte seqLow, byte[] answer) {
+        byte[] ack = new byte[ControlChannel.HEADER_SIZE + answer.length];
+        ack[1] = CONTROL_ACK;
+        ack[2] = seqHigh;
+        ack[3] = seqLow;
+        System.arraycopy(answer, 0, ack, ControlChannel.HEADER_SIZE, answer.length);
+        return ack;
+    }
+
+    private final Server server = new Server();
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final ControlChannel control =
+            new ControlChannel(server, new PacketBufferPool(1400), server, metrics);
+
+    @Test
+    public void parametersAnswerTheOptionsOnce() throws IOException {
+        assertEquals(PARAMETERS, control.exchangeParameters(true));
+        assertFalse(control.isLegacy());
+        assertEquals(1, server.written.size());
+        // header, zero and "o,f", not a padded block
+        byte[] request = server.written.get(0);
+        assertEquals(ControlChannel.HEADER_SIZE + 4, request.length);
+        assertEquals(CONTROL, request[1]);
+        assertEquals("o,f", new String(request, ControlChannel.HEADER_SIZE + 1, 3, US_ASCII));
+        assertEquals(0, metrics.counter(MetricsRegistry.CONTROL_RETRANSMITS).get());
+    }
+
+    @Test
+    public void lostRequestIsRetransmittedWithBackoff() throws IOException {
+        server.drop = 3;
+        assertEquals(PARAMETERS, control.exchangeParameters(false));
+        assertEquals(Arrays.asList(1000L, 1250L, 1750L, 2750L), server.writtenAt);
+        assertEquals(3, metrics.counter(MetricsRegistry.CONTROL_RETRANSMITS).get());
+        assertEquals(4, metrics.counter(MetricsRegistry.CONTROL_OUT).get());
+    }
+
+    @Test
+    public void staleAcksAreIgnored() throws IOException {
+        // the ack of an earlier request and a packet of the tunnel come first
+        server.incoming.add(ack((byte) 0, (byte) 7, ("\0m,576").getBytes(US_ASCII)));
+        server.incoming.add(new byte[] { 0x45, 0, 0, 20 });
+        assertEquals(PARAMETERS, control.exchangeParameters(false));
+    }
+
+    @Test
+    public void silentServerTimesOutAtDeadline() {
+        server.silent = true;
+        try {
+            control.exchangeParameters(false);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(1000 + ControlChannel.SETUP_TIMEOUT_MS, server.now);
+        // 0, 250, 750, 1750, 3750, 5750 and 7750 ms after the start
+        assertEquals(7, server.written.size());
+        assertEquals(8750L, (long) server.writtenAt.get(6));
+    }
+
+    @Test
+    public void joinIsConfirmedOrRefused() throws IOException {
+        control.join(true, "0123456789abcdef");
+        String request = new String(server.written.get(0), US_ASCII);
+        assertTrue(request, request.endsWith("o,f j,0123456789abcdef"));
+
+        server.joins = false;
+        long start = server.now;
+        try {
+            control.join(false, "fedcba9876543210");
+            fail();
+        } catch (IOException e) {
+            // The parameters of the session answered the join, there is no wait.
+            assertEquals(start, server.now);
+        }
+    }
+
+    @Test
+    public void legacyServerIsDetected() throws IOException {
+        server.legacy = true;
+        byte[] block = new byte[PacketBufferPool.CONTROL_PACKET_SIZE];
+        Arrays.fill(block, (byte) ' ');
+        block[0] = 0;
+        System.arraycopy(PARAMETERS.getBytes(US_ASCII), 0, block, 1, PARAMETERS.length());
+        server.incoming.add(block);
+        assertEquals(PARAMETERS, control.exchangeParameters(true));
+        assertTrue(control.isLegacy());
+
+        // v1 servers have no acks: the messages are repeated without waiting.
+        server.written.clear();
+        control.reportPathMtu(1320);
+        control.disconnect();
+        assertEquals(8, server.written.size());
+        assertArrayEquals(new byte[] { 0, (byte) SpecialPacket.MTU_SET.ordinal(), 5, 0x28 },
+                          server.written.get(0));
+        assertArrayEquals(new byte[] { 0, (byte) SpecialPacket.WANT_DISCONNECT.ordinal() },
+                          server.written.get(7));
+    }
+
+    @Test
+    public void legacyJoinWaitsForJoined() throws IOException {
+        server.legacy = true;
+        server.incoming.add(("\0" + PARAMETERS).getBytes(US_ASCII));
+        control.join(false, "0123456789abcdef");
+        assertTrue(control.isLegacy());
+    }
+
+    @Test
+    public void disconnectIsAcked() {
+        control.disconnect();
+        assertEquals(1, server.written.size());
+        byte[] request = server.written.get(0);
+        assertEquals(CONTROL, request[1]);
+        assertEquals(SpecialPacket.WANT_DISCONNECT.ordinal(), request[5]);
+
+        // A lost ack costs at most the teardown deadline.
+        server.silent = true;
+        long start = server.now;
+        control.disconnect();
+        assertEquals(start + ControlChannel.TEARDOWN_TIMEOUT_MS, server.now);
+        assertEquals(1 + 3, server.written.size());
+    }
+}
@@ -52,4 +52,16 @@ public class CountriesUnitTest {
         assertEquals(countriesPorts[0], countriesPorts[1]);
         assertNotEquals(countriesPorts[0], "12345");
     }
+
+    @Test
+    public void countriesProbeTargetsSkipAutoEntry() {
+        Countries withAuto = new Countries(new CountryObject[] {
+                new CountryObject(R.drawable.lock_locked, "Fastest server",
+                        CountryObject.AUTO_ADDRESS, "0"),
+                new CountryObject(R.drawable.ic_flag_of_france, "France",
+                        "5.135.153.169", "8000")
+        });
+
+        assertEquals("5.135.153.169 8000", withAuto.getProbeTargets());
+    }
 }
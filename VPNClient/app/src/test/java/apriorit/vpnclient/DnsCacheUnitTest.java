@@ -0,0 +1,255 @@
+package apriorit.vpnclient;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DnsCacheUnitTest {
+    private static final byte[] CLIENT   = { 10, 8, 0, 2 };
+    private static final byte[] RESOLVER = { 8, 8, 8, 8 };
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private DnsCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new DnsCache(metrics);
+        cache.setResolvers(Collections.singletonList("8.8.8.8"));
+    }
+
+    /** DNS message with one question, 'answers' A records with these TTLs */
+    private static byte[] message(int id, String name, boolean response, int rcode,
+                                  int... ttls) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(id >> 8);
+        out.write(id);
+        out.write(response ? 0x81 : 0x01); // RD
+        out.write(response ? 0x80 | rcode : 0);
+        int[] counts = { 1, ttls.length, 0, 0 };
+        for (int count : counts) {
+            out.write(count >> 8);
+            out.write(count);
+        }
+        for (String label : name.split("\\.")) {
+            out.write(label.length());
+            out.write(label.getBytes(), 0, label.length());
+        }
+        out.write(0);
+        out.write(new byte[] { 0, 1, 0, 1 }, 0, 4); // A, IN
+        for (int i = 0; i < ttls.length; ++i) {
+            out.write(new byte[] { (byte) 0xC0, 12, 0, 1, 0, 1 }, 0, 6);
+            out.write(ttls[i] >>> 24);
+            out.write(ttls[i] >>> 16);
+            out.write(ttls[i] >>> 8);
+            out.write(ttls[i]);
+            out.write(new byte[] { 0, 4, 93, (byte) 184, (byte) 216, (byte) (34 + i) }, 0, 6);
+        }
+        return out.toByteArray();
+    }
+
+    /** IPv4/UDP packet with a DNS message in a 1400-byte buffer */
+    private static byte[] udp(byte[] source, int sourcePort, byte[] destination,
+                              int destinationPort, byte[] message) {
+        byte[] packet = new byte[1400];
+        int length = 28 + message.length;
+        packet[0] = 0x45;
+        packet[2] = (byte) (length >> 8);
+        packet[3] = (byte) length;
+        packet[8] = 64;
+        packet[9] = 17;
+        System.arraycopy(source, 0, packet, 12, 4);
+        System.arraycopy(destination, 0, packet, 16, 4);
+        packet[20] = (byte) (sourcePort >> 8);
+        packet[21] = (byte) sourcePort;
+        packet[22] = (byte) (destinationPort >> 8);
+        packet[23] = (byte) destinationPort;
+        packet[24] = (byte) ((8 + message.length) >> 8);
+        packet[25] = (byte) (8 + message.length);
+        System.arraycopy(message, 0, packet, 28, message.length);
+        return packet;
+    }
+
+    private static byte[] query(int id, String name) {
+        return udp(CLIENT, 40000, RESOLVER, 53, message(id, name, false, 0));
+    }
+
+    private static int length(byte[] packet) {
+        return ((packet[2] & 0xFF) << 8) | (packet[3] & 0xFF);
+    }
+
+    /** Sends a query which misses and caches the response of the resolver */
+    private void resolve(int id, String name, long now, int... ttls) {
+        byte[] query = query(id, name);
+        assertEquals(-1, cache.answer(query, length(query), now));
+        byte[] response = udp(RESOLVER, 53, CLIENT, 40000, message(id, name, true, 0, ttls));
+        cache.onResponse(response, 0, length(response), now + 30000000);
+    }
+
+    private static int readShort(byte[] packet, int offset) {
+        return ((packet[offset] & 0xFF) << 8) | (packet[offset + 1] & 0xFF);
+    }
+
+    private static int sum(byte[] packet, int offset, int length, int sum) {
+        for (int i = offset; i < offset + length; i += 2) {
+            sum += readShort(packet, i) & (i + 1 < offset + length ? 0xFFFF : 0xFF00);
+        }
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return sum;
+    }
+
+    @Test
+    public void repeatedQueryIsAnswered() {
+        long now = 1000 * SECOND;
+        resolve(0x1234, "example.com", now, 300, 60);
+        assertEquals(1, cache.size());
+
+        // cached 30 ms after 'now', 10 s ago
+        byte[] query = query(0x5678, "Example.COM");
+        int length = cache.answer(query, length(query), now + 30000000 + 10 * SECOND);
+        // The question keeps the case of the query.
+        byte[] expected = message(0x5678, "Example.COM", true, 0, 290, 50);
+        assertEquals(28 + expected.length, length);
+
+        // from the resolver to the port of the query
+        assertArrayEquals(RESOLVER, Arrays.copyOfRange(query, 12, 16));
+        assertArrayEquals(CLIENT, Arrays.copyOfRange(query, 16, 20));
+        assertEquals(53, readShort(query, 20));
+        assertEquals(40000, readShort(query, 22));
+        assertEquals(length, readShort(query, 2));
+        assertEquals(length - 20, readShort(query, 24));
+        assertArrayEquals(expected, Arrays.copyOfRange(query, 28, length));
+
+        assertEquals(0xFFFF, sum(query, 0, 20, 0));
+        int pseudo = sum(query, 12, 8, 17 + length - 20);
+        assertEquals(0xFFFF, sum(query, 20, length - 20, pseudo));
+
+        assertEquals(1, metrics.counter(MetricsRegistry.DNS_CACHE_HITS).get());
+        assertEquals(1, metrics.counter(MetricsRegistry.DNS_CACHE_MISSES).get());
+        assertEquals(30000, metrics.counter(MetricsRegistry.DNS_LATENCY_SAVED_US).get());
+    }
+
+    @Test
+    public void ipv6QueryIsAnswered() {
+        cache.setResolvers(Collections.singletonList("2001:4860:4860::8888"));
+        byte[] message = message(7, "example.com", false, 0);
+        byte[] query = new byte[1400];
+        query[0] = 0x60;
+        query[5] = (byte) (8 + message.length);
+        query[6] = 17;
+        query[7] = 64;
+        query[8] = (byte) 0xfd;
+        query[23] = 2;
+        byte[] resolver = { 0x20, 0x01, 0x48, 0x60, 0x48, 0x60, 0, 0, 0, 0, 0, 0, 0, 0,
+                            (byte) 0x88, (byte) 0x88 };
+        System.arraycopy(resolver, 0, query, 24, 16);
+        query[40] = (byte) 0x9c;
+        query[43] = 53;
+        query[45] = (byte) (8 + message.length);
+        System.arraycopy(message, 0, query, 48, message.length);
+        byte[] response = query.clone();
+        System.arraycopy(query, 8, response, 24, 16);
+        System.arraycopy(resolver, 0, response, 8, 16);
+        response[40] = 0;
+        response[41] = 53;
+        response[42] = (byte) 0x9c;
+        response[43] = 0;
+        byte[] answer = message(7, "example.com", true, 0, 120);
+        System.arraycopy(answer, 0, response, 48, answer.length);
+
+        long now = 5 * SECOND;
+        assertEquals(-1, cache.answer(query, 48 + message.length, now));
+        cache.onResponse(response, 0, 48 + answer.length, now);
+        byte[] again = query.clone();
+        assertEquals(48 + answer.length, cache.answer(again, 48 + message.length, now));
+        assertArrayEquals(resolver, Arrays.copyOfRange(again, 8, 24));
+        assertEquals(8 + answer.length, readShort(again, 4));
+        int pseudo = sum(again, 8, 32, 17 + 8 + answer.length);
+        assertEquals(0xFFFF, sum(again, 40, 8 + answer.length, pseudo));
+    }
+
+    @Test
+    public void responseExpiresWithSmallestTtl() {
+        long now = 1000 * SECOND;
+        resolve(1, "example.com", now, 300, 20);
+
+        byte[] query = query(2, "example.com");
+        assertTrue(cache.answer(query, length(query), now + 19 * SECOND) > 0);
+        query = query(3, "example.com");
+        assertEquals(-1, cache.answer(query, length(query), now + 21 * SECOND));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        cache = new DnsCache(2, metrics);
+        cache.setResolvers(Collections.singletonList("8.8.8.8"));
+        resolve(1, "a.example", 0, 60);
+        resolve(2, "b.example", 0, 60);
+        byte[] query = query(3, "a.example");
+        assertTrue(cache.answer(query, length(query), SECOND) > 0);
+        resolve(4, "c.example", SECOND, 60);
+
+        assertEquals(2, cache.size());
+        query = query(5, "b.example");
+        assertEquals(-1, cache.answer(query, length(query), SECOND));
+        query = query(6, "a.example");
+        assertTrue(cache.answer(query, length(query), SECOND) > 0);
+    }
+
+    @Test
+    public void onlyResponsesToQueriesAreCached() {
+        // Unsolicited, failed and truncated responses, other servers
+        byte[] response = udp(RESOLVER, 53, CLIENT, 40000, message(1, "example.com", true, 0, 60));
+        cache.onResponse(response, 0, length(response), 0);
+        byte[] query = query(2, "example.com");
+        assertEquals(-1, cache.answer(query, length(query), 0));
+        response = udp(RESOLVER, 53, CLIENT, 40000, message(2, "example.com", true, 2, 60));
+        cache.onResponse(response, 0, length(response), 0);
+
+        query = query(3, "example.com");
+        assertEquals(-1, cache.answer(query, length(query), 0));
+        response = udp(RESOLVER, 53, CLIENT, 40000, message(3, "example.com", true, 0, 60));
+        response[30] |= 0x02; // TC
+        cache.onResponse(response, 0, length(response), 0);
+
+        query = query(4, "example.com");
+        assertEquals(-1, cache.answer(query, length(query), 0));
+        response = udp(new byte[] { 1, 1, 1, 1 }, 53, CLIENT, 40000,
+                       message(4, "example.com", true, 0, 60));
+        cache.onResponse(response, 0, length(response), 0);
+        assertEquals(0, cache.size());
+
+        query = udp(CLIENT, 40000, new byte[] { 1, 1, 1, 1 }, 53, message(5, "example.com", false, 0));
+        assertEquals(-1, cache.answer(query, length(query), 0));
+        assertEquals(3, metrics.counter(MetricsRegistry.DNS_CACHE_MISSES).get());
+    }
+
+    @Test
+    public void framedResponseIsCached() {
+        byte[] query = query(1, "example.com");
+        assertEquals(-1, cache.answer(query, length(query), 0));
+        byte[] response = udp(RESOLVER, 53, CLIENT, 40000, message(1, "example.com", true, 0, 60));
+        byte[] record = new byte[1500];
+        System.arraycopy(response, 0, record, 3, length(response));
+        cache.onResponse(record, 3, length(response), 0);
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void otherResolversClearCache() {
+        resolve(1, "example.com", 0, 60);
+        cache.setResolvers(Collections.singletonList("8.8.8.8"));
+        assertEquals(1, cache.size());
+        cache.setResolvers(Collections.singletonList("1.1.1.1"));
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,46 @@
+package apriorit.vpnclient;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DtlsSessionCacheUnitTest {
+    private static final String KEY = DtlsSessionCache.key("10.0.0.1", 8000);
+
+    @Test
+    public void sessionCacheReturnsSessionUntilExpired() {
+        DtlsSessionCache cache = new DtlsSessionCache();
+        Object owner = new Object();
+
+        cache.put(KEY, 0x1234, owner, 1000);
+
+        DtlsSessionCache.Entry entry = cache.get(KEY, 1000 + DtlsSessionCache.SESSION_LIFETIME_MS - 1);
+        assertNotNull(entry);
+        assertEquals(0x1234, entry.session);
+        assertSame(owner, entry.owner);
+        assertNull(cache.get(KEY, 1000 + DtlsSessionCache.SESSION_LIFETIME_MS));
+        assertNull(cache.get(KEY, 0));
+    }
+
+    @Test
+    public void sessionCacheIsPerServer() {
+        DtlsSessionCache cache = new DtlsSessionCache();
+
+        cache.put(KEY, 0x1234, new Object(), 0);
+
+        assertNull(cache.get(DtlsSessionCache.key("10.0.0.1", 8001), 0));
+        assertNull(cache.get(DtlsSessionCache.key("10.0.0.2", 8000), 0));
+    }
+
+    @Test
+    public void sessionCacheInvalidate() {
+        DtlsSessionCache cache = new DtlsSessionCache();
+
+        cache.put(KEY, 0, new Object(), 0);
+        assertNull(cache.get(KEY, 0));
+
+        cache.put(KEY, 0x1234, new Object(), 0);
+        cache.invalidate(KEY);
+        assertNull(cache.get(KEY, 0));
+    }
+}
@@ -0,0 +1,93 @@
+package apriorit.vpnclient;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FlowHashUnitTest {
+    private static byte[] ipv4(int protocol, int sourcePort, int destinationPort, int length) {
+        byte[] packet = new byte[length];
+        packet[0] = 0x45;
+        packet[9] = (byte) protocol;
+        packet[12] = 10;
+        packet[15] = 2;
+        packet[16] = 93;
+        packet[17] = (byte) 184;
+        packet[18] = (byte) 216;
+        packet[19] = 34;
+        packet[20] = (byte) (sourcePort >> 8);
+        packet[21] = (byte) sourcePort;
+        packet[22] = (byte) (destinationPort >> 8);
+        packet[23] = (byte) destinationPort;
+        // payload differs between packets of a flow
+        for (int i = 28; i < length; ++i) {
+            packet[i] = (byte) (i * length);
+        }
+        return packet;
+    }
+
+    private static byte[] ipv6(int nextHeader, int sourcePort) {
+        byte[] packet = new byte[60];
+        packet[0] = 0x60;
+        packet[6] = (byte) nextHeader;
+        packet[8] = (byte) 0xfd;
+        packet[23] = 2;
+        packet[24] = 0x20;
+        packet[25] = 0x01;
+        packet[39] = 1;
+        packet[40] = (byte) (sourcePort >> 8);
+        packet[41] = (byte) sourcePort;
+        packet[43] = 53;
+        return packet;
+    }
+
+    @Test
+    public void packetsOfFlowShareSession() {
+        byte[] first  = ipv4(6, 40000, 443, 60);
+        byte[] second = ipv4(6, 40000, 443, 1400);
+
+        assertEquals(FlowHash.hash(first, first.length), FlowHash.hash(second, second.length));
+        assertEquals(FlowHash.shard(first, first.length, 4),
+                     FlowHash.shard(second, second.length, 4));
+        assertEquals(FlowHash.hash(ipv6(17, 5353), 60), FlowHash.hash(ipv6(17, 5353), 48));
+    }
+
+    @Test
+    public void flowsAreSpreadOverSessions() {
+        int[] flows = new int[4];
+        for (int port = 40000; port < 40400; ++port) {
+            byte[] packet = ipv4(17, port, 53, 40);
+            ++flows[FlowHash.shard(packet, packet.length, flows.length)];
+        }
+        for (int count : flows) {
+            assertTrue("flows of a session " + count, count > 60);
+        }
+
+        int[] ipv6Flows = new int[3];
+        for (int port = 40000; port < 40300; ++port) {
+            ++ipv6Flows[FlowHash.shard(ipv6(6, port), 60, ipv6Flows.length)];
+        }
+        for (int count : ipv6Flows) {
+            assertTrue("flows of a session " + count, count > 60);
+        }
+    }
+
+    @Test
+    public void fragmentsAreHashedWithoutPorts() {
+        byte[] first = ipv4(17, 40000, 53, 1400);
+        first[6] = 0x20; // more fragments
+        byte[] last = ipv4(17, 0x1234, 0x5678, 200);
+        last[6] = 0x00;
+        last[7] = (byte) 172; // offset, the payload has no UDP header
+
+        assertEquals(FlowHash.hash(first, first.length), FlowHash.hash(last, last.length));
+    }
+
+    @Test
+    public void otherPacketsGoToFirstSession() {
+        assertEquals(0, FlowHash.shard(new byte[] { 0x45, 0 }, 2, 4));
+        assertEquals(0, FlowHash.shard(new byte[20], 20, 4));
+        byte[] packet = ipv4(6, 40000, 443, 60);
+        assertEquals(0, FlowHash.shard(packet, packet.length, 1));
+    }
+}
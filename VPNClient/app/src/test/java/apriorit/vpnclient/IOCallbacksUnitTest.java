@@ -0,0 +1,176 @@
+package apriorit.vpnclient;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import com.wolfssl.WolfSSL;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the steady-state DTLS I/O callbacks do not allocate
+ * and do not repeat socket option calls. The socket is replaced by a fake,
+ * so only the callback code itself is measured.
+ */
+public class IOCallbacksUnitTest {
+    private static final int PACKETS = 10000;
+    private static final int PACKET_SIZE = 1400;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /** Loops datagrams back without touching the network */
+    private static class FakeDatagramSocket extends DatagramSocket {
+        final InetAddress peer;
+        final int peerPort;
+        int sent = 0;
+        int received = 0;
+        int timeoutCalls = 0;
+
+        FakeDatagramSocket(InetAddress peer, int peerPort) throws SocketException {
+            super((SocketAddress) null);
+            this.peer = peer;
+            this.peerPort = peerPort;
+        }
+
+        @Override
+        public void send(DatagramPacket p) {
+            sent += p.getLength();
+        }
+
+        @Override
+        public synchronized void receive(DatagramPacket p) {
+            p.getData()[p.getOffset()] = 0x45;
+            p.setLength(PACKET_SIZE);
+            p.setAddress(peer);
+            p.setPort(peerPort);
+            received += PACKET_SIZE;
+        }
+
+        @Override
+        public synchronized void setSoTimeout(int timeout) throws SocketException {
+            ++timeoutCalls;
+            super.setSoTimeout(timeout);
+        }
+    }
+
+    private FakeDatagramSocket socket;
+    private MyIOCtx ioctx;
+    private final byte[] buf = new byte[PACKET_SIZE];
+
+    @Before
+    public void setUp() throws Exception {
+        InetAddress peer = InetAddress.getByName("127.0.0.1");
+        socket = new FakeDatagramSocket(peer, 8000);
+        ioctx = new MyIOCtx(null, null, socket, peer, 8000);
+    }
+
+    private static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void sendCallbackDoesNotAllocate() {
+        MySendCallback callback = new MySendCallback();
+        for (int i = 0; i < PACKETS; ++i) {
+            assertEquals(PACKET_SIZE, callback.sendCallback(null, buf, PACKET_SIZE, ioctx));
+        }
+
+        long before = allocatedBytes();
+        for (int i = 0; i < PACKETS; ++i) {
+            callback.sendCallback(null, buf, PACKET_SIZE, ioctx);
+        }
+        long allocated = allocatedBytes() - before;
+
+        assertEquals("bytes allocated per " + PACKETS + " packets", 0, allocated);
+        assertEquals((long) 2 * PACKETS * PACKET_SIZE, socket.sent);
+    }
+
+    @Test
+    public void recvCallbackDoesNotAllocate() {
+        MyRecvCallback callback = new MyRecvCallback();
+        for (int i = 0; i < PACKETS; ++i) {
+            assertEquals(PACKET_SIZE, callback.receiveCallback(null, buf, PACKET_SIZE, ioctx));
+        }
+
+        long before = allocatedBytes();
+        for (int i = 0; i < PACKETS; ++i) {
+            callback.receiveCallback(null, buf, PACKET_SIZE, ioctx);
+        }
+        long allocated = allocatedBytes() - before;
+
+        assertEquals("bytes allocated per " + PACKETS + " packets", 0, allocated);
+        assertEquals(0x45, buf[0]);
+    }
+
+    @Test
+    public void recvCallbackSetsTimeoutOnce() {
+        MyRecvCallback callback = new MyRecvCallback();
+        for (int i = 0; i < PACKETS; ++i) {
+            callback.receiveCallback(null, buf, PACKET_SIZE, ioctx);
+        }
+        assertEquals(1, socket.timeoutCalls);
+    }
+
+    @Test
+    public void recvCallbackUpdatesChangedPeer() throws Exception {
+        InetAddress other = InetAddress.getByName("127.0.0.2");
+        FakeDatagramSocket otherSocket = new FakeDatagramSocket(other, 9000);
+        MyIOCtx otherCtx = new MyIOCtx(null, null, otherSocket,
+                InetAddress.getByName("127.0.0.1"), 8000);
+
+        new MyRecvCallback().receiveCallback(null, buf, PACKET_SIZE, otherCtx);
+
+        assertEquals(other, otherCtx.getHostAddress());
+        assertEquals(9000, otherCtx.getPort());
+    }
+
+    @Test
+    public void channelTransportRoundTrip() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        DatagramChannel server = DatagramChannel.open();
+        DatagramChannel client = DatagramChannel.open();
+        try {
+            server.bind(new InetSocketAddress(loopback, 0));
+            client.bind(new InetSocketAddress(loopback, 0));
+            client.connect(server.getLocalAddress());
+            server.connect(client.getLocalAddress());
+            MyIOCtx channelCtx = new MyIOCtx(client, loopback,
+                    ((InetSocketAddress) server.getLocalAddress()).getPort());
+
+            MyRecvCallback recv = new MyRecvCallback();
+            assertEquals(WolfSSL.WOLFSSL_CBIO_ERR_WANT_READ,
+                    recv.receiveCallback(null, buf, PACKET_SIZE, channelCtx));
+
+            buf[0] = 0x45;
+            assertEquals(PACKET_SIZE,
+                    new MySendCallback().sendCallback(null, buf, PACKET_SIZE, channelCtx));
+            ByteBuffer serverBuf = ByteBuffer.allocate(PACKET_SIZE);
+            server.receive(serverBuf);
+            assertEquals(PACKET_SIZE, serverBuf.position());
+            assertEquals(0x45, serverBuf.get(0));
+
+            serverBuf.flip();
+            serverBuf.put(0, (byte) 0x60);
+            server.write(serverBuf);
+            assertTrue(channelCtx.awaitInput(1000));
+            assertEquals(PACKET_SIZE, recv.receiveCallback(null, buf, PACKET_SIZE, channelCtx));
+            assertEquals(0x60, buf[0]);
+
+            channelCtx.close();
+        } finally {
+            client.close();
+            server.close();
+        }
+    }
+}
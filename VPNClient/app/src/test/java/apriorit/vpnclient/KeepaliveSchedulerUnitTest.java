@@ -0,0 +1,104 @@
+package apriorit.vpnclient;
+
+import org.junit.Test;
+
+import apriorit.vpnclient.KeepaliveScheduler.Action;
+
+import static org.junit.Assert.*;
+
+public class KeepaliveSchedulerUnitTest {
+    private static final long START = 1000000;
+
+    /** Waits for the next PING and answers it if the binding is still alive */
+    private static Action idleCycle(KeepaliveScheduler keepalive, long[] now, long bindingMs) {
+        long idleSince = now[0];
+        now[0] = keepalive.nextDeadline();
+        Action action = keepalive.poll(now[0]);
+        assertEquals(Action.PING, action);
+        while (action == Action.PING) {
+            if (now[0] - idleSince <= bindingMs) {
+                keepalive.onPong(now[0] + 50);
+                now[0] += 100;
+                return keepalive.poll(now[0]);
+            }
+            now[0] = keepalive.nextDeadline();
+            action = keepalive.poll(now[0]);
+        }
+        return action;
+    }
+
+    @Test
+    public void keepaliveSuppressedByTraffic() {
+        KeepaliveScheduler keepalive = new KeepaliveScheduler();
+        keepalive.start(START);
+
+        for (long t = START; t < START + 10 * KeepaliveScheduler.INITIAL_INTERVAL_MS; t += 1000) {
+            keepalive.onSent(t);
+            assertEquals(Action.NONE, keepalive.poll(t));
+        }
+    }
+
+    @Test
+    public void keepaliveIntervalGrowsWhileAnswered() {
+        KeepaliveScheduler keepalive = new KeepaliveScheduler();
+        long[] now = { START };
+        keepalive.start(now[0]);
+
+        for (int i = 0; i < 20; ++i) {
+            assertEquals(Action.NONE, idleCycle(keepalive, now, Long.MAX_VALUE));
+        }
+        assertEquals(KeepaliveScheduler.MAX_INTERVAL_MS, keepalive.getInterval());
+    }
+
+    @Test
+    public void keepaliveLearnsBindingTimeout() {
+        KeepaliveScheduler keepalive = new KeepaliveScheduler();
+        long binding = 40000;
+        long[] now = { START };
+        keepalive.start(now[0]);
+
+        int expired = 0;
+        for (int i = 0; i < 40; ++i) {
+            if (idleCycle(keepalive, now, binding) == Action.EXPIRED) {
+                // The connection is reestablished.
+                ++expired;
+                keepalive.start(now[0]);
+            }
+        }
+
+        long interval = keepalive.getInterval();
+        assertTrue("interval " + interval, interval <= binding);
+        assertTrue("interval " + interval, interval > binding - 2 * KeepaliveScheduler.MIN_STEP_MS);
+        assertTrue("expired " + expired, expired <= 5);
+    }
+
+    @Test
+    public void keepaliveOldServerIsNeverExpired() {
+        KeepaliveScheduler keepalive = new KeepaliveScheduler();
+        long[] now = { START };
+        keepalive.start(now[0]);
+
+        for (int i = 0; i < 10; ++i) {
+            now[0] = keepalive.nextDeadline();
+            Action action = keepalive.poll(now[0]);
+            assertNotEquals(Action.EXPIRED, action);
+        }
+        assertEquals(KeepaliveScheduler.INITIAL_INTERVAL_MS, keepalive.getInterval());
+    }
+
+    @Test
+    public void keepaliveRelearnsAfterNetworkChange() {
+        KeepaliveScheduler keepalive = new KeepaliveScheduler();
+        long[] now = { START };
+        keepalive.start(now[0]);
+        for (int i = 0; i < 3; ++i) {
+            idleCycle(keepalive, now, Long.MAX_VALUE);
+        }
+        assertTrue(keepalive.getInterval() > KeepaliveScheduler.INITIAL_INTERVAL_MS);
+
+        keepalive.relearn();
+        keepalive.start(now[0]);
+
+        assertEquals(KeepaliveScheduler.INITIAL_INTERVAL_MS, keepalive.getInterval());
+    }
+}
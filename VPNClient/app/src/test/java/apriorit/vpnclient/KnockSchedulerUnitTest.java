@@ -0,0 +1,63 @@
+package apriorit.vpnclient;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KnockSchedulerUnitTest {
+    private static final long START = 1000000;
+
+    @Test
+    public void knockRepeatedWithBackoffWhileSilent() {
+        KnockScheduler knocks = new KnockScheduler();
+        knocks.start(START);
+
+        long now = START;
+        long expected = KnockScheduler.INITIAL_INTERVAL_MS;
+        for (int i = 0; i < 8; ++i) {
+            long wait = knocks.waitTime(now, 10000);
+            assertEquals(expected, wait);
+            assertFalse(knocks.poll(now + wait - 1));
+            now += wait;
+            assertTrue(knocks.poll(now));
+            expected = Math.min(expected * 2, KnockScheduler.MAX_INTERVAL_MS);
+        }
+        assertEquals(KnockScheduler.MAX_INTERVAL_MS, knocks.waitTime(now, 10000));
+        assertEquals(-1, knocks.getTimeToFirstByte());
+    }
+
+    @Test
+    public void knockWaitLimitedByTimeout() {
+        KnockScheduler knocks = new KnockScheduler();
+        knocks.start(START);
+
+        assertEquals(30, knocks.waitTime(START, 30));
+        assertEquals(0, knocks.waitTime(START + 500, 30));
+    }
+
+    @Test
+    public void knockStopsOnFirstInput() {
+        KnockScheduler knocks = new KnockScheduler();
+        knocks.start(START);
+
+        knocks.onInput(START + 42);
+        knocks.onInput(START + 90);
+
+        assertFalse(knocks.isActive());
+        assertFalse(knocks.poll(START + 10000));
+        assertEquals(1000, knocks.waitTime(START + 10000, 1000));
+        assertEquals(42, knocks.getTimeToFirstByte());
+    }
+
+    @Test
+    public void knockStoppedWithoutReplyHasNoFirstByte() {
+        KnockScheduler knocks = new KnockScheduler();
+        knocks.start(START);
+
+        knocks.stop();
+        knocks.onInput(START + 42);
+
+        assertFalse(knocks.poll(START + 10000));
+        assertEquals(-1, knocks.getTimeToFirstByte());
+    }
+}
@@ -0,0 +1,99 @@
+package apriorit.vpnclient;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryUnitTest {
+    @Test
+    public void metricsCounterSumsAllThreads() throws Exception {
+        final MetricsRegistry.Counter counter = new MetricsRegistry().counter("test");
+        final int perThread = 100000;
+        Thread[] threads = new Thread[4];
+
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < perThread; ++j) {
+                        counter.increment();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals((long) threads.length * perThread, counter.get());
+    }
+
+    @Test
+    public void metricsSnapshotContainsCountersAndGauges() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.counter(MetricsRegistry.PACKETS_OUT).add(5);
+        metrics.gauge(MetricsRegistry.OUTBOUND_DEPTH, new MetricsRegistry.Gauge() {
+            @Override
+            public long get() {
+                return 7;
+            }
+        });
+
+        Map<String, Long> snapshot = metrics.snapshot();
+
+        assertEquals((Long) 5L, snapshot.get(MetricsRegistry.PACKETS_OUT));
+        assertEquals((Long) 0L, snapshot.get(MetricsRegistry.READ_ERRORS));
+        assertEquals((Long) 7L, snapshot.get(MetricsRegistry.OUTBOUND_DEPTH));
+        assertSame(metrics.counter(MetricsRegistry.PACKETS_OUT),
+                   metrics.counter(MetricsRegistry.PACKETS_OUT));
+    }
+
+    @Test
+    public void metricsCsvHeaderMatchesRow() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.counter(MetricsRegistry.BYTES_IN).add(1400);
+        StringWriter writer = new StringWriter();
+
+        MetricsRegistry.writeCsv(writer, metrics.snapshot(), 42, true);
+        String[] lines = writer.toString().split("\n");
+
+        assertEquals(2, lines.length);
+        String[] names  = lines[0].split(",");
+        String[] values = lines[1].split(",");
+        assertEquals(names.length, values.length);
+        assertEquals("time", names[0]);
+        assertEquals("42", values[0]);
+        for (int i = 1; i < names.length; ++i) {
+            if (names[i].equals(MetricsRegistry.BYTES_IN)) {
+                assertEquals("1400", values[i]);
+            }
+        }
+    }
+
+    @Test
+    public void metricsDumpAppendsRows() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        File file = File.createTempFile("metrics", ".csv");
+        try {
+            metrics.dump(file, 1);
+            metrics.counter(MetricsRegistry.RECONNECTS).increment();
+            metrics.dump(file, 2);
+
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII);
+            assertEquals(3, lines.size());
+            assertTrue(lines.get(0).startsWith("time,"));
+            assertTrue(lines.get(1).startsWith("1,"));
+            assertTrue(lines.get(2).startsWith("2,"));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package apriorit.vpnclient;
+
+import org.junit.Test;
+
+import apriorit.vpnclient.OutboundScheduler.TrafficClass;
+import apriorit.vpnclient.PacketBufferPool.Lease;
+import apriorit.vpnclient.PacketBufferPool.Owner;
+
+import static org.junit.Assert.*;
+
+public class OutboundSchedulerUnitTest {
+    private final PacketBufferPool pool = new PacketBufferPool(1400);
+
+    /** IPv4 packet with a 20-byte TCP or 8-byte UDP header, the flow is set by the port */
+    private Lease packet(int protocol, int sourcePort, int destinationPort, int length) {
+        Lease lease = pool.acquire(Owner.SENDER);
+        java.util.Arrays.fill(lease.data, (byte) 0);
+        lease.data[0] = 0x45;
+        lease.data[9] = (byte) protocol;
+        lease.data[12] = 10;
+        lease.data[19] = 1;
+        lease.data[20] = (byte) (sourcePort >> 8);
+        lease.data[21] = (byte) sourcePort;
+        lease.data[22] = (byte) (destinationPort >> 8);
+        lease.data[23] = (byte) destinationPort;
+        if (protocol == 6) {
+            lease.data[32] = 0x50; // data offset 5 words
+        }
+        lease.length = length;
+        return lease;
+    }
+
+    private Lease tcp(int sourcePort, int destinationPort, int length, int flags) {
+        Lease lease = packet(6, sourcePort, destinationPort, length);
+        lease.data[33] = (byte) flags;
+        return lease;
+    }
+
+    private static int port(Lease packet) {
+        return ((packet.data[20] & 0xFF) << 8) | (packet.data[21] & 0xFF);
+    }
+
+    @Test
+    public void packetsAreClassified() {
+        assertEquals(TrafficClass.INTERACTIVE, classify(packet(17, 40000, 53, 1200)));
+        assertEquals(TrafficClass.INTERACTIVE, classify(packet(17, 40000, 5004, 172)));
+        assertEquals(TrafficClass.BULK,        classify(packet(17, 40000, 443, 1200)));
+        assertEquals(TrafficClass.INTERACTIVE, classify(packet(6, 40000, 443, 40)));
+        assertEquals(TrafficClass.BULK,        classify(tcp(40000, 443, 40, 0x11))); // FIN, ACK
+        assertEquals(TrafficClass.BULK,        classify(tcp(40000, 443, 40, 0x04))); // RST
+        assertEquals(TrafficClass.BULK,        classify(tcp(40000, 443, 40, 0x02))); // SYN
+        assertEquals(TrafficClass.BULK,        classify(packet(6, 40000, 443, 1400)));
+        assertEquals(TrafficClass.INTERACTIVE, classify(packet(6, 40000, 53, 300)));
+        assertEquals(TrafficClass.INTERACTIVE, classify(packet(1, 0, 0, 84)));
+        assertEquals(TrafficClass.BULK,        classify(packet(0, 0, 0, 10)));
+
+        Lease voice = packet(17, 40000, 443, 1200);
+        voice.data[1] = (byte) (46 << 2); // EF
+        assertEquals(TrafficClass.INTERACTIVE, classify(voice));
+        Lease background = packet(6, 40000, 443, 40);
+        background.data[1] = (byte) (8 << 2); // CS1
+        assertEquals(TrafficClass.BULK, classify(background));
+    }
+
+    @Test
+    public void ipv6PacketsAreClassified() {
+        byte[] packet = new byte[1280];
+        packet[0] = 0x60;
+        packet[6] = 17;
+        packet[43] = 53;
+        assertEquals(TrafficClass.INTERACTIVE, OutboundScheduler.classify(packet, packet.length));
+        packet[43] = 80;
+        assertEquals(TrafficClass.BULK, OutboundScheduler.classify(packet, packet.length));
+        packet[6] = 58;
+        assertEquals(TrafficClass.INTERACTIVE, OutboundScheduler.classify(packet, packet.length));
+    }
+
+    @Test
+    public void interactiveGoesAheadOfBulk() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        OutboundScheduler scheduler = new OutboundScheduler(metrics);
+        for (int i = 0; i < 5; ++i) {
+            scheduler.offer(packet(6, 1000, 443, 1400));
+        }
+        scheduler.offer(packet(17, 2000, 53, 80));
+        scheduler.offer(packet(6, 3000, 443, 40));
+
+        assertEquals(2000, port(scheduler.poll(0)));
+        assertEquals(3000, port(scheduler.poll(0)));
+        for (int i = 0; i < 5; ++i) {
+            assertEquals(1000, port(scheduler.poll(0)));
+        }
+        assertNull(scheduler.poll(0));
+        assertTrue(scheduler.isEmpty());
+
+        assertEquals(2, metrics.counter(MetricsRegistry.INTERACTIVE_PACKETS).get());
+        assertEquals(120, metrics.counter(MetricsRegistry.INTERACTIVE_BYTES).get());
+        assertEquals(5, metrics.counter(MetricsRegistry.BULK_PACKETS).get());
+        assertEquals(7000, metrics.counter(MetricsRegistry.BULK_BYTES).get());
+    }
+
+    @Test
+    public void packetsOfFlowStayInOrder() {
+        OutboundScheduler scheduler = new OutboundScheduler(new MetricsRegistry());
+        // QUIC packets of mixed sizes, ahead of them another interactive flow
+        scheduler.offer(packet(17, 2000, 5004, 172));
+        int[] sizes = { 1200, 100, 1200, 60, 60, 1200, 200 };
+        for (int i = 0; i < sizes.length; ++i) {
+            Lease packet = packet(17, 1000, 443, sizes[i]);
+            packet.data[28] = (byte) i;
+            scheduler.offer(packet);
+        }
+        // the last data of a connection and its FIN
+        scheduler.offer(packet(6, 3000, 443, 1400));
+        scheduler.offer(tcp(3000, 443, 40, 0x11));
+
+        int next = 0;
+        boolean finSent = false;
+        Lease packet;
+        while ((packet = scheduler.poll(0)) != null) {
+            if (port(packet) == 1000) {
+                assertEquals(next++, packet.data[28]);
+            } else if (port(packet) == 3000) {
+                assertFalse("FIN overtook data", finSent);
+                finSent = packet.length == 40;
+            }
+        }
+        assertEquals(sizes.length, next);
+        assertTrue(finSent);
+    }
+
+    @Test
+    public void bulkIsNotStarved() {
+        OutboundScheduler scheduler = new OutboundScheduler(new MetricsRegistry());
+        scheduler.offer(packet(6, 1000, 443, 1400));
+        for (int i = 0; i < 2 * OutboundScheduler.INTERACTIVE_BURST; ++i) {
+            scheduler.offer(packet(17, 2000 + i, 53, 80));
+        }
+
+        for (int i = 0; i < OutboundScheduler.INTERACTIVE_BURST; ++i) {
+            assertNotEquals(1000, port(scheduler.poll(0)));
+        }
+        assertEquals(1000, port(scheduler.poll(0)));
+    }
+
+    @Test
+    public void bulkFlowsShareByDeficitRoundRobin() {
+        OutboundScheduler scheduler = new OutboundScheduler(new MetricsRegistry());
+        // The first flow queued 8 full packets before the second one started.
+        for (int i = 0; i < 8; ++i) {
+            scheduler.offer(packet(6, 1000, 443, 1400));
+        }
+        for (int i = 0; i < 4; ++i) {
+            scheduler.offer(packet(6, 1001, 443, 700));
+        }
+
+        // Both flows get the same bytes per round: one large or two small packets.
+        int[] order = new int[6];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = port(scheduler.poll(0));
+        }
+        int small = 0;
+        for (int port : order) {
+            if (port == 1001) {
+                ++small;
+            }
+        }
+        assertEquals(4, small);
+        assertEquals(12 - 6, scheduler.size());
+    }
+
+    /** Sends the queued packets of one flow, one per millisecond from 'start' */
+    private static int drain(OutboundScheduler scheduler, long start) {
+        int sent = 0;
+        long now = start;
+        while (scheduler.poll(now) != null) {
+            ++sent;
+            now += 1000000;
+        }
+        return sent;
+    }
+
+    @Test
+    public void shortQueueIsNotDropped() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        OutboundScheduler scheduler = new OutboundScheduler(metrics);
+        long now = 1000000000L;
+        for (int i = 0; i < 100; ++i) {
+            // every packet waits 1 ms, below the target
+            Lease packet = packet(6, 1000, 443, 1400);
+            packet.timestamp = now - 1000000;
+            scheduler.offer(packet);
+            assertNotNull(scheduler.poll(now));
+            now += 1000000;
+        }
+        assertNull(scheduler.pollDropped());
+        assertEquals(0, metrics.counter(MetricsRegistry.AQM_DROPS).get());
+        assertEquals(100 * 1000, metrics.counter(MetricsRegistry.QUEUE_DELAY_US).get());
+    }
+
+    @Test
+    public void standingQueueIsDropped() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        OutboundScheduler scheduler = new OutboundScheduler(metrics);
+        long start = 1000000000L;
+        for (int i = 0; i < 400; ++i) {
+            Lease packet = packet(6, 1000, 443, 1400);
+            packet.timestamp = start;
+            scheduler.offer(packet);
+        }
+
+        // The delay is above the target from the first packet, drops start after an
+        // interval and get more frequent while it stays there.
+        int sent = drain(scheduler, start + OutboundScheduler.TARGET_NS);
+        int dropped = 0;
+        while (scheduler.pollDropped() != null) {
+            ++dropped;
+        }
+        assertTrue("dropped " + dropped, dropped > 1);
+        assertTrue("sent " + sent, sent > 300);
+        assertEquals(400, sent + dropped);
+        assertEquals(dropped, metrics.counter(MetricsRegistry.AQM_DROPS).get());
+        assertEquals(0, metrics.counter(MetricsRegistry.AQM_MARKS).get());
+        assertTrue(scheduler.isEmpty());
+    }
+
+    @Test
+    public void ecnCapablePacketsAreMarked() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        OutboundScheduler scheduler = new OutboundScheduler(metrics);
+        long start = 1000000000L;
+        for (int i = 0; i < 400; ++i) {
+            Lease packet = packet(6, 1000, 443, 1400);
+            packet.data[1] = 0x02; // ECT(0)
+            setChecksum(packet.data);
+            packet.timestamp = start;
+            scheduler.offer(packet);
+        }
+
+        int marked = 0;
+        long now = start + OutboundScheduler.TARGET_NS;
+        Lease packet;
+        while ((packet = scheduler.poll(now)) != null) {
+            if ((packet.data[1] & 0x03) == 0x03) {
+                ++marked;
+                int checksum = ((packet.data[10] & 0xFF) << 8) | (packet.data[11] & 0xFF);
+                setChecksum(packet.data);
+                assertEquals(checksum,
+                             ((packet.data[10] & 0xFF) << 8) | (packet.data[11] & 0xFF));
+            }
+            now += 1000000;
+        }
+        assertNull(scheduler.pollDropped());
+        assertTrue("marked " + marked, marked > 1);
+        assertEquals(marked, metrics.counter(MetricsRegistry.AQM_MARKS).get());
+        assertEquals(0, metrics.counter(MetricsRegistry.AQM_DROPS).get());
+    }
+
+    @Test
+    public void congestionIsMarkedOnlyOnEcnCapablePackets() {
+        byte[] packet = new byte[40];
+        packet[0] = 0x45;
+        setChecksum(packet);
+        assertFalse(OutboundScheduler.markCongestion(packet, packet.length));
+        assertEquals(0, packet[1]);
+
+        packet[1] = (byte) ((46 << 2) | 0x01); // EF, ECT(1)
+        packet[10] = (byte) 0xFF;
+        packet[11] = (byte) 0xFF;
+        setChecksum(packet);
+        int old = ((packet[10] & 0xFF) << 8) | (packet[11] & 0xFF);
+        assertTrue(OutboundScheduler.markCongestion(packet, packet.length));
+        assertEquals((46 << 2) | 0x03, packet[1] & 0xFF);
+        int marked = ((packet[10] & 0xFF) << 8) | (packet[11] & 0xFF);
+        setChecksum(packet);
+        assertEquals(((packet[10] & 0xFF) << 8) | (packet[11] & 0xFF), marked);
+        assertNotEquals(old, marked);
+
+        byte[] ipv6 = new byte[40];
+        ipv6[0] = 0x60;
+        ipv6[1] = 0x20; // ECT(0)
+        assertTrue(OutboundScheduler.markCongestion(ipv6, ipv6.length));
+        assertEquals(0x30, ipv6[1]);
+        ipv6[1] = 0;
+        assertFalse(OutboundScheduler.markCongestion(ipv6, ipv6.length));
+    }
+
+    /** Computes the IPv4 header checksum of a 20-byte header */
+    private static void setChecksum(byte[] packet) {
+        packet[10] = 0;
+        packet[11] = 0;
+        int sum = 0;
+        for (int i = 0; i < 20; i += 2) {
+            sum += ((packet[i] & 0xFF) << 8) | (packet[i + 1] & 0xFF);
+        }
+        sum = (sum & 0xFFFF) + (sum >>> 16);
+        sum = (sum & 0xFFFF) + (sum >>> 16);
+        packet[10] = (byte) (~sum >> 8);
+        packet[11] = (byte) ~sum;
+    }
+
+    private static TrafficClass classify(Lease packet) {
+        return OutboundScheduler.classify(packet.data, packet.length);
+    }
+}
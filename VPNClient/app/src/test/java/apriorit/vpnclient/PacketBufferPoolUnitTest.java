@@ -0,0 +1,75 @@
+package apriorit.vpnclient;
+
+import org.junit.Test;
+
+import apriorit.vpnclient.PacketBufferPool.Lease;
+import apriorit.vpnclient.PacketBufferPool.Owner;
+
+import static org.junit.Assert.*;
+
+public class PacketBufferPoolUnitTest {
+    @Test
+    public void bufferPoolSizeFollowsMtu() {
+        PacketBufferPool pool = new PacketBufferPool(1400);
+        assertEquals(1400, pool.acquire(Owner.CONTROL).data.length);
+
+        // Control packets need at least CONTROL_PACKET_SIZE bytes.
+        pool.setMtu(576);
+        assertEquals(PacketBufferPool.CONTROL_PACKET_SIZE, pool.getBufferSize());
+    }
+
+    @Test
+    public void bufferPoolReusesBuffersAcrossReconnects() {
+        PacketBufferPool pool = new PacketBufferPool(1400);
+        Lease[] leases = new Lease[65];
+
+        for (int connection = 0; connection < 100; ++connection) {
+            for (int i = 0; i < leases.length; ++i) {
+                leases[i] = pool.acquire(Owner.TUN_READER);
+            }
+            for (Lease lease : leases) {
+                pool.release(lease);
+            }
+        }
+
+        assertEquals(65, pool.getAllocated());
+        assertEquals(65, pool.getHighWaterMark());
+        assertEquals(0, pool.getLeased());
+    }
+
+    @Test
+    public void bufferPoolDropsBuffersOfOldMtu() {
+        PacketBufferPool pool = new PacketBufferPool(1400);
+        Lease old = pool.acquire(Owner.RECEIVER);
+
+        pool.setMtu(1500);
+        pool.release(old);
+        Lease lease = pool.acquire(Owner.RECEIVER);
+
+        assertNotSame(old, lease);
+        assertEquals(1500, lease.data.length);
+        assertEquals(2, pool.getAllocated());
+    }
+
+    @Test
+    public void leaseOwnershipIsChecked() {
+        PacketBufferPool pool = new PacketBufferPool(1400);
+        Lease lease = pool.acquire(Owner.TUN_READER);
+
+        lease.moveTo(Owner.TUN_READER, Owner.SENDER);
+        assertEquals(Owner.SENDER, lease.getOwner());
+        try {
+            lease.moveTo(Owner.TUN_READER, Owner.SENDER);
+            fail("Lease moved by a stage which does not own it");
+        } catch (IllegalStateException expected) {
+        }
+
+        pool.release(lease);
+        assertEquals(Owner.POOL, lease.getOwner());
+        try {
+            pool.release(lease);
+            fail("Lease released twice");
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package apriorit.vpnclient;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PacketCompressorUnitTest {
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final PacketCompressor compressor = new PacketCompressor(new byte[1500], metrics);
+
+    /** IPv4/TCP packet with an HTTP-like text payload */
+    private static byte[] textPacket(int length, int seed) {
+        byte[] packet = new byte[length];
+        packet[0] = 0x45;
+        packet[9] = 6;
+        packet[12] = 10;
+        packet[19] = (byte) seed;
+        String text = "GET /index.html?page=" + seed + " HTTP/1.1\r\nHost: example.com\r\n"
+                + "Accept: text/html,application/xhtml+xml\r\nUser-Agent: test\r\n";
+        for (int i = 40; i < length; ++i) {
+            packet[i] = (byte) text.charAt((i - 40) % text.length());
+        }
+        return packet;
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private byte[] roundTrip(byte[] packet) {
+        int length = compressor.compress(packet, packet.length);
+        assertTrue("packet of " + packet.length + " is not compressed", length > 0);
+        assertTrue(length < packet.length);
+        assertEquals(PacketCompressor.COMPRESS_MARKER, compressor.getRecord()[0]);
+
+        byte[] restored = new byte[1500];
+        int restoredLength =
+                ReferenceDecompressor.decompress(compressor.getRecord(), length, restored);
+        assertEquals(packet.length, restoredLength);
+        return Arrays.copyOf(restored, restoredLength);
+    }
+
+    @Test
+    public void textPacketsRoundTrip() {
+        for (int length = PacketCompressor.MIN_PACKET_SIZE; length <= 1400; length += 37) {
+            byte[] packet = textPacket(length, length);
+            assertArrayEquals(packet, roundTrip(packet));
+        }
+        assertTrue(metrics.counter(MetricsRegistry.COMPRESSION_BYTES_OUT).get()
+                   < metrics.counter(MetricsRegistry.COMPRESSION_BYTES_IN).get() / 2);
+        assertEquals(0, metrics.counter(MetricsRegistry.COMPRESSION_SKIPPED).get());
+    }
+
+    @Test
+    public void mixedPacketsRoundTrip() {
+        // Random heads with repeated tails make literals, long matches and overlaps.
+        Random random = new Random(7);
+        for (int i = 0; i < 500; ++i) {
+            int length = PacketCompressor.MIN_PACKET_SIZE + random.nextInt(1400 - 128);
+            byte[] packet = new byte[length];
+            int head = random.nextInt(length / 2);
+            random.nextBytes(packet);
+            int period = 1 + random.nextInt(40);
+            for (int j = head; j < length; ++j) {
+                packet[j] = packet[head + (j - head) % period];
+            }
+            assertArrayEquals(packet, roundTrip(packet));
+        }
+    }
+
+    @Test
+    public void knownBlockIsDecompressed() {
+        // 100 bytes of 0x45: a literal, a match of 94 bytes at offset 1, 5 literals.
+        byte[] record = { PacketCompressor.COMPRESS_MARKER, 0, 100,
+                0x1F, 0x45, 0x01, 0x00, 0x4B, 0x50, 0x45, 0x45, 0x45, 0x45, 0x45 };
+        byte[] packet = new byte[1500];
+        assertEquals(100, ReferenceDecompressor.decompress(record, record.length, packet));
+        for (int i = 0; i < 100; ++i) {
+            assertEquals(0x45, packet[i]);
+        }
+    }
+
+    @Test
+    public void randomPacketsAreSkipped() {
+        byte[] packet = randomBytes(1200, 1);
+        packet[0] = 0x45;
+        assertTrue(PacketCompressor.looksRandom(packet, packet.length));
+        assertEquals(-1, compressor.compress(packet, packet.length));
+        assertEquals(1, metrics.counter(MetricsRegistry.COMPRESSION_SKIPPED).get());
+        assertEquals(0, metrics.counter(MetricsRegistry.COMPRESSED_PACKETS).get());
+
+        byte[] text = textPacket(1200, 1);
+        assertFalse(PacketCompressor.looksRandom(text, text.length));
+    }
+
+    @Test
+    public void smallPacketsAreNotCompressed() {
+        byte[] packet = textPacket(PacketCompressor.MIN_PACKET_SIZE - 1, 1);
+        assertEquals(-1, compressor.compress(packet, packet.length));
+        assertEquals(0, metrics.counter(MetricsRegistry.COMPRESSION_TIME_NS).get());
+    }
+
+    @Test
+    public void packetsWithoutGainAreSentAsIs() {
+        // Few distinct values, but no repeated sequences.
+        byte[] packet = new byte[256];
+        Random random = new Random(3);
+        for (int i = 0; i < packet.length; ++i) {
+            packet[i] = (byte) random.nextInt(64);
+        }
+        assertFalse(PacketCompressor.looksRandom(packet, packet.length));
+        assertEquals(-1, compressor.compress(packet, packet.length));
+        assertEquals(1, metrics.counter(MetricsRegistry.COMPRESSION_NO_GAIN).get());
+    }
+
+    @Test
+    public void malformedRecordsAreRejected() {
+        byte[] packet = textPacket(600, 5);
+        int length = compressor.compress(packet, packet.length);
+        byte[] record = Arrays.copyOf(compressor.getRecord(), length);
+        byte[] out = new byte[1500];
+
+        assertEquals(-1, ReferenceDecompressor.decompress(record, length - 1, out));
+        assertEquals(-1, ReferenceDecompressor.decompress(record, 3, out));
+        assertEquals(-1, ReferenceDecompressor.decompress(record, length, new byte[599]));
+
+        byte[] longer = record.clone();
+        longer[2] = (byte) (longer[2] + 1);
+        assertEquals(-1, ReferenceDecompressor.decompress(longer, length, out));
+
+        byte[] notCompressed = record.clone();
+        notCompressed[0] = PacketFramer.FRAME_MARKER;
+        assertEquals(-1, ReferenceDecompressor.decompress(notCompressed, length, out));
+
+        // offset before the start of the packet
+        byte[] badOffset = { PacketCompressor.COMPRESS_MARKER, 0, 20,
+                0x10, 0x45, 0x02, 0x00, 0x50, 1, 2, 3, 4, 5 };
+        assertEquals(-1, ReferenceDecompressor.decompress(badOffset, badOffset.length, out));
+    }
+}
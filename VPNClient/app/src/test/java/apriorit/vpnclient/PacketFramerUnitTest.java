@@ -0,0 +1,96 @@
+package apriorit.vpnclient;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PacketFramerUnitTest {
+    private static class CollectingSink implements PacketSink {
+        final List<byte[]> packets = new ArrayList<>();
+
+        @Override
+        public void onPacket(byte[] buf, int offset, int length) {
+            packets.add(Arrays.copyOfRange(buf, offset, offset + length));
+        }
+    }
+
+    private static byte[] packet(int length, int fill) {
+        byte[] packet = new byte[length];
+        Arrays.fill(packet, (byte) fill);
+        packet[0] = 0x45;
+        return packet;
+    }
+
+    @Test
+    public void packetFramerRoundTrip() throws Exception {
+        PacketFramer framer = new PacketFramer(1400);
+        byte[] first  = packet(40, 1);
+        byte[] second = packet(52, 2);
+        byte[] third  = packet(100, 3);
+
+        for (byte[] p : new byte[][] { first, second, third }) {
+            assertTrue(framer.fits(p.length));
+            framer.append(p, 0, p.length);
+        }
+        int length = framer.finish();
+        assertEquals(1 + 3 * 2 + 40 + 52 + 100, length);
+        assertEquals(PacketFramer.FRAME_MARKER, framer.getRecord()[0]);
+
+        CollectingSink sink = new CollectingSink();
+        assertEquals(3, PacketFramer.unpack(framer.getRecord(), length, sink));
+        assertArrayEquals(first, sink.packets.get(0));
+        assertArrayEquals(second, sink.packets.get(1));
+        assertArrayEquals(third, sink.packets.get(2));
+    }
+
+    @Test
+    public void packetFramerSinglePacketIsNotFramed() {
+        PacketFramer framer = new PacketFramer(1400);
+        byte[] single = packet(60, 7);
+
+        framer.append(single, 0, single.length);
+        int length = framer.finish();
+
+        assertEquals(single.length, length);
+        assertArrayEquals(single, Arrays.copyOf(framer.getRecord(), length));
+    }
+
+    @Test
+    public void packetFramerRespectsRecordSize() {
+        PacketFramer framer = new PacketFramer(100);
+
+        assertTrue(framer.accepts(97));
+        assertFalse(framer.accepts(98));
+
+        framer.append(packet(50, 1), 0, 50);
+        assertTrue(framer.fits(45));
+        assertFalse(framer.fits(46));
+
+        framer.reset();
+        assertTrue(framer.isEmpty());
+        assertTrue(framer.fits(97));
+    }
+
+    @Test
+    public void packetFramerRejectsMalformedRecord() throws Exception {
+        CollectingSink sink = new CollectingSink();
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        record.write(PacketFramer.FRAME_MARKER);
+        record.write(0);
+        record.write(3);
+        record.write(new byte[] { 0x45, 1, 2 });
+        record.write(0);
+        record.write(10);
+        record.write(new byte[] { 0x45, 1 });
+        byte[] bytes = record.toByteArray();
+
+        assertEquals(-1, PacketFramer.unpack(bytes, bytes.length, sink));
+        assertEquals(1, sink.packets.size());
+        assertEquals(-1, PacketFramer.unpack(new byte[] { 0x45 }, 1, sink));
+    }
+}
@@ -0,0 +1,307 @@
+package apriorit.vpnclient;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the pipeline on in-memory seams: the transport sends every record back,
+ * so packets of the source come out of the sink.
+ */
+public class PacketPipelineUnitTest {
+    private static final Clock CLOCK = new Clock() {
+        @Override
+        public long now() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        }
+    };
+
+    private static class Packets implements PacketSource {
+        final ConcurrentLinkedQueue<byte[]> queue = new ConcurrentLinkedQueue<>();
+
+        @Override
+        public boolean await(int timeout) {
+            if (queue.isEmpty()) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public int read(byte[] buf) {
+            byte[] packet = queue.poll();
+            if (packet == null) {
+                return 0;
+            }
+            System.arraycopy(packet, 0, buf, 0, packet.length);
+            return packet.length;
+        }
+    }
+
+    private static class CollectingSink implements PacketSink {
+        final List<byte[]> packets = new ArrayList<>();
+        final CountDownLatch expected;
+
+        CollectingSink(int count) {
+            expected = new CountDownLatch(count);
+        }
+
+        @Override
+        public void onPacket(byte[] buf, int offset, int length) {
+            packets.add(Arrays.copyOfRange(buf, offset, offset + length));
+            expected.countDown();
+        }
+    }
+
+    private static class EchoTransport implements RecordTransport {
+        final BlockingQueue<byte[]> records = new LinkedBlockingQueue<>();
+        final AtomicInteger written = new AtomicInteger();
+        private byte[] pending = null;
+
+        @Override
+        public boolean await(int timeout) throws IOException {
+            try {
+                if (pending == null) {
+                    pending = records.poll(timeout, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return pending != null;
+        }
+
+        @Override
+        public int read(byte[] buf, int size) {
+            byte[] record = pending != null ? pending : records.poll();
+            pending = null;
+            if (record == null) {
+                return 0;
+            }
+            System.arraycopy(record, 0, buf, 0, record.length);
+            return record.length;
+        }
+
+        @Override
+        public void write(byte[] buf, int length) {
+            written.incrementAndGet();
+            records.add(Arrays.copyOf(buf, length));
+        }
+    }
+
+    /** Runs the pipeline until the sink got all packets, then aborts it */
+    private static void runPipeline(final PacketPipeline pipeline, CollectingSink sink)
+            throws Exception {
+        final IOException[] thrown = new IOException[1];
+        Thread tunReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pipeline.run();
+                } catch (IOException e) {
+                    thrown[0] = e;
+                } catch (InterruptedException e) {
+                    // not expected
+                }
+            }
+        });
+        tunReader.start();
+
+        assertTrue(sink.expected.await(10, TimeUnit.SECONDS));
+        IOException reason = new IOException("done");
+        pipeline.abort(reason);
+        tunReader.join(10000);
+        assertFalse(tunReader.isAlive());
+        assertSame(reason, thrown[0]);
+    }
+
+    /** IPv4 packet of one bulk flow, the payload is filled with the index */
+    private static byte[] packet(int length, int index) {
+        byte[] packet = new byte[length];
+        Arrays.fill(packet, (byte) index);
+        Arrays.fill(packet, 1, 20, (byte) 0);
+        packet[0] = 0x45;
+        packet[9] = (byte) 253; // experimental protocol, no ports
+        return packet;
+    }
+
+    @Test
+    public void pipelineForwardsPacketsInOrder() throws Exception {
+        Packets source = new Packets();
+        CollectingSink sink = new CollectingSink(200);
+        EchoTransport transport = new EchoTransport();
+        MetricsRegistry metrics = new MetricsRegistry();
+        PacketBufferPool pool = new PacketBufferPool(1400);
+        PacketPipeline pipeline = new PacketPipeline(transport, source, sink, pool,
+                metrics, new KeepaliveScheduler(), CLOCK);
+        for (int i = 0; i < 200; ++i) {
+            source.queue.add(packet(20 + i * 6, i));
+        }
+
+        runPipeline(pipeline, sink);
+
+        for (int i = 0; i < 200; ++i) {
+            assertArrayEquals(packet(20 + i * 6, i), sink.packets.get(i));
+        }
+        assertEquals(200, metrics.counter(MetricsRegistry.PACKETS_OUT).get());
+        assertEquals(200, metrics.counter(MetricsRegistry.PACKETS_IN).get());
+        assertEquals(0, pool.getLeased());
+    }
+
+    @Test
+    public void pipelineCoalescesSmallPackets() throws Exception {
+        Packets source = new Packets();
+        CollectingSink sink = new CollectingSink(100);
+        EchoTransport transport = new EchoTransport();
+        PacketPipeline pipeline = new PacketPipeline(transport, source, sink,
+                new PacketBufferPool(1400), new MetricsRegistry(), new KeepaliveScheduler(), CLOCK);
+        pipeline.enableFraming(1400);
+        for (int i = 0; i < 100; ++i) {
+            source.queue.add(packet(60, i));
+        }
+
+        runPipeline(pipeline, sink);
+
+        for (int i = 0; i < 100; ++i) {
+            assertArrayEquals(packet(60, i), sink.packets.get(i));
+        }
+        assertTrue("records " + transport.written.get(), transport.written.get() < 100);
+    }
+
+    @Test
+    public void pipelineCompressesPackets() throws Exception {
+        Packets source = new Packets();
+        CollectingSink sink = new CollectingSink(100);
+        EchoTransport transport = new EchoTransport();
+        MetricsRegistry metrics = new MetricsRegistry();
+        PacketPipeline pipeline = new PacketPipeline(transport, source, sink,
+                new PacketBufferPool(1400), metrics, new KeepaliveScheduler(), CLOCK);
+        pipeline.enableFraming(1400);
+        pipeline.enableCompression();
+        for (int i = 0; i < 100; ++i) {
+            source.queue.add(packet(i % 2 == 0 ? 600 : 60, i));
+        }
+
+        runPipeline(pipeline, sink);
+
+        // The echo brings compressed packets back as they were sent.
+        byte[] restored = new byte[1400];
+        for (int i = 0; i < 100; ++i) {
+            byte[] received = sink.packets.get(i);
+            if (i % 2 == 0) {
+                assertEquals(PacketCompressor.COMPRESS_MARKER, received[0]);
+                int length = ReferenceDecompressor.decompress(received, received.length, restored);
+                assertArrayEquals(packet(600, i), Arrays.copyOf(restored, length));
+            } else {
+                assertArrayEquals(packet(60, i), received);
+            }
+        }
+        assertEquals(50, metrics.counter(MetricsRegistry.COMPRESSED_PACKETS).get());
+        assertEquals(50 * 600, metrics.counter(MetricsRegistry.COMPRESSION_BYTES_IN).get());
+    }
+
+    /** DNS query for "a.example" from 10.8.0.2 to 8.8.8.8, or its response with a record */
+    private static byte[] dns(boolean response) {
+        byte[] packet = new byte[response ? 71 : 55];
+        byte[] client = { 10, 8, 0, 2 };
+        byte[] resolver = { 8, 8, 8, 8 };
+        packet[0] = 0x45;
+        packet[3] = (byte) packet.length;
+        packet[9] = 17;
+        System.arraycopy(response ? resolver : client, 0, packet, 12, 4);
+        System.arraycopy(response ? client : resolver, 0, packet, 16, 4);
+        packet[response ? 21 : 23] = 53;
+        packet[response ? 22 : 20] = (byte) 0x9c;
+        packet[25] = (byte) (packet.length - 20);
+        byte[] message = { 0, 1, (byte) (response ? 0x81 : 0x01), (byte) (response ? 0x80 : 0),
+                0, 1, 0, (byte) (response ? 1 : 0), 0, 0, 0, 0,
+                1, 'a', 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 0, 0, 1, 0, 1,
+                (byte) 0xC0, 12, 0, 1, 0, 1, 0, 0, 0, 60, 0, 4, 93, (byte) 184, (byte) 216, 34 };
+        System.arraycopy(message, 0, packet, 28, packet.length - 28);
+        return packet;
+    }
+
+    @Test
+    public void pipelineAnswersDnsFromCache() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        DnsCache cache = new DnsCache(metrics);
+        cache.setResolvers(Arrays.asList("8.8.8.8"));
+        byte[] query = dns(false);
+        assertEquals(-1, cache.answer(query.clone(), query.length, System.nanoTime()));
+        byte[] response = dns(true);
+        cache.onResponse(response, 0, response.length, System.nanoTime());
+
+        Packets source = new Packets();
+        CollectingSink sink = new CollectingSink(20);
+        EchoTransport transport = new EchoTransport();
+        PacketPipeline pipeline = new PacketPipeline(transport, source, sink,
+                new PacketBufferPool(1400), metrics, new KeepaliveScheduler(), CLOCK);
+        pipeline.enableDnsCache(cache);
+        for (int i = 0; i < 10; ++i) {
+            source.queue.add(packet(100, i));
+            source.queue.add(query);
+        }
+
+        runPipeline(pipeline, sink);
+
+        // Only the other packets went through the tunnel.
+        assertEquals(10, transport.written.get());
+        int answers = 0;
+        for (byte[] packet : sink.packets) {
+            if (packet[9] == 17) {
+                assertEquals(response.length, packet.length);
+                assertEquals(53, packet[21]);
+                ++answers;
+            }
+        }
+        assertEquals(10, answers);
+        assertEquals(10, metrics.counter(MetricsRegistry.DNS_CACHE_HITS).get());
+        assertEquals(10, metrics.counter(MetricsRegistry.PACKETS_OUT).get());
+    }
+
+    @Test
+    public void pipelineKeepsOrderOfFlowsOverSessions() throws Exception {
+        Packets source = new Packets();
+        CollectingSink sink = new CollectingSink(400);
+        EchoTransport[] transports = new EchoTransport[3];
+        for (int i = 0; i < transports.length; ++i) {
+            transports[i] = new EchoTransport();
+        }
+        PacketBufferPool pool = new PacketBufferPool(1400);
+        PacketPipeline pipeline = new PacketPipeline(transports, source, sink, pool,
+                new MetricsRegistry(), new KeepaliveScheduler(), CLOCK);
+        assertEquals(3, pipeline.getSessionCount());
+        // Eight UDP flows, packets of a flow carry their sequence number.
+        for (int i = 0; i < 400; ++i) {
+            byte[] packet = new byte[40];
+            packet[0] = 0x45;
+            packet[9] = 17;
+            packet[21] = (byte) (i % 8);
+            packet[39] = (byte) (i / 8);
+            source.queue.add(packet);
+        }
+
+        runPipeline(pipeline, sink);
+
+        int[] next = new int[8];
+        for (byte[] packet : sink.packets) {
+            int flow = packet[21];
+            assertEquals(next[flow]++, packet[39]);
+        }
+        for (EchoTransport transport : transports) {
+            assertTrue("records " + transport.written.get(), transport.written.get() > 0);
+        }
+        assertEquals(0, pool.getLeased());
+    }
+}
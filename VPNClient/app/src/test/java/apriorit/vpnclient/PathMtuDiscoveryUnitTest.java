@@ -0,0 +1,54 @@
+package apriorit.vpnclient;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PathMtuDiscoveryUnitTest {
+    @Test
+    public void ladderIsDescendingFromServerMtu() {
+        assertArrayEquals(new int[] { 1400, 1380, 1360, 1320, 1280, 1200, 1024, 576 },
+                PathMtuDiscovery.ladder(1400));
+    }
+
+    @Test
+    public void ladderSkipsSizesAboveSmallMtu() {
+        assertArrayEquals(new int[] { 1100, 1080, 1060, 1020, 576 },
+                PathMtuDiscovery.ladder(1100));
+        assertArrayEquals(new int[] { 576 }, PathMtuDiscovery.ladder(576));
+        assertEquals(0, PathMtuDiscovery.ladder(500).length);
+    }
+
+    @Test
+    public void waitTimeFollowsRoundTrip() {
+        assertEquals(PathMtuDiscovery.MAX_WAIT_MS, PathMtuDiscovery.waitTime(-1));
+        assertEquals(PathMtuDiscovery.MIN_WAIT_MS, PathMtuDiscovery.waitTime(10));
+        assertEquals(400, PathMtuDiscovery.waitTime(100));
+        assertEquals(PathMtuDiscovery.MAX_WAIT_MS, PathMtuDiscovery.waitTime(2000));
+    }
+
+    @Test
+    public void cacheIsPerNetworkAndServer() {
+        PathMtuDiscovery discovery = new PathMtuDiscovery();
+        String wifi     = PathMtuDiscovery.key("192.168.1.5", "vpn.example.com", 4433);
+        String cellular = PathMtuDiscovery.key("10.20.30.40", "vpn.example.com", 4433);
+        String other    = PathMtuDiscovery.key("192.168.1.5", "vpn.example.com", 4434);
+
+        discovery.put(wifi, 1360, 0);
+
+        assertEquals(1360, discovery.get(wifi, 1000));
+        assertEquals(0, discovery.get(cellular, 1000));
+        assertEquals(0, discovery.get(other, 1000));
+    }
+
+    @Test
+    public void cacheExpires() {
+        PathMtuDiscovery discovery = new PathMtuDiscovery();
+        String key = PathMtuDiscovery.key("192.168.1.5", "vpn.example.com", 4433);
+        discovery.put(key, 1280, 0);
+
+        assertEquals(1280, discovery.get(key, PathMtuDiscovery.CACHE_TTL_MS - 1));
+        assertEquals(0, discovery.get(key, PathMtuDiscovery.CACHE_TTL_MS));
+        assertEquals(0, discovery.get(key, 0));
+    }
+}
@@ -0,0 +1,82 @@
+package apriorit.vpnclient;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReconnectEngineUnitTest {
+    private static final Object WIFI     = "wifi";
+    private static final Object CELLULAR = "cellular";
+
+    @Test
+    public void reconnectBacksOffWithJitter() {
+        ReconnectEngine engine = new ReconnectEngine(10, new Random(1));
+        engine.onNetworkAvailable(WIFI);
+
+        long cap = ReconnectEngine.BASE_DELAY_MS;
+        for (int i = 0; i < 10; ++i) {
+            long delay = engine.onFailure();
+            assertTrue("delay " + delay, delay >= cap / 2);
+            assertTrue("delay " + delay, delay <= cap);
+            cap = Math.min(cap * 2, ReconnectEngine.MAX_DELAY_MS);
+        }
+        assertEquals(ReconnectEngine.GIVE_UP, engine.onFailure());
+    }
+
+    @Test
+    public void reconnectDelaysAreNotEqual() {
+        ReconnectEngine first  = new ReconnectEngine(10, new Random(1));
+        ReconnectEngine second = new ReconnectEngine(10, new Random(2));
+        first.onNetworkAvailable(WIFI);
+        second.onNetworkAvailable(WIFI);
+
+        boolean differ = false;
+        for (int i = 0; i < 5; ++i) {
+            differ |= first.onFailure() != second.onFailure();
+        }
+        assertTrue(differ);
+    }
+
+    @Test
+    public void reconnectConnectedResetsBackoff() {
+        ReconnectEngine engine = new ReconnectEngine(10, new Random(1));
+        engine.onNetworkAvailable(WIFI);
+        for (int i = 0; i < 5; ++i) {
+            engine.onFailure();
+        }
+
+        engine.onConnected();
+
+        assertTrue(engine.onFailure() <= ReconnectEngine.BASE_DELAY_MS);
+    }
+
+    @Test
+    public void reconnectWaitsForNetwork() {
+        ReconnectEngine engine = new ReconnectEngine(10, new Random(1));
+        engine.onNetworkAvailable(WIFI);
+        assertFalse(engine.onNetworkLost(WIFI));
+
+        assertEquals(ReconnectEngine.WAIT_FOR_NETWORK, engine.onFailure());
+        assertEquals(ReconnectEngine.WAIT_FOR_NETWORK, engine.onFailure());
+
+        assertTrue(engine.onNetworkAvailable(CELLULAR));
+        assertFalse(engine.onNetworkAvailable(WIFI));
+        assertTrue(engine.hasNetwork());
+    }
+
+    @Test
+    public void reconnectMovesToRemainingNetworkAtOnce() {
+        ReconnectEngine engine = new ReconnectEngine(1, new Random(1));
+        engine.onNetworkAvailable(WIFI);
+        engine.onNetworkAvailable(CELLULAR);
+        engine.onFailure();
+
+        assertTrue(engine.onNetworkLost(WIFI));
+        assertFalse(engine.onNetworkLost(WIFI));
+
+        assertEquals(0, engine.onFailure());
+        assertTrue(engine.onFailure() > 0);
+    }
+}
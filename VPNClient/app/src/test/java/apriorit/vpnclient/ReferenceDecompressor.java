@@ -0,0 +1,85 @@
+package apriorit.vpnclient;
+
+import static apriorit.vpnclient.PacketCompressor.COMPRESS_MARKER;
+import static apriorit.vpnclient.PacketCompressor.COMPRESS_OVERHEAD;
+
+/**
+ * LZ4 block decoder of the tests, it checks what {@link PacketCompressor} produces the
+ * way liblz4 on the server reads it: every length and offset is bounds-checked.
+ */
+final class ReferenceDecompressor {
+    private static final int MIN_MATCH = 4;
+
+    private ReferenceDecompressor() {
+    }
+
+    /**
+     * Restores a packet compressed by {@link PacketCompressor#compress(byte[], int)}.
+     * @param record - compressed packet starting with COMPRESS_MARKER
+     * @param packet - buffer for the packet
+     * @return length of the packet, -1 if the compressed packet is malformed
+     */
+    static int decompress(byte[] record, int length, byte[] packet) {
+        if (length <= COMPRESS_OVERHEAD || record[0] != COMPRESS_MARKER) {
+            return -1;
+        }
+        int original = ((record[1] & 0xFF) << 8) | (record[2] & 0xFF);
+        if (original == 0 || original > packet.length) {
+            return -1;
+        }
+        int ip = COMPRESS_OVERHEAD;
+        int op = 0;
+        while (true) {
+            int token = record[ip++] & 0xFF;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int value;
+                do {
+                    if (ip >= length) {
+                        return -1;
+                    }
+                    value = record[ip++] & 0xFF;
+                    literals += value;
+                } while (value == 255);
+            }
+            if (literals > length - ip || literals > original - op) {
+                return -1;
+            }
+            System.arraycopy(record, ip, packet, op, literals);
+            ip += literals;
+            op += literals;
+            if (ip == length) {
+                break;
+            }
+
+            if (ip + 2 > length) {
+                return -1;
+            }
+            int offset = (record[ip] & 0xFF) | (record[ip + 1] & 0xFF) << 8;
+            ip += 2;
+            if (offset == 0 || offset > op) {
+                return -1;
+            }
+            int matchLength = token & 0x0F;
+            if (matchLength == 15) {
+                int value;
+                do {
+                    if (ip >= length) {
+                        return -1;
+                    }
+                    value = record[ip++] & 0xFF;
+                    matchLength += value;
+                } while (value == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength > original - op || ip >= length) {
+                return -1;
+            }
+            // The match may overlap the bytes it produces, copy byte by byte.
+            for (int from = op - offset, end = op + matchLength; op < end; ++op, ++from) {
+                packet[op] = packet[from];
+            }
+        }
+        return op == original ? op : -1;
+    }
+}
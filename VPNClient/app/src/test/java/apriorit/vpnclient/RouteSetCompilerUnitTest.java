@@ -0,0 +1,207 @@
+package apriorit.vpnclient;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import apriorit.vpnclient.TunnelParameters.Prefix;
+
+import static org.junit.Assert.*;
+
+public class RouteSetCompilerUnitTest {
+    private static final List<Prefix> DEFAULT_ROUTE = RouteSetCompiler.parse("0.0.0.0/0");
+    private static final List<Prefix> NONE = Collections.emptyList();
+
+    private static String compile(String routes, String include, String exclude) {
+        RouteSetCompiler compiler = new RouteSetCompiler(RouteSetCompiler.parse(include),
+                                                         RouteSetCompiler.parse(exclude));
+        return format(compiler.compile(RouteSetCompiler.parse(routes)));
+    }
+
+    private static String format(List<Prefix> prefixes) {
+        StringBuilder builder = new StringBuilder();
+        for (Prefix prefix : prefixes) {
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            builder.append(prefix.address).append('/').append(prefix.length);
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void listsAreParsed() {
+        List<Prefix> prefixes = RouteSetCompiler.parse(
+                "# LAN\n10.0.0.0/8, 192.168.1.7\n\n  fc00::/7 # unique local\r\n224.0.0.0/4");
+        assertEquals("10.0.0.0/8 192.168.1.7/32 fc00::/7 224.0.0.0/4", format(prefixes));
+
+        for (String bad : new String[] { "10.0.0.0/33", "10.0.0.0/x", "fc00::/129",
+                                         "example.com", "10.0.0.0/-1", "/8" }) {
+            try {
+                RouteSetCompiler.parse(bad);
+                fail(bad);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void serverRoutesAreKeptWithoutLists() {
+        assertEquals("0.0.0.0/0", compile("0.0.0.0/0", "", ""));
+        // host bits are dropped, duplicates and halves are merged
+        assertEquals("10.0.0.0/8 192.168.0.0/16",
+                     compile("10.1.2.3/8 10.0.0.0/9 10.128.0.0/9 192.168.0.0/16 192.168.3.0/24",
+                             "", ""));
+    }
+
+    @Test
+    public void excludedNetworkIsCutOut() {
+        assertEquals("0.0.0.0/5 8.0.0.0/7 11.0.0.0/8 12.0.0.0/6 16.0.0.0/4 32.0.0.0/3"
+                     + " 64.0.0.0/2 128.0.0.0/1",
+                     compile("0.0.0.0/0", "", "10.0.0.0/8"));
+        // LAN, link local and multicast
+        assertEquals("0.0.0.0/5 8.0.0.0/7 11.0.0.0/8 12.0.0.0/6 16.0.0.0/4 32.0.0.0/3"
+                     + " 64.0.0.0/2 128.0.0.0/3 160.0.0.0/5 168.0.0.0/8 169.0.0.0/9"
+                     + " 169.128.0.0/10 169.192.0.0/11 169.224.0.0/12 169.240.0.0/13"
+                     + " 169.248.0.0/14 169.252.0.0/15 169.255.0.0/16 170.0.0.0/7"
+                     + " 172.0.0.0/12 172.32.0.0/11 172.64.0.0/10 172.128.0.0/9"
+                     + " 173.0.0.0/8 174.0.0.0/7 176.0.0.0/4 192.0.0.0/9 192.128.0.0/11"
+                     + " 192.160.0.0/13 192.169.0.0/16 192.170.0.0/15 192.172.0.0/14"
+                     + " 192.176.0.0/12 192.192.0.0/10 193.0.0.0/8 194.0.0.0/7"
+                     + " 196.0.0.0/6 200.0.0.0/5 208.0.0.0/4",
+                     compile("0.0.0.0/0", "", "10.0.0.0/8 172.16.0.0/12 192.168.0.0/16"
+                             + " 169.254.0.0/16 224.0.0.0/3"));
+        assertEquals("", compile("10.0.0.0/8", "", "0.0.0.0/0"));
+        assertEquals("10.0.0.0/8", compile("10.0.0.0/8", "", "11.0.0.0/8 9.0.0.0/8"));
+    }
+
+    @Test
+    public void includeListReplacesServerRoutes() {
+        assertEquals("192.0.2.0/24 198.51.100.0/23",
+                     compile("0.0.0.0/0", "192.0.2.0/24 198.51.100.0/24 198.51.101.0/24",
+                             "203.0.113.0/24"));
+        assertEquals("192.0.2.0/25 192.0.2.192/26",
+                     compile("0.0.0.0/0", "192.0.2.0/24", "192.0.2.128/26"));
+    }
+
+    @Test
+    public void familiesAreCompiledSeparately() {
+        assertEquals("0.0.0.0/1 128.0.0.0/2 192.0.0.0/3 ::/1 8000::/2 c000::/3 e000::/4"
+                     + " f000::/5 f800::/6 fd01::/16 fd02::/15 fd04::/14 fd08::/13"
+                     + " fd10::/12 fd20::/11 fd40::/10 fd80::/9 fe00::/7",
+                     compile("0.0.0.0/0 ::/0", "", "224.0.0.0/3 fc00::/8 fd00::/16"));
+        assertEquals("2001:db8::/33 2001:db8:8000::/34",
+                     compile("2001:db8::/32", "", "2001:db8:c000::/34 2001:db8:c000:0:1::/80"
+                             + " 10.0.0.0/8"));
+        // the longest run of zeros is shortened
+        assertEquals("::1/128 2001:db8:0:0:1::/80",
+                     compile("", "2001:db8:0:0:1:0:0:0/80 0:0:0:0:0:0:0:1", ""));
+    }
+
+    @Test
+    public void settingsAreCanonical() {
+        RouteSetCompiler first = new RouteSetCompiler(NONE,
+                RouteSetCompiler.parse("10.0.0.0/9 10.128.0.0/9"));
+        RouteSetCompiler second = new RouteSetCompiler(NONE, RouteSetCompiler.parse("10.0.0.0/8"));
+        RouteSetCompiler other = new RouteSetCompiler(NONE, RouteSetCompiler.parse("10.0.0.0/9"));
+        assertEquals(first.getSettings(), second.getSettings());
+        assertNotEquals(first.getSettings(), other.getSettings());
+    }
+
+    /** Prefixes like the ranges of a country registry: many small, mostly adjacent blocks */
+    private static List<Prefix> countryRanges(Random random, int count) {
+        List<Prefix> prefixes = new ArrayList<>();
+        long address = 0x01000000L;
+        for (int i = 0; i < count; ++i) {
+            int length = 16 + random.nextInt(9);
+            long size = 1L << (32 - length);
+            address = (address + size - 1) / size * size;
+            if (random.nextInt(4) == 0) {
+                address += size * (1 + random.nextInt(64));
+            }
+            prefixes.add(new Prefix(String.format("%d.%d.%d.%d", address >>> 24,
+                    (address >>> 16) & 0xFF, (address >>> 8) & 0xFF, address & 0xFF), length));
+            address += size;
+        }
+        return prefixes;
+    }
+
+    private static long toLong(String address) {
+        long value = 0;
+        for (String part : address.split("\\.")) {
+            value = (value << 8) | Integer.parseInt(part);
+        }
+        return value;
+    }
+
+    private static boolean contains(List<Prefix> prefixes, long address) {
+        for (Prefix prefix : prefixes) {
+            long mask = prefix.length == 0 ? 0 : (0xFFFFFFFFL << (32 - prefix.length)) & 0xFFFFFFFFL;
+            if ((address & mask) == toLong(prefix.address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void countryListIsCompiledToMinimalRoutes() {
+        Random random = new Random(11);
+        List<Prefix> country = countryRanges(random, 20000);
+        List<Prefix> lan = RouteSetCompiler.parse(
+                "10.0.0.0/8 172.16.0.0/12 192.168.0.0/16 169.254.0.0/16 224.0.0.0/3");
+        List<Prefix> exclude = new ArrayList<>(country);
+        exclude.addAll(lan);
+
+        long start = System.nanoTime();
+        RouteSetCompiler compiler = new RouteSetCompiler(NONE, exclude);
+        List<Prefix> routes = compiler.compile(DEFAULT_ROUTE);
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        assertTrue("compiled in " + elapsedMs + " ms", elapsedMs < 5000);
+
+        // The routes are sorted, disjoint and no two of them could be joined.
+        long previousEnd = -1;
+        Prefix previous = null;
+        for (Prefix route : routes) {
+            long first = toLong(route.address);
+            long size = 1L << (32 - route.length);
+            assertEquals("aligned " + route.address, 0, first % size);
+            assertTrue(first > previousEnd);
+            if (previous != null && previous.length == route.length) {
+                long previousFirst = toLong(previous.address);
+                boolean siblings = previousFirst + size == first && previousFirst % (2 * size) == 0;
+                assertFalse("siblings " + previous.address + " " + route.address, siblings);
+            }
+            previousEnd = first + size - 1;
+            previous = route;
+        }
+
+        // An address is routed to the tunnel exactly when it is not excluded.
+        for (int i = 0; i < 2000; ++i) {
+            Prefix sample = country.get(random.nextInt(country.size()));
+            long[] addresses = { toLong(sample.address), toLong(sample.address) - 1,
+                                 random.nextLong() & 0xFFFFFFFFL };
+            for (long address : addresses) {
+                assertEquals(Long.toHexString(address),
+                             !contains(exclude, address), contains(routes, address));
+            }
+        }
+    }
+
+    @Test
+    public void includedCountryListIsMerged() {
+        List<Prefix> country = countryRanges(new Random(5), 20000);
+        List<Prefix> shuffled = new ArrayList<>(country);
+        Collections.shuffle(shuffled, new Random(6));
+        RouteSetCompiler compiler = new RouteSetCompiler(shuffled,
+                RouteSetCompiler.parse("10.0.0.0/8"));
+        List<Prefix> routes = compiler.compile(DEFAULT_ROUTE);
+        assertTrue("routes " + routes.size(), routes.size() <= country.size());
+        assertEquals(format(new RouteSetCompiler(country, RouteSetCompiler.parse("10.0.0.0/8"))
+                                    .compile(NONE)), format(routes));
+    }
+}
@@ -0,0 +1,107 @@
+package apriorit.vpnclient;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ServerProberUnitTest {
+    private static final long START = 1000000;
+
+    /** Answers probes with fixed round-trip times instead of the network */
+    private static class FakeProber extends ServerProber {
+        final Map<String, Long> rtts = new HashMap<>();
+        final AtomicInteger probes = new AtomicInteger();
+        /** host whose probe forgets all results, as a network change does */
+        volatile String clearOn = null;
+
+        @Override
+        long probe(Target target) {
+            probes.incrementAndGet();
+            if (target.host.equals(clearOn)) {
+                clear();
+            }
+            Long rtt = rtts.get(target.host);
+            return rtt != null ? rtt : UNREACHABLE;
+        }
+    }
+
+    private static final List<ServerProber.Target> TARGETS = Arrays.asList(
+            new ServerProber.Target("a", 8000),
+            new ServerProber.Target("b", 8000),
+            new ServerProber.Target("c", 8000));
+
+    @Test
+    public void proberSelectsLowestRtt() throws Exception {
+        FakeProber prober = new FakeProber();
+        prober.rtts.put("a", 120L);
+        prober.rtts.put("b", 30L);
+
+        assertEquals("b", prober.selectFastest(TARGETS, START).host);
+        assertEquals(3, prober.probes.get());
+    }
+
+    @Test
+    public void proberCachesResultsForTtl() throws Exception {
+        FakeProber prober = new FakeProber();
+        prober.rtts.put("a", 10L);
+
+        prober.selectFastest(TARGETS, START);
+        prober.rtts.put("c", 1L);
+        assertEquals("a", prober.selectFastest(TARGETS, START + ServerProber.CACHE_TTL_MS - 1).host);
+        assertEquals(3, prober.probes.get());
+
+        assertEquals("c", prober.selectFastest(TARGETS, START + ServerProber.CACHE_TTL_MS).host);
+        assertEquals(6, prober.probes.get());
+    }
+
+    @Test
+    public void proberFallsBackToFirstAndProbesAgain() throws Exception {
+        FakeProber prober = new FakeProber();
+
+        assertEquals("a", prober.selectFastest(TARGETS, START).host);
+        prober.selectFastest(TARGETS, START + 1);
+
+        assertEquals(6, prober.probes.get());
+        assertNull(prober.selectFastest(Arrays.<ServerProber.Target>asList(), START));
+    }
+
+    @Test
+    public void proberClearForgetsResults() throws Exception {
+        FakeProber prober = new FakeProber();
+        prober.rtts.put("a", 10L);
+
+        prober.selectFastest(TARGETS, START);
+        prober.clear();
+        prober.selectFastest(TARGETS, START + 1);
+
+        assertEquals(6, prober.probes.get());
+    }
+
+    @Test
+    public void proberClearDuringProbesDoesNotLoseSelection() throws Exception {
+        FakeProber prober = new FakeProber();
+        prober.rtts.put("a", 10L);
+        prober.rtts.put("b", 30L);
+
+        // "a" is cached, the probe of "b" forgets it before the selection.
+        prober.selectFastest(TARGETS.subList(0, 1), START);
+        prober.clearOn = "b";
+        assertEquals("b", prober.selectFastest(TARGETS, START + 1).host);
+    }
+
+    @Test
+    public void proberTargetsRoundTrip() {
+        List<ServerProber.Target> targets =
+                ServerProber.decodeTargets(ServerProber.encodeTargets(TARGETS) + ",bad,x y");
+
+        assertEquals(3, targets.size());
+        assertEquals("c", targets.get(2).host);
+        assertEquals(8000, targets.get(2).port);
+    }
+}
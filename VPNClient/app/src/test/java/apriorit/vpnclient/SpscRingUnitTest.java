@@ -0,0 +1,80 @@
+package apriorit.vpnclient;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SpscRingUnitTest {
+    @Test
+    public void spscRingCapacityIsPowerOfTwo() {
+        assertEquals(1, new SpscRing<Integer>(1).capacity());
+        assertEquals(32, new SpscRing<Integer>(32).capacity());
+        assertEquals(64, new SpscRing<Integer>(33).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void spscRingZeroCapacity() {
+        new SpscRing<Integer>(0);
+    }
+
+    @Test
+    public void spscRingFifoOrder() {
+        SpscRing<Integer> ring = new SpscRing<>(4);
+
+        assertNull(ring.poll());
+        for (int i = 0; i < 4; ++i) {
+            assertTrue(ring.offer(i));
+        }
+        assertFalse(ring.offer(4));
+        assertEquals(4, ring.size());
+
+        for (int i = 0; i < 4; ++i) {
+            assertEquals((Integer) i, ring.poll());
+        }
+        assertNull(ring.poll());
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void spscRingWrapsAround() {
+        SpscRing<Integer> ring = new SpscRing<>(2);
+
+        for (int i = 0; i < 10; ++i) {
+            assertTrue(ring.offer(i));
+            assertEquals((Integer) i, ring.poll());
+        }
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void spscRingConcurrentProducerConsumer() throws Exception {
+        final SpscRing<Integer> ring = new SpscRing<>(16);
+        final int count = 200000;
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; ) {
+                    if (ring.offer(i)) {
+                        ++i;
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        producer.start();
+
+        for (int expected = 0; expected < count; ) {
+            Integer item = ring.poll();
+            if (item == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals((Integer) expected, item);
+            ++expected;
+        }
+        producer.join();
+        assertNull(ring.poll());
+    }
+}
@@ -0,0 +1,64 @@
+package apriorit.vpnclient;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TunnelParametersUnitTest {
+    @Test
+    public void serverParametersAreParsed() {
+        TunnelParameters tunnel = TunnelParameters.parse(
+                "m,1400 a,10.0.0.2,32 d,8.8.8.8 r,0.0.0.0,0 j,5f3a09c1e2d4b687 o,f,p,j");
+
+        assertEquals(1400, tunnel.mtu);
+        assertEquals(1, tunnel.addresses.size());
+        assertEquals("10.0.0.2", tunnel.addresses.get(0).address);
+        assertEquals(32, tunnel.addresses.get(0).length);
+        assertEquals("8.8.8.8", tunnel.dnsServers.get(0));
+        assertEquals("0.0.0.0", tunnel.routes.get(0).address);
+        assertEquals(0, tunnel.routes.get(0).length);
+        assertTrue(tunnel.hasOption("f"));
+        assertTrue(tunnel.hasOption("p"));
+        assertTrue(tunnel.hasOption(TunnelParameters.OPTION_JOIN));
+        assertFalse(tunnel.hasOption("x"));
+        assertEquals("5f3a09c1e2d4b687", tunnel.joinToken);
+    }
+
+    @Test
+    public void missingParametersAreEmpty() {
+        TunnelParameters tunnel = TunnelParameters.parse("a,10.0.0.2,32  x,unknown");
+
+        assertEquals(0, tunnel.mtu);
+        assertTrue(tunnel.routes.isEmpty());
+        assertTrue(tunnel.options.isEmpty());
+        assertNull(tunnel.joinToken);
+    }
+
+    @Test
+    public void interfaceSettingsIgnoreJoinToken() {
+        String first = TunnelParameters.parse(
+                "m,1400 a,10.0.0.2,32 d,8.8.8.8 r,0.0.0.0,0 j,5f3a09c1e2d4b687 o,f,p,j")
+                .interfaceSettings(1400, "i,10.1.0.0/16");
+        String reconnect = TunnelParameters.parse(
+                "m,1400 a,10.0.0.2,32 d,8.8.8.8 r,0.0.0.0,0 j,0123456789abcdef o,f,p,j")
+                .interfaceSettings(1400, "i,10.1.0.0/16");
+
+        assertEquals(first, reconnect);
+        assertFalse(first, first.contains("j,"));
+        // another address or path MTU needs a new interface
+        assertNotEquals(first, TunnelParameters.parse("m,1400 a,10.0.0.3,32 d,8.8.8.8 r,0.0.0.0,0")
+                .interfaceSettings(1400, "i,10.1.0.0/16"));
+        assertNotEquals(first, TunnelParameters.parse("m,1400 a,10.0.0.2,32 d,8.8.8.8 r,0.0.0.0,0")
+                .interfaceSettings(1320, "i,10.1.0.0/16"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badMtuIsRejected() {
+        TunnelParameters.parse("m,big");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void routeWithoutPrefixIsRejected() {
+        TunnelParameters.parse("r,10.1.0.0");
+    }
+}
@@ -0,0 +1,36 @@
+package apriorit.vpnclient;
+
+import java.io.IOException;
+
+/**
+ * Records of the harness tunnel: plain datagrams of the NIO transport of
+ * {@link MyIOCtx}, which the DTLS callbacks use on a device. There is no
+ * encryption, the stand-in server does not speak DTLS.
+ */
+class ChannelTransport implements RecordTransport {
+    private final MyIOCtx ioctx;
+
+    /**
+     * @param ioctx - context of a connected channel
+     */
+    ChannelTransport(MyIOCtx ioctx) {
+        this.ioctx = ioctx;
+    }
+
+    @Override
+    public boolean await(int timeout) throws IOException {
+        return ioctx.awaitInput(timeout);
+    }
+
+    @Override
+    public int read(byte[] buf, int size) throws IOException {
+        return ioctx.receive(buf, size);
+    }
+
+    @Override
+    public void write(byte[] buf, int length) throws IOException {
+        if (ioctx.send(buf, length) <= 0) {
+            throw new IOException("Can't write to the tunnel!");
+        }
+    }
+}
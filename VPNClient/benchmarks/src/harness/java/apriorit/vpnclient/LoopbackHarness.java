@@ -0,0 +1,244 @@
+package apriorit.vpnclient;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link LoopbackHarness} class<br>
+ * Drives the {@link PacketPipeline} of the client against a {@link LoopbackServer} on
+ * 127.0.0.1 and reports packets/s, Mbit/s, loss, p50/p99 one-way latency and CPU of
+ * the client stages per direction. The tun interface of the client is replaced by a
+ * {@link TrafficGenerator} (up) and a {@link TrafficMeter} (down), records go through
+ * the NIO transport of {@link MyIOCtx} without DTLS.<br>
+ * Usage: LoopbackHarness [--duration s] [--warmup s] [--mix size:weight,...]
+ * [--rate packets/s] [--direction up|down|both] [--mtu n] [--coalesce]
+ */
+public class LoopbackHarness {
+    private static final int KNOCK_INTERVAL_MS = 100;
+    private static final long CONNECT_TIMEOUT_MS = 5000;
+    /** Packets generated at the end of the window may still be on the way */
+    private static final long DRAIN_MS = 500;
+
+    private static final String[] UP_STAGES   = { "VpnTunReaderThread", "VpnSenderThread" };
+    private static final String[] DOWN_STAGES = { "VpnReceiverThread", "VpnTunWriterThread" };
+
+    private int duration = 10;
+    private int warmup = 2;
+    private String mix = "64:7,576:4,1400:1";
+    private int rate = 0;
+    private String direction = "both";
+    private int mtu = TunnelParameters.DEFAULT_MTU;
+    private boolean coalesce = false;
+
+    private volatile IOException failure = null;
+    private long setupUs = 0;
+
+    public static void main(String[] args) throws Exception {
+        LoopbackHarness harness = new LoopbackHarness();
+        try {
+            harness.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: LoopbackHarness [--duration s] [--warmup s]"
+                    + " [--mix size:weight,...] [--rate packets/s]"
+                    + " [--direction up|down|both] [--mtu n] [--coalesce]");
+            System.exit(2);
+        }
+        harness.run();
+    }
+
+    private void parse(String[] args) {
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                switch (args[i]) {
+                    case "--duration":  duration = Integer.parseInt(args[++i]); break;
+                    case "--warmup":    warmup = Integer.parseInt(args[++i]); break;
+                    case "--mix":       mix = args[++i]; break;
+                    case "--rate":      rate = Integer.parseInt(args[++i]); break;
+                    case "--direction": direction = args[++i]; break;
+                    case "--mtu":       mtu = Integer.parseInt(args[++i]); break;
+                    case "--coalesce":  coalesce = true; break;
+                    default:
+                        throw new IllegalArgumentException("Unknown argument: " + args[i]);
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Bad arguments");
+        }
+        if (!direction.equals("up") && !direction.equals("down") && !direction.equals("both")) {
+            throw new IllegalArgumentException("Bad direction: " + direction);
+        }
+        if (duration <= 0 || warmup < 0 || rate < 0) {
+            throw new IllegalArgumentException("Bad duration, warmup or rate");
+        }
+    }
+
+    private void run() throws Exception {
+        boolean up = !direction.equals("down");
+        boolean down = !direction.equals("up");
+
+        TrafficMeter upMeter = new TrafficMeter();
+        TrafficGenerator downGenerator = new TrafficGenerator(mix, rate, mtu);
+        downGenerator.setEnabled(down);
+        LoopbackServer server = new LoopbackServer(mtu, upMeter, downGenerator);
+        server.start();
+
+        InetSocketAddress address = (InetSocketAddress) server.getAddress();
+        DatagramChannel channel = DatagramChannel.open();
+        channel.connect(address);
+        MyIOCtx ioctx = new MyIOCtx(channel, address.getAddress(), address.getPort());
+        ChannelTransport transport = new ChannelTransport(ioctx);
+        MetricsRegistry metrics = new MetricsRegistry();
+        PacketBufferPool pool = new PacketBufferPool(mtu);
+        ControlChannel control = new ControlChannel(transport, pool, Clock.MONOTONIC, metrics);
+        TunnelParameters tunnel = connect(transport, control);
+        pool.setMtu(tunnel.mtu);
+
+        TrafficGenerator upGenerator = new TrafficGenerator(mix, rate, tunnel.mtu);
+        upGenerator.setEnabled(up);
+        TrafficMeter downMeter = new TrafficMeter();
+        final PacketPipeline pipeline = new PacketPipeline(transport, upGenerator, downMeter,
+                pool, metrics, new KeepaliveScheduler(), Clock.MONOTONIC);
+        boolean framing = coalesce && tunnel.hasOption(TunnelParameters.OPTION_FRAMING);
+        if (framing) {
+            pipeline.enableFraming(tunnel.mtu);
+        }
+        Thread tunReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pipeline.run();
+                } catch (IOException e) {
+                    failure = e;
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+            }
+        }, UP_STAGES[0]);
+        tunReader.start();
+
+        long start = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmup);
+        long end = start + TimeUnit.SECONDS.toNanos(duration);
+        upGenerator.setWindow(start, end);
+        downGenerator.setWindow(start, end);
+        upMeter.setWindow(start, end);
+        downMeter.setWindow(start, end);
+
+        sleepUntil(start);
+        Map<String, Long> cpuStart = sampleCpu();
+        sleepUntil(end);
+        Map<String, Long> cpuEnd = sampleCpu();
+        Thread.sleep(DRAIN_MS);
+
+        IOException pipelineFailure = failure;
+        pipeline.abort(new IOException("Measurement finished"));
+        tunReader.join();
+        long teardownStart = System.nanoTime();
+        control.disconnect();
+        long teardownUs = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - teardownStart);
+        server.stop();
+        ioctx.close();
+        channel.close();
+
+        System.out.println("mix " + mix + ", rate " + (rate > 0 ? rate + " packets/s" : "unlimited")
+                + ", mtu " + tunnel.mtu + ", coalescing " + (framing ? "on" : "off")
+                + ", " + duration + " s");
+        System.out.printf("%-5s %11s %9s %7s %9s %9s %7s %11s%n", "dir", "packets/s",
+                "Mbit/s", "loss %", "p50 us", "p99 us", "cpu %", "cpu ns/pkt");
+        if (up) {
+            report("up", upGenerator, upMeter, cpu(cpuStart, cpuEnd, UP_STAGES));
+        }
+        if (down) {
+            report("down", downGenerator, downMeter, cpu(cpuStart, cpuEnd, DOWN_STAGES));
+        }
+        System.out.println("write errors " + metrics.counter(MetricsRegistry.WRITE_ERRORS).get()
+                + ", read errors " + metrics.counter(MetricsRegistry.READ_ERRORS).get()
+                + ", malformed records " + metrics.counter(MetricsRegistry.MALFORMED).get());
+        System.out.println("control setup " + setupUs + " us, teardown " + teardownUs
+                + " us, retransmits "
+                + metrics.counter(MetricsRegistry.CONTROL_RETRANSMITS).get());
+        if (pipelineFailure != null) {
+            System.out.println("pipeline failed: " + pipelineFailure.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Knocks until the stand-in answers, like VpnConnection does before the DTLS
+     * handshake, then exchanges the options and parameters on the control channel.
+     */
+    private TunnelParameters connect(RecordTransport transport, ControlChannel control)
+            throws IOException {
+        byte[] knock = { 0, (byte) SpecialPacket.WANT_CONNECT.ordinal() };
+        byte[] buf = new byte[2 * PacketBufferPool.CONTROL_PACKET_SIZE];
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT_MS);
+        while (true) {
+            if (System.nanoTime() >= deadline) {
+                throw new IOException("Stand-in server does not answer");
+            }
+            transport.write(knock, knock.length);
+            if (transport.await(KNOCK_INTERVAL_MS) && transport.read(buf, buf.length) > 0) {
+                break;
+            }
+        }
+        long start = System.nanoTime();
+        TunnelParameters tunnel = TunnelParameters.parse(control.exchangeParameters(coalesce));
+        setupUs = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        return tunnel;
+    }
+
+    private static void sleepUntil(long time) throws InterruptedException {
+        long left;
+        while ((left = time - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(left);
+        }
+    }
+
+    /**
+     * @return CPU time in nanoseconds of every live thread by name
+     */
+    private static Map<String, Long> sampleCpu() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Map<String, Long> result = new HashMap<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            long time = threads.getThreadCpuTime(thread.getId());
+            if (time >= 0) {
+                result.put(thread.getName(), time);
+            }
+        }
+        return result;
+    }
+
+    private static long cpu(Map<String, Long> start, Map<String, Long> end, String[] stages) {
+        long total = 0;
+        for (String stage : stages) {
+            Long before = start.get(stage);
+            Long after = end.get(stage);
+            if (before != null && after != null) {
+                total += after - before;
+            }
+        }
+        return total;
+    }
+
+    private void report(String name, TrafficGenerator generator, TrafficMeter meter, long cpuNs) {
+        double seconds = duration;
+        long generated = generator.getGenerated();
+        long received = meter.getPackets();
+        System.out.printf("%-5s %11.0f %9.1f %7.2f %9.1f %9.1f %7.1f %11.0f%n", name,
+                received / seconds,
+                meter.getBytes() * 8 / seconds / 1e6,
+                generated > 0 ? 100.0 * (generated - received) / generated : 0.0,
+                meter.latency(50) / 1e3,
+                meter.latency(99) / 1e3,
+                100.0 * cpuNs / TimeUnit.SECONDS.toNanos(duration),
+                received > 0 ? (double) cpuNs / received : 0.0);
+    }
+}
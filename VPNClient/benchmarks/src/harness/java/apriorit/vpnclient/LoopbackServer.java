@@ -0,0 +1,228 @@
+package apriorit.vpnclient;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The {@link LoopbackServer} class<br>
+ * Stand-in for VPN_Server on 127.0.0.1. It speaks the protocol of the server without
+ * DTLS: a WANT_CONNECT knock is answered with an empty control message (in place of
+ * the DTLS handshake), PING with PONG. Requests of control protocol v2 are acked: the
+ * options of the client with the parameters, WANT_DISCONNECT stops the session after
+ * its ack. Instead of a tun interface, incoming packets go to
+ * a {@link TrafficMeter} and outgoing ones come from a {@link TrafficGenerator};
+ * they are coalesced into records of the tunnel MTU if the client announced "f".
+ */
+class LoopbackServer {
+    private final DatagramChannel channel;
+    private final int mtu;
+    private final TrafficMeter meter;
+    private final TrafficGenerator generator;
+
+    private final Thread receiver;
+    private final Thread sender;
+    private final Object connectLock = new Object();
+
+    private volatile boolean running = true;
+    private volatile boolean connected = false;
+    private volatile boolean clientFraming = false;
+
+    /**
+     * @param mtu       - tunnel MTU sent in the parameters
+     * @param meter     - receives packets from the client
+     * @param generator - packets for the client
+     */
+    LoopbackServer(int mtu, TrafficMeter meter, TrafficGenerator generator) throws IOException {
+        this.mtu = mtu;
+        this.meter = meter;
+        this.generator = generator;
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+
+        receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runReceiver();
+            }
+        }, "StandInReceiverThread");
+        sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSender();
+            }
+        }, "StandInSenderThread");
+    }
+
+    SocketAddress getAddress() throws IOException {
+        return channel.getLocalAddress();
+    }
+
+    void start() {
+        receiver.start();
+        sender.start();
+    }
+
+    void stop() throws InterruptedException {
+        running = false;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing to release
+        }
+        synchronized (connectLock) {
+            connectLock.notifyAll();
+        }
+        receiver.join();
+        sender.join();
+    }
+
+    private void runReceiver() {
+        ByteBuffer datagram = ByteBuffer.allocate(PacketBufferPool.CONTROL_PACKET_SIZE * 64);
+        byte[] record = datagram.array();
+        try {
+            while (running) {
+                datagram.clear();
+                SocketAddress from = channel.receive(datagram);
+                int length = datagram.position();
+                if (length == 0) {
+                    continue;
+                }
+                if (record[0] == PacketFramer.FRAME_MARKER) {
+                    PacketFramer.unpack(record, length, meter);
+                } else if (record[0] != 0) {
+                    meter.onPacket(record, 0, length);
+                } else {
+                    onControl(record, length, from);
+                }
+            }
+        } catch (ClosedChannelException e) {
+            // stopped
+        } catch (IOException e) {
+            if (running) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void onControl(byte[] record, int length, SocketAddress from) throws IOException {
+        if (length > ControlChannel.HEADER_SIZE
+                && record[1] == (byte) SpecialPacket.CONTROL.ordinal()) {
+            onRequest(record, length);
+            return;
+        }
+        if (length != 2) {
+            return;
+        }
+        if (record[1] == (byte) SpecialPacket.WANT_CONNECT.ordinal()) {
+            if (!connected) {
+                channel.connect(from);
+                synchronized (connectLock) {
+                    connected = true;
+                    connectLock.notifyAll();
+                }
+            }
+            channel.write(ByteBuffer.wrap(record, 0, 1));
+        } else if (record[1] == (byte) SpecialPacket.PING.ordinal()) {
+            record[1] = (byte) SpecialPacket.PONG.ordinal();
+            channel.write(ByteBuffer.wrap(record, 0, 2));
+        }
+    }
+
+    /**
+     * Answers a request of control protocol v2 with an ack of the same sequence number.
+     * @param record - the request, the ack is written over it
+     */
+    private void onRequest(byte[] record, int length) throws IOException {
+        final int message = ControlChannel.HEADER_SIZE;
+        int answerLength = 2;
+        boolean disconnect = false;
+        if (length == message + 2
+                && record[message + 1] == (byte) SpecialPacket.WANT_DISCONNECT.ordinal()) {
+            disconnect = true;
+        } else if (length == message + 1
+                || record[message + 1] > SpecialPacket.CONTROL_ACK.ordinal()) {
+            // options of the client (text), the answer is the parameters
+            String options = new String(record, message + 1, length - message - 1, US_ASCII);
+            clientFraming = TunnelParameters.parse(options.trim())
+                    .hasOption(TunnelParameters.OPTION_FRAMING);
+            String parameters = "m," + mtu + " a,10.0.0.2,32 d,8.8.8.8 r,0.0.0.0,0 o,"
+                    + TunnelParameters.OPTION_FRAMING;
+            byte[] text = parameters.getBytes(US_ASCII);
+            System.arraycopy(text, 0, record, message + 1, text.length);
+            answerLength = 1 + text.length;
+        }
+        record[1] = (byte) SpecialPacket.CONTROL_ACK.ordinal();
+        channel.write(ByteBuffer.wrap(record, 0, message + answerLength));
+        if (disconnect) {
+            running = false;
+        }
+    }
+
+    private void runSender() {
+        PacketFramer framer = new PacketFramer(mtu);
+        byte[] packet = new byte[mtu];
+        ByteBuffer datagram = ByteBuffer.wrap(framer.getRecord());
+        try {
+            synchronized (connectLock) {
+                while (running && !connected) {
+                    connectLock.wait();
+                }
+            }
+            while (running) {
+                long now = System.nanoTime();
+                long wait = generator.dueIn(now);
+                if (wait > 0) {
+                    LockSupport.parkNanos(Math.min(wait, 100000000L));
+                    continue;
+                }
+                if (!clientFraming) {
+                    int length = generator.next(packet, 0, now);
+                    channel.write(ByteBuffer.wrap(packet, 0, length));
+                    continue;
+                }
+                // Like the server draining its tun interface: everything due goes
+                // into records of at most the tunnel MTU.
+                int length;
+                while (running && (length = generator.next(packet, 0, System.nanoTime())) > 0) {
+                    if (!framer.accepts(length)) {
+                        sendRecord(framer, datagram);
+                        channel.write(ByteBuffer.wrap(packet, 0, length));
+                        continue;
+                    }
+                    if (!framer.fits(length)) {
+                        sendRecord(framer, datagram);
+                    }
+                    framer.append(packet, 0, length);
+                }
+                sendRecord(framer, datagram);
+            }
+        } catch (ClosedChannelException e) {
+            // stopped
+        } catch (IOException e) {
+            if (running) {
+                e.printStackTrace();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sendRecord(PacketFramer framer, ByteBuffer datagram) throws IOException {
+        if (framer.isEmpty()) {
+            return;
+        }
+        int length = framer.finish();
+        framer.reset();
+        datagram.clear();
+        datagram.limit(length);
+        channel.write(datagram);
+    }
+}
@@ -0,0 +1,137 @@
+package apriorit.vpnclient;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The {@link TrafficGenerator} class<br>
+ * Produces IP-like packets of a size mix, optionally at a fixed rate. Every packet
+ * carries System.nanoTime() of its generation, so the {@link TrafficMeter} on the
+ * other side of the tunnel measures one-way latency.<br>
+ * Used by one thread at a time. As a {@link PacketSource} it stands in for the tun
+ * interface of the client.
+ */
+class TrafficGenerator implements PacketSource {
+    /** Offset of the generation time, after the first bytes of an IPv4 header */
+    static final int TIMESTAMP_OFFSET = 4;
+    /** Smallest packet, an IPv4 header */
+    static final int MIN_PACKET_SIZE = 20;
+
+    private static final long MAX_LAG_NS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final int[] sizes;
+    private final int[] weights;
+    private final int totalWeight;
+    private final long intervalNs;
+    private final Random random = new Random(1);
+
+    private long nextDue = 0;
+    private volatile boolean enabled = true;
+
+    private volatile long windowStart = Long.MAX_VALUE;
+    private volatile long windowEnd = Long.MAX_VALUE;
+    private long generated = 0;
+
+    /**
+     * @param mix  - sizes with weights, e.g. "64:7,576:4,1400:1"
+     * @param rate - packets per second, 0 for as fast as the consumer takes them
+     * @param mtu  - largest packet size allowed
+     * @throws IllegalArgumentException - thrown if the mix is malformed
+     */
+    TrafficGenerator(String mix, int rate, int mtu) {
+        String[] entries = mix.split(",");
+        sizes = new int[entries.length];
+        weights = new int[entries.length];
+        int total = 0;
+        for (int i = 0; i < entries.length; ++i) {
+            String[] fields = entries[i].trim().split(":");
+            try {
+                sizes[i] = Integer.parseInt(fields[0]);
+                weights[i] = fields.length > 1 ? Integer.parseInt(fields[1]) : 1;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad size mix: " + mix);
+            }
+            if (sizes[i] < MIN_PACKET_SIZE || sizes[i] > mtu || weights[i] <= 0) {
+                throw new IllegalArgumentException("Bad size mix entry: " + entries[i]);
+            }
+            total += weights[i];
+        }
+        totalWeight = total;
+        intervalNs = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+    }
+
+    /**
+     * Disabled generator produces nothing, for a direction which is not measured.
+     */
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Packets generated within [start, end) are counted and measured.
+     */
+    void setWindow(long start, long end) {
+        windowStart = start;
+        windowEnd = end;
+    }
+
+    /**
+     * @return packets generated within the window
+     */
+    long getGenerated() {
+        return generated;
+    }
+
+    /**
+     * @return nanoseconds until the next packet is due, 0 if it is due now
+     */
+    long dueIn(long now) {
+        if (!enabled) {
+            return Long.MAX_VALUE;
+        }
+        return intervalNs == 0 ? 0 : Math.max(0, nextDue - now);
+    }
+
+    /**
+     * Writes the next packet if it is due.
+     * @return packet length, 0 if no packet is due
+     */
+    int next(byte[] buf, int offset, long now) {
+        if (dueIn(now) > 0) {
+            return 0;
+        }
+        // Wake-ups are late by tens of microseconds, so the lag is caught up, but
+        // not more than MAX_LAG_NS of it: a stalled consumer must not cause a burst.
+        nextDue = Math.max(nextDue + intervalNs, now - MAX_LAG_NS);
+
+        int pick = random.nextInt(totalWeight);
+        int i = 0;
+        while (pick >= weights[i]) {
+            pick -= weights[i++];
+        }
+        int size = sizes[i];
+        buf[offset] = 0x45;
+        for (int b = 0; b < 8; ++b) {
+            buf[offset + TIMESTAMP_OFFSET + b] = (byte) (now >>> (56 - 8 * b));
+        }
+        if (now >= windowStart && now < windowEnd) {
+            ++generated;
+        }
+        return size;
+    }
+
+    @Override
+    public boolean await(int timeout) {
+        long wait = Math.min(dueIn(System.nanoTime()), TimeUnit.MILLISECONDS.toNanos(timeout));
+        if (wait > 0) {
+            LockSupport.parkNanos(wait);
+        }
+        return dueIn(System.nanoTime()) == 0;
+    }
+
+    @Override
+    public int read(byte[] buf) {
+        return next(buf, 0, System.nanoTime());
+    }
+}
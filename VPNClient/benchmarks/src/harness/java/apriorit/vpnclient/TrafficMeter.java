@@ -0,0 +1,80 @@
+package apriorit.vpnclient;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The {@link TrafficMeter} class<br>
+ * Counts packets of a {@link TrafficGenerator} and their one-way latencies.
+ * Only packets generated within the window are measured, whenever they arrive.
+ * As a {@link PacketSink} it stands in for the tun interface of the client.
+ * Used by one thread, results are read after it stopped.
+ */
+class TrafficMeter implements PacketSink {
+    /** Latency samples kept, a uniform sample of all packets once there are more */
+    private static final int MAX_SAMPLES = 1024 * 1024;
+
+    private final long[] latencies = new long[MAX_SAMPLES];
+    private final Random random = new Random(1);
+    private int samples = 0;
+    private long packets = 0;
+    private long bytes = 0;
+
+    private volatile long windowStart = Long.MAX_VALUE;
+    private volatile long windowEnd = Long.MAX_VALUE;
+
+    /**
+     * Packets generated within [start, end) are measured.
+     */
+    void setWindow(long start, long end) {
+        windowStart = start;
+        windowEnd = end;
+    }
+
+    @Override
+    public void onPacket(byte[] buf, int offset, int length) {
+        long now = System.nanoTime();
+        if (length < TrafficGenerator.MIN_PACKET_SIZE) {
+            return;
+        }
+        long sent = 0;
+        for (int b = 0; b < 8; ++b) {
+            sent = (sent << 8) | (buf[offset + TrafficGenerator.TIMESTAMP_OFFSET + b] & 0xFF);
+        }
+        if (sent < windowStart || sent >= windowEnd) {
+            return;
+        }
+        ++packets;
+        bytes += length;
+        if (samples < MAX_SAMPLES) {
+            latencies[samples++] = now - sent;
+        } else {
+            long slot = (long) (random.nextDouble() * packets);
+            if (slot < MAX_SAMPLES) {
+                latencies[(int) slot] = now - sent;
+            }
+        }
+    }
+
+    long getPackets() {
+        return packets;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @param percentile - 0..100
+     * @return latency in nanoseconds, -1 if nothing was measured
+     */
+    long latency(double percentile) {
+        if (samples == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(latencies, samples);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * samples) - 1;
+        return sorted[Math.max(0, Math.min(samples - 1, index))];
+    }
+}
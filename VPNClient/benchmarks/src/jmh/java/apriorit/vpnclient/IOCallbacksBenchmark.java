@@ -0,0 +1,101 @@
+package apriorit.vpnclient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DTLS I/O callbacks of an established session over loopback UDP. The peer
+ * socket echoes every datagram on the benchmark thread, loopback delivers it
+ * before send returns, so a round trip never waits for another thread.<br>
+ * The receive callback of the socket runs without a read poll, poll() of its
+ * descriptor needs android.system.Os.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IOCallbacksBenchmark {
+    /** Transport of VpnConnection: blocking socket or non-blocking channel */
+    @Param({ "SOCKET", "CHANNEL" })
+    public String transport;
+
+    @Param({ "64", "1400" })
+    public int size;
+
+    private final MySendCallback sendCallback = new MySendCallback();
+    private final MyRecvCallback recvCallback = new MyRecvCallback();
+
+    private DatagramSocket peer;
+    private DatagramPacket peerPacket;
+    private DatagramChannel channel;
+    private DatagramSocket socket;
+    private MyIOCtx ioctx;
+    private byte[] record;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        peer = new DatagramSocket(new InetSocketAddress(loopback, 0));
+        peerPacket = new DatagramPacket(new byte[PacketBufferPool.CONTROL_PACKET_SIZE * 2], 0);
+
+        if (transport.equals("CHANNEL")) {
+            channel = DatagramChannel.open();
+            channel.connect(peer.getLocalSocketAddress());
+            socket = channel.socket();
+            ioctx = new MyIOCtx(channel, loopback, peer.getLocalPort());
+        } else {
+            socket = new DatagramSocket();
+            socket.connect(loopback, peer.getLocalPort());
+            ioctx = new MyIOCtx(null, null, socket, loopback, peer.getLocalPort());
+        }
+        record = new byte[size];
+        record[0] = 0x45;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        ioctx.close();
+        if (channel != null) {
+            channel.close();
+        }
+        socket.close();
+        peer.close();
+    }
+
+    /** Send callback alone, the peer drops what it does not read */
+    @Benchmark
+    public int send() {
+        return sendCallback.sendCallback(null, record, size, ioctx);
+    }
+
+    /** Record sent by the callback, echoed by the peer and received by the callback */
+    @Benchmark
+    public int roundTrip() throws IOException {
+        sendCallback.sendCallback(null, record, size, ioctx);
+
+        peerPacket.setLength(peerPacket.getData().length);
+        peer.receive(peerPacket);
+        peer.send(peerPacket);
+
+        int received;
+        while ((received = recvCallback.receiveCallback(null, record, size, ioctx)) <= 0) {
+            ioctx.awaitInput(0);
+        }
+        return received;
+    }
+}
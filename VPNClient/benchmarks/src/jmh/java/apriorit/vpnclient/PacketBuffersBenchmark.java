@@ -0,0 +1,78 @@
+package apriorit.vpnclient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import apriorit.vpnclient.PacketBufferPool.Lease;
+import apriorit.vpnclient.PacketBufferPool.Owner;
+
+/**
+ * Buffer handling of the connection: leases of the shared pool and their
+ * hand-off between two stages through a ring.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PacketBuffersBenchmark {
+    private static final int MTU = 1400;
+
+    @State(Scope.Benchmark)
+    public static class Pool {
+        final PacketBufferPool pool = new PacketBufferPool(MTU);
+    }
+
+    /** Ring between a reader and a writer stage, leases circulate through a free ring */
+    @State(Scope.Group)
+    public static class Stages {
+        final SpscRing<Lease> full = new SpscRing<>(256);
+        final SpscRing<Lease> free = new SpscRing<>(256);
+
+        public Stages() {
+            PacketBufferPool pool = new PacketBufferPool(MTU);
+            for (int i = 0; i < free.capacity(); ++i) {
+                free.offer(pool.acquire(Owner.TUN_READER));
+            }
+        }
+    }
+
+    /** Control path: a lease for every control message */
+    @Benchmark
+    public Lease acquireRelease(Pool state) {
+        Lease lease = state.pool.acquire(Owner.CONTROL);
+        lease.data[0] = 0;
+        state.pool.release(lease);
+        return lease;
+    }
+
+    @Benchmark
+    @Group("handOff")
+    @GroupThreads(1)
+    public boolean reader(Stages stages) {
+        Lease lease = stages.free.poll();
+        if (lease == null) {
+            return false;
+        }
+        lease.length = 1400;
+        lease.moveTo(Owner.TUN_READER, Owner.SENDER);
+        return stages.full.offer(lease);
+    }
+
+    @Benchmark
+    @Group("handOff")
+    @GroupThreads(1)
+    public boolean writer(Stages stages) {
+        Lease lease = stages.full.poll();
+        if (lease == null) {
+            return false;
+        }
+        lease.moveTo(Owner.SENDER, Owner.TUN_READER);
+        return stages.free.offer(lease);
+    }
+}
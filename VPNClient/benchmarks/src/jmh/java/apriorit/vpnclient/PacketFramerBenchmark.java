@@ -0,0 +1,66 @@
+package apriorit.vpnclient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalescing of packets into records of the tunnel MTU and unpacking them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PacketFramerBenchmark {
+    @Param({ "40", "200", "600" })
+    public int packetSize;
+
+    private static final int MTU = 1400;
+
+    private final PacketFramer framer = new PacketFramer(MTU);
+    private byte[] packet;
+    private byte[] record;
+    private int recordLength;
+
+    @Setup
+    public void setUp() {
+        packet = new byte[packetSize];
+        packet[0] = 0x45;
+        recordLength = fill();
+        record = framer.getRecord().clone();
+    }
+
+    private int fill() {
+        framer.reset();
+        while (framer.fits(packetSize)) {
+            framer.append(packet, 0, packetSize);
+        }
+        return framer.finish();
+    }
+
+    /** One record filled with packets */
+    @Benchmark
+    public int pack(Blackhole blackhole) {
+        int length = fill();
+        blackhole.consume(framer.getRecord());
+        return length;
+    }
+
+    @Benchmark
+    public int unpack(final Blackhole blackhole) throws IOException {
+        return PacketFramer.unpack(record, recordLength, new PacketSink() {
+            @Override
+            public void onPacket(byte[] buf, int offset, int length) {
+                blackhole.consume(length);
+            }
+        });
+    }
+}
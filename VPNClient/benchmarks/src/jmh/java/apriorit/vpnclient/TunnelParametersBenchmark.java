@@ -0,0 +1,42 @@
+package apriorit.vpnclient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the parameters sent by the server, the part of configure()
+ * which does not need VpnService.Builder.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TunnelParametersBenchmark {
+    /** Number of "r,..." parameters besides the default one */
+    @Param({ "0", "100", "1000" })
+    public int routes;
+
+    private String parameters;
+
+    @Setup
+    public void setUp() {
+        StringBuilder builder = new StringBuilder("m,1400 a,10.0.0.2,32 d,8.8.8.8 r,0.0.0.0,0");
+        for (int i = 0; i < routes; ++i) {
+            builder.append(" r,10.").append(i / 256 % 256).append('.').append(i % 256).append(".0,24");
+        }
+        builder.append(" o,f,p");
+        parameters = builder.toString();
+    }
+
+    @Benchmark
+    public TunnelParameters parse() {
+        return TunnelParameters.parse(parameters);
+    }
+}
@@ -0,0 +1,384 @@
+package apriorit.vpnclient;
+
+import com.wolfssl.WolfSSL;
+import com.wolfssl.WolfSSLContext;
+import com.wolfssl.WolfSSLException;
+import com.wolfssl.WolfSSLJNIException;
+import com.wolfssl.WolfSSLSession;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link HeadlessClient} class<br>
+ * VPN client for Linux gateways, without Android. The tunnel is set up by the same
+ * {@link TunnelHandshake} and {@link ControlChannel} as in the app and forwarded by the
+ * same {@link PacketPipeline}, a {@link LinuxTun} interface takes the place of VpnService.
+ * With --sessions the tunnel is carried by several DTLS sessions, see {@link JoinedSession}.<br>
+ * A failed tunnel is connected again with the backoff of {@link ReconnectEngine}, the
+ * interface stays up in between. SIGINT and SIGTERM send WANT_DISCONNECT to the server.<br>
+ * Usage: HeadlessClient --server host --port n --ca file [--tun name] [--coalesce]
+ * [--compress] [--sessions n] [--include file] [--exclude file] [--metrics file.csv]
+ */
+public class HeadlessClient {
+    private static final String USAGE = "Usage: HeadlessClient --server host --port n --ca file"
+            + " [--tun name] [--coalesce] [--compress] [--sessions n]"
+            + " [--include file] [--exclude file] [--metrics file.csv]";
+
+    private static final long METRICS_DUMP_INTERVAL_MS = 10000;
+
+    /** The gateway has a single network, it is managed outside of the client */
+    private static final Object NETWORK = "default";
+
+    private String serverName = null;
+    private int serverPort = 0;
+    private String caFile = null;
+    private String tunName = "tun0";
+    private boolean coalescing = false;
+    private boolean compression = false;
+    private int sessions = 1;
+    private String metricsFile = null;
+    /* split tunnelling lists, null to use the routes of the server as they are */
+    private RouteSetCompiler routeSet = null;
+
+    private WolfSSL sslLib;
+    private WolfSSLContext sslCtx;
+    private LinuxTun tun;
+    /* parameters the interface is configured with, null before the first connection */
+    private String tunSettings = null;
+
+    /* shared by all connections, like in the service of the app */
+    private final PacketBufferPool pool = new PacketBufferPool(TunnelParameters.DEFAULT_MTU);
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final KeepaliveScheduler keepalive = new KeepaliveScheduler();
+    private final DnsCache dnsCache = new DnsCache(metrics);
+    /* a gateway never gives up */
+    private final ReconnectEngine reconnect = new ReconnectEngine(Integer.MAX_VALUE, new Random());
+
+    private Thread mainThread;
+    private volatile boolean stopping = false;
+    private volatile PacketPipeline pipeline = null;
+
+    public static void main(String[] args) throws Exception {
+        HeadlessClient client = new HeadlessClient();
+        try {
+            client.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        client.run();
+    }
+
+    private void parse(String[] args) {
+        List<TunnelParameters.Prefix> include = null;
+        List<TunnelParameters.Prefix> exclude = null;
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                switch (args[i]) {
+                    case "--server":   serverName = args[++i]; break;
+                    case "--port":     serverPort = Integer.parseInt(args[++i]); break;
+                    case "--ca":       caFile = args[++i]; break;
+                    case "--tun":      tunName = args[++i]; break;
+                    case "--coalesce": coalescing = true; break;
+                    case "--compress": compression = true; break;
+                    case "--sessions": sessions = Integer.parseInt(args[++i]); break;
+                    case "--include":  include = readList(args[++i]); break;
+                    case "--exclude":  exclude = readList(args[++i]); break;
+                    case "--metrics":  metricsFile = args[++i]; break;
+                    default:
+                        throw new IllegalArgumentException("Unknown argument: " + args[i]);
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Bad arguments");
+        }
+        if (serverName == null || caFile == null || serverPort <= 0 || serverPort > 65535) {
+            throw new IllegalArgumentException("Server, port and CA certificate are required");
+        }
+        if (sessions < 1 || sessions > TunnelParameters.MAX_SESSIONS) {
+            throw new IllegalArgumentException("Number of sessions must be from 1 to "
+                    + TunnelParameters.MAX_SESSIONS);
+        }
+        if (include != null || exclude != null) {
+            List<TunnelParameters.Prefix> none = new ArrayList<>();
+            routeSet = new RouteSetCompiler(include != null ? include : none,
+                                            exclude != null ? exclude : none);
+        }
+    }
+
+    /**
+     * @return prefixes of a list file, see {@link RouteSetCompiler#parse(String)}
+     */
+    private static List<TunnelParameters.Prefix> readList(String file) {
+        try {
+            return RouteSetCompiler.parse(new String(Files.readAllBytes(Paths.get(file)), "UTF-8"));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Can't read " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void run() throws Exception {
+        System.loadLibrary("wolfssl");
+        System.loadLibrary("wolfssljni");
+
+        byte[] caCert = Files.readAllBytes(Paths.get(caFile));
+        sslLib = new WolfSSL();
+        sslCtx = new WolfSSLContext(WolfSSL.DTLSv1_2_ClientMethod());
+        if (sslCtx.loadVerifyBuffer(caCert, caCert.length, WolfSSL.SSL_FILETYPE_PEM)
+                != WolfSSL.SSL_SUCCESS) {
+            throw new IOException("Failed to load CA cert " + caFile);
+        }
+        // Callbacks are shared by all sessions, the state of a session is in its MyIOCtx.
+        sslCtx.setIORecv(new MyRecvCallback());
+        sslCtx.setIOSend(new MySendCallback());
+
+        tun = new LinuxTun(tunName);
+        System.out.println("Interface " + tun.getName() + " is created");
+
+        mainThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stop();
+            }
+        }, "HeadlessShutdown"));
+        if (metricsFile != null) {
+            startMetricsDump(new File(metricsFile));
+        }
+
+        reconnect.onNetworkAvailable(NETWORK);
+        try {
+            while (!stopping) {
+                try {
+                    runSession();
+                } catch (IOException | IllegalArgumentException e) {
+                    if (stopping) {
+                        break;
+                    }
+                    System.err.println("Connection failed: " + e);
+                }
+                long delay = reconnect.onFailure();
+                metrics.counter(MetricsRegistry.RECONNECTS).increment();
+                System.out.println("Reconnecting in " + delay + " ms");
+                Thread.sleep(delay);
+            }
+        } catch (InterruptedException e) {
+            // stopped by the shutdown hook
+        } finally {
+            tun.close();
+        }
+    }
+
+    /**
+     * Makes the main thread disconnect and return, waits for it.
+     */
+    private void stop() {
+        stopping = true;
+        final PacketPipeline current = pipeline;
+        if (current != null) {
+            current.abort(new IOException("Client is stopped"));
+        }
+        mainThread.interrupt();
+        try {
+            mainThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Connects to the server and forwards packets until the tunnel fails.
+     * @throws InterruptedException - thrown when the client is stopped
+     */
+    private void runSession() throws IOException, InterruptedException {
+        final InetSocketAddress server
+                = new InetSocketAddress(InetAddress.getByName(serverName), serverPort);
+        WolfSSLSession ssl;
+        try {
+            ssl = new WolfSSLSession(sslCtx);
+        } catch (WolfSSLException e) {
+            throw new IOException("Can't create WolfSSLSession");
+        }
+
+        DatagramChannel channel = DatagramChannel.open();
+        MyIOCtx ioctx = null;
+        List<JoinedSession> joined = new ArrayList<>();
+        ControlChannel control = null;
+        try {
+            channel.connect(server);
+            if (ssl.dtlsSetPeer(server) != WolfSSL.SSL_SUCCESS) {
+                throw new IOException("Failed to set DTLS peer");
+            }
+            ioctx = new MyIOCtx(channel, server.getAddress(), serverPort);
+            // Callbacks of the shared context wait for datagrams until the tunnel is set up.
+            ioctx.setHandshakeMode(true);
+            try {
+                ssl.setIOReadCtx(ioctx);
+                ssl.setIOWriteCtx(ioctx);
+            } catch (WolfSSLJNIException e) {
+                throw new IOException("Can't register I/O callbacks");
+            }
+
+            long handshakeStart = Clock.MONOTONIC.now();
+            int status = TunnelHandshake.connect(ssl, ioctx, pool);
+            if (status != WolfSSL.SSL_SUCCESS) {
+                throw new IOException("Can't connect to server: "
+                        + sslLib.getErrorString(ssl.getError(status)));
+            }
+            long handshakeTime = Clock.MONOTONIC.now() - handshakeStart;
+            metrics.counter(MetricsRegistry.HANDSHAKES_FULL).increment();
+            metrics.counter(MetricsRegistry.HANDSHAKE_TIME_MS).add(handshakeTime);
+            System.out.println("Connected to " + server + " in " + handshakeTime + " ms, "
+                    + ssl.getVersion() + " " + ssl.cipherGetName());
+
+            ioctx.setHandshakeMode(false);
+            final MyIOCtx channelCtx = ioctx;
+            RecordTransport transport = new DtlsTransport(ssl, new ReadPoll() {
+                @Override
+                public boolean await(int timeout) throws IOException {
+                    // MyIOCtx takes 0 as infinite, the stages always pass a limit.
+                    return channelCtx.awaitInput(Math.max(timeout, 1));
+                }
+            });
+            control = new ControlChannel(transport, pool, Clock.MONOTONIC, metrics);
+
+            String parameters = control.exchangeParameters(coalescing);
+            TunnelParameters tunnel = TunnelParameters.parse(parameters);
+            if (control.isLegacy()) {
+                System.out.println("Server speaks control protocol v1");
+            }
+
+            int mtu = tunnel.mtu > 0 ? tunnel.mtu : TunnelParameters.DEFAULT_MTU;
+            pool.setMtu(mtu);
+            if (routeSet != null) {
+                List<TunnelParameters.Prefix> routes = routeSet.compile(tunnel.routes);
+                tunnel.routes.clear();
+                tunnel.routes.addAll(routes);
+            }
+            // The interface keeps its configuration while the parameters stay the same.
+            final String settings = tunnel.interfaceSettings(
+                    mtu, routeSet != null ? routeSet.getSettings() : null);
+            if (!settings.equals(tunSettings)) {
+                tun.configure(tunnel, mtu, server.getAddress().getHostAddress());
+                tunSettings = settings;
+                System.out.println("Interface " + tun.getName() + " is configured: " + parameters);
+                if (!tunnel.dnsServers.isEmpty()) {
+                    System.out.println("DNS servers of the tunnel: " + tunnel.dnsServers);
+                }
+            }
+            reconnect.onConnected();
+
+            List<RecordTransport> transports = new ArrayList<>();
+            transports.add(transport);
+            joinSessions(server, tunnel, joined);
+            for (JoinedSession session : joined) {
+                transports.add(session.getTransport());
+            }
+
+            PacketPipeline current = new PacketPipeline(
+                    transports.toArray(new RecordTransport[transports.size()]),
+                    tun, tun, pool, metrics, keepalive, Clock.MONOTONIC);
+            if (coalescing && tunnel.hasOption(TunnelParameters.OPTION_FRAMING)) {
+                current.enableFraming(mtu);
+                System.out.println("Packet coalescing enabled, record size " + mtu);
+            }
+            if (compression && tunnel.hasOption(TunnelParameters.OPTION_COMPRESSION)) {
+                current.enableCompression();
+                System.out.println("Packet compression enabled");
+            }
+            if (!tunnel.dnsServers.isEmpty()) {
+                dnsCache.setResolvers(tunnel.dnsServers);
+                current.enableDnsCache(dnsCache);
+            }
+            pipeline = current;
+            if (stopping) {
+                throw new InterruptedException();
+            }
+            current.run();
+        } catch (InterruptedException e) {
+            if (control != null) {
+                control.disconnect();
+            }
+            throw e;
+        } catch (IOException e) {
+            if (!stopping) {
+                throw e;
+            }
+            if (control != null) {
+                control.disconnect();
+            }
+            throw new InterruptedException();
+        } finally {
+            pipeline = null;
+            for (JoinedSession session : joined) {
+                session.close();
+            }
+            if (ioctx != null) {
+                ioctx.close();
+            }
+            channel.close();
+        }
+    }
+
+    /**
+     * Opens further sessions of the tunnel. The tunnel goes on with the sessions
+     * which have joined, even if it is only the first one.
+     * @param joined - receives the sessions
+     */
+    private void joinSessions(InetSocketAddress server, TunnelParameters tunnel,
+                              List<JoinedSession> joined) {
+        if (sessions == 1) {
+            return;
+        }
+        if (!tunnel.hasOption(TunnelParameters.OPTION_JOIN) || tunnel.joinToken == null) {
+            System.out.println("Server does not support several sessions of a tunnel");
+            return;
+        }
+        for (int i = 1; i < sessions; ++i) {
+            try {
+                joined.add(JoinedSession.open(sslCtx, DatagramChannel.open(), server, pool,
+                        Clock.MONOTONIC, metrics, coalescing, tunnel.joinToken));
+            } catch (IOException e) {
+                System.err.println("Session " + i + " did not join the tunnel: " + e);
+                break;
+            }
+        }
+        System.out.println("Tunnel is carried by " + (joined.size() + 1) + " sessions");
+    }
+
+    /**
+     * Appends a snapshot of metrics to the file periodically, like the service of the app.
+     */
+    private void startMetricsDump(final File file) {
+        Thread dumper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        TimeUnit.MILLISECONDS.sleep(METRICS_DUMP_INTERVAL_MS);
+                        try {
+                            metrics.dump(file, System.currentTimeMillis());
+                        } catch (IOException e) {
+                            System.err.println("Can't dump metrics to " + file + ": " + e);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // the client exits
+                }
+            }
+        }, "HeadlessMetricsDump");
+        dumper.setDaemon(true);
+        dumper.start();
+    }
+}
@@ -0,0 +1,278 @@
+package apriorit.vpnclient;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The {@link LinuxTun} class<br>
+ * Packets of a Linux tun interface. /dev/net/tun is opened through JNA in non-blocking
+ * mode and without the packet information header, so reads and writes carry bare IP
+ * packets like the tun interface of Android.<br>
+ * MTU, addresses and routes are set with the ip command of iproute2, the client needs
+ * CAP_NET_ADMIN.
+ */
+class LinuxTun implements PacketSource, PacketSink, Closeable {
+    private static final String TUN_DEVICE = "/dev/net/tun";
+
+    private static final int  O_RDWR     = 02;
+    private static final int  O_NONBLOCK = 04000;
+    private static final long TUNSETIFF  = 0x400454caL;
+    private static final int  IFF_TUN    = 0x0001;
+    private static final int  IFF_NO_PI  = 0x1000;
+
+    /* struct ifreq: the interface name, then a union starting with ifr_flags */
+    private static final int IFNAMSIZ   = 16;
+    private static final int IFREQ_SIZE = 40;
+
+    /* struct pollfd: int fd, short events, short revents */
+    private static final int   POLLFD_SIZE     = 8;
+    private static final int   REVENTS_OFFSET  = 6;
+    private static final short POLLIN          = 0x001;
+    private static final int   ERROR_EVENTS    = 0x008 | 0x010 | 0x020; // POLLERR, POLLHUP, POLLNVAL
+
+    private static final int EINTR  = 4;
+    private static final int EAGAIN = 11;
+
+    /** Largest IP packet */
+    private static final int MAX_PACKET_SIZE = 65535;
+
+    /** Native calls of libc, size_t and nfds_t are mapped to long of the 64-bit JVM */
+    private static final class LibC {
+        static {
+            Native.register("c");
+        }
+
+        static native int open(String path, int flags);
+        static native int ioctl(int fd, long request, Pointer argp);
+        static native long read(int fd, Pointer buf, long count);
+        static native long write(int fd, Pointer buf, long count);
+        static native int poll(Pointer fds, long nfds, int timeout);
+        static native int close(int fd);
+    }
+
+    private final String name;
+    private final int fd;
+    private boolean closed = false;
+
+    /* packets are copied through native buffers, one per direction, each used by one stage */
+    private final Memory readBuffer  = new Memory(MAX_PACKET_SIZE);
+    private final Memory writeBuffer = new Memory(MAX_PACKET_SIZE);
+    private final Memory pollFd      = new Memory(POLLFD_SIZE);
+
+    /**
+     * Creates the interface, or attaches to a persistent one of the same name.
+     * @param name - interface name, e.g. "tun0"; "tun%d" lets the kernel choose the number
+     * @throws IOException - thrown if the interface can't be created
+     */
+    LinuxTun(String name) throws IOException {
+        if (Native.LONG_SIZE != 8) {
+            throw new IOException("64-bit JVM is required");
+        }
+        if (name.isEmpty() || name.length() >= IFNAMSIZ) {
+            throw new IOException("Bad interface name: " + name);
+        }
+        fd = LibC.open(TUN_DEVICE, O_RDWR | O_NONBLOCK);
+        if (fd < 0) {
+            throw error("Can't open " + TUN_DEVICE);
+        }
+
+        Memory ifreq = new Memory(IFREQ_SIZE);
+        ifreq.clear();
+        ifreq.write(0, name.getBytes(US_ASCII), 0, name.length());
+        ifreq.setShort(IFNAMSIZ, (short) (IFF_TUN | IFF_NO_PI));
+        if (LibC.ioctl(fd, TUNSETIFF, ifreq) < 0) {
+            IOException e = error("Can't create interface " + name);
+            LibC.close(fd);
+            throw e;
+        }
+        // The kernel writes back the name it has chosen.
+        this.name = ifreq.getString(0);
+
+        pollFd.setInt(0, fd);
+        pollFd.setShort(4, POLLIN);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean await(int timeout) throws IOException {
+        pollFd.setShort(REVENTS_OFFSET, (short) 0);
+        int ready = LibC.poll(pollFd, 1, timeout);
+        if (ready < 0) {
+            if (Native.getLastError() == EINTR) {
+                return false;
+            }
+            throw error("poll() failed");
+        }
+        if (ready == 0) {
+            return false;
+        }
+        if ((pollFd.getShort(REVENTS_OFFSET) & ERROR_EVENTS) != 0) {
+            throw new IOException("Tun interface is closed");
+        }
+        return true;
+    }
+
+    @Override
+    public int read(byte[] buf) throws IOException {
+        long length = LibC.read(fd, readBuffer, Math.min(buf.length, MAX_PACKET_SIZE));
+        if (length < 0) {
+            // The interface is non-blocking, so read() fails with EAGAIN once it is drained.
+            int errno = Native.getLastError();
+            if (errno == EAGAIN || errno == EINTR) {
+                return 0;
+            }
+            throw error("Can't read from " + name);
+        }
+        readBuffer.read(0, buf, 0, (int) length);
+        return (int) length;
+    }
+
+    @Override
+    public void onPacket(byte[] buf, int offset, int length) throws IOException {
+        writeBuffer.write(0, buf, offset, length);
+        if (LibC.write(fd, writeBuffer, length) < 0) {
+            throw error("Can't write to " + name);
+        }
+    }
+
+    /**
+     * Closes the descriptor, the interface disappears unless it is persistent.
+     * The stages which use it must be stopped first.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            LibC.close(fd);
+        }
+    }
+
+    /**
+     * Sets MTU, addresses and routes of the tunnel, replacing the previous ones.
+     * @param server - address of the VPN server, its datagrams must not be routed
+     *                 into the tunnel
+     * @throws IOException - thrown if an ip command failed
+     */
+    void configure(TunnelParameters tunnel, int mtu, String server)
+            throws IOException, InterruptedException {
+        String serverRoute = run(new String[] { "ip", "route", "get", server });
+        for (String[] command : commands(name, tunnel, mtu, server, serverRoute)) {
+            run(command);
+        }
+    }
+
+    /**
+     * @param serverRoute - output of "ip route get" for the server before the
+     *                      tunnel routes are added
+     * @return ip commands which configure the interface
+     */
+    static List<String[]> commands(String name, TunnelParameters tunnel, int mtu,
+                                   String server, String serverRoute) {
+        List<String[]> commands = new ArrayList<>();
+        commands.add(new String[] { "ip", "link", "set", "dev", name,
+                "mtu", Integer.toString(mtu), "up" });
+        commands.add(new String[] { "ip", "addr", "flush", "dev", name });
+        commands.add(new String[] { "ip", "route", "flush", "dev", name });
+        for (TunnelParameters.Prefix address : tunnel.addresses) {
+            commands.add(new String[] { "ip", "addr", "add",
+                    address.address + "/" + address.length, "dev", name });
+        }
+
+        // Pin the current route to the server, routes of the tunnel may cover it.
+        String[] pinned = serverRoute(name, server, serverRoute);
+        if (pinned != null && !tunnel.routes.isEmpty()) {
+            commands.add(pinned);
+        }
+
+        for (TunnelParameters.Prefix route : tunnel.routes) {
+            if (route.length == 0) {
+                // The default route stays as it is, two halves of the address space
+                // are more specific and take the traffic.
+                boolean ipv6 = route.address.contains(":");
+                commands.add(new String[] { "ip", "route", "replace",
+                        ipv6 ? "::/1" : "0.0.0.0/1", "dev", name });
+                commands.add(new String[] { "ip", "route", "replace",
+                        ipv6 ? "8000::/1" : "128.0.0.0/1", "dev", name });
+            } else {
+                commands.add(new String[] { "ip", "route", "replace",
+                        route.address + "/" + route.length, "dev", name });
+            }
+        }
+        return commands;
+    }
+
+    /**
+     * @return command which adds a host route to the server through the gateway
+     *         of "ip route get", null if that route goes through the tunnel itself
+     */
+    static String[] serverRoute(String name, String server, String serverRoute) {
+        List<String> fields = Arrays.asList(serverRoute.trim().split("\\s+"));
+        int dev = fields.indexOf("dev");
+        if (dev < 0 || dev + 1 >= fields.size() || fields.get(dev + 1).equals(name)) {
+            return null;
+        }
+        List<String> command = new ArrayList<>(Arrays.asList("ip", "route", "replace",
+                server + (server.contains(":") ? "/128" : "/32")));
+        int via = fields.indexOf("via");
+        if (via >= 0 && via + 1 < fields.size()) {
+            command.add("via");
+            command.add(fields.get(via + 1));
+        }
+        command.add("dev");
+        command.add(fields.get(dev + 1));
+        return command.toArray(new String[command.size()]);
+    }
+
+    /**
+     * @return output of the command
+     * @throws IOException - thrown if the command failed
+     */
+    private static String run(String[] command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        InputStream in = process.getInputStream();
+        try {
+            byte[] chunk = new byte[4096];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                output.write(chunk, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        String text = new String(output.toByteArray(), US_ASCII).trim();
+        if (process.waitFor() != 0) {
+            throw new IOException(join(command) + " failed: " + text);
+        }
+        return text;
+    }
+
+    private static String join(String[] command) {
+        StringBuilder result = new StringBuilder();
+        for (String word : command) {
+            if (result.length() > 0) {
+                result.append(' ');
+            }
+            result.append(word);
+        }
+        return result.toString();
+    }
+
+    private static IOException error(String message) {
+        return new IOException(message + ", errno " + Native.getLastError());
+    }
+}
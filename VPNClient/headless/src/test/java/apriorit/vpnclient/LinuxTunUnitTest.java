@@ -0,0 +1,74 @@
+package apriorit.vpnclient;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LinuxTunUnitTest {
+    private static final String GATEWAY_ROUTE =
+            "203.0.113.5 via 192.168.1.1 dev eth0 src 192.168.1.10 uid 0 \n    cache ";
+
+    private static List<String> join(List<String[]> commands) {
+        List<String> lines = new ArrayList<>();
+        for (String[] command : commands) {
+            StringBuilder line = new StringBuilder();
+            for (String word : command) {
+                line.append(line.length() > 0 ? " " : "").append(word);
+            }
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    @Test
+    public void defaultRouteIsSplitAndServerIsPinned() {
+        TunnelParameters tunnel = TunnelParameters.parse("m,1400 a,10.0.0.2,32 d,8.8.8.8 r,0.0.0.0,0");
+        List<String> commands = join(LinuxTun.commands("tun0", tunnel, 1360, "203.0.113.5",
+                GATEWAY_ROUTE));
+
+        assertEquals(7, commands.size());
+        assertEquals("ip link set dev tun0 mtu 1360 up", commands.get(0));
+        assertEquals("ip addr flush dev tun0", commands.get(1));
+        assertEquals("ip route flush dev tun0", commands.get(2));
+        assertEquals("ip addr add 10.0.0.2/32 dev tun0", commands.get(3));
+        assertEquals("ip route replace 203.0.113.5/32 via 192.168.1.1 dev eth0", commands.get(4));
+        assertEquals("ip route replace 0.0.0.0/1 dev tun0", commands.get(5));
+        assertEquals("ip route replace 128.0.0.0/1 dev tun0", commands.get(6));
+    }
+
+    @Test
+    public void siteRoutesAreAddedAsIs() {
+        TunnelParameters tunnel = TunnelParameters.parse(
+                "a,10.0.0.2,24 a,fd00::2,64 r,172.16.0.0,12 r,fd00:1::,48");
+        List<String> commands = join(LinuxTun.commands("tun1", tunnel, 1400, "203.0.113.5",
+                "203.0.113.5 dev eth1 src 203.0.113.10"));
+
+        assertTrue(commands.contains("ip addr add 10.0.0.2/24 dev tun1"));
+        assertTrue(commands.contains("ip addr add fd00::2/64 dev tun1"));
+        assertTrue(commands.contains("ip route replace 203.0.113.5/32 dev eth1"));
+        assertTrue(commands.contains("ip route replace 172.16.0.0/12 dev tun1"));
+        assertTrue(commands.contains("ip route replace fd00:1::/48 dev tun1"));
+    }
+
+    @Test
+    public void serverIsNotPinnedToTheTunnel() {
+        assertNull(LinuxTun.serverRoute("tun0", "203.0.113.5", "203.0.113.5 dev tun0 src 10.0.0.2"));
+        assertNull(LinuxTun.serverRoute("tun0", "203.0.113.5", ""));
+        assertArrayEquals(new String[] { "ip", "route", "replace", "2001:db8::5/128",
+                        "via", "fe80::1", "dev", "eth0" },
+                LinuxTun.serverRoute("tun0", "2001:db8::5",
+                        "2001:db8::5 from :: via fe80::1 dev eth0 proto ra src 2001:db8::10"));
+    }
+
+    @Test
+    public void nothingIsPinnedWithoutRoutes() {
+        TunnelParameters tunnel = TunnelParameters.parse("a,10.0.0.2,32");
+        List<String> commands = join(LinuxTun.commands("tun0", tunnel, 1400, "203.0.113.5",
+                GATEWAY_ROUTE));
+
+        assertEquals(4, commands.size());
+    }
+}
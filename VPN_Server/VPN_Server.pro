@@ -16,6 +16,7 @@ HEADERS += \
 
 LIBS += -lpthread \
         -lwolfssl \
+        -llz4 \
 
 DISTFILES += \
     other.txt
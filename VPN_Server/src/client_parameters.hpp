@@ -19,6 +19,7 @@ struct ClientParameters {
     std::string routeMask;
     std::string physInterface;   // eth0, wlan0 etc..
     char  parametersToSend[1024];
+    int   parametersLength;  // zero and the parameters, without the padding
 };
 
 #endif // CLIENT_PARAMETERS_HPP
@@ -69,24 +69,38 @@ void TunnelManager::removeTunFromSet(const size_t& tunNumber) {
 
 /**
  * @brief initUnixSettings - uplink new p2p tunnel
- *                           (server must be running with root permissions)
+ *                           (server must be running with root permissions).
+ * The interface has several queues, further sessions of the client
+ * attach their own queues to it.
  * @param serverTunAddr    - server tunnel ip
  * @param clientTunAddr    - client tunnel ip
+ * @param mtu              - tunnel MTU, the same as sent to the client
  */
 void TunnelManager::createUnixTunnel
 (const std::string& serverTunAddr,
  const std::string& clientTunAddr,
- const std::string&      tunStr) {
+ const std::string&      tunStr,
+ const std::string&         mtu) {
 
     std::string tunName = tunStr;
-    std::string tunInterfaceSetup = "ip tuntap add dev " + tunName +  " mode tun";
+    std::string tunInterfaceSetup = "ip tuntap add dev " + tunName +  " mode tun multi_queue";
     execTerminalCommand(tunInterfaceSetup);
 
     std::string ifconfig = "ifconfig " + tunName + " " + serverTunAddr +
-                      " dstaddr " + clientTunAddr + " up";
+                      " dstaddr " + clientTunAddr + " mtu " + mtu + " up";
     execTerminalCommand(ifconfig);
 }
 
+/**
+ * @brief setTunnelMtu
+ * changes MTU of an existing tunnel interface
+ * @param tunStr - tunnel interface name (e.g. 'vpn_tun3')
+ * @param mtu    - new MTU
+ */
+void TunnelManager::setTunnelMtu(const std::string& tunStr, int mtu) {
+    execTerminalCommand("ifconfig " + tunStr + " mtu " + std::to_string(mtu));
+}
+
 /**
  * @brief cleanupTunnels method cleans uplinked tunnels previous<br>
  * VPN Server work (if server crashed and didn't delete interfaces<br>
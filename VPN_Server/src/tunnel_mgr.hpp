@@ -52,7 +52,9 @@ public:
     void createUnixTunnel
     (const std::string& serverTunAddr,
      const std::string& clientTunAddr,
-     const std::string&      tunStr);
+     const std::string&      tunStr,
+     const std::string&         mtu);
+    void setTunnelMtu(const std::string& tunStr, int mtu);
 
     void cleanupTunnels(const char* tunnelPrefix = "vpn_");
 
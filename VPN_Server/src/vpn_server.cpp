@@ -90,13 +90,16 @@ void VPNServer::createNewConnection() {
     std::string tunStr      = "vpn_tun" + std::to_string(tunNumber);
     std::string tempTunStr = tunStr;
     int interface = 0; // Tun interface
-    int sentParameters = -12345;
     int e = 0;
     // allocate the buffer for a single packet.
     char packet[32767];
-    int timer = 0;
     bool isClientConnected = true;
     bool idle = true;
+    bool clientFraming = false; // client accepts coalesced records
+    bool clientPings = false;   // client sends keepalives by itself
+    bool joined = false;        // packets go to the tunnel of another session
+    std::string joinToken = makeJoinToken();
+    std::chrono::steady_clock::time_point now, lastSent, lastReceived;
     int length = 0;
     int sentData = 0;
     std::pair<int, WOLFSSL*> tunnel;
@@ -109,14 +112,17 @@ void VPNServer::createNewConnection() {
 
     tunMgr->createUnixTunnel(serverIpStr,
                              clientIpStr,
-                             tunStr);
+                             tunStr,
+                             this->cliParams.mtu);
     // Get TUN interface.
     interface = get_interface(tunStr.c_str());
 
     mutex.unlock();
 
     // fill array with parameters to send:
-    std::unique_ptr<ClientParameters> cliParams(buildParameters(clientIpStr));
+    std::unique_ptr<ClientParameters> cliParams(buildParameters(clientIpStr, joinToken));
+    const int tunnelMtu = atoi(this->cliParams.mtu.c_str());
+    int maxRecordSize = tunnelMtu;
 
     // wait for a tunnel.
     while ((tunnel = get_tunnel(port.c_str())).first != -1
@@ -124,22 +130,22 @@ void VPNServer::createNewConnection() {
            tunnel.second != nullptr) {
 
         TunnelManager::log("New client connected to [" + tunStr + "]");
+        lastSent = lastReceived = std::chrono::steady_clock::now();
 
-        // send the parameters several times in case of packet loss.
-        for (int i = 0; i < 3; ++i) {
-            sentParameters =
-                wolfSSL_send(tunnel.second, cliParams->parametersToSend,
-                             sizeof(cliParams->parametersToSend),
-                             MSG_NOSIGNAL);
-
-            if(sentParameters < 0) {
-                TunnelManager::log("Error sending parameters: " +
-                                std::to_string(sentParameters));
-                e = wolfSSL_get_error(tunnel.second, 0);
-                printf("error = %d, %s\n", e, wolfSSL_ERR_reason_error_string(e));
-            }
+        // further sessions of the client may join this tunnel by the token.
+        mutex.lock();
+        sharedTunnels[joinToken] = SharedTunnel{tunStr, 1};
+        mutex.unlock();
+
+        // the previous client of this tunnel may have lowered its MTU.
+        if (maxRecordSize != tunnelMtu) {
+            tunMgr->setTunnelMtu(tunStr, tunnelMtu);
+            maxRecordSize = tunnelMtu;
         }
 
+        // the parameters are the answer to the options of the client, which
+        // it repeats until they come.
+
         // we keep forwarding packets till something goes wrong.
         while (isClientConnected) {
             // assume that we did not make any progress in this iteration.
@@ -147,9 +153,20 @@ void VPNServer::createNewConnection() {
 
             // read the outgoing packet from the input stream.
             length = read(interface, packet, sizeof(packet));
+            if (length < 0 && joined && errno != EAGAIN) {
+                // the first session of the client has closed the tunnel.
+                TunnelManager::log("[" + tempTunStr + "] is closed. Breaking...");
+                break;
+            }
             if (length > 0) {
-                // write the outgoing packet to the tunnel.
-                sentData = wolfSSL_send(tunnel.second, packet, length, MSG_NOSIGNAL);
+                // write the outgoing packet to the tunnel. If the client
+                // accepts coalesced records, drain the interface into them.
+                if (clientFraming) {
+                    sentData = sendCoalesced(tunnel.second, interface, packet,
+                                             sizeof(packet), length, maxRecordSize);
+                } else {
+                    sentData = wolfSSL_send(tunnel.second, packet, length, MSG_NOSIGNAL);
+                }
                 if(sentData < 0) {
                     TunnelManager::log("sentData < 0");
                     e = wolfSSL_get_error(tunnel.second, 0);
@@ -158,10 +175,7 @@ void VPNServer::createNewConnection() {
 
                 // there might be more outgoing packets.
                 idle = false;
-
-                // if we were receiving, switch to sending.
-                if (timer < 1)
-                    timer = 1;
+                lastSent = std::chrono::steady_clock::now();
             }
 
             // read the incoming packet from the tunnel.
@@ -175,28 +189,110 @@ void VPNServer::createNewConnection() {
                 break;
             }
             if (length > 0) {
-                // ignore control messages, which start with zero.
-                if (packet[0] != 0) {
-                    // write the incoming packet to the output stream.
-                    sentData = write(interface, packet, length);
-                    if(sentData < 0) {
-                        TunnelManager::log("write(interface, packet, length) < 0");
+                if (packet[0] == FRAME_MARKER) {
+                    // several packets in one record.
+                    if (unpackFrames(packet, length, interface) < 0) {
+                        TunnelManager::log("Malformed coalesced record dropped");
                     }
+                } else if (packet[0] != 0) { // ignore control messages, which start with zero.
+                    // write the incoming packet to the output stream.
+                    sentData = writePacket(interface, packet, length);
                 } else {
                     TunnelManager::log("Recieved empty control msg from client");
-                    if(packet[1] == CLIENT_WANT_DISCONNECT && length == 2) {
+                    // requests of control protocol v2 carry a control message
+                    // after their sequence number, every one of them is acked.
+                    int seq = -1;
+                    char* message = packet;
+                    int messageLength = parseControlRequest(packet, length, seq);
+                    if (messageLength >= 0) {
+                        message = packet + CONTROL_HEADER_SIZE;
+                    } else {
+                        messageLength = length;
+                    }
+                    // answer of a v2 request, the type of the request by default.
+                    const char* answer = message;
+                    int answerLength = std::min(messageLength, 2);
+                    if(message[1] == CLIENT_WANT_DISCONNECT && messageLength == 2) {
                         TunnelManager::log("WANT_DISCONNECT from client");
                         isClientConnected = false;
                     }
+                    bool options = isClientOptions(message, messageLength, seq >= 0);
+                    if (options && hasClientOption(message, messageLength, 'f')) {
+                        clientFraming = true;
+                    }
+                    std::string token = options ? parseJoinToken(message, messageLength)
+                                                : std::string();
+                    if (!token.empty() && !joined) {
+                        std::string sharedTunStr;
+                        int queue = joinTunnel(token, joinToken, sharedTunStr);
+                        if (queue >= 0) {
+                            // the own tunnel of this session is not needed anymore.
+                            mutex.lock();
+                            close(interface);
+                            manager->returnAddrToPool(serTunAddr);
+                            manager->returnAddrToPool(cliTunAddr);
+                            tunMgr->closeTunNumber(tunNumber);
+                            mutex.unlock();
+                            TunnelManager::log("[" + tempTunStr + "] joined [" +
+                                               sharedTunStr + "]");
+                            interface = queue;
+                            tunStr = tempTunStr = sharedTunStr;
+                            joinToken = token;
+                            joined = true;
+                        }
+                    }
+                    const char joinedAnswer[2] = { ZERO_PACKET, SERVER_JOINED };
+                    if (options && joined && !token.empty()) {
+                        answer = joinedAnswer;
+                        answerLength = sizeof(joinedAnswer);
+                    } else if (options) {
+                        // v1 clients expect the whole padded block.
+                        answer = cliParams->parametersToSend;
+                        answerLength = seq < 0 ? static_cast<int>(sizeof(cliParams->parametersToSend))
+                                               : cliParams->parametersLength;
+                    }
+                    if (options || seq >= 0) {
+                        // the client waits for the answer before it goes on,
+                        // repeated requests are answered again.
+                        sentData = sendControlAnswer(tunnel.second, seq, answer, answerLength);
+                        if(sentData < 0) {
+                            TunnelManager::log("Error sending control answer");
+                        } else {
+                            lastSent = std::chrono::steady_clock::now();
+                        }
+                    }
+                    if (answerMtuProbe(packet, length, tunnelMtu)) {
+                        // the client takes the largest echoed probe as the path MTU.
+                        sentData = wolfSSL_send(tunnel.second, packet, length, MSG_NOSIGNAL);
+                        if(sentData < 0) {
+                            TunnelManager::log("Error sending MTU probe reply");
+                        } else {
+                            lastSent = std::chrono::steady_clock::now();
+                        }
+                    }
+                    int pathMtu = parseMtuReport(message, messageLength, tunnelMtu);
+                    if (pathMtu > 0 && pathMtu != maxRecordSize) {
+                        TunnelManager::log("Path MTU of [" + tunStr + "] is " +
+                                           std::to_string(pathMtu));
+                        tunMgr->setTunnelMtu(tunStr, pathMtu);
+                        maxRecordSize = pathMtu;
+                    }
+                    if(packet[1] == CLIENT_PING && length == 2) {
+                        // answer at once, the client measures NAT binding lifetime by it.
+                        clientPings = true;
+                        packet[1] = SERVER_PONG;
+                        sentData = wolfSSL_send(tunnel.second, packet, 2, MSG_NOSIGNAL);
+                        if(sentData < 0) {
+                            TunnelManager::log("Error sending PONG");
+                        } else {
+                            lastSent = std::chrono::steady_clock::now();
+                        }
+                    }
                 }
 
                 // there might be more incoming packets.
                 idle = false;
-
-                // if we were sending, switch to receiving.
-                if (timer > 0) {
-                    timer = 0;
-                }
+                lastReceived = std::chrono::steady_clock::now();
             }
 
             // if we are idle or waiting for the network, sleep for a
@@ -204,34 +300,29 @@ void VPNServer::createNewConnection() {
             if (idle) {
                 std::this_thread::sleep_for(std::chrono::microseconds(100000));
 
-                // increase the timer. This is inaccurate but good enough,
-                // since everything is operated in non-blocking mode.
-                timer += (timer > 0) ? 100 : -100;
+                now = std::chrono::steady_clock::now();
 
-                // we are receiving for a long time but not sending
-                if (timer < -10000) {  // -16000
-                    // send empty control messages.
+                // clients which do not send PINGs rely on our keepalives. One
+                // refreshes the NAT binding, a lost one is followed by the next.
+                if (!clientPings && now - lastSent > KEEPALIVE_INTERVAL) {
+                    // send an empty control message.
                     packet[0] = 0;
-                    for (int i = 0; i < 3; ++i) {
-                        sentData = wolfSSL_send(tunnel.second, packet, 1, MSG_NOSIGNAL);
-                        if(sentData < 0) {
-                            TunnelManager::log("sentData < 0");
-                            e = wolfSSL_get_error(tunnel.second, 0);
-                            printf("error = %d, %s\n", e, wolfSSL_ERR_reason_error_string(e));
-                        } else {
-                            TunnelManager::log("sent empty control packet");
-                        }
+                    sentData = wolfSSL_send(tunnel.second, packet, 1, MSG_NOSIGNAL);
+                    if(sentData < 0) {
+                        TunnelManager::log("sentData < 0");
+                        e = wolfSSL_get_error(tunnel.second, 0);
+                        printf("error = %d, %s\n", e, wolfSSL_ERR_reason_error_string(e));
+                    } else {
+                        TunnelManager::log("sent empty control packet");
                     }
-
-                    // switch to sending.
-                    timer = 1;
+                    lastSent = now;
                 }
 
-                // we are sending for a long time but not receiving.
-                if (timer > TIMEOUT_LIMIT) {
+                // nothing received for a long time, even keepalives.
+                if (now - lastReceived > TIMEOUT_LIMIT) {
                     TunnelManager::log("[" + tempTunStr + "]" +
-                                       "Sending for a long time but"
-                                       " not receiving. Breaking...");
+                                       "Nothing received for a long time."
+                                       " Breaking...");
                     break;
                 }
             }
@@ -245,6 +336,15 @@ void VPNServer::createNewConnection() {
     wolfSSL_shutdown(tunnel.second);
     wolfSSL_free(tunnel.second);
     //
+    if (joined) {
+        // detach the queue, the tunnel belongs to the first session.
+        close(interface);
+        leaveTunnel(joinToken);
+        return;
+    }
+    mutex.lock();
+    sharedTunnels.erase(joinToken);
+    mutex.unlock();
     manager->returnAddrToPool(serTunAddr);
     manager->returnAddrToPool(cliTunAddr);
     tunMgr->closeTunNumber(tunNumber);
@@ -407,29 +507,436 @@ bool VPNServer::isNetIfaceExists(const std::string& iface) {
 
 /**
  * @brief buildParameters
- * @param clientIp - Client's tunnel IP address
+ * @param clientIp  - Client's tunnel IP address
+ * @param joinToken - token which further sessions of the client send to join the tunnel
  * @return         - pointer to ClientParameters structure
  * with filled parameters to send to the client.
  */
-ClientParameters* VPNServer::buildParameters(const std::string& clientIp) {
+ClientParameters* VPNServer::buildParameters(const std::string& clientIp,
+                                             const std::string& joinToken) {
     ClientParameters* cliParams = new ClientParameters;
     int size = sizeof(cliParams->parametersToSend);
     // Here is parameters string formed:
     std::string paramStr = std::string() + "m," + this->cliParams.mtu +
             " a," + clientIp + ",32 d," + this->cliParams.dnsIp +
-            " r," + this->cliParams.routeIp + "," + this->cliParams.routeMask;
+            " r," + this->cliParams.routeIp + "," + this->cliParams.routeMask +
+            " j," + joinToken +
+            " o,f,p,j,z"; // options supported by the server: f - coalesced records,
+                          // p - MTU probes are echoed, j - sessions join a tunnel,
+                          // z - compressed packets are accepted
 
     // fill parameters array:
     cliParams->parametersToSend[0] = 0; // control messages always start with zero
     memcpy(&cliParams->parametersToSend[1], paramStr.c_str(), paramStr.length());
     memset(&cliParams->parametersToSend[paramStr.length() + 1], ' ', size - (paramStr.length() + 1));
+    cliParams->parametersLength = paramStr.length() + 1;
 
     return cliParams;
 }
 
+/**
+ * @brief hasClientOption
+ * Looks for an option in the "o,<option>,..." field of a client control packet.
+ * @param packet - control packet, starts with zero
+ * @param length - packet length
+ * @param option - option to look for
+ * @return true if the client announced the option
+ */
+bool VPNServer::hasClientOption(const char* packet, int length, char option) {
+    for (int i = 1; i + 2 < length; ++i) {
+        if (packet[i] != 'o' || packet[i + 1] != ',') {
+            continue;
+        }
+        // options are single characters separated by commas.
+        for (i += 2; i < length && packet[i] != ' ' && packet[i] != 0; i += 2) {
+            if (packet[i] == option) {
+                return true;
+            }
+            if (i + 1 >= length || packet[i + 1] != ',') {
+                break;
+            }
+        }
+        return false;
+    }
+    return false;
+}
+
+/**
+ * @brief parseJoinToken
+ * Looks for the "j,<token>" field of a client control packet. A session
+ * which sends it carries the packets of the tunnel the token was sent with.
+ * @param packet - control packet, starts with zero
+ * @param length - packet length
+ * @return the token, empty if there is none or it is not a hex string
+ */
+std::string VPNServer::parseJoinToken(const char* packet, int length) {
+    for (int i = 1; i + 2 < length; ++i) {
+        if (packet[i] != 'j' || packet[i + 1] != ',' || (i > 1 && packet[i - 1] != ' ')) {
+            continue;
+        }
+        std::string token;
+        for (i += 2; i < length && packet[i] != ' ' && packet[i] != 0; ++i) {
+            if (!isxdigit(static_cast<unsigned char>(packet[i]))
+                    || token.length() == MAX_TOKEN_LENGTH) {
+                return std::string();
+            }
+            token += packet[i];
+        }
+        return token;
+    }
+    return std::string();
+}
+
+/**
+ * @brief makeJoinToken
+ * @return random token of 16 hex digits
+ */
+std::string VPNServer::makeJoinToken() {
+    static std::random_device random;
+    char token[17];
+    snprintf(token, sizeof(token), "%08x%08x", random(), random());
+    return token;
+}
+
+/**
+ * @brief joinTunnel
+ * Attaches a new queue to the tunnel of the token. The kernel spreads the
+ * flows of the tunnel over its queues, so every session decrypts and
+ * encrypts its own part of the traffic.
+ * @param token    - token received from the client
+ * @param ownToken - token sent by this session, a session can't join itself
+ * @param tunStr   - receives the name of the joined tunnel
+ * @return descriptor of the queue, -1 if the token is unknown or
+ * the tunnel has MAX_SHARED_SESSIONS already
+ */
+int VPNServer::joinTunnel(const std::string& token, const std::string& ownToken,
+                          std::string& tunStr) {
+    std::lock_guard<std::recursive_mutex> lock(mutex);
+    auto shared = sharedTunnels.find(token);
+    if (token == ownToken || shared == sharedTunnels.end()
+            || shared->second.sessions >= MAX_SHARED_SESSIONS) {
+        TunnelManager::log("Session can't join: unknown token or too many sessions");
+        return -1;
+    }
+    int queue;
+    try {
+        queue = get_interface(shared->second.tunStr.c_str());
+    } catch (const std::runtime_error& e) {
+        TunnelManager::log(e.what(), std::cerr);
+        return -1;
+    }
+    ++shared->second.sessions;
+    sharedTunnels.erase(ownToken);
+    tunStr = shared->second.tunStr;
+    return queue;
+}
+
+/**
+ * @brief leaveTunnel
+ * A joined session is closed, its place may be taken by another one.
+ * @param token - token of the joined tunnel
+ */
+void VPNServer::leaveTunnel(const std::string& token) {
+    std::lock_guard<std::recursive_mutex> lock(mutex);
+    auto shared = sharedTunnels.find(token);
+    if (shared != sharedTunnels.end()) {
+        --shared->second.sessions;
+    }
+}
+
+/**
+ * @brief answerProbe
+ * Turns a latency probe of a client into the reply: the type is replaced,
+ * the nonce after it stays, so the reply is never larger than the probe.
+ * @param packet - datagram received by the listening socket
+ * @param length - datagram length
+ * @return true if the packet was a probe and should be sent back
+ */
+bool VPNServer::answerProbe(char* packet, int length) {
+    if (length != PROBE_SIZE || packet[0] != ZERO_PACKET || packet[1] != CLIENT_PROBE) {
+        return false;
+    }
+    packet[1] = SERVER_PROBE_REPLY;
+    return true;
+}
+
+/**
+ * @brief answerMtuProbe
+ * Turns a path MTU probe into the reply of the same size: the type is
+ * replaced, the padding stays. Probes larger than the tunnel MTU are dropped,
+ * the tunnel would not carry such packets anyway.
+ * @param packet    - control packet received from the client
+ * @param length    - packet length
+ * @param tunnelMtu - MTU of the tunnel sent in the parameters
+ * @return true if the packet was a probe and should be sent back
+ */
+bool VPNServer::answerMtuProbe(char* packet, int length, int tunnelMtu) {
+    if (length < 2 || length > tunnelMtu
+            || packet[0] != ZERO_PACKET || packet[1] != CLIENT_MTU_PROBE) {
+        return false;
+    }
+    packet[1] = SERVER_MTU_PROBE_REPLY;
+    return true;
+}
+
+/**
+ * @brief parseMtuReport
+ * Reads the path MTU found by the client: zero, CLIENT_MTU_SET and
+ * 2-byte big-endian MTU.
+ * @param packet    - control packet received from the client
+ * @param length    - packet length
+ * @param tunnelMtu - MTU of the tunnel sent in the parameters, the upper bound
+ * @return path MTU, -1 if the packet is not a valid report
+ */
+int VPNServer::parseMtuReport(const char* packet, int length, int tunnelMtu) {
+    if (length != 4 || packet[0] != ZERO_PACKET || packet[1] != CLIENT_MTU_SET) {
+        return -1;
+    }
+    int mtu = (static_cast<unsigned char>(packet[2]) << 8)
+            | static_cast<unsigned char>(packet[3]);
+    if (mtu < MIN_MTU || mtu > tunnelMtu) {
+        return -1;
+    }
+    return mtu;
+}
+
+/**
+ * @brief parseControlRequest
+ * Reads the header of a request of control protocol v2: zero, CLIENT_CONTROL and
+ * 2-byte big-endian sequence number, the control message of v1 follows.
+ * @param packet - control packet received from the client
+ * @param length - packet length
+ * @param seq    - receives the sequence number of the request
+ * @return length of the message at packet + CONTROL_HEADER_SIZE,
+ * -1 if the packet is not a request of v2
+ */
+int VPNServer::parseControlRequest(const char* packet, int length, int& seq) {
+    if (length <= CONTROL_HEADER_SIZE || packet[0] != ZERO_PACKET
+            || packet[1] != CLIENT_CONTROL || packet[CONTROL_HEADER_SIZE] != ZERO_PACKET) {
+        return -1;
+    }
+    seq = (static_cast<unsigned char>(packet[2]) << 8)
+        | static_cast<unsigned char>(packet[3]);
+    return length - CONTROL_HEADER_SIZE;
+}
+
+/**
+ * @brief isClientOptions
+ * Options of the client: zero and the fields "o,..." and "j,..." in the format
+ * of the parameters. Clients of control protocol v1 pad them with zeroes to the
+ * size of the parameter block, clients of v2 send them as they are.
+ * @param message - control message received from the client
+ * @param length  - message length
+ * @param request - the message came in a request of v2
+ * @return true if the message holds the options, they are answered with the parameters
+ */
+bool VPNServer::isClientOptions(const char* message, int length, bool request) {
+    if (length < 1 || message[0] != ZERO_PACKET) {
+        return false;
+    }
+    if (!request) {
+        // a path MTU probe may be as large.
+        return length == static_cast<int>(sizeof(ClientParameters::parametersToSend))
+               && message[1] != CLIENT_MTU_PROBE;
+    }
+    return length == 1 || message[1] == 'o' || message[1] == ' ';
+}
+
+/**
+ * @brief buildControlAck
+ * Makes the ack of a request of control protocol v2: zero, SERVER_CONTROL_ACK,
+ * the sequence number of the request and the answer message.
+ * @param ack          - buffer of at least CONTROL_HEADER_SIZE + answerLength bytes
+ * @param seq          - sequence number of the request
+ * @param answer       - answer message, starts with zero
+ * @param answerLength - answer length
+ * @return ack length
+ */
+int VPNServer::buildControlAck(char* ack, int seq, const char* answer, int answerLength) {
+    ack[0] = ZERO_PACKET;
+    ack[1] = SERVER_CONTROL_ACK;
+    ack[2] = static_cast<char>(seq >> 8);
+    ack[3] = static_cast<char>(seq);
+    memcpy(ack + CONTROL_HEADER_SIZE, answer, answerLength);
+    return CONTROL_HEADER_SIZE + answerLength;
+}
+
+/**
+ * @brief appendFrame
+ * Appends a packet to a coalesced record:
+ * FRAME_MARKER, then 2-byte big-endian length and the packet for every packet.
+ * @param record       - record buffer, must have room for the packet
+ * @param recordLength - current record length, 0 for a new record
+ * @param packet       - packet to append
+ * @param length       - packet length
+ * @return new record length
+ */
+int VPNServer::appendFrame(char* record, int recordLength,
+                           const char* packet, int length) {
+    if (recordLength == 0) {
+        record[0] = FRAME_MARKER;
+        recordLength = 1;
+    }
+    record[recordLength]     = (char) ((length >> 8) & 0xFF);
+    record[recordLength + 1] = (char) (length & 0xFF);
+    memcpy(&record[recordLength + 2], packet, length);
+    return recordLength + 2 + length;
+}
+
+/**
+ * @brief unpackFrames
+ * Writes every packet of a coalesced record to the descriptor.
+ * @param record - record starting with FRAME_MARKER
+ * @param length - record length
+ * @param fd     - tun interface
+ * @return number of packets or -1 if the record is malformed
+ * (packets before the malformed part are written anyway)
+ */
+int VPNServer::unpackFrames(const char* record, int length, int fd) {
+    if (length < 1 || record[0] != FRAME_MARKER) {
+        return -1;
+    }
+    int count = 0;
+    int offset = 1;
+    while (offset < length) {
+        if (offset + 2 > length) {
+            return -1;
+        }
+        int packetLength = (((unsigned char) record[offset]) << 8)
+                           | (unsigned char) record[offset + 1];
+        offset += 2;
+        if (packetLength == 0 || offset + packetLength > length) {
+            return -1;
+        }
+        writePacket(fd, &record[offset], packetLength);
+        offset += packetLength;
+        ++count;
+    }
+    return count;
+}
+
+/**
+ * @brief decompressPacket
+ * Restores a packet compressed by the client:
+ * COMPRESS_MARKER, 2-byte big-endian length of the packet and its LZ4 block.
+ * @param record     - compressed packet
+ * @param length     - length of the compressed packet
+ * @param packet     - buffer for the packet
+ * @param packetSize - size of the buffer
+ * @return length of the packet or -1 if the compressed packet is malformed
+ */
+int VPNServer::decompressPacket(const char* record, int length,
+                                char* packet, int packetSize) {
+    if (length <= COMPRESS_OVERHEAD || record[0] != COMPRESS_MARKER) {
+        return -1;
+    }
+    int original = (((unsigned char) record[1]) << 8) | (unsigned char) record[2];
+    if (original == 0 || original > packetSize) {
+        return -1;
+    }
+    // the block must restore exactly the announced length.
+    int result = LZ4_decompress_safe(&record[COMPRESS_OVERHEAD], packet,
+                                     length - COMPRESS_OVERHEAD, original);
+    return result == original ? result : -1;
+}
+
+/**
+ * @brief writePacket
+ * Writes a packet received from the client to the descriptor,
+ * a compressed packet is decompressed first.
+ * @param fd     - tun interface
+ * @param packet - packet or compressed packet
+ * @param length - its length
+ * @return result of write, -1 if the compressed packet is malformed
+ */
+int VPNServer::writePacket(int fd, const char* packet, int length) {
+    char plain[32767];
+    if (length > 0 && packet[0] == COMPRESS_MARKER) {
+        length = decompressPacket(packet, length, plain, sizeof(plain));
+        if (length < 0) {
+            TunnelManager::log("Malformed compressed packet dropped");
+            return -1;
+        }
+        packet = plain;
+    }
+    int written = write(fd, packet, length);
+    if (written < 0) {
+        TunnelManager::log("write(interface, packet, length) < 0");
+    }
+    return written;
+}
+
+/**
+ * @brief sendControlAnswer
+ * Sends the answer to a control message: in an ack for a request of v2,
+ * as it is for clients of v1.
+ * @param ssl          - DTLS session
+ * @param seq          - sequence number of the request, -1 for v1
+ * @param answer       - answer message
+ * @param answerLength - answer length, at most the size of the parameter block
+ * @return result of wolfSSL_send
+ */
+int VPNServer::sendControlAnswer(WOLFSSL* ssl, int seq, const char* answer,
+                                 int answerLength) {
+    if (seq < 0) {
+        return wolfSSL_send(ssl, answer, answerLength, MSG_NOSIGNAL);
+    }
+    char ack[CONTROL_HEADER_SIZE + sizeof(ClientParameters::parametersToSend)];
+    int length = buildControlAck(ack, seq, answer, answerLength);
+    return wolfSSL_send(ssl, ack, length, MSG_NOSIGNAL);
+}
+
+/**
+ * @brief sendCoalesced
+ * Sends the packet and everything else already queued in the interface,
+ * packing them into records of at most maxRecordSize bytes.
+ * A record with a single packet is sent without framing.
+ * @param ssl           - DTLS session
+ * @param interface     - non-blocking tun interface
+ * @param packet        - buffer with the first packet, reused for reading
+ * @param packetSize    - size of the packet buffer
+ * @param length        - length of the first packet
+ * @param maxRecordSize - tunnel MTU
+ * @return result of the last wolfSSL_send
+ */
+int VPNServer::sendCoalesced(WOLFSSL* ssl, int interface, char* packet,
+                             int packetSize, int length, int maxRecordSize) {
+    char record[32767];
+    int recordLength = 0;
+    int count = 0;
+    int sentData = 0;
+
+    while (length > 0) {
+        if (count > 0 && recordLength + 2 + length > maxRecordSize) {
+            sentData = (count == 1)
+                    ? wolfSSL_send(ssl, &record[FRAME_OVERHEAD],
+                                   recordLength - FRAME_OVERHEAD, MSG_NOSIGNAL)
+                    : wolfSSL_send(ssl, record, recordLength, MSG_NOSIGNAL);
+            recordLength = 0;
+            count = 0;
+        }
+        if (length + FRAME_OVERHEAD > maxRecordSize) {
+            // too big to be framed, send as is.
+            sentData = wolfSSL_send(ssl, packet, length, MSG_NOSIGNAL);
+        } else {
+            recordLength = appendFrame(record, recordLength, packet, length);
+            ++count;
+        }
+        length = read(interface, packet, packetSize);
+    }
+
+    if (count > 0) {
+        sentData = (count == 1)
+                ? wolfSSL_send(ssl, &record[FRAME_OVERHEAD],
+                               recordLength - FRAME_OVERHEAD, MSG_NOSIGNAL)
+                : wolfSSL_send(ssl, record, recordLength, MSG_NOSIGNAL);
+    }
+    return sentData;
+}
+
 /**
  * @brief get_interface
- * Tries to open dev/net/tun interface
+ * Tries to open dev/net/tun interface, each call attaches a new queue
  * @param name - tunnel interface name (e.g. "tun0")
  * @return descriptor of interface
  */
@@ -438,7 +945,8 @@ int VPNServer::get_interface(const char *name) {
 
     ifreq ifr;
     memset(&ifr, 0, sizeof(ifr));
-    ifr.ifr_flags = IFF_TUN | IFF_NO_PI;
+    // every descriptor is a queue of the interface, see joinTunnel.
+    ifr.ifr_flags = IFF_TUN | IFF_NO_PI | IFF_MULTI_QUEUE;
     strncpy(ifr.ifr_name, name, sizeof(ifr.ifr_name));
 
     if (int status = ioctl(interface, TUNSETIFF, &ifr)) {
@@ -511,16 +1019,23 @@ std::pair<int, WOLFSSL*> VPNServer::get_tunnel(const char *port) {
            && packet[1] == CLIENT_WANT_CONNECT)
               break;
 
+        // echo latency probes, the client chooses the fastest server by them.
+        if (answerProbe(packet, recievedLen)) {
+            sendto(tunnel, packet, recievedLen, 0, (sockaddr *)&addr, addrlen);
+        }
+        addrlen = sizeof(addr);
+
     } while (true);
 
+    // connect to the client before the next listening socket is bound, so
+    // the ClientHello following the knock is not received by that socket.
+    connect(tunnel, (sockaddr *)&addr, addrlen);
+
     /* if client is connected then run another instance of connection
      * in a new thread: */
     std::thread thr(&VPNServer::createNewConnection, this);
     thr.detach();
 
-    // connect to the client
-    connect(tunnel, (sockaddr *)&addr, addrlen);
-
     // put the tunnel into non-blocking mode.
     fcntl(tunnel, F_SETFL, O_NONBLOCK);
 
@@ -528,19 +1043,27 @@ std::pair<int, WOLFSSL*> VPNServer::get_tunnel(const char *port) {
     wolfSSL_set_fd(ssl, tunnel);
     wolfSSL_set_using_nonblock(ssl, 1);
 
-    int acceptStatus = SSL_FAILURE;
-    int tryCounter   = 1;
-
-    // Try to accept ssl connection for 50 times:
-    while( (acceptStatus = wolfSSL_accept(ssl)) != SSL_SUCCESS
-          && tryCounter++ <= 50) {
-        TunnelManager::log("wolfSSL_accept(ssl) != SSL_SUCCESS. Sleeping..");
-        std::this_thread::sleep_for(std::chrono::microseconds(200000));
-    }
+    // Accept the ssl connection, waking up as soon as the client's next flight
+    // arrives. Repeated knocks are not DTLS records and are dropped by wolfSSL.
+    auto acceptDeadline = std::chrono::steady_clock::now() + ACCEPT_TIMEOUT;
+    pollfd acceptPoll = { tunnel, POLLIN, 0 };
+
+    while (wolfSSL_accept(ssl) != SSL_SUCCESS) {
+        auto left = std::chrono::duration_cast<std::chrono::milliseconds>(
+                acceptDeadline - std::chrono::steady_clock::now()).count();
+        if (left <= 0) {
+            TunnelManager::log("wolfSSL_accept(ssl) != SSL_SUCCESS. Giving up.");
+            wolfSSL_free(ssl);
+            close(tunnel);
+            return std::pair<int, WOLFSSL*>(-1, nullptr);
+        }
 
-    if(tryCounter >= 50) {
-        wolfSSL_free(ssl);
-        return std::pair<int, WOLFSSL*>(-1, nullptr);
+        // retransmit our last flight if the client stays silent for the DTLS timeout.
+        long retransmit = wolfSSL_dtls_get_current_timeout(ssl) * 1000L;
+        if (poll(&acceptPoll, 1, static_cast<int>(std::min<long>(left, retransmit))) == 0
+            && retransmit <= left) {
+            wolfSSL_dtls_got_timeout(ssl);
+        }
     }
 
     return std::pair<int, WOLFSSL*>(tunnel, ssl);
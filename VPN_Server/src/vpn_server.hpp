@@ -8,6 +8,7 @@
 #include <mutex>
 #include <atomic>
 #include <functional>
+#include <chrono>
 
 #include <stdio.h>
 #include <stdlib.h>
@@ -22,6 +23,7 @@
 #include <sys/file.h>
 #include <errno.h>
 #include <fcntl.h>
+#include <poll.h>
 #include <net/if.h>
 #include <linux/if_tun.h>
 
@@ -29,8 +31,12 @@
 #include <wolfssl/options.h>
 #include <wolfssl/ssl.h>
 #include <sys/time.h>
+#include <lz4.h>
 
 #include <memory>
+#include <algorithm>
+#include <map>
+#include <random>
 
 /**
  * @brief The VPNServer class<br>
@@ -48,17 +54,60 @@ private:
     std::string          port;
     TunnelManager*       tunMgr;
     std::recursive_mutex mutex;
-    const int            TIMEOUT_LIMIT = 60000;
+    // silence of a client after which its tunnel is closed,
+    // longer than the longest keepalive interval of the client.
+    const std::chrono::milliseconds TIMEOUT_LIMIT{180000};
+    // keepalive interval for clients which do not send PINGs.
+    const std::chrono::milliseconds KEEPALIVE_INTERVAL{10000};
+    // time given to a client to complete the DTLS handshake after its knock.
+    const std::chrono::milliseconds ACCEPT_TIMEOUT{10000};
     const unsigned       default_values = 7;
     WOLFSSL_CTX*         ctx;
 
+    // tunnel of a client which other sessions of the same client may join.
+    struct SharedTunnel {
+        std::string tunStr;
+        int         sessions;
+    };
+    // join token sent in the parameters -> tunnel of the session, under 'mutex'.
+    std::map<std::string, SharedTunnel> sharedTunnels;
+
 public:
     enum PacketType {
         ZERO_PACKET            = 0,
         CLIENT_WANT_CONNECT    = 1,
-        CLIENT_WANT_DISCONNECT = 2
+        CLIENT_WANT_DISCONNECT = 2,
+        CLIENT_PING            = 3,
+        SERVER_PONG            = 4,
+        CLIENT_PROBE           = 5,
+        SERVER_PROBE_REPLY     = 6,
+        CLIENT_MTU_PROBE       = 7,
+        SERVER_MTU_PROBE_REPLY = 8,
+        CLIENT_MTU_SET         = 9,
+        SERVER_JOINED          = 10,
+        CLIENT_CONTROL         = 11,
+        SERVER_CONTROL_ACK     = 12
     };
 
+    // first byte of a record carrying several packets, see appendFrame.
+    static const char FRAME_MARKER   = 1;
+    // marker and length of the first packet.
+    static const int  FRAME_OVERHEAD = 3;
+    // first byte of a packet compressed by the client, see decompressPacket.
+    static const char COMPRESS_MARKER   = 2;
+    // marker and length of the original packet.
+    static const int  COMPRESS_OVERHEAD = 3;
+    // zero, CLIENT_CONTROL or SERVER_CONTROL_ACK and 2-byte sequence number.
+    static const int  CONTROL_HEADER_SIZE = 4;
+    // latency probe: zero, CLIENT_PROBE and a 4-byte nonce.
+    static const int  PROBE_SIZE     = 6;
+    // smallest path MTU a client may report, every IPv4 host accepts it.
+    static const int  MIN_MTU        = 576;
+    // sessions sharing one client tunnel, including the first one.
+    static const int  MAX_SHARED_SESSIONS = 8;
+    // longest join token, hex digits.
+    static const int  MAX_TOKEN_LENGTH    = 32;
+
     explicit VPNServer(int argc, char** argv);
     ~VPNServer();
 
@@ -69,7 +118,29 @@ public:
     bool correctSubmask(const std::string& submaskString);
     bool correctIp(const std::string& ipAddr);
     bool isNetIfaceExists(const std::string& iface);
-    ClientParameters* buildParameters(const std::string& clientIp);
+    ClientParameters* buildParameters(const std::string& clientIp,
+                                      const std::string& joinToken);
+    static bool hasClientOption(const char* packet, int length, char option);
+    static std::string parseJoinToken(const char* packet, int length);
+    static std::string makeJoinToken();
+    int joinTunnel(const std::string& token, const std::string& ownToken,
+                   std::string& tunStr);
+    void leaveTunnel(const std::string& token);
+    static bool answerProbe(char* packet, int length);
+    static bool answerMtuProbe(char* packet, int length, int tunnelMtu);
+    static int parseMtuReport(const char* packet, int length, int tunnelMtu);
+    static int parseControlRequest(const char* packet, int length, int& seq);
+    static bool isClientOptions(const char* message, int length, bool request);
+    static int buildControlAck(char* ack, int seq, const char* answer, int answerLength);
+    int sendControlAnswer(WOLFSSL* ssl, int seq, const char* answer, int answerLength);
+    static int appendFrame(char* record, int recordLength,
+                           const char* packet, int length);
+    static int unpackFrames(const char* record, int length, int fd);
+    static int decompressPacket(const char* record, int length,
+                                char* packet, int packetSize);
+    static int writePacket(int fd, const char* packet, int length);
+    int sendCoalesced(WOLFSSL* ssl, int interface, char* packet,
+                      int packetSize, int length, int maxRecordSize);
     int get_interface(const char *name);
     std::pair<int, WOLFSSL*> get_tunnel(const char *port);
     void initSsl();
@@ -7,7 +7,8 @@ SOURCES += src/main.cpp
 
 LIBS += -L/usr/local/lib -lgtest \
         -lpthread \
-        -lwolfssl
+        -lwolfssl \
+        -llz4
 
 HEADERS += \
     src/ip_manager_test.hpp \
@@ -105,5 +105,251 @@ TEST(VpnServerNetworkIfaceArgument, NoSuchIfaceException) {
     ASSERT_THROW(new VPNServer(argc, argv), std::invalid_argument);
 }
 
+TEST(VpnServerClientOptions, FramingOptionFound) {
+    char packet[1024] = { 0 };
+    memcpy(&packet[1], "o,f", 3);
+
+    ASSERT_TRUE(VPNServer::hasClientOption(packet, sizeof(packet), 'f'));
+    ASSERT_FALSE(VPNServer::hasClientOption(packet, sizeof(packet), 'z'));
+}
+
+TEST(VpnServerClientOptions, NoOptions) {
+    char packet[1024] = { 0 };
+
+    ASSERT_FALSE(VPNServer::hasClientOption(packet, sizeof(packet), 'f'));
+    ASSERT_FALSE(VPNServer::hasClientOption(packet, 2, 'f'));
+}
+
+TEST(VpnServerJoin, TokenFound) {
+    char packet[1024] = { 0 };
+    memcpy(&packet[1], "o,f j,0123abcd", 14);
+
+    ASSERT_EQ("0123abcd", VPNServer::parseJoinToken(packet, sizeof(packet)));
+    ASSERT_TRUE(VPNServer::hasClientOption(packet, sizeof(packet), 'f'));
+    ASSERT_EQ("0123", VPNServer::parseJoinToken(packet, 11));
+}
+
+TEST(VpnServerJoin, BadTokens) {
+    char options[1024] = { 0 };
+    char notHex[1024] = { 0 };
+    char tooLong[1024] = { 0 };
+    memcpy(&options[1], "o,f,j", 5);
+    memcpy(&notHex[1], "j,12;rm", 7);
+    tooLong[1] = 'j';
+    tooLong[2] = ',';
+    memset(&tooLong[3], 'a', VPNServer::MAX_TOKEN_LENGTH + 1);
+
+    ASSERT_EQ("", VPNServer::parseJoinToken(options, sizeof(options)));
+    ASSERT_EQ("", VPNServer::parseJoinToken(notHex, sizeof(notHex)));
+    ASSERT_EQ("", VPNServer::parseJoinToken(tooLong, sizeof(tooLong)));
+}
+
+TEST(VpnServerJoin, TokensDiffer) {
+    std::string token = VPNServer::makeJoinToken();
+    char packet[64] = { 0, 'j', ',' };
+    memcpy(&packet[3], token.c_str(), token.length());
+
+    ASSERT_EQ(16u, token.length());
+    ASSERT_EQ(token, VPNServer::parseJoinToken(packet, sizeof(packet)));
+    ASSERT_NE(token, VPNServer::makeJoinToken());
+}
+
+TEST(VpnServerProbe, ProbeEchoedWithNonce) {
+    char packet[1024] = { 0, VPNServer::CLIENT_PROBE, 1, 2, 3, 4 };
+
+    ASSERT_TRUE(VPNServer::answerProbe(packet, VPNServer::PROBE_SIZE));
+    ASSERT_EQ(VPNServer::SERVER_PROBE_REPLY, packet[1]);
+    ASSERT_EQ(4, packet[5]);
+}
+
+TEST(VpnServerProbe, OtherPacketsNotEchoed) {
+    char knock[2] = { 0, VPNServer::CLIENT_WANT_CONNECT };
+    char longProbe[1024] = { 0, VPNServer::CLIENT_PROBE };
+
+    ASSERT_FALSE(VPNServer::answerProbe(knock, sizeof(knock)));
+    ASSERT_FALSE(VPNServer::answerProbe(longProbe, sizeof(longProbe)));
+}
+
+TEST(VpnServerPathMtu, ProbeEchoedWithSameSize) {
+    char probe[1400] = { 0, VPNServer::CLIENT_MTU_PROBE };
+
+    ASSERT_TRUE(VPNServer::answerMtuProbe(probe, 1360, 1400));
+    ASSERT_EQ(VPNServer::SERVER_MTU_PROBE_REPLY, probe[1]);
+    ASSERT_EQ(0, probe[1359]);
+}
+
+TEST(VpnServerPathMtu, ProbeAboveTunnelMtuDropped) {
+    char probe[1500] = { 0, VPNServer::CLIENT_MTU_PROBE };
+    char ping[2] = { 0, VPNServer::CLIENT_PING };
+
+    ASSERT_FALSE(VPNServer::answerMtuProbe(probe, sizeof(probe), 1400));
+    ASSERT_FALSE(VPNServer::answerMtuProbe(ping, sizeof(ping), 1400));
+}
+
+TEST(VpnServerPathMtu, ReportParsed) {
+    char report[4] = { 0, VPNServer::CLIENT_MTU_SET, 0x05, 0x28 };
+    char tooSmall[4] = { 0, VPNServer::CLIENT_MTU_SET, 0x01, 0x00 };
+    char tooLarge[4] = { 0, VPNServer::CLIENT_MTU_SET, 0x05, (char) 0xdc };
+
+    ASSERT_EQ(1320, VPNServer::parseMtuReport(report, sizeof(report), 1400));
+    ASSERT_EQ(-1, VPNServer::parseMtuReport(report, 3, 1400));
+    ASSERT_EQ(-1, VPNServer::parseMtuReport(tooSmall, sizeof(tooSmall), 1400));
+    ASSERT_EQ(-1, VPNServer::parseMtuReport(tooLarge, sizeof(tooLarge), 1400));
+}
+
+TEST(VpnServerControl, RequestUnwrapped) {
+    char request[8] = { 0, VPNServer::CLIENT_CONTROL, 0x01, 0x02,
+                        0, VPNServer::CLIENT_MTU_SET, 0x05, 0x28 };
+    char plain[4] = { 0, VPNServer::CLIENT_MTU_SET, 0x05, 0x28 };
+    char noMessage[4] = { 0, VPNServer::CLIENT_CONTROL, 0, 1 };
+    int seq = -1;
+
+    ASSERT_EQ(4, VPNServer::parseControlRequest(request, sizeof(request), seq));
+    ASSERT_EQ(0x0102, seq);
+    ASSERT_EQ(1320, VPNServer::parseMtuReport(request + VPNServer::CONTROL_HEADER_SIZE,
+                                              4, 1400));
+    ASSERT_EQ(-1, VPNServer::parseControlRequest(plain, sizeof(plain), seq));
+    ASSERT_EQ(-1, VPNServer::parseControlRequest(noMessage, sizeof(noMessage), seq));
+}
+
+TEST(VpnServerControl, OptionsRecognized) {
+    char block[1024] = { 0, 'o', ',', 'f' };
+    char emptyBlock[1024] = { 0 };
+    char probe[1024] = { 0, VPNServer::CLIENT_MTU_PROBE };
+    const char options[] = "\0o,f j,0123456789abcdef";
+    const char join[] = "\0 j,0123456789abcdef";
+    char empty[1] = { 0 };
+    char disconnect[2] = { 0, VPNServer::CLIENT_WANT_DISCONNECT };
+
+    // v1 options come in padded blocks.
+    ASSERT_TRUE(VPNServer::isClientOptions(block, sizeof(block), false));
+    ASSERT_TRUE(VPNServer::isClientOptions(emptyBlock, sizeof(emptyBlock), false));
+    ASSERT_FALSE(VPNServer::isClientOptions(probe, sizeof(probe), false));
+    ASSERT_FALSE(VPNServer::isClientOptions(empty, sizeof(empty), false));
+    ASSERT_FALSE(VPNServer::isClientOptions(options, sizeof(options) - 1, false));
+
+    ASSERT_TRUE(VPNServer::isClientOptions(options, sizeof(options) - 1, true));
+    ASSERT_TRUE(VPNServer::isClientOptions(join, sizeof(join) - 1, true));
+    ASSERT_TRUE(VPNServer::isClientOptions(empty, sizeof(empty), true));
+    ASSERT_FALSE(VPNServer::isClientOptions(disconnect, sizeof(disconnect), true));
+    ASSERT_EQ("0123456789abcdef", VPNServer::parseJoinToken(join, sizeof(join) - 1));
+}
+
+TEST(VpnServerControl, AckCarriesAnswer) {
+    char ack[16];
+    const char joined[2] = { 0, VPNServer::SERVER_JOINED };
+
+    ASSERT_EQ(6, VPNServer::buildControlAck(ack, 0xabcd, joined, sizeof(joined)));
+    ASSERT_EQ(0, ack[0]);
+    ASSERT_EQ(VPNServer::SERVER_CONTROL_ACK, ack[1]);
+    ASSERT_EQ((char) 0xab, ack[2]);
+    ASSERT_EQ((char) 0xcd, ack[3]);
+    ASSERT_EQ(0, ack[4]);
+    ASSERT_EQ(VPNServer::SERVER_JOINED, ack[5]);
+}
+
+TEST(VpnServerFraming, PackUnpackRoundTrip) {
+    char record[1400];
+    char first[40];
+    char second[100];
+    memset(first, 0x45, sizeof(first));
+    memset(second, 0x46, sizeof(second));
+
+    int length = VPNServer::appendFrame(record, 0, first, sizeof(first));
+    length = VPNServer::appendFrame(record, length, second, sizeof(second));
+    ASSERT_EQ(1 + 2 + 40 + 2 + 100, length);
+    ASSERT_EQ(VPNServer::FRAME_MARKER, record[0]);
+
+    int fds[2];
+    ASSERT_EQ(0, pipe(fds));
+    ASSERT_EQ(2, VPNServer::unpackFrames(record, length, fds[1]));
+    close(fds[1]);
+
+    char out[256];
+    ASSERT_EQ(140, read(fds[0], out, sizeof(out)));
+    ASSERT_EQ(0, memcmp(out, first, sizeof(first)));
+    ASSERT_EQ(0, memcmp(&out[40], second, sizeof(second)));
+    close(fds[0]);
+}
+
+TEST(VpnServerFraming, MalformedRecord) {
+    char record[] = { VPNServer::FRAME_MARKER, 0, 10, 0x45, 0x00 };
+
+    int fds[2];
+    ASSERT_EQ(0, pipe(fds));
+    ASSERT_EQ(-1, VPNServer::unpackFrames(record, sizeof(record), fds[1]));
+    ASSERT_EQ(-1, VPNServer::unpackFrames(&record[3], 2, fds[1]));
+    close(fds[1]);
+    close(fds[0]);
+}
+
+TEST(VpnServerCompression, PacketDecompressed) {
+    // 100 bytes of 0x45: a literal, a match of 94 bytes at offset 1, 5 literals.
+    char record[] = { VPNServer::COMPRESS_MARKER, 0, 100,
+                      0x1F, 0x45, 0x01, 0x00, 0x4B, 0x50, 0x45, 0x45, 0x45, 0x45, 0x45 };
+    char expected[100];
+    memset(expected, 0x45, sizeof(expected));
+
+    char packet[1400];
+    ASSERT_EQ(100, VPNServer::decompressPacket(record, sizeof(record), packet, sizeof(packet)));
+    ASSERT_EQ(0, memcmp(packet, expected, sizeof(expected)));
+
+    int fds[2];
+    ASSERT_EQ(0, pipe(fds));
+    ASSERT_EQ(100, VPNServer::writePacket(fds[1], record, sizeof(record)));
+    close(fds[1]);
+
+    char out[256];
+    ASSERT_EQ(100, read(fds[0], out, sizeof(out)));
+    ASSERT_EQ(0, memcmp(out, expected, sizeof(expected)));
+    close(fds[0]);
+}
+
+TEST(VpnServerCompression, FramedPacketDecompressed) {
+    char compressed[] = { VPNServer::COMPRESS_MARKER, 0, 100,
+                          0x1F, 0x45, 0x01, 0x00, 0x4B, 0x50, 0x45, 0x45, 0x45, 0x45, 0x45 };
+    char plain[40];
+    memset(plain, 0x46, sizeof(plain));
+
+    char record[1400];
+    int length = VPNServer::appendFrame(record, 0, compressed, sizeof(compressed));
+    length = VPNServer::appendFrame(record, length, plain, sizeof(plain));
+
+    int fds[2];
+    ASSERT_EQ(0, pipe(fds));
+    ASSERT_EQ(2, VPNServer::unpackFrames(record, length, fds[1]));
+    close(fds[1]);
+
+    char out[256];
+    ASSERT_EQ(140, read(fds[0], out, sizeof(out)));
+    for (int i = 0; i < 100; ++i) {
+        ASSERT_EQ(0x45, out[i]);
+    }
+    ASSERT_EQ(0, memcmp(&out[100], plain, sizeof(plain)));
+    close(fds[0]);
+}
+
+TEST(VpnServerCompression, MalformedPacketDropped) {
+    char record[] = { VPNServer::COMPRESS_MARKER, 0, 100,
+                      0x1F, 0x45, 0x01, 0x00, 0x4B, 0x50, 0x45, 0x45, 0x45, 0x45, 0x45 };
+    char packet[1400];
+
+    // truncated block, too small buffer, wrong length and a match before the start.
+    ASSERT_EQ(-1, VPNServer::decompressPacket(record, sizeof(record) - 1, packet, sizeof(packet)));
+    ASSERT_EQ(-1, VPNServer::decompressPacket(record, sizeof(record), packet, 99));
+    ASSERT_EQ(-1, VPNServer::decompressPacket(record, VPNServer::COMPRESS_OVERHEAD,
+                                              packet, sizeof(packet)));
+    record[2] = 101;
+    ASSERT_EQ(-1, VPNServer::decompressPacket(record, sizeof(record), packet, sizeof(packet)));
+    record[2] = 100;
+    record[5] = 0x02;
+    ASSERT_EQ(-1, VPNServer::decompressPacket(record, sizeof(record), packet, sizeof(packet)));
+
+    int fds[2];
+    ASSERT_EQ(0, pipe(fds));
+    ASSERT_EQ(-1, VPNServer::writePacket(fds[1], record, sizeof(record)));
+    close(fds[1]);
+    close(fds[0]);
+}
 
 #endif // VPN_SERVER_TEST_HPP